@@ -4,7 +4,9 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
 import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 
 import org.slf4j.Logger;
@@ -16,6 +18,7 @@ import org.stagemonitor.alerting.incident.Incident;
 import org.stagemonitor.alerting.incident.IncidentRepository;
 import org.stagemonitor.core.MeasurementSession;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.Metric2Visitor;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.metrics.metrics2.ScheduledMetrics2Reporter;
 import org.stagemonitor.core.util.JsonUtils;
@@ -25,10 +28,12 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 
 	private static final int OPTIMISTIC_CONCURRENCY_CONTROL_RETRIES = 10;
+	private static final double DURATION_FACTOR = 1.0 / TimeUnit.MILLISECONDS.toNanos(1);
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	private final AlertSender alertSender;
@@ -48,15 +53,27 @@ public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 		this.measurementSession = builder.getMeasurementSession();
 	}
 
+	@Override
+	public void report() {
+		try {
+			final Report report = newReport();
+			final GroupingVisitor groupingVisitor = new GroupingVisitor();
+			report.visitMetrics(groupingVisitor);
+			checkMetrics(groupingVisitor.metricsGroupedByName);
+			report.delivered();
+		} finally {
+			reportFinished();
+		}
+	}
+
 	@Override
 	public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters, Map<MetricName, Histogram> histograms, Map<MetricName, Meter> meters, Map<MetricName, Timer> timers) {
-		Map<String, Map<MetricName, Metric>> metricsGroupedByName = new HashMap<String, Map<MetricName, Metric>>();
-		addMetrics(metricsGroupedByName, gauges);
-		addMetrics(metricsGroupedByName, counters);
-		addMetrics(metricsGroupedByName, histograms);
-		addMetrics(metricsGroupedByName, meters);
-		addMetrics(metricsGroupedByName, timers);
+		final GroupingVisitor groupingVisitor = new GroupingVisitor();
+		visitMetrics(gauges, counters, histograms, meters, timers, groupingVisitor);
+		checkMetrics(groupingVisitor.metricsGroupedByName);
+	}
 
+	private void checkMetrics(Map<String, Map<MetricName, Metric>> metricsGroupedByName) {
 		for (Check check : alertingPlugin.getChecks().values()) {
 			if (measurementSession.getApplicationName().equals(check.getApplication()) && check.isActive()) {
 				checkMetrics(metricsGroupedByName, check);
@@ -64,14 +81,44 @@ public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 		}
 	}
 
-	private <T extends Metric> void addMetrics(Map<String, Map<MetricName, Metric>> metricsGroupedByName, Map<MetricName, T > metrics) {
-		for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
-			Map<MetricName, Metric> metricsForName = metricsGroupedByName.get(entry.getKey().getName());
+	/**
+	 * Groups the metrics by their name
+	 */
+	private static class GroupingVisitor implements Metric2Visitor {
+		private final Map<String, Map<MetricName, Metric>> metricsGroupedByName = new HashMap<String, Map<MetricName, Metric>>();
+
+		@Override
+		public void visitGauge(MetricName name, Gauge gauge) {
+			add(name, gauge);
+		}
+
+		@Override
+		public void visitCounter(MetricName name, Counter counter) {
+			add(name, counter);
+		}
+
+		@Override
+		public void visitHistogram(MetricName name, Histogram histogram) {
+			add(name, histogram);
+		}
+
+		@Override
+		public void visitMeter(MetricName name, Meter meter) {
+			add(name, meter);
+		}
+
+		@Override
+		public void visitTimer(MetricName name, Timer timer) {
+			add(name, timer);
+		}
+
+		private void add(MetricName name, Metric metric) {
+			Map<MetricName, Metric> metricsForName = metricsGroupedByName.get(name.getName());
 			if (metricsForName == null) {
 				metricsForName = new HashMap<MetricName, Metric>();
-				metricsGroupedByName.put(entry.getKey().getName(), metricsForName);
+				metricsGroupedByName.put(name.getName(), metricsForName);
 			}
-			metricsForName.put(entry.getKey(), entry.getValue());
+			metricsForName.put(name, metric);
 		}
 	}
 
@@ -99,9 +146,47 @@ public class ThresholdMonitoringReporter extends ScheduledMetrics2Reporter {
 	}
 
 	private Map<String, Number> asMap(Metric metric) {
+		if (metric instanceof Timer) {
+			final Timer timer = (Timer) metric;
+			final Map<String, Number> values = new HashMap<String, Number>();
+			addMetered(values, timer);
+			addSnapshot(values, getSnapshot(timer), DURATION_FACTOR);
+			return values;
+		} else if (metric instanceof Histogram) {
+			final Histogram histogram = (Histogram) metric;
+			final Map<String, Number> values = new HashMap<String, Number>();
+			values.put("count", histogram.getCount());
+			addSnapshot(values, getSnapshot(histogram), 1);
+			return values;
+		}
 		return JsonUtils.getMapper().convertValue(metric, Map.class);
 	}
 
+	/*
+	 * Timers and histograms are not converted via JsonUtils (which calls getSnapshot() on the metric) so that the
+	 * snapshot is shared with the other reporters. The keys and units are the same as the ones of the MetricsModule.
+	 */
+	private void addMetered(Map<String, Number> values, Metered metered) {
+		values.put("count", metered.getCount());
+		values.put("m1_rate", metered.getOneMinuteRate());
+		values.put("m5_rate", metered.getFiveMinuteRate());
+		values.put("m15_rate", metered.getFifteenMinuteRate());
+		values.put("mean_rate", metered.getMeanRate());
+	}
+
+	private void addSnapshot(Map<String, Number> values, Snapshot snapshot, double factor) {
+		values.put("min", snapshot.getMin() * factor);
+		values.put("max", snapshot.getMax() * factor);
+		values.put("mean", snapshot.getMean() * factor);
+		values.put("stddev", snapshot.getStdDev() * factor);
+		values.put("p50", snapshot.getMedian() * factor);
+		values.put("p75", snapshot.get75thPercentile() * factor);
+		values.put("p95", snapshot.get95thPercentile() * factor);
+		values.put("p98", snapshot.get98thPercentile() * factor);
+		values.put("p99", snapshot.get99thPercentile() * factor);
+		values.put("p999", snapshot.get999thPercentile() * factor);
+	}
+
 	private void addIncident(Check check, List<CheckResult> results) {
 		Incident incident = getAndPersistIncident(check, results);
 		if (incident != null) {
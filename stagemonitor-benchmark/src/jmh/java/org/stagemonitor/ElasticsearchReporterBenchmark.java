@@ -2,22 +2,18 @@ package org.stagemonitor;
 
 import com.codahale.metrics.*;
 import org.openjdk.jmh.annotations.*;
-import org.openjdk.jmh.infra.Blackhole;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.metrics.metrics2.ElasticsearchReporter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
-import org.stagemonitor.core.util.HttpClient;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static java.util.Collections.singletonMap;
-import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
@@ -26,8 +22,11 @@ import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 public class ElasticsearchReporterBenchmark {
 
 	private static final TimeUnit DURATION_UNIT = TimeUnit.MICROSECONDS;
-	private static final byte[] bulkActionBytes = new byte[] {};
 
+	@Param({"false", "true"})
+	public boolean smile;
+
+	private byte[] bulkActionBytes;
 	private ElasticsearchReporter elasticsearchReporter;
 	private ByteArrayOutputStream out;
 	private CorePlugin corePlugin;
@@ -51,18 +50,27 @@ public class ElasticsearchReporterBenchmark {
 				}
 			};
 			registry.register(name("test_gauge_" + g).build(), gauge);
-			counter = registry.counter(name("test_counter").build());
+		}
+		counter = registry.counter(name("test_counter").build());
+		for (int i = 0; i < 20; i++) {
+			registry.meter(name("test_meter_" + i).build()).mark(i);
+			final Histogram histogram = registry.histogram(name("test_histogram_" + i).build());
+			final Timer timer = registry.timer(name("test_timer_" + i).build());
+			for (int v = 0; v < 1000; v++) {
+				histogram.update(v);
+				timer.update(v, TimeUnit.MICROSECONDS);
+			}
 		}
 		gauges = registry.getGauges();
-		counters = metricNameMap(Counter.class);
-		histograms = metricNameMap(Histogram.class);
-		meters = metricNameMap(Meter.class);
-		timers = metricNameMap(Timer.class);
+		counters = registry.getCounters();
+		histograms = registry.getHistograms();
+		meters = registry.getMeters();
+		timers = registry.getTimers();
 
 		timestamp = System.currentTimeMillis();
+		bulkActionBytes = smile ? ElasticsearchClient.getSmileBulkHeader("index", "stagemonitor-metrics", "metrics")
+				: ElasticsearchClient.getBulkHeader("index", "stagemonitor-metrics", "metrics").getBytes("UTF-8");
 		out = new ByteArrayOutputStream();
-		HttpClient httpClient = mock(HttpClient.class);
-		when(httpClient.send(any(), any(), any(), any(), any())).thenReturn(200);
 		corePlugin = mock(CorePlugin.class);
 		final ElasticsearchClient elasticsearchClient = mock(ElasticsearchClient.class);
 		when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(true);
@@ -71,18 +79,24 @@ public class ElasticsearchReporterBenchmark {
 		elasticsearchReporter = ElasticsearchReporter.forRegistry(registry, corePlugin)
 			.convertDurationsTo(DURATION_UNIT)
 			.globalTags(singletonMap("app", "benchmark"))
-			.httpClient(httpClient)
 			.build();
 
 	}
 
-	private static <T> Map<MetricName, T> metricNameMap(Class<T> clazz) {
-		return Collections.emptyMap();
+	/**
+	 * Reports the size of the payload next to the score, so that the encodings can be compared
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class PayloadSize {
+		public long bytesPerReport;
 	}
 
 	@Benchmark
-	public void reportMetrics(Blackhole bh) throws IOException {
+	public void reportMetrics(PayloadSize payloadSize) throws IOException {
 		counter.inc();
-		elasticsearchReporter.reportMetrics(gauges, counters, histograms, meters, timers, out, bulkActionBytes, timestamp);
+		out.reset();
+		elasticsearchReporter.reportMetrics(gauges, counters, histograms, meters, timers, out, bulkActionBytes, timestamp, smile);
+		payloadSize.bytesPerReport = out.size();
 	}
 }
@@ -0,0 +1,93 @@
+package org.stagemonitor;
+
+import com.codahale.metrics.Gauge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.metrics.metrics2.InfluxDbReporter;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.HttpRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * Measures how long it takes to serialize 10k series (timers, meters, counters and gauges) into the InfluxDB line
+ * protocol. The request body is written into an {@link OutputStream} which discards the bytes.
+ */
+@State(value = Scope.Benchmark)
+public class InfluxDbReporterBenchmark {
+
+	private static final int SERIES = 10_000;
+
+	private InfluxDbReporter influxDbReporter;
+
+	@Setup(Level.Trial)
+	public void init() throws IOException {
+		final Metric2Registry registry = new Metric2Registry();
+		for (int i = 0; i < SERIES / 4; i++) {
+			registry.timer(name("response_time").operationName("operation " + i).operationType("http").build()).update(i, TimeUnit.MILLISECONDS);
+			registry.meter(name("error_rate").operationName("operation " + i).operationType("http").build()).mark();
+			registry.counter(name("counter").tag("index", Integer.toString(i)).build()).inc(i);
+			final double value = i / 3.0;
+			registry.register(name("gauge").tag("index", Integer.toString(i)).build(), new Gauge<Double>() {
+				@Override
+				public Double getValue() {
+					return value;
+				}
+			});
+		}
+		final CorePlugin corePlugin = mock(CorePlugin.class);
+		when(corePlugin.getInfluxDbUrl()).thenReturn(new URL("http://localhost:8086"));
+		when(corePlugin.getInfluxDbDb()).thenReturn("stagemonitor");
+		influxDbReporter = InfluxDbReporter.forRegistry(registry, corePlugin)
+				.globalTags(singletonMap("app", "benchmark"))
+				.httpClient(new DiscardingHttpClient())
+				.build();
+	}
+
+	@Benchmark
+	public void report() {
+		influxDbReporter.report();
+	}
+
+	private static class DiscardingHttpClient extends HttpClient {
+		@Override
+		public <T> T send(HttpRequest<T> request) {
+			try {
+				request.getOutputStreamHandler().withHttpURLConnection(new OutputStream() {
+					@Override
+					public void write(int b) {
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+					}
+				});
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return null;
+		}
+
+		@Override
+		public <T> Future<T> sendAsync(HttpRequest<T> request) {
+			// writes the request body in the benchmark thread, so that it is measured
+			return CompletableFuture.completedFuture(send(request));
+		}
+	}
+}
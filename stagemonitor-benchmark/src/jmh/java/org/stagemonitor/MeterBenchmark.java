@@ -0,0 +1,54 @@
+package org.stagemonitor;
+
+import com.codahale.metrics.Meter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.stagemonitor.core.metrics.metrics2.MeterType;
+
+/**
+ * Measures the throughput of concurrent {@link Meter#mark()} calls to the same meter which is what happens when
+ * all request threads mark the error_rate of all operations
+ */
+@State(value = Scope.Benchmark)
+public class MeterBenchmark {
+
+	@Param({"DROPWIZARD", "STRIPED"})
+	private MeterType meterType;
+
+	private Meter meter;
+
+	@Setup
+	public void init() {
+		meter = meterType.newMeter();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void mark1Thread() {
+		meter.mark();
+	}
+
+	@Benchmark
+	@Threads(32)
+	public void mark32Threads() {
+		meter.mark();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public void mark64Threads() {
+		meter.mark();
+	}
+
+	@Benchmark
+	@Threads(32)
+	public void markZero32Threads() {
+		meter.mark(0);
+	}
+
+}
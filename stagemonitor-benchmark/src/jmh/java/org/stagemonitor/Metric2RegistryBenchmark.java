@@ -0,0 +1,67 @@
+package org.stagemonitor;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.stagemonitor.core.metrics.metrics2.LegacyMirroringMode;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * Measures the cost of registering new series, for example when a response_time timer is created for a new operation
+ */
+@State(value = Scope.Benchmark)
+public class Metric2RegistryBenchmark {
+
+	private static final int SERIES = 1000;
+
+	@Param({"OFF", "EAGER", "LAZY"})
+	private LegacyMirroringMode legacyMirroringMode;
+
+	private final MetricName[] names = new MetricName[SERIES];
+
+	@Setup
+	public void init() {
+		final MetricName.MetricNameTemplate template = name("response_time")
+				.templateFor("operation_name", "operation_type");
+		for (int i = 0; i < SERIES; i++) {
+			names[i] = template.build("GET /products/" + i, "http");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SERIES)
+	public void registerNewTimers(Blackhole bh) {
+		final Metric2Registry registry = new Metric2Registry(new MetricRegistry());
+		registry.setLegacyMirroringMode(legacyMirroringMode);
+		for (MetricName name : names) {
+			bh.consume(registry.timer(name));
+		}
+	}
+
+	@Benchmark
+	public Timer getExistingTimer(ExistingTimers existingTimers) {
+		return existingTimers.registry.timer(names[0]);
+	}
+
+	@State(value = Scope.Benchmark)
+	public static class ExistingTimers {
+		private Metric2Registry registry;
+
+		@Setup
+		public void init(Metric2RegistryBenchmark benchmark) {
+			registry = new Metric2Registry(new MetricRegistry());
+			registry.setLegacyMirroringMode(benchmark.legacyMirroringMode);
+			registry.timer(benchmark.names[0]);
+		}
+	}
+}
@@ -25,6 +25,16 @@ public class MetricNameBenchmark {
 			.templateFor("operation_name");
 	private static final MetricName.MetricNameTemplate externalRequestTemplate = name("external_request_response_time")
 			.templateFor("type", "signature", "method");
+	private static final MetricName.MetricNameTemplate responseTimeTemplate = name("response_time")
+			.templateFor("operation_name", "operation_type");
+
+	// pre-allocated, so that the cache hit benchmarks only measure the allocations of MetricNameTemplate#build
+	private static final String[] VALUES = new String[100];
+	static {
+		for (int j = 0; j < VALUES.length; j++) {
+			VALUES[j] = Integer.toString(j);
+		}
+	}
 
 	private List<MetricName> names = new ArrayList<>();
 
@@ -576,6 +586,37 @@ public class MetricNameBenchmark {
 		return name("external_request_response_time").type(s).tag("signature", s).tag("method", s).build();
 	}
 
+	/*
+	 * Run with -prof gc, gc.alloc.rate.norm should be ~0 B/op for the *CacheHit benchmarks
+	 */
+	@Benchmark
+	public MetricName buildMetricTemplateSingleValueCacheHit() {
+		i++;
+		return timerMetricNameTemplate.build(VALUES[i % VALUES.length]);
+	}
+
+	@Benchmark
+	public MetricName buildMetricTemplateTwoValuesCacheHit() {
+		i++;
+		final String s = VALUES[i % VALUES.length];
+		return responseTimeTemplate.build(s, "http");
+	}
+
+	@Benchmark
+	public MetricName buildMetricTemplateThreeValuesCacheHit() {
+		i++;
+		final String s = VALUES[i % VALUES.length];
+		return externalRequestTemplate.build(s, s, s);
+	}
+
+	@Benchmark
+	public void getTagKeysAndValues(Blackhole bh) {
+		for (MetricName name : names) {
+			bh.consume(name.getTagKeys());
+			bh.consume(name.getTagValues());
+		}
+	}
+
 	@Benchmark
 	public void matchMetricName(Blackhole bh) {
 		for (MetricName name : names) {
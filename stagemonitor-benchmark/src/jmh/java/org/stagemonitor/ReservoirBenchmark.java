@@ -0,0 +1,51 @@
+package org.stagemonitor;
+
+import com.codahale.metrics.Reservoir;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.stagemonitor.core.metrics.metrics2.ReservoirType;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of concurrent {@link Reservoir#update(long)} calls to the same reservoir
+ * which is what happens when multiple request threads update the same response time timer
+ */
+@State(value = Scope.Benchmark)
+public class ReservoirBenchmark {
+
+	@Param({"EXPONENTIALLY_DECAYING", "HDR_HISTOGRAM"})
+	private ReservoirType reservoirType;
+
+	private Reservoir reservoir;
+
+	@Setup
+	public void init() {
+		reservoir = reservoirType.newReservoir(TimeUnit.MINUTES.toMillis(1));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void update1Thread() {
+		reservoir.update(ThreadLocalRandom.current().nextLong(1_000_000, 100_000_000));
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void update8Threads() {
+		reservoir.update(ThreadLocalRandom.current().nextLong(1_000_000, 100_000_000));
+	}
+
+	@Benchmark
+	@Threads(32)
+	public void update32Threads() {
+		reservoir.update(ThreadLocalRandom.current().nextLong(1_000_000, 100_000_000));
+	}
+
+}
@@ -0,0 +1,51 @@
+package org.stagemonitor;
+
+import org.openjdk.jmh.annotations.*;
+import org.stagemonitor.tracing.SpanContextInformation;
+import org.stagemonitor.tracing.wrapper.SpanEventListenerFactory;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+import org.stagemonitor.tracing.wrapper.SpanWrappingTracer;
+import org.stagemonitor.tracing.wrapper.StatelessSpanEventListener;
+
+import java.util.Arrays;
+
+import io.opentracing.Span;
+import io.opentracing.noop.NoopTracerFactory;
+
+/**
+ * Measures the throughput of starting and finishing spans with many concurrent threads, each span being looked up
+ * via {@link SpanContextInformation#forSpan(Span)} a couple of times like the span event listeners do
+ */
+@State(value = Scope.Benchmark)
+@Threads(32)
+@BenchmarkMode(Mode.Throughput)
+public class SpanContextInformationBenchmark {
+
+	private SpanWrappingTracer tracer;
+
+	@Setup
+	public void init() {
+		tracer = new SpanWrappingTracer(NoopTracerFactory.create(), Arrays.<SpanEventListenerFactory>asList(
+				new SpanContextInformation.SpanContextSpanEventListener(),
+				new StatelessSpanEventListener() {
+					@Override
+					public void onStart(SpanWrapper spanWrapper) {
+						SpanContextInformation.forSpan(spanWrapper).addRequestAttribute("foo", "bar");
+					}
+
+					@Override
+					public void onFinish(SpanWrapper spanWrapper, String operationName, long durationNanos) {
+						SpanContextInformation.forSpan(spanWrapper).getRequestAttribute("foo");
+						SpanContextInformation.forSpan(spanWrapper).getCallTree();
+					}
+				},
+				new SpanContextInformation.SpanFinalizer()));
+	}
+
+	@Benchmark
+	public Span startAndFinishSpan() {
+		final Span span = tracer.buildSpan("test").start();
+		span.finish();
+		return span;
+	}
+}
@@ -0,0 +1,83 @@
+package org.stagemonitor;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.openjdk.jmh.annotations.*;
+import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.tracing.reporter.SpanJsonEncoder;
+import org.stagemonitor.tracing.tracing.B3Propagator;
+import org.stagemonitor.tracing.utils.SpanUtils;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+import io.opentracing.util.ThreadLocalScopeManager;
+
+@State(value = Scope.Benchmark)
+public class SpanSerializationBenchmark {
+
+	private SpanWrapper span;
+	private ByteArrayOutputStream out;
+	private SpanJsonEncoder spanJsonEncoder;
+
+	@Setup(Level.Iteration)
+	public void init() {
+		final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(), new B3Propagator());
+		span = new SpanWrapper(mockTracer.buildSpan("GET /index").start(), "GET /index", 0, 0,
+				Collections.emptyList(), new ConcurrentHashMap<>());
+		span.setTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER);
+		span.setTag(Tags.HTTP_URL.getKey(), "http://localhost:8080/index");
+		span.setTag(Tags.HTTP_STATUS.getKey(), 200);
+		span.setTag(Tags.PEER_HOST_IPV4.getKey(), 0x7F000001);
+		span.setTag(SpanUtils.OPERATION_TYPE, "http");
+		final Map<String, String> parameters = new HashMap<>();
+		parameters.put("foo", "bar");
+		parameters.put("bar", "baz");
+		SpanUtils.setParameters(span, parameters);
+		span.finish();
+		out = new ByteArrayOutputStream();
+		spanJsonEncoder = SpanJsonEncoder.get();
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream objectMapper() throws IOException {
+		out.reset();
+		JsonUtils.writeWithoutClosingStream(out, span);
+		return out;
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream spanJsonEncoder(PayloadSize payloadSize) throws IOException {
+		out.reset();
+		spanJsonEncoder.write(span, out);
+		payloadSize.bytesPerSpan = out.size();
+		return out;
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream spanJsonEncoderSmile(PayloadSize payloadSize) throws IOException {
+		out.reset();
+		final JsonGenerator generator = ElasticsearchClient.createSmileGenerator(out);
+		spanJsonEncoder.write(span, generator);
+		generator.close();
+		payloadSize.bytesPerSpan = out.size();
+		return out;
+	}
+
+	/**
+	 * Reports the size of the payload next to the score, so that the encodings can be compared
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class PayloadSize {
+		public long bytesPerSpan;
+	}
+}
@@ -0,0 +1,55 @@
+package org.stagemonitor;
+
+import org.openjdk.jmh.annotations.*;
+import org.stagemonitor.tracing.wrapper.SpanTags;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the tag storage of a typical server span, run with {@code -prof gc} to see the allocation per span
+ * ({@code gc.alloc.rate.norm})
+ */
+@State(value = Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class SpanTagsBenchmark {
+
+	private long statusCode = 200;
+	private long peerIpv4 = 0x7F000001;
+	private double responseSize = 1024.5;
+
+	@Benchmark
+	public Map<String, Object> concurrentHashMap() {
+		final Map<String, Object> tags = new ConcurrentHashMap<String, Object>();
+		tags.put("span.kind", "server");
+		tags.put("http.url", "http://localhost:8080/index");
+		tags.put("http.status_code", statusCode);
+		tags.put("peer.ipv4", (int) peerIpv4);
+		tags.put("response_size", responseSize);
+		tags.put("error", false);
+		tags.put("type", "http");
+		tags.put("internal_track_metrics_per_operation_name", true);
+		final Object error = tags.get("error");
+		if (error instanceof Boolean && (Boolean) error) {
+			tags.put("exception", "unexpected");
+		}
+		return tags;
+	}
+
+	@Benchmark
+	public SpanTags spanTags() {
+		final SpanTags tags = new SpanTags();
+		tags.put("span.kind", "server");
+		tags.put("http.url", "http://localhost:8080/index");
+		tags.put("http.status_code", statusCode);
+		tags.put("peer.ipv4", (int) peerIpv4);
+		tags.put("response_size", responseSize);
+		tags.put("error", false);
+		tags.put("type", "http");
+		tags.put("internal_track_metrics_per_operation_name", true);
+		if (tags.getBoolean("error", false)) {
+			tags.put("exception", "unexpected");
+		}
+		return tags;
+	}
+}
@@ -80,6 +80,9 @@ public class CoreElasticsearchInitializer extends AbstractElasticsearchInitializ
 		if (corePlugin.isReportToElasticsearch() || corePlugin.isOnlyLogElasticsearchMetricReports()) {
 			final ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(metricRegistry, corePlugin)
 					.globalTags(measurementSession.asMap())
+					.reportOnlyChangedMetrics(corePlugin.isReportOnlyChangedMetrics())
+					.heartbeatIntervals(corePlugin.getReportOnlyChangedMetricsHeartbeatIntervals())
+					.smile(corePlugin.isElasticsearchMetricReportsSmile())
 					.build();
 
 			reporter.start(reportingInterval, TimeUnit.SECONDS);
@@ -22,10 +22,14 @@ import org.stagemonitor.core.metrics.SortedTableLogReporter;
 import org.stagemonitor.core.metrics.metrics2.AndMetric2Filter;
 import org.stagemonitor.core.metrics.metrics2.ElasticsearchReporter;
 import org.stagemonitor.core.metrics.metrics2.InfluxDbReporter;
+import org.stagemonitor.core.metrics.metrics2.LegacyMirroringMode;
+import org.stagemonitor.core.metrics.metrics2.MeterType;
 import org.stagemonitor.core.metrics.metrics2.Metric2Filter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.metrics.metrics2.MetricNameValueConverter;
+import org.stagemonitor.core.metrics.metrics2.ReservoirType;
+import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.util.StringUtils;
 
@@ -36,6 +40,7 @@ import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -158,6 +163,16 @@ public class CorePlugin extends StagemonitorPlugin {
 			.tags(METRICS_STORE, ELASTICSEARCH)
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.buildWithDefault(false);
+	private final ConfigurationOption<Boolean> elasticsearchMetricReportsSmile = ConfigurationOption.booleanOption()
+			.key("stagemonitor.reporting.elasticsearch.smile")
+			.dynamic(false)
+			.label("Encode Elasticsearch metric reports with Smile")
+			.description("If set to true, the bulk requests of the metric reports are encoded in the binary Smile format " +
+					"instead of JSON. This reduces the CPU usage of the serialization as well as the size of the requests. " +
+					"Reports which are only logged are always JSON encoded.")
+			.tags(METRICS_STORE, ELASTICSEARCH)
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.buildWithDefault(false);
 	private final ConfigurationOption<Integer> deleteElasticsearchMetricsAfterDays = ConfigurationOption.integerOption()
 			.key("stagemonitor.reporting.elasticsearch.deleteMetricsAfterDays")
 			.dynamic(false)
@@ -289,6 +304,144 @@ public class CorePlugin extends StagemonitorPlugin {
 			.description("A comma separated list of metric names that should not be collected.")
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.buildWithDefault(Collections.<MetricName>emptyList());
+	private final ConfigurationOption<ReservoirType> metricsReservoirType = ConfigurationOption.enumOption(ReservoirType.class)
+			.key("stagemonitor.metrics.reservoir")
+			.dynamic(false)
+			.label("Reservoir of timers and histograms")
+			.description("The reservoir which holds the values of timers and histograms. " +
+					ReservoirType.EXPONENTIALLY_DECAYING.name() + ": a sample which is biased towards the last 5 minutes. " +
+					"Updating it requires a lock which is why stagemonitor.tracing.metrics.async should be enabled. " +
+					ReservoirType.HDR_HISTOGRAM.name() + ": a HdrHistogram which can be updated from any thread without locking. " +
+					"It reports the exact percentiles (with two significant digits) of the values recorded in the last " +
+					"reporting interval (stagemonitor.reporting.interval.elasticsearch or " +
+					"stagemonitor.reporting.interval.influxdb if Elasticsearch reporting is disabled). " +
+					"With this reservoir, you can safely set stagemonitor.tracing.metrics.async to false.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(ReservoirType.EXPONENTIALLY_DECAYING);
+	private final ConfigurationOption<Integer> maxSeriesPerMetricName = ConfigurationOption.integerOption()
+			.key("stagemonitor.metrics.maxSeriesPerMetricName")
+			.dynamic(false)
+			.label("Max series per metric name")
+			.description("The maximum number of series (distinct tag combinations) per metric name. For example, if " +
+					"response_time timers are created for too many different operation names, all additional series are " +
+					"tracked as a single series with the tag operation_name=" + Metric2Registry.OVERFLOW_OPERATION_NAME + ". " +
+					"The same applies to meters, counters and histograms, regardless of which tags differ. Additional " +
+					"gauges are not registered. " +
+					"This protects the heap and the metric reporters from an unbounded number of metrics which can be " +
+					"caused by a misconfiguration of stagemonitor.groupUrls, for example. " +
+					"When the limit is hit, a warning is logged and the metric metrics_cardinality_limit_exceeded is incremented. " +
+					"Set to a value below 1 to deactivate the limit.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(1000);
+	private final ConfigurationOption<MeterType> metricsMeterType = ConfigurationOption.enumOption(MeterType.class)
+			.key("stagemonitor.metrics.meterType")
+			.dynamic(false)
+			.label("Meter implementation")
+			.description("The implementation of meters like the error_rate meters. " +
+					MeterType.DROPWIZARD.name() + ": the standard Dropwizard meter which updates four counters on each event. " +
+					MeterType.STRIPED.name() + ": a meter which only updates a single striped counter on each event and " +
+					"updates the rates every five seconds. This reduces the contention on meters which are marked by " +
+					"lots of threads concurrently like the error_rate of all operations.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(MeterType.DROPWIZARD);
+	private final ConfigurationOption<LegacyMirroringMode> legacyMirroringMode = ConfigurationOption.enumOption(LegacyMirroringMode.class)
+			.key("stagemonitor.metrics.legacyMirroring")
+			.dynamic(false)
+			.label("Mirroring into the Dropwizard MetricRegistry")
+			.description("Stagemonitor mirrors its metrics into a Dropwizard MetricRegistry with graphite style names. " +
+					"This is only needed for the Graphite and the JMX reporter and for code that uses " +
+					"Stagemonitor.getMetricRegistry(). " +
+					LegacyMirroringMode.OFF.name() + ": metrics are not mirrored. " +
+					LegacyMirroringMode.EAGER.name() + ": every metric is mirrored as soon as it is created. " +
+					LegacyMirroringMode.LAZY.name() + ": metrics are only mirrored once a reporter or another component " +
+					"requests the Dropwizard MetricRegistry. " +
+					"If you only report to Elasticsearch or InfluxDB, set this to " + LegacyMirroringMode.LAZY.name() +
+					" or " + LegacyMirroringMode.OFF.name() + " to save the overhead of creating new metrics.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(LegacyMirroringMode.EAGER);
+	private final ConfigurationOption<Integer> metricsTimeToIdleSeconds = ConfigurationOption.integerOption()
+			.key("stagemonitor.metrics.timeToIdleSeconds")
+			.dynamic(false)
+			.label("Time to idle of metrics (sec)")
+			.description("Timers, meters and histograms like the response_time timer of an operation which have not " +
+					"been updated for the given amount of seconds are removed so that they are not reported anymore. " +
+					"They are re-created as soon as they get updated again. " +
+					"Only metrics with one of the names listed in stagemonitor.metrics.timeToIdle.metricNames are removed. " +
+					"The number of evicted metrics is tracked by the metric metrics_evicted. " +
+					"Set to a value below 1 to never remove idle metrics.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(0);
+	private final ConfigurationOption<Collection<String>> metricsTimeToIdleMetricNames = ConfigurationOption.stringsOption()
+			.key("stagemonitor.metrics.timeToIdle.metricNames")
+			.dynamic(false)
+			.label("Metrics which are removed when idle")
+			.description("A comma separated list of the metric names whose timers, meters and histograms are removed " +
+					"when they are idle (see stagemonitor.metrics.timeToIdleSeconds). " +
+					"Only add metrics which are looked up from the registry on each update, " +
+					"as updates of metrics whose reference is held by a component are lost after they have been removed. " +
+					"Meters like error_rate, which don't change while their operation is healthy, " +
+					"are removed and re-created in each time to idle.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(Arrays.asList("response_time", "external_requests_rate"));
+	private final ConfigurationOption<Boolean> reportOnlyChangedMetrics = ConfigurationOption.booleanOption()
+			.key("stagemonitor.reporting.onlyChangedMetrics")
+			.dynamic(false)
+			.label("Only report changed metrics")
+			.description("If set to true, the Elasticsearch and the InfluxDB reporter skip metrics whose count " +
+					"(or value in case of gauges) has not changed since the last report. This reduces the number " +
+					"of documents or points that have to be stored, especially for applications with lots of rarely " +
+					"used operations. Unchanged metrics are still reported every " +
+					"stagemonitor.reporting.onlyChangedMetrics.heartbeatIntervals reporting intervals. " +
+					"Note that missing data points can't be distinguished from zero values in dashboards anymore.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags(METRICS_STORE, "advanced")
+			.buildWithDefault(false);
+	private final ConfigurationOption<Integer> reportOnlyChangedMetricsHeartbeatIntervals = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.onlyChangedMetrics.heartbeatIntervals")
+			.dynamic(false)
+			.label("Heartbeat of unchanged metrics (intervals)")
+			.description("When stagemonitor.reporting.onlyChangedMetrics is active, unchanged metrics are reported " +
+					"anyway after this number of reporting intervals. Set to a value below 1 to never report " +
+					"unchanged metrics again.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags(METRICS_STORE, "advanced")
+			.buildWithDefault(10);
+	private final ConfigurationOption<Integer> requestCompressionLevel = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.compression.level")
+			.dynamic(false)
+			.label("Request compression level")
+			.description("The gzip compression level (1 = fastest, 9 = best compression) of the requests which are " +
+					"sent to Elasticsearch and InfluxDB, like the bulk requests which contain the spans and the metrics. " +
+					"Compressing the requests reduces the network traffic at the cost of some CPU time. " +
+					"Set to 0 to disable the compression.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(0);
+	private final ConfigurationOption<Integer> requestCompressionMinSizeBytes = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.compression.minSizeBytes")
+			.dynamic(false)
+			.label("Minimum size of compressed requests (bytes)")
+			.description("When stagemonitor.reporting.compression.level is set, requests which are not larger than " +
+					"this number of bytes are sent uncompressed, as compressing them would hardly save anything.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(1024);
+	private final ConfigurationOption<Integer> maxConnectionsPerHost = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.maxConnectionsPerHost")
+			.dynamic(false)
+			.label("Max in flight requests per host")
+			.description("The maximum number of asynchronous requests which are sent to the same Elasticsearch or " +
+					"InfluxDB host at the same time. When this limit is reached, further asynchronous requests are " +
+					"rejected instead of being queued, which signals the reporters to back off.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("advanced")
+			.buildWithDefault(4);
 	private final ConfigurationOption<Collection<String>> disabledPlugins = ConfigurationOption.stringsOption()
 			.key("stagemonitor.plugins.disabled")
 			.dynamic(false)
@@ -414,6 +567,26 @@ public class CorePlugin extends StagemonitorPlugin {
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.tags("elasticsearch", "advanced")
 			.buildWithDefault(5);
+	private final ConfigurationOption<String> elasticsearchSpillDirectory = ConfigurationOption.stringOption()
+			.key("stagemonitor.reporting.elasticsearch.spill.directory")
+			.dynamic(false)
+			.label("Elasticsearch spill directory")
+			.description("When set, bulk requests of spans and metrics which can't be sent because Elasticsearch is " +
+					"not available are written to memory mapped files in this directory. They are sent in the " +
+					"original order once Elasticsearch is available again, even after a restart. " +
+					"When empty, these requests are dropped.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("elasticsearch", "advanced")
+			.buildWithDefault("");
+	private final ConfigurationOption<Integer> elasticsearchSpillMaxSizeMb = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.elasticsearch.spill.maxSizeMb")
+			.dynamic(false)
+			.label("Max size of the Elasticsearch spill directory (MB)")
+			.description("The maximum size of the files in stagemonitor.reporting.elasticsearch.spill.directory. " +
+					"When the limit is reached, further requests are dropped. Set to 0 to disable spilling.")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("elasticsearch", "advanced")
+			.buildWithDefault(100);
 	private final ConfigurationOption<List<URL>> remotePropertiesConfigUrls = ConfigurationOption.urlsOption()
 			.key("stagemonitor.configuration.remoteproperties.urls")
 			.dynamic(false)
@@ -465,6 +638,11 @@ public class CorePlugin extends StagemonitorPlugin {
 	public void initializePlugin(InitArguments initArguments) {
 		this.metricRegistry = initArguments.getMetricRegistry();
 		this.healthCheckRegistry = initArguments.getHealthCheckRegistry();
+		metricRegistry.setReservoirType(getMetricsReservoirType(), getReservoirSnapshotIntervalSeconds(), TimeUnit.SECONDS);
+		metricRegistry.setMeterType(getMetricsMeterType());
+		metricRegistry.setMaxSeriesPerMetricName(getMaxSeriesPerMetricName());
+		metricRegistry.setLegacyMirroringMode(getLegacyMirroringMode());
+		scheduleIdleMetricsEviction(metricRegistry);
 		final Integer reloadInterval = getReloadConfigurationInterval();
 		if (reloadInterval > 0) {
 			initArguments.getConfiguration().scheduleReloadAtRate(reloadInterval, TimeUnit.SECONDS);
@@ -489,6 +667,25 @@ public class CorePlugin extends StagemonitorPlugin {
 		registerReporters(initArguments.getMetricRegistry(), initArguments.getConfiguration(), initArguments.getMeasurementSession());
 	}
 
+	private void scheduleIdleMetricsEviction(final Metric2Registry metricRegistry) {
+		final int timeToIdleSeconds = getMetricsTimeToIdleSeconds();
+		metricRegistry.setTimeToIdle(timeToIdleSeconds, TimeUnit.SECONDS, getMetricsTimeToIdleMetricNames());
+		if (timeToIdleSeconds > 0) {
+			final long period = Math.min(timeToIdleSeconds, 60);
+			ExecutorUtils.createSingleThreadSchedulingDeamonPool("metrics-eviction", 1, this)
+					.scheduleAtFixedRate(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								metricRegistry.evictIdleMetrics();
+							} catch (RuntimeException e) {
+								logger.warn(e.getMessage(), e);
+							}
+						}
+					}, period, period, TimeUnit.SECONDS);
+		}
+	}
+
 	@Override
 	public List<Class<? extends StagemonitorPlugin>> dependsOn() {
 		return Collections.emptyList();
@@ -502,23 +699,23 @@ public class CorePlugin extends StagemonitorPlugin {
 		}
 
 		Metric2Filter allFilters = new AndMetric2Filter(regexFilter, new MetricsWithCountFilter());
-		MetricRegistry legacyMetricRegistry = metric2Registry.getMetricRegistry();
 
-		reportToGraphite(legacyMetricRegistry, getGraphiteReportingInterval(), measurementSession);
+		reportToGraphite(metric2Registry, getGraphiteReportingInterval(), measurementSession);
 		reportToInfluxDb(metric2Registry, reportingIntervalInfluxDb.getValue(), measurementSession);
 		reportToConsole(metric2Registry, getConsoleReportingInterval(), allFilters);
 
 		if (configuration.getConfig(CorePlugin.class).isReportToJMX()) {
 			// Because JMX reporter is on registration and not periodic only the
 			// regex filter is applicable here (not filtering metrics by count)
-			reportToJMX(legacyMetricRegistry);
+			reportToJMX(metric2Registry.getMetricRegistry());
 		}
 	}
 
 
-	private void reportToGraphite(MetricRegistry metricRegistry, long reportingInterval, MeasurementSession measurementSession) {
+	private void reportToGraphite(Metric2Registry metric2Registry, long reportingInterval, MeasurementSession measurementSession) {
 		if (isReportToGraphite()) {
-			final GraphiteReporter graphiteReporter = GraphiteReporter.forRegistry(metricRegistry)
+			// only request the legacy registry if needed as this triggers the mirroring in LegacyMirroringMode.LAZY
+			final GraphiteReporter graphiteReporter = GraphiteReporter.forRegistry(metric2Registry.getMetricRegistry())
 					.prefixedWith(getGraphitePrefix(measurementSession))
 					.convertRatesTo(TimeUnit.SECONDS)
 					.convertDurationsTo(TimeUnit.MILLISECONDS)
@@ -536,6 +733,9 @@ public class CorePlugin extends StagemonitorPlugin {
 			logger.info("Sending metrics to InfluxDB ({}) every {}s", getInfluxDbUrl(), reportingInterval);
 			final InfluxDbReporter reporter = InfluxDbReporter.forRegistry(metricRegistry, this)
 					.globalTags(measurementSession.asMap())
+					.reportOnlyChangedMetrics(isReportOnlyChangedMetrics())
+					.heartbeatIntervals(getReportOnlyChangedMetricsHeartbeatIntervals())
+					.httpClient(createHttpClient())
 					.build();
 
 			reporter.start(reportingInterval, TimeUnit.SECONDS);
@@ -598,12 +798,24 @@ public class CorePlugin extends StagemonitorPlugin {
 
 	public ElasticsearchClient getElasticsearchClient() {
 		if (elasticsearchClient == null) {
-			elasticsearchClient = new ElasticsearchClient(this, new HttpClient(), elasticsearchAvailabilityCheckPeriodSec.getValue(), initElasticsearchAvailabilityObservers(Stagemonitor.getConfiguration()));
+			elasticsearchClient = new ElasticsearchClient(this, createHttpClient(), elasticsearchAvailabilityCheckPeriodSec.getValue(), initElasticsearchAvailabilityObservers(Stagemonitor.getConfiguration()));
 		}
 		return elasticsearchClient;
 	}
 
 
+	/**
+	 * Creates a {@link HttpClient} which compresses the request bodies according to
+	 * {@link #getRequestCompressionLevel()} and {@link #getRequestCompressionMinSizeBytes()} and which limits the
+	 * asynchronous requests according to {@link #getMaxConnectionsPerHost()}
+	 */
+	private HttpClient createHttpClient() {
+		final HttpClient httpClient = new HttpClient(getRequestCompressionLevel(), getRequestCompressionMinSizeBytes(),
+				getMaxConnectionsPerHost(), Stagemonitor.getMetric2Registry());
+		closeOnShutdown(httpClient);
+		return httpClient;
+	}
+
 	private static List<ElasticsearchAvailabilityObserver> initElasticsearchAvailabilityObservers(ConfigurationRegistry configurationRegistry) {
 		final List<ElasticsearchAvailabilityObserver> elasticsearchAvailabilityObservers = new ArrayList<ElasticsearchAvailabilityObserver>();
 		ServiceLoader<ElasticsearchAvailabilityObserver> observers = ServiceLoader
@@ -704,14 +916,21 @@ public class CorePlugin extends StagemonitorPlugin {
 			return null;
 		}
 		final int index = accessesToElasticsearchUrl.getAndIncrement() % urls.size();
-		URL elasticsearchURL = urls.get(index);
-
-		final String defaultUsernameValue = elasticsearchDefaultUsername.getValue();
-		final String defaultPasswordValue = elasticsearchDefaultPassword.getValue();
+		return addDefaultCredentials(urls.get(index), elasticsearchDefaultUsername.getValue(), elasticsearchDefaultPassword.getValue());
+	}
 
+	/**
+	 * Adds the default credentials to the Elasticsearch URL, if the URL does not contain credentials itself
+	 *
+	 * @param elasticsearchURL      the Elasticsearch URL
+	 * @param defaultUsernameValue  the default user name (may be {@code null})
+	 * @param defaultPasswordValue  the default password (may be {@code null})
+	 * @return the URL including the credentials
+	 */
+	public static URL addDefaultCredentials(URL elasticsearchURL, String defaultUsernameValue, String defaultPasswordValue) {
 		if (elasticsearchURL.getUserInfo() == null
-				&& ! defaultUsernameValue.isEmpty()
-				&& ! defaultPasswordValue.isEmpty()) {
+				&& defaultUsernameValue != null && ! defaultUsernameValue.isEmpty()
+				&& defaultPasswordValue != null && ! defaultPasswordValue.isEmpty()) {
 
 			try {
 				String username = URLEncoder.encode(defaultUsernameValue, "UTF-8");
@@ -741,6 +960,14 @@ public class CorePlugin extends StagemonitorPlugin {
 		return elasticsearchUrls.getValue();
 	}
 
+	public String getElasticsearchDefaultUsername() {
+		return elasticsearchDefaultUsername.getValue();
+	}
+
+	public String getElasticsearchDefaultPassword() {
+		return elasticsearchDefaultPassword.getValue();
+	}
+
 	public String getElasticsearchUrlsWithoutAuthenticationInformation() {
 		return elasticsearchUrls.getValueAsSafeString();
 	}
@@ -757,6 +984,47 @@ public class CorePlugin extends StagemonitorPlugin {
 		return excludedMetrics.getValue();
 	}
 
+	public ReservoirType getMetricsReservoirType() {
+		return metricsReservoirType.getValue();
+	}
+
+	public int getMaxSeriesPerMetricName() {
+		return maxSeriesPerMetricName.getValue();
+	}
+
+	public MeterType getMetricsMeterType() {
+		return metricsMeterType.getValue();
+	}
+
+	public LegacyMirroringMode getLegacyMirroringMode() {
+		return legacyMirroringMode.getValue();
+	}
+
+	public int getMetricsTimeToIdleSeconds() {
+		return metricsTimeToIdleSeconds.getValue();
+	}
+
+	public Collection<String> getMetricsTimeToIdleMetricNames() {
+		return metricsTimeToIdleMetricNames.getValue();
+	}
+
+	public boolean isReportOnlyChangedMetrics() {
+		return reportOnlyChangedMetrics.getValue();
+	}
+
+	public int getReportOnlyChangedMetricsHeartbeatIntervals() {
+		return reportOnlyChangedMetricsHeartbeatIntervals.getValue();
+	}
+
+	private int getReservoirSnapshotIntervalSeconds() {
+		if (reportingIntervalElasticsearch.getValue() > 0) {
+			return reportingIntervalElasticsearch.getValue();
+		} else if (reportingIntervalInfluxDb.getValue() > 0) {
+			return reportingIntervalInfluxDb.getValue();
+		}
+		return 60;
+	}
+
 	public Collection<String> getDisabledPlugins() {
 		return disabledPlugins.getValue();
 	}
@@ -793,6 +1061,18 @@ public class CorePlugin extends StagemonitorPlugin {
 		return influxDbDb.getValue();
 	}
 
+	public int getRequestCompressionLevel() {
+		return requestCompressionLevel.getValue();
+	}
+
+	public int getRequestCompressionMinSizeBytes() {
+		return requestCompressionMinSizeBytes.getValue();
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost.getValue();
+	}
+
 	public boolean isReportToElasticsearch() {
 		return !getElasticsearchUrls().isEmpty() && reportingIntervalElasticsearch.getValue() > 0;
 	}
@@ -809,6 +1089,14 @@ public class CorePlugin extends StagemonitorPlugin {
 		return grafanaApiKey.getValue();
 	}
 
+	public String getElasticsearchSpillDirectory() {
+		return elasticsearchSpillDirectory.getValue();
+	}
+
+	public int getElasticsearchSpillMaxSizeMb() {
+		return elasticsearchSpillMaxSizeMb.getValue();
+	}
+
 	public int getThreadPoolQueueCapacityLimit() {
 		return threadPoolQueueCapacityLimit.getValue();
 	}
@@ -829,6 +1117,10 @@ public class CorePlugin extends StagemonitorPlugin {
 		return onlyLogElasticsearchMetricReports.getValue();
 	}
 
+	public boolean isElasticsearchMetricReportsSmile() {
+		return elasticsearchMetricReportsSmile.getValue();
+	}
+
 	public boolean isDebugInstrumentation() {
 		return debugInstrumentation.getValue();
 	}
@@ -1,10 +1,12 @@
 package org.stagemonitor.core.elasticsearch;
 
 import com.codahale.metrics.health.HealthCheckRegistry;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +20,7 @@ import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.JsonMerger;
 import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.core.util.MappedSpillQueue;
 import org.stagemonitor.core.util.VersionUtils;
 import org.stagemonitor.core.util.http.ErrorLoggingResponseHandler;
 import org.stagemonitor.core.util.http.HttpRequest;
@@ -26,22 +29,29 @@ import org.stagemonitor.core.util.http.NoopResponseHandler;
 import org.stagemonitor.core.util.http.StatusCodeResponseHandler;
 import org.stagemonitor.util.IOUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.health.HealthCheck.Result.healthy;
 import static com.codahale.metrics.health.HealthCheck.Result.unhealthy;
@@ -50,15 +60,42 @@ import static org.stagemonitor.core.util.JsonMerger.mergeStrategy;
 public class ElasticsearchClient {
 
 	public static final Map<String, String> CONTENT_TYPE_NDJSON = Collections.singletonMap("Content-Type", "application/x-ndjson");
+	/**
+	 * The headers of a Smile encoded bulk request. The response is requested as JSON, because Elasticsearch would
+	 * otherwise answer in the format of the request.
+	 */
+	public static final Map<String, String> CONTENT_TYPE_SMILE;
+	/**
+	 * Terminates each document of a Smile encoded bulk request, like the new line does for NDJSON
+	 */
+	public static final int SMILE_STREAM_SEPARATOR = 0xFF;
+	private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+	private static final SmileFactory smileFactory = new SmileFactory();
 	private static final String BULK = "/_bulk";
-	private final Logger logger = LoggerFactory.getLogger(ElasticsearchClient.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int SPILL_SEGMENT_SIZE_BYTES = 8 * 1024 * 1024;
+	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchClient.class);
 	private final String TITLE = "title";
 	private final HttpClient httpClient;
 	private final CorePlugin corePlugin;
 	private final AtomicBoolean elasticsearchAvailable = new AtomicBoolean(false);
 	private final CheckEsAvailability checkEsAvailability;
+	private final AtomicInteger nodeSelectionCounter = new AtomicInteger();
+	private volatile Collection<URL> configuredUrls;
+	private volatile List<ElasticsearchNode> nodes = Collections.emptyList();
 	private Integer esMajorVersion;
 
+	static {
+		final Map<String, String> smileHeaders = new HashMap<String, String>();
+		smileHeaders.put("Content-Type", "application/smile");
+		smileHeaders.put("Accept", "application/json");
+		CONTENT_TYPE_SMILE = Collections.unmodifiableMap(smileHeaders);
+		smileFactory.setCodec(JsonUtils.getMapper());
+		smileFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	}
+	private final MappedSpillQueue spillQueue;
+	private final AtomicBoolean replayingSpilledBulks = new AtomicBoolean(false);
+
 	private final ThreadPoolExecutor asyncESPool;
 	private Timer timer;
 
@@ -72,6 +109,7 @@ public class ElasticsearchClient {
 			PooledResourceMetricsRegisterer.registerPooledResource(pooledResource, Stagemonitor.getMetric2Registry());
 		}
 		this.httpClient = httpClient;
+		this.spillQueue = createSpillQueue(corePlugin);
 
 		checkEsAvailability = new CheckEsAvailability(httpClient, corePlugin, elasticsearchAvailabilityObservers);
 		if (esAvailabilityCheckIntervalSec > 0) {
@@ -80,6 +118,23 @@ public class ElasticsearchClient {
 		}
 	}
 
+	private static MappedSpillQueue createSpillQueue(CorePlugin corePlugin) {
+		final String spillDirectory = corePlugin.getElasticsearchSpillDirectory();
+		final int maxSizeMb = corePlugin.getElasticsearchSpillMaxSizeMb();
+		if (spillDirectory == null || spillDirectory.isEmpty() || maxSizeMb < 1) {
+			return null;
+		}
+		final long maxSizeBytes = maxSizeMb * 1024L * 1024L;
+		try {
+			final MappedSpillQueue spillQueue = new MappedSpillQueue(new File(spillDirectory), (int) Math.min(SPILL_SEGMENT_SIZE_BYTES, maxSizeBytes), maxSizeBytes);
+			corePlugin.closeOnShutdown(spillQueue);
+			return spillQueue;
+		} catch (IOException e) {
+			logger.warn("Could not create spill directory {}: {}", spillDirectory, e.getMessage(), e);
+			return null;
+		}
+	}
+
 	public boolean isElasticsearch7Compatible() {
 		return esMajorVersion != null && esMajorVersion >= 7;
 	}
@@ -111,7 +166,7 @@ public class ElasticsearchClient {
 	}
 
 	public JsonNode getJson(final String path, final boolean suppressWarning) {
-		return httpClient.send(HttpRequestBuilder.<JsonNode>forUrl(corePlugin.getElasticsearchUrl() + path)
+		return httpClient.send(HttpRequestBuilder.<JsonNode>forUrl(getElasticsearchUrl() + path)
 				.successHandler(new HttpClient.ResponseHandler<JsonNode>() {
 					@Override
 					public JsonNode handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
@@ -163,14 +218,14 @@ public class ElasticsearchClient {
 	}
 
 	public int delete(final String path) {
-		return httpClient.send(HttpRequestBuilder.<Integer>forUrl(corePlugin.getElasticsearchUrl() + path)
+		return httpClient.send(HttpRequestBuilder.<Integer>forUrl(getElasticsearchUrl() + path)
 				.method("DELETE")
 				.responseHandler(StatusCodeResponseHandler.WITH_ERROR_LOGGING)
 				.build());
 	}
 
 	public int sendAsJson(final String method, final String path, final Object requestBody) {
-		return httpClient.send(HttpRequestBuilder.<Integer>jsonRequest(method, corePlugin.getElasticsearchUrl() + path, requestBody)
+		return httpClient.send(HttpRequestBuilder.<Integer>jsonRequest(method, getElasticsearchUrl() + path, requestBody)
 				.responseHandler(StatusCodeResponseHandler.WITH_ERROR_LOGGING)
 				.build());
 	}
@@ -297,7 +352,274 @@ public class ElasticsearchClient {
 
 	private void sendBulk(HttpClient.OutputStreamHandler outputStreamHandler, boolean logBulkErrors) {
 		final HttpClient.ResponseHandler<Void> responseHandler = logBulkErrors ? BulkErrorReportingResponseHandler.INSTANCE : NoopResponseHandler.<Void>getInstance();
-		httpClient.send("POST", corePlugin.getElasticsearchUrl() + BULK, CONTENT_TYPE_NDJSON, outputStreamHandler, responseHandler);
+		sendBulk(BULK, CONTENT_TYPE_NDJSON, outputStreamHandler, responseHandler);
+	}
+
+	/**
+	 * Sends a POST request to the available node with the least outstanding requests.
+	 * <p>
+	 * Requests which fail or which are answered with a 5xx or 429 status count towards the circuit breaker of the
+	 * node. Requests which fail or which are answered with a 5xx status are spilled to disk, if a spill directory is
+	 * configured (see {@link #spillBulk}). A 429 status is left to the response handler, as the caller is supposed
+	 * to back off and retry.
+	 *
+	 * @param path                the path of the request including the leading slash, for example {@code /_bulk}
+	 * @param headerFields        the headers of the request
+	 * @param outputStreamHandler writes the request body
+	 * @param responseHandler     handles the response
+	 * @return the result of the response handler or {@code null}, if no Elasticsearch URL is configured or if the
+	 * circuit breakers of all nodes are open, in which case the request is spilled
+	 */
+	public <T> T sendBulk(String path, Map<String, String> headerFields, HttpClient.OutputStreamHandler outputStreamHandler,
+						  HttpClient.ResponseHandler<T> responseHandler) {
+		final ElasticsearchNode node = acquireNode();
+		if (node == null) {
+			if (!getNodes().isEmpty()) {
+				// the circuit breakers of all nodes are open
+				spillBulk(path, outputStreamHandler);
+			}
+			return null;
+		}
+		final NodeHealthTrackingResponseHandler<T> nodeHealthTrackingResponseHandler = new NodeHealthTrackingResponseHandler<T>(node, responseHandler);
+		final T result = sendBulk(node, path, headerFields, outputStreamHandler, nodeHealthTrackingResponseHandler);
+		if (nodeHealthTrackingResponseHandler.failed) {
+			spillBulk(path, outputStreamHandler);
+		}
+		return result;
+	}
+
+	/**
+	 * Sends a POST request asynchronously to the available node with the least outstanding requests.
+	 * <p>
+	 * Like for {@link #sendBulk(String, Map, HttpClient.OutputStreamHandler, HttpClient.ResponseHandler)}, the
+	 * request counts towards the outstanding requests and the circuit breaker of the node. The
+	 * {@link HttpClient.OutputStreamHandler} and the {@link HttpClient.ResponseHandler} are invoked by a thread of the
+	 * {@link HttpClient}. Failed requests are not spilled automatically, the response handler has to call
+	 * {@link #spillBulk} if needed.
+	 *
+	 * @param path                the path of the request including the leading slash, for example {@code /_bulk}
+	 * @param headerFields        the headers of the request
+	 * @param outputStreamHandler writes the request body
+	 * @param responseHandler     handles the response
+	 * @return the {@link Future} of the result of the response handler
+	 * @throws RejectedExecutionException if the circuit breakers of all nodes are open or if there are too many
+	 *                                    requests in flight to the selected node
+	 */
+	public <T> Future<T> sendBulkAsync(String path, Map<String, String> headerFields, HttpClient.OutputStreamHandler outputStreamHandler,
+									   HttpClient.ResponseHandler<T> responseHandler) throws RejectedExecutionException {
+		final ElasticsearchNode node = acquireNode();
+		if (node == null) {
+			throw new RejectedExecutionException("There is no available Elasticsearch node");
+		}
+		final HttpRequest<T> request = HttpRequestBuilder.<T>forUrl(getUrlWithDefaultCredentials(node) + path)
+				.method("POST")
+				.addHeaders(headerFields)
+				.outputStreamHandler(outputStreamHandler)
+				.responseHandler(new NodeHealthTrackingResponseHandler<T>(node, responseHandler))
+				.build();
+		node.onRequestStarted();
+		try {
+			return httpClient.sendAsync(request, new Runnable() {
+				@Override
+				public void run() {
+					node.onRequestFinished();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			node.onRequestFinished();
+			throw e;
+		}
+	}
+
+	private <T> T sendBulk(ElasticsearchNode node, String path, Map<String, String> headerFields,
+						   HttpClient.OutputStreamHandler outputStreamHandler, NodeHealthTrackingResponseHandler<T> responseHandler) {
+		node.onRequestStarted();
+		try {
+			return httpClient.send("POST", getUrlWithDefaultCredentials(node) + path, headerFields, outputStreamHandler, responseHandler);
+		} finally {
+			node.onRequestFinished();
+		}
+	}
+
+	/**
+	 * @return whether bulk requests are written to the spill directory while Elasticsearch is not available (see
+	 * {@link #spillBulk})
+	 */
+	public boolean isSpillingEnabled() {
+		return spillQueue != null;
+	}
+
+	/**
+	 * Writes a bulk request to the spill directory, so that it can be sent once Elasticsearch is available again.
+	 * <p>
+	 * The {@link HttpClient.OutputStreamHandler} is invoked by the calling thread.
+	 *
+	 * @param path                the path of the request including the leading slash
+	 * @param outputStreamHandler writes the request body
+	 * @return {@code false}, if no spill directory is configured or if the spill directory is full
+	 */
+	public boolean spillBulk(String path, HttpClient.OutputStreamHandler outputStreamHandler) {
+		if (spillQueue == null) {
+			return false;
+		}
+		try {
+			final ByteArrayOutputStream os = new ByteArrayOutputStream();
+			os.write(path.getBytes(UTF_8));
+			os.write('\n');
+			outputStreamHandler.withHttpURLConnection(os);
+			final boolean spilled = spillQueue.offer(os.toByteArray());
+			if (!spilled) {
+				logger.debug("The spill directory is full, dropping request to {}", path);
+			}
+			return spilled;
+		} catch (IOException e) {
+			logger.warn("Error while spilling request to {}: {}", path, e.getMessage(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends the spilled bulk requests in the order they have been spilled, until all of them are sent or until a
+	 * request fails
+	 */
+	void replaySpilledBulks() {
+		if (spillQueue == null || !replayingSpilledBulks.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int replayed = 0;
+			byte[] spilledRequest;
+			while (isElasticsearchAvailable() && (spilledRequest = spillQueue.peek()) != null) {
+				final ElasticsearchNode node = acquireNode();
+				if (node == null) {
+					return;
+				}
+				final int pathLength = indexOf(spilledRequest, (byte) '\n');
+				final String path = new String(spilledRequest, 0, pathLength, UTF_8);
+				final NodeHealthTrackingResponseHandler<Void> responseHandler = new NodeHealthTrackingResponseHandler<Void>(node, BulkErrorReportingResponseHandler.INSTANCE);
+				sendBulk(node, path, getBulkContentType(spilledRequest, pathLength + 1),
+						new SpilledRequestOutputStreamHandler(spilledRequest, pathLength + 1), responseHandler);
+				if (responseHandler.failed || responseHandler.rejected) {
+					break;
+				}
+				spillQueue.remove();
+				replayed++;
+			}
+			if (replayed > 0) {
+				logger.info("Sent {} spilled requests to Elasticsearch", replayed);
+			}
+		} finally {
+			replayingSpilledBulks.set(false);
+		}
+	}
+
+	private void replaySpilledBulksAsync() {
+		if (spillQueue == null || spillQueue.isEmpty()) {
+			return;
+		}
+		try {
+			asyncESPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					replaySpilledBulks();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			ExecutorUtils.logRejectionWarning(e);
+		}
+	}
+
+	private static int indexOf(byte[] bytes, byte b) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return bytes.length;
+	}
+
+	/**
+	 * Selects the node with the least outstanding requests whose circuit breaker is closed.
+	 * <p>
+	 * The nodes are scanned starting at a rotating offset, so that requests are distributed round-robin among
+	 * nodes with the same number of outstanding requests. If no node is available, the nodes are tried round-robin
+	 * so that they can recover.
+	 * <p>
+	 * This is meant for requests which don't count towards the circuit breakers. Requests which do have to use
+	 * {@link #acquireNode()}.
+	 */
+	ElasticsearchNode selectNode() {
+		final List<ElasticsearchNode> nodes = getNodes();
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		final int offset = (nodeSelectionCounter.getAndIncrement() & Integer.MAX_VALUE) % nodes.size();
+		ElasticsearchNode selected = null;
+		for (int i = 0; i < nodes.size(); i++) {
+			final ElasticsearchNode node = nodes.get((offset + i) % nodes.size());
+			if (node.isAvailable(now) && (selected == null || node.getOutstandingRequests() < selected.getOutstandingRequests())) {
+				selected = node;
+			}
+		}
+		if (selected == null) {
+			selected = nodes.get(offset);
+		}
+		return selected;
+	}
+
+	/**
+	 * Selects the node for a request whose outcome counts towards the circuit breaker of the node.
+	 * <p>
+	 * In contrast to {@link #selectNode()}, this only returns a node whose circuit breaker is closed, or a node with
+	 * a half-open circuit breaker, if the caller has won its trial request (see {@link ElasticsearchNode#tryStartTrial}).
+	 * Trial requests take precedence, so that recovered nodes are used again as soon as possible.
+	 *
+	 * @return the node or {@code null}, if there is no healthy node whose circuit breaker lets the request through
+	 */
+	ElasticsearchNode acquireNode() {
+		final List<ElasticsearchNode> nodes = getNodes();
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		final int offset = (nodeSelectionCounter.getAndIncrement() & Integer.MAX_VALUE) % nodes.size();
+		ElasticsearchNode selected = null;
+		for (int i = 0; i < nodes.size(); i++) {
+			final ElasticsearchNode node = nodes.get((offset + i) % nodes.size());
+			if (!node.isHealthy()) {
+				continue;
+			}
+			if (node.isCircuitClosed()) {
+				if (selected == null || node.getOutstandingRequests() < selected.getOutstandingRequests()) {
+					selected = node;
+				}
+			} else if (node.tryStartTrial(now)) {
+				return node;
+			}
+		}
+		return selected;
+	}
+
+	List<ElasticsearchNode> getNodes() {
+		final Collection<URL> urls = corePlugin.getElasticsearchUrls();
+		if (urls != configuredUrls) {
+			synchronized (this) {
+				if (urls != configuredUrls) {
+					final List<ElasticsearchNode> newNodes = new ArrayList<ElasticsearchNode>(urls.size());
+					for (URL url : urls) {
+						newNodes.add(new ElasticsearchNode(url));
+					}
+					nodes = newNodes;
+					configuredUrls = urls;
+				}
+			}
+		}
+		return nodes;
+	}
+
+	private URL getUrlWithDefaultCredentials(ElasticsearchNode node) {
+		return CorePlugin.addDefaultCredentials(node.getUrl(), corePlugin.getElasticsearchDefaultUsername(), corePlugin.getElasticsearchDefaultPassword());
 	}
 
 	public void deleteIndices(String indexPattern) {
@@ -312,7 +634,7 @@ public class ElasticsearchClient {
 		if (!isElasticsearchAvailable()) {
 			return;
 		}
-		final String url = corePlugin.getElasticsearchUrl() + "/" + indexPattern + "/_settings?ignore_unavailable=true";
+		final String url = getElasticsearchUrl() + "/" + indexPattern + "/_settings?ignore_unavailable=true";
 		logger.info("Updating index settings {}\n{}", indexPattern, settings);
 		httpClient.send(HttpRequestBuilder.<Integer>jsonRequest("PUT", url, settings)
 				.responseHandler(new StatusCodeResponseHandler(new ErrorLoggingResponseHandler()))
@@ -323,7 +645,7 @@ public class ElasticsearchClient {
 		if (!isElasticsearchAvailable()) {
 			return;
 		}
-		final String url = corePlugin.getElasticsearchUrl() + "/" + path;
+		final String url = getElasticsearchUrl() + "/" + path;
 		logger.info(logMessage, path);
 		try {
 			httpClient.send(HttpRequestBuilder.forUrl(url).method(method).build());
@@ -356,6 +678,9 @@ public class ElasticsearchClient {
 
 	public void close() {
 		asyncESPool.shutdown();
+		if (spillQueue != null) {
+			spillQueue.close();
+		}
 		timer.cancel();
 	}
 
@@ -392,6 +717,62 @@ public class ElasticsearchClient {
 				"}\n";
 	}
 
+	/**
+	 * Creates a generator for a single document of a Smile encoded bulk request. Closing the generator does not close
+	 * the output stream. After the generator is closed, {@link #SMILE_STREAM_SEPARATOR} has to be written.
+	 *
+	 * @param os the output stream of the bulk request
+	 * @return the generator
+	 */
+	public static JsonGenerator createSmileGenerator(OutputStream os) throws IOException {
+		return smileFactory.createGenerator(os);
+	}
+
+	/**
+	 * Writes the Smile encoded action line of a bulk request, including the {@link #SMILE_STREAM_SEPARATOR}
+	 *
+	 * @param os       the output stream of the bulk request
+	 * @param action   the bulk action, for example {@code index}
+	 * @param metadata alternating names and values of the action metadata, for example {@code "_id", "1"}
+	 */
+	public static void writeSmileBulkHeader(OutputStream os, String action, String... metadata) throws IOException {
+		final JsonGenerator generator = createSmileGenerator(os);
+		generator.writeStartObject();
+		generator.writeObjectFieldStart(action);
+		for (int i = 0; i + 1 < metadata.length; i += 2) {
+			generator.writeStringField(metadata[i], metadata[i + 1]);
+		}
+		generator.writeEndObject();
+		generator.writeEndObject();
+		generator.close();
+		os.write(SMILE_STREAM_SEPARATOR);
+	}
+
+	public static byte[] getSmileBulkHeader(String action, String index, String type) {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try {
+			writeSmileBulkHeader(os, action, "_index", index, "_type", type);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return os.toByteArray();
+	}
+
+	/**
+	 * Determines the headers for a spilled request by looking at the beginning of its body
+	 */
+	private static Map<String, String> getBulkContentType(byte[] bytes, int offset) {
+		if (bytes.length - offset < SMILE_HEADER.length) {
+			return CONTENT_TYPE_NDJSON;
+		}
+		for (int i = 0; i < SMILE_HEADER.length; i++) {
+			if (bytes[offset + i] != SMILE_HEADER[i]) {
+				return CONTENT_TYPE_NDJSON;
+			}
+		}
+		return CONTENT_TYPE_SMILE;
+	}
+
 	public boolean isElasticsearchAvailable() {
 		return !corePlugin.getElasticsearchUrls().isEmpty() && elasticsearchAvailable.get();
 	}
@@ -400,8 +781,17 @@ public class ElasticsearchClient {
 		return httpClient;
 	}
 
+	/**
+	 * Returns the URL of the available node with the least outstanding requests
+	 *
+	 * @return the URL including the default credentials or {@code null}, if no Elasticsearch URL is configured
+	 */
 	public URL getElasticsearchUrl() {
-		return corePlugin.getElasticsearchUrl();
+		final ElasticsearchNode node = selectNode();
+		if (node == null) {
+			return null;
+		}
+		return getUrlWithDefaultCredentials(node);
 	}
 
 	public void createIndexAndSendMapping(final String index, final String type, final InputStream mapping) {
@@ -434,6 +824,46 @@ public class ElasticsearchClient {
 				.build());
 	}
 
+	private static class SpilledRequestOutputStreamHandler implements HttpClient.OutputStreamHandler {
+		private final byte[] spilledRequest;
+		private final int offset;
+
+		private SpilledRequestOutputStreamHandler(byte[] spilledRequest, int offset) {
+			this.spilledRequest = spilledRequest;
+			this.offset = offset;
+		}
+
+		@Override
+		public void withHttpURLConnection(OutputStream os) throws IOException {
+			os.write(spilledRequest, offset, spilledRequest.length - offset);
+			os.close();
+		}
+	}
+
+	private static class NodeHealthTrackingResponseHandler<T> implements HttpClient.ResponseHandler<T> {
+		private final ElasticsearchNode node;
+		private final HttpClient.ResponseHandler<T> delegate;
+		private boolean failed;
+		private boolean rejected;
+
+		private NodeHealthTrackingResponseHandler(ElasticsearchNode node, HttpClient.ResponseHandler<T> delegate) {
+			this.node = node;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public T handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
+			if (statusCode == null || statusCode >= 500 || statusCode == 429) {
+				failed = statusCode == null || statusCode >= 500;
+				rejected = statusCode != null && statusCode == 429;
+				node.onFailure(System.currentTimeMillis());
+			} else {
+				node.onSuccess();
+			}
+			return delegate.handleResponse(httpRequest, is, statusCode, e);
+		}
+	}
+
 	public static class BulkErrorReportingResponseHandler implements HttpClient.ResponseHandler<Void> {
 
 		public static BulkErrorReportingResponseHandler INSTANCE = new BulkErrorReportingResponseHandler();
@@ -526,19 +956,56 @@ public class ElasticsearchClient {
 
 		private void reportBulkErrors(JsonNode items) {
 			int errorCount = 0;
+			int itemIndex = 0;
 			for (JsonNode item : items) {
 				for (JsonNode action : item) {
 					if (action.has("error")) {
-						errorCount++;
+						if (!onFailedItem(itemIndex, action.get("status"))) {
+							errorCount++;
+						}
 					}
 				}
+				itemIndex++;
 			}
 			if (errorCount > 0) {
 				onBulkError(errorCount);
 			}
 		}
 
+		private boolean onFailedItem(int itemIndex, JsonNode status) {
+			if (status == null) {
+				return false;
+			} else if (status.asInt() == 429) {
+				return onRejectedItem(itemIndex);
+			} else if (status.asInt() == 404) {
+				return onMissingDocument(itemIndex);
+			}
+			return false;
+		}
+
 		public abstract void onBulkError(int errorCount);
+
+		/**
+		 * Called for each item which has been rejected with the status 429, for example because of a
+		 * {@code es_rejected_execution_exception}
+		 *
+		 * @param itemIndex the index of the item within the bulk request
+		 * @return {@code true}, if the item will be retried, {@code false} if it should be counted as an error
+		 */
+		protected boolean onRejectedItem(int itemIndex) {
+			return false;
+		}
+
+		/**
+		 * Called for each item which failed with the status 404, for example because of a
+		 * {@code document_missing_exception} of an update
+		 *
+		 * @param itemIndex the index of the item within the bulk request
+		 * @return {@code true}, if the item will be retried, {@code false} if it should be counted as an error
+		 */
+		protected boolean onMissingDocument(int itemIndex) {
+			return false;
+		}
 	}
 
 	public void checkEsAvailability() {
@@ -557,75 +1024,143 @@ public class ElasticsearchClient {
 		}
 
 
+		/**
+		 * Checks the health of each configured node. Elasticsearch is considered to be available as long as at least
+		 * one node is healthy. Unhealthy nodes are not used for requests until a subsequent check succeeds.
+		 * <p>
+		 * The nodes are checked in parallel, so that an unreachable node does not delay the check of the other nodes.
+		 */
 		@Override
 		public void run() {
-			// TODO actually, the availability check has to be performed for each URL as multiple ES urls can be configured
-			// in the future, detect all available nodes in the cluster: http://{oneOfTheProvidedUrls}/_nodes/box_type:hot/none
-			// -> response.nodes*.http_address
-			final URL elasticsearchUrl = corePlugin.getElasticsearchUrl();
-			if (elasticsearchUrl == null) {
+			final List<ElasticsearchNode> nodes = getNodes();
+			if (nodes.isEmpty()) {
 				return;
 			}
 
+			final List<Future<String>> clusterHealthStatuses = new ArrayList<Future<String>>(nodes.size());
+			for (ElasticsearchNode node : nodes) {
+				clusterHealthStatuses.add(getClusterHealthStatusAsync(getUrlWithDefaultCredentials(node)));
+			}
+
+			URL availableUrl = null;
+			String unhealthyStatus = null;
+			for (int i = 0; i < nodes.size(); i++) {
+				final ElasticsearchNode node = nodes.get(i);
+				final URL elasticsearchUrl = getUrlWithDefaultCredentials(node);
+				final Future<String> clusterHealthStatus = clusterHealthStatuses.get(i);
+				if (clusterHealthStatus == null) {
+					// the node is busy, keeps its health until the next check instead of waiting for a connection
+					if (node.isHealthy() && availableUrl == null) {
+						availableUrl = elasticsearchUrl;
+					}
+					continue;
+				}
+				final String status = getClusterHealthStatus(clusterHealthStatus);
+				final boolean isNodeAvailable = "green".equals(status) || "yellow".equals(status);
+				if (node.isHealthy() != isNodeAvailable && nodes.size() > 1) {
+					logger.info("Elasticsearch node {} is {}", node, isNodeAvailable ? "available again" : "not available");
+				}
+				node.setHealthy(isNodeAvailable);
+				if (isNodeAvailable) {
+					if (availableUrl == null) {
+						availableUrl = elasticsearchUrl;
+					}
+				} else if (status != null) {
+					unhealthyStatus = status;
+				}
+			}
+
 			final HealthCheckRegistry healthCheckRegistry = corePlugin.getHealthCheckRegistry();
-			httpClient.send(HttpRequestBuilder.<Void>forUrl(elasticsearchUrl + "/_cluster/health")
+			if (availableUrl != null) {
+				onElasticsearchAvailable(availableUrl, healthCheckRegistry);
+			} else if (unhealthyStatus != null) {
+				elasticsearchAvailable.set(false);
+				if (healthCheckRegistry != null) {
+					healthCheckRegistry.register("Elasticsearch",
+							ImmediateResult.of(unhealthy("Elasticsearch is not healthy: " + unhealthyStatus)));
+				}
+				logger.warn("Elasticsearch is not healthy. Status: " + unhealthyStatus + ". " +
+						"Stagemonitor won't try to send documents to Elasticsearch until it is available again.");
+			} else {
+				if (isElasticsearchAvailable()) {
+					logger.warn("Elasticsearch is not available. " +
+							"Stagemonitor won't try to send documents to Elasticsearch until it is available again.");
+				}
+				elasticsearchAvailable.set(false);
+				if (healthCheckRegistry != null) {
+					healthCheckRegistry.register("Elasticsearch",
+							ImmediateResult.of(unhealthy("Elasticsearch is not available")));
+				}
+				esMajorVersion = null;
+			}
+		}
+
+		private void onElasticsearchAvailable(URL elasticsearchUrl, HealthCheckRegistry healthCheckRegistry) {
+			// make sure core plugin is fully initialized, otherwise corePlugin.getMetricRegistry() returns null
+			while (! corePlugin.isInitialized()) {
+				try {
+					logger.info("wait 1s until core plugin is initialized");
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {
+					logger.error(e1.getMessage(), e1);
+				}
+			}
+			if (healthCheckRegistry != null) {
+				healthCheckRegistry.register("Elasticsearch", ImmediateResult.of(healthy()));
+			}
+			if (!isElasticsearchAvailable()) {
+				esMajorVersion = getElasticsearchMajorVersion(elasticsearchUrl);
+				logger.info("Elasticsearch is available again.");
+			}
+			for (ElasticsearchAvailabilityObserver elasticsearchAvailabilityObserver : elasticsearchAvailabilityObservers) {
+				elasticsearchAvailabilityObserver.onElasticsearchAvailable(corePlugin.getElasticsearchClient());
+			}
+			elasticsearchAvailable.set(true);
+			replaySpilledBulksAsync();
+		}
+
+		/**
+		 * @return the future status of the cluster health, which is {@code null} if the node could not be reached, or
+		 * {@code null} instead of a future, if the request has been rejected because the node is busy
+		 */
+		private Future<String> getClusterHealthStatusAsync(URL elasticsearchUrl) {
+			try {
+				return httpClient.sendAsync(getClusterHealthRequest(elasticsearchUrl));
+			} catch (RejectedExecutionException e) {
+				// there are still requests in flight to this node, or the client has been closed
+				return null;
+			}
+		}
+
+		private String getClusterHealthStatus(Future<String> clusterHealthStatus) {
+			try {
+				return clusterHealthStatus.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				logger.warn("Error while checking the availability of Elasticsearch: {}", e.getMessage(), e);
+				return null;
+			}
+		}
+
+		private HttpRequest<String> getClusterHealthRequest(URL elasticsearchUrl) {
+			return HttpRequestBuilder.<String>forUrl(elasticsearchUrl + "/_cluster/health")
 					.method("GET")
-					.successHandler(new HttpClient.ResponseHandler<Void>() {
+					.successHandler(new HttpClient.ResponseHandler<String>() {
 						@Override
-						public Void handleResponse(HttpRequest<?> httpRequest, InputStream inputStream, Integer statusCode, IOException e) throws IOException {
+						public String handleResponse(HttpRequest<?> httpRequest, InputStream inputStream, Integer statusCode, IOException e) throws IOException {
 							JsonNode clusterHealthResponse = JsonUtils.getMapper().readTree(inputStream);
-							String statusValue = clusterHealthResponse.has("status") ? clusterHealthResponse.get("status").asText() : "red";
-							boolean isNowAvailable = statusValue.equals("green") || statusValue.equals("yellow");
-							if (isNowAvailable) {
-								// make sure core plugin is fully initialized, otherwise corePlugin.getMetricRegistry() returns null
-								while (! corePlugin.isInitialized()) {
-									try {
-										logger.info("wait 1s until core plugin is initialized");
-										Thread.sleep(1000);
-									} catch (InterruptedException e1) {
-										logger.error(e1.getMessage(), e1);
-									}
-								}
-								if (healthCheckRegistry != null) {
-									healthCheckRegistry.register("Elasticsearch", ImmediateResult.of(healthy()));
-								}
-								if (!isElasticsearchAvailable()) {
-									esMajorVersion = getElasticsearchMajorVersion(elasticsearchUrl);
-									logger.info("Elasticsearch is available again.");
-								}
-								for (ElasticsearchAvailabilityObserver elasticsearchAvailabilityObserver : elasticsearchAvailabilityObservers) {
-									elasticsearchAvailabilityObserver.onElasticsearchAvailable(corePlugin.getElasticsearchClient());
-								}
-								elasticsearchAvailable.set(true);
-							} else {
-								elasticsearchAvailable.set(false);
-								if (healthCheckRegistry != null) {
-									healthCheckRegistry.register("Elasticsearch",
-											ImmediateResult.of(unhealthy("Elasticsearch is not healthy: " + statusValue)));
-								}
-								logger.warn("Elasticsearch is not healthy. Status: " + statusValue + ". " +
-										"Stagemonitor won't try to send documents to Elasticsearch until it is available again.");
-							}
-							return null;
+							return clusterHealthResponse.has("status") ? clusterHealthResponse.get("status").asText() : "red";
 						}
 					})
-					.errorHandler(new HttpClient.ResponseHandler<Void>() {
+					.errorHandler(new HttpClient.ResponseHandler<String>() {
 						@Override
-						public Void handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
-							if (isElasticsearchAvailable()) {
-								logger.warn("Elasticsearch is not available. " +
-										"Stagemonitor won't try to send documents to Elasticsearch until it is available again.");
-							}
-							elasticsearchAvailable.set(false);
-							if (healthCheckRegistry != null) {
-								healthCheckRegistry.register("Elasticsearch",
-										ImmediateResult.of(unhealthy("Elasticsearch is not available")));
-							}
-							esMajorVersion = null;
+						public String handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
 							return null;
 						}
 					})
-					.build());
+					.build();
 		}
 
 		private Integer getElasticsearchMajorVersion(URL elasticsearchUrl) {
@@ -0,0 +1,111 @@
+package org.stagemonitor.core.elasticsearch;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the configured Elasticsearch URLs
+ * <p>
+ * Tracks the number of outstanding requests to this node and guards it with a circuit breaker: after
+ * {@link #FAILURE_THRESHOLD} consecutive failed requests, the node is not used for {@link #OPEN_CIRCUIT_MILLIS}.
+ * After that, the circuit is half-open and exactly one request is a trial (see {@link #tryStartTrial(long)}). If it
+ * succeeds, the circuit is closed again, otherwise it is opened right away.
+ */
+class ElasticsearchNode {
+
+	static final int FAILURE_THRESHOLD = 3;
+	static final long OPEN_CIRCUIT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private final URL url;
+	private final AtomicInteger outstandingRequests = new AtomicInteger();
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	/**
+	 * {@code 0}, if the circuit is closed
+	 */
+	private final AtomicLong circuitOpenUntil = new AtomicLong();
+	private volatile boolean healthy = true;
+
+	ElasticsearchNode(URL url) {
+		this.url = url;
+	}
+
+	/**
+	 * @return the URL as configured, without default credentials
+	 */
+	URL getUrl() {
+		return url;
+	}
+
+	/**
+	 * A node is available, if the last availability check succeeded and if the circuit breaker is not open
+	 *
+	 * @param now the current time in milliseconds
+	 * @return whether requests may be sent to this node
+	 */
+	boolean isAvailable(long now) {
+		return healthy && now >= circuitOpenUntil.get();
+	}
+
+	boolean isCircuitClosed() {
+		return circuitOpenUntil.get() == 0;
+	}
+
+	/**
+	 * Claims the trial request of a half-open circuit.
+	 * <p>
+	 * Only one of the threads which call this method concurrently succeeds. The circuit stays open for the other
+	 * threads until the outcome of the trial request is reported via {@link #onSuccess()} or
+	 * {@link #onFailure(long)}. If that never happens, another trial is permitted after {@link #OPEN_CIRCUIT_MILLIS}.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return {@code true}, if the caller has to send the trial request
+	 */
+	boolean tryStartTrial(long now) {
+		final long openUntil = circuitOpenUntil.get();
+		return openUntil != 0 && now >= openUntil && circuitOpenUntil.compareAndSet(openUntil, now + OPEN_CIRCUIT_MILLIS);
+	}
+
+	boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * Sets the result of the availability check. This does not close the circuit breaker, as only the outcome of the
+	 * actual requests decides whether the node can handle them.
+	 *
+	 * @param healthy whether the last availability check succeeded
+	 */
+	void setHealthy(boolean healthy) {
+		this.healthy = healthy;
+	}
+
+	int getOutstandingRequests() {
+		return outstandingRequests.get();
+	}
+
+	void onRequestStarted() {
+		outstandingRequests.incrementAndGet();
+	}
+
+	void onRequestFinished() {
+		outstandingRequests.decrementAndGet();
+	}
+
+	void onSuccess() {
+		consecutiveFailures.set(0);
+		circuitOpenUntil.set(0);
+	}
+
+	void onFailure(long now) {
+		if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+			circuitOpenUntil.set(now + OPEN_CIRCUIT_MILLIS);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+	}
+}
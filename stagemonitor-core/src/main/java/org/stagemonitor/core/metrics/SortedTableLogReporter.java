@@ -171,7 +171,7 @@ public class SortedTableLogReporter extends ScheduledMetrics2Reporter {
 			Map<MetricName, Histogram> sortedHistograms = sortByValue(histograms, new Comparator<Histogram>() {
 				@Override
 				public int compare(Histogram o1, Histogram o2) {
-					return Double.compare(o2.getSnapshot().getMean(), o1.getSnapshot().getMean());
+					return Double.compare(getSnapshot(o2).getMean(), getSnapshot(o1).getMean());
 				}
 			});
 			for (Map.Entry<MetricName, Histogram> entry : sortedHistograms.entrySet()) {
@@ -206,7 +206,7 @@ public class SortedTableLogReporter extends ScheduledMetrics2Reporter {
 			sb.append(String.format("%-" + maxLength + "s | count     | mean      | min       | max       | stddev    | p50       | p75       | p95       | p98       | p99       | p999      | mean_rate | m1_rate   | m5_rate   | m15_rate  | rate_unit     | duration_unit\n", "name"));
 			Map<MetricName, Timer> sortedTimers = sortByValue(timers, new Comparator<Timer>() {
 				public int compare(Timer o1, Timer o2) {
-					return Double.compare(o2.getSnapshot().getMean(), o1.getSnapshot().getMean());
+					return Double.compare(getSnapshot(o2).getMean(), getSnapshot(o1).getMean());
 				}
 			});
 			for (Map.Entry<MetricName, Timer> entry : sortedTimers.entrySet()) {
@@ -272,7 +272,7 @@ public class SortedTableLogReporter extends ScheduledMetrics2Reporter {
 	private void printHistogram(String name, Histogram histogram, int maxNameLength, StringBuilder sb) {
 		sb.append(String.format("%" + maxNameLength + "s | ", name));
 		sb.append(formatCount(histogram.getCount()));
-		printHistogramSnapshot(histogram.getSnapshot(), sb);
+		printHistogramSnapshot(getSnapshot(histogram), sb);
 		sb.append('\n');
 	}
 
@@ -303,7 +303,7 @@ public class SortedTableLogReporter extends ScheduledMetrics2Reporter {
 	}
 
 	private void printTimer(String name, Timer timer, int maxNameLength, StringBuilder sb) {
-		final Snapshot snapshot = timer.getSnapshot();
+		final Snapshot snapshot = getSnapshot(timer);
 		sb.append(String.format("%" + maxNameLength + "s | ", name));
 		sb.append(formatCount(timer.getCount()));
 		printTimerSnapshot(snapshot, sb);
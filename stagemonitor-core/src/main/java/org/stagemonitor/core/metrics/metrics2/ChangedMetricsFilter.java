@@ -0,0 +1,214 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of the reported metrics so that only metrics whose count (or value in case of a {@link Gauge}) has
+ * changed since they have been reported the last time are reported again.
+ * <p>
+ * The one, five and fifteen minute rates of {@link Metered} metrics like meters and timers keep on decaying after the
+ * count has stopped to change. These metrics are reported as long as one of the rates has changed by more than
+ * {@link #MIN_RATE_CHANGE} events per second. The mean rate is not considered, as it changes all the time.
+ * <p>
+ * Unchanged metrics are reported again after {@code heartbeatIntervals} intervals so that the backend does not
+ * mistake them for metrics which don't exist anymore. Set the heartbeat to a value below 1 to never report unchanged
+ * metrics again.
+ * <p>
+ * Each report uses its own {@link ReportFilter} (see {@link #newReportFilter()}). The values which have been matched
+ * by a report are only considered as reported, once the report has been {@link ReportFilter#delivered() delivered}.
+ * Otherwise, a changed value would get lost if the backend is not available.
+ * <p>
+ * This filter is meant to be used by exactly one {@link ScheduledMetrics2Reporter} which calls {@link #nextInterval()}
+ * after each report (see {@link ScheduledMetrics2Reporter#reportFinished()}).
+ */
+public class ChangedMetricsFilter {
+
+	/**
+	 * The minimal change of a rate in events per second for a {@link Metered} metric to be considered as changed
+	 */
+	static final double MIN_RATE_CHANGE = 0.001;
+
+	private static final Object NOT_REPORTED = new Object();
+
+	private final ConcurrentMap<MetricName, ReportedState> reportedStates = new ConcurrentHashMap<MetricName, ReportedState>();
+	private final int heartbeatIntervals;
+	private volatile long interval = 0;
+
+	/**
+	 * @param heartbeatIntervals the number of intervals after which an unchanged metric is reported anyway
+	 */
+	public ChangedMetricsFilter(int heartbeatIntervals) {
+		this.heartbeatIntervals = heartbeatIntervals;
+	}
+
+	/**
+	 * Creates the filter for the metrics of the next report
+	 *
+	 * @return a filter which only matches changed metrics
+	 */
+	public ReportFilter newReportFilter() {
+		return new ReportFilter();
+	}
+
+	private boolean matches(MetricName name, Metric metric, ReportFilter reportFilter) {
+		final Object value = getValue(metric);
+		ReportedState state = reportedStates.get(name);
+		if (state == null) {
+			state = new ReportedState();
+			reportedStates.put(name, state);
+		}
+		state.lastSeenInterval = interval;
+		state.commitIfDelivered();
+		if (!isUnchanged(value, state.lastReportedValue) || heartbeatIntervals > 0 && ++state.unchangedIntervals >= heartbeatIntervals) {
+			state.pendingValue = value;
+			state.pendingReport = reportFilter;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets about metrics which have not been seen in the current interval, for example because they have been
+	 * removed from the registry, and starts the next interval.
+	 * <p>
+	 * Metrics which have already been seen in the next interval are kept. This can happen if the metrics are visited
+	 * asynchronously, for example while the request body is written.
+	 */
+	public void nextInterval() {
+		final long interval = this.interval;
+		for (Iterator<ReportedState> iterator = reportedStates.values().iterator(); iterator.hasNext(); ) {
+			if (iterator.next().lastSeenInterval < interval) {
+				iterator.remove();
+			}
+		}
+		this.interval = interval + 1;
+	}
+
+	/**
+	 * @return the number of metrics whose reported state is tracked
+	 */
+	int size() {
+		return reportedStates.size();
+	}
+
+	private static Object getValue(Metric metric) {
+		if (metric instanceof Metered) {
+			return new MeteredValue((Metered) metric);
+		} else if (metric instanceof Counting) {
+			return ((Counting) metric).getCount();
+		} else if (metric instanceof Gauge) {
+			try {
+				return ((Gauge) metric).getValue();
+			} catch (RuntimeException e) {
+				// let the reporter deal with the broken gauge
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isUnchanged(Object value, Object lastReportedValue) {
+		if (value instanceof MeteredValue && lastReportedValue instanceof MeteredValue) {
+			return ((MeteredValue) value).isUnchanged((MeteredValue) lastReportedValue);
+		}
+		return value == null ? lastReportedValue == null : value.equals(lastReportedValue);
+	}
+
+	/**
+	 * Matches the changed metrics of a single report
+	 */
+	public class ReportFilter implements Metric2Filter {
+
+		private volatile boolean delivered;
+
+		private ReportFilter() {
+		}
+
+		@Override
+		public boolean matches(MetricName name, Metric metric) {
+			return ChangedMetricsFilter.this.matches(name, metric, this);
+		}
+
+		/**
+		 * Returns a gauge which returns the value that has been matched by this filter, so that the value of the
+		 * gauge, which might be expensive to compute, is only computed once per report.
+		 *
+		 * @param name  the name of the gauge
+		 * @param gauge the gauge which has been matched by this filter
+		 * @return a gauge which returns the matched value or the gauge itself, if the value is not known
+		 */
+		public Gauge getMatchedGauge(MetricName name, Gauge gauge) {
+			final ReportedState state = reportedStates.get(name);
+			if (state == null || state.pendingReport != this || state.pendingValue instanceof RuntimeException) {
+				return gauge;
+			}
+			return new MatchedGauge(state.pendingValue);
+		}
+
+		/**
+		 * Has to be called when the report has been delivered to the backend. From now on, the matched values are
+		 * compared with the values of the next reports.
+		 */
+		public void delivered() {
+			delivered = true;
+		}
+	}
+
+	private static class ReportedState {
+		private Object lastReportedValue = NOT_REPORTED;
+		private int unchangedIntervals;
+		private long lastSeenInterval;
+		private Object pendingValue;
+		private ReportFilter pendingReport;
+
+		private void commitIfDelivered() {
+			if (pendingReport != null && pendingReport.delivered) {
+				lastReportedValue = pendingValue;
+				unchangedIntervals = 0;
+				pendingValue = null;
+				pendingReport = null;
+			}
+		}
+	}
+
+	private static class MeteredValue {
+		private final long count;
+		private final double oneMinuteRate;
+		private final double fiveMinuteRate;
+		private final double fifteenMinuteRate;
+
+		private MeteredValue(Metered metered) {
+			this.count = metered.getCount();
+			this.oneMinuteRate = metered.getOneMinuteRate();
+			this.fiveMinuteRate = metered.getFiveMinuteRate();
+			this.fifteenMinuteRate = metered.getFifteenMinuteRate();
+		}
+
+		private boolean isUnchanged(MeteredValue lastReported) {
+			return count == lastReported.count
+					&& Math.abs(oneMinuteRate - lastReported.oneMinuteRate) <= MIN_RATE_CHANGE
+					&& Math.abs(fiveMinuteRate - lastReported.fiveMinuteRate) <= MIN_RATE_CHANGE
+					&& Math.abs(fifteenMinuteRate - lastReported.fifteenMinuteRate) <= MIN_RATE_CHANGE;
+		}
+	}
+
+	private static class MatchedGauge implements Gauge<Object> {
+		private final Object value;
+
+		private MatchedGauge(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+	}
+}
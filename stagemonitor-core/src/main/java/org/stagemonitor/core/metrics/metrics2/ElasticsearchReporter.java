@@ -5,6 +5,8 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -15,14 +17,20 @@ import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.JsonUtils;
-import org.stagemonitor.core.util.http.NoopResponseHandler;
+import org.stagemonitor.core.util.http.HttpRequest;
+import org.stagemonitor.util.IOUtils;
 import org.stagemonitor.util.StringUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.Map;
+import java.util.concurrent.Future;
 
+import static org.stagemonitor.core.elasticsearch.ElasticsearchClient.CONTENT_TYPE_SMILE;
+import static org.stagemonitor.core.elasticsearch.ElasticsearchClient.SMILE_STREAM_SEPARATOR;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 import static org.stagemonitor.core.util.http.HttpRequestBuilder.CONTENT_TYPE_JSON;
 
@@ -38,10 +46,14 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 
 	private final Map<String, String> globalTags;
 	private final CorePlugin corePlugin;
-	private final HttpClient httpClient;
 	private final JsonFactory jfactory = new JsonFactory();
-	private final Metric2RegistryModule metric2RegistryModule;
+	private final Metric2RegistryModule.ValueWriter<Gauge> gaugeValueWriter;
+	private final Metric2RegistryModule.ValueWriter<Counter> counterValueWriter;
+	private final Metric2RegistryModule.ValueWriter<Histogram> histogramValueWriter;
+	private final Metric2RegistryModule.ValueWriter<Meter> meterValueWriter;
+	private final Metric2RegistryModule.ValueWriter<Timer> timerValueWriter;
 	private final ElasticsearchClient elasticsearchClient;
+	private final boolean smile;
 
 	public static ElasticsearchReporter.Builder forRegistry(Metric2Registry registry, CorePlugin corePlugin) {
 		return new Builder(registry, corePlugin);
@@ -51,11 +63,36 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 		super(builder);
 		this.elasticsearchMetricsLogger = builder.getElasticsearchMetricsLogger();
 		this.globalTags = builder.getGlobalTags();
-		this.httpClient = builder.getHttpClient();
 		this.jfactory.setCodec(JsonUtils.getMapper());
-		this.metric2RegistryModule = new Metric2RegistryModule(builder.getRateUnit(), builder.getDurationUnit());
+		final Metric2RegistryModule metric2RegistryModule = new Metric2RegistryModule(builder.getRateUnit(), builder.getDurationUnit()) {
+			@Override
+			protected Snapshot getSnapshot(Sampling sampling) {
+				return ElasticsearchReporter.this.getSnapshot(sampling);
+			}
+		};
+		this.gaugeValueWriter = metric2RegistryModule.getValueWriter(Gauge.class);
+		this.counterValueWriter = metric2RegistryModule.getValueWriter(Counter.class);
+		this.histogramValueWriter = metric2RegistryModule.getValueWriter(Histogram.class);
+		this.meterValueWriter = metric2RegistryModule.getValueWriter(Meter.class);
+		this.timerValueWriter = metric2RegistryModule.getValueWriter(Timer.class);
 		this.corePlugin = builder.getCorePlugin();
 		this.elasticsearchClient = corePlugin.getElasticsearchClient();
+		this.smile = builder.isSmile();
+	}
+
+	@Override
+	public void report() {
+		try {
+			final Report report = newReport();
+			reportMetrics(new MetricsOutputStreamHandler() {
+				@Override
+				protected void visit(Metric2Visitor visitor) {
+					report.visitMetrics(visitor);
+				}
+			}, report);
+		} finally {
+			reportFinished();
+		}
 	}
 
 	@Override
@@ -65,67 +102,183 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 							  final Map<MetricName, Meter> meters,
 							  final Map<MetricName, Timer> timers) {
 
+		reportMetrics(metricsOutputStreamHandler(gauges, counters, histograms, meters, timers), newReport());
+	}
+
+	private MetricsOutputStreamHandler metricsOutputStreamHandler(final Map<MetricName, Gauge> gauges,
+																  final Map<MetricName, Counter> counters,
+																  final Map<MetricName, Histogram> histograms,
+																  final Map<MetricName, Meter> meters,
+																  final Map<MetricName, Timer> timers) {
+		return new MetricsOutputStreamHandler() {
+			@Override
+			protected void visit(Metric2Visitor visitor) {
+				visitMetrics(gauges, counters, histograms, meters, timers, visitor);
+			}
+		};
+	}
+
+	private void reportMetrics(final MetricsOutputStreamHandler metricsOutputStreamHandler, Report report) {
 		if (!corePlugin.isStagemonitorActive()) {
 			return;
 		}
 
-		long timestamp = clock.getTime();
+		metricsOutputStreamHandler.timestamp = clock.getTime();
+		metricsOutputStreamHandler.smile = smile && !corePlugin.isOnlyLogElasticsearchMetricReports();
 
-		final Timer.Context time = registry.timer(reportingTimeMetricName).time();
-		final MetricsOutputStreamHandler metricsOutputStreamHandler = new MetricsOutputStreamHandler(gauges, counters, histograms, meters, timers, timestamp);
 		if (!corePlugin.isOnlyLogElasticsearchMetricReports()) {
+			final String path = "/" + getTodaysIndexName() + "/" + METRICS_TYPE + "/_bulk";
 			if (!elasticsearchClient.isElasticsearchAvailable()) {
+				// keeps the metrics for later, if a spill directory is configured
+				spillBulk(path, metricsOutputStreamHandler, report);
 				return;
 			}
-			final String url = corePlugin.getElasticsearchUrl() + "/" + getTodaysIndexName() + "/" + METRICS_TYPE + "/_bulk";
-			httpClient.send("POST", url, CONTENT_TYPE_JSON,
-					metricsOutputStreamHandler, NoopResponseHandler.INSTANCE);
+			final HttpClient.ResponseHandler<Void> responseHandler = report.trackDelivery(new SpillOnErrorResponseHandler(path, metricsOutputStreamHandler, report));
+			final boolean sent = sendAsync(path, new AsyncRequest() {
+				@Override
+				public Future<?> send() {
+					return elasticsearchClient.sendBulkAsync(path, smile ? CONTENT_TYPE_SMILE : CONTENT_TYPE_JSON,
+							metricsOutputStreamHandler, responseHandler);
+				}
+			});
+			if (!sent) {
+				// Elasticsearch can't keep up, keeps the metrics for later if a spill directory is configured
+				spillBulk(path, metricsOutputStreamHandler, report);
+			}
 		} else {
 			try {
 				final ByteArrayOutputStream os = new ByteArrayOutputStream();
 				metricsOutputStreamHandler.withHttpURLConnection(os);
 				elasticsearchMetricsLogger.info(os.toString("UTF-8"));
+				report.delivered();
 			} catch (IOException e) {
 				logger.warn(e.getMessage(), e);
 			}
 		}
-		time.stop();
 	}
 
+	private void spillBulk(String path, MetricsOutputStreamHandler metricsOutputStreamHandler, Report report) {
+		if (elasticsearchClient.spillBulk(path, metricsOutputStreamHandler)) {
+			// the spilled metrics are sent once Elasticsearch is available again
+			report.delivered();
+		}
+	}
+
+	/**
+	 * Spills the metrics, if Elasticsearch could not be reached, failed or rejected the bulk request
+	 */
+	private class SpillOnErrorResponseHandler implements HttpClient.ResponseHandler<Void> {
+		private final String path;
+		private final MetricsOutputStreamHandler metricsOutputStreamHandler;
+		private final Report report;
+
+		private SpillOnErrorResponseHandler(String path, MetricsOutputStreamHandler metricsOutputStreamHandler, Report report) {
+			this.path = path;
+			this.metricsOutputStreamHandler = metricsOutputStreamHandler;
+			this.report = report;
+		}
+
+		@Override
+		public Void handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
+			IOUtils.consumeAndClose(is);
+			if (statusCode == null || statusCode >= 500 || statusCode == 429) {
+				logger.debug("Spilling metrics, as Elasticsearch responded with {}", statusCode);
+				spillBulk(path, metricsOutputStreamHandler, report);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the metrics as bulk index requests
+	 *
+	 * @param bulkActionBytes the action line which precedes each metric, it has to be Smile encoded and terminated by
+	 *                        {@link ElasticsearchClient#SMILE_STREAM_SEPARATOR}, if {@code smile} is {@code true}
+	 * @param smile           whether to encode the metrics with Smile instead of JSON
+	 */
 	public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
 							  Map<MetricName, Histogram> histograms, final Map<MetricName, Meter> meters,
-							  Map<MetricName, Timer> timers, OutputStream os, byte[] bulkActionBytes, long timestamp) throws IOException {
+							  Map<MetricName, Timer> timers, OutputStream os, byte[] bulkActionBytes, long timestamp,
+							  boolean smile) throws IOException {
 
-		final JsonGenerator jg = jfactory.createGenerator(os);
-		try {
-			reportMetric(gauges, timestamp, metric2RegistryModule.getValueWriter(Gauge.class), jg, bulkActionBytes);
-			reportMetric(counters, timestamp, metric2RegistryModule.getValueWriter(Counter.class), jg, bulkActionBytes);
-			reportMetric(histograms, timestamp, metric2RegistryModule.getValueWriter(Histogram.class), jg, bulkActionBytes);
-			reportMetric(meters, timestamp, metric2RegistryModule.getValueWriter(Meter.class), jg, bulkActionBytes);
-			reportMetric(timers, timestamp, metric2RegistryModule.getValueWriter(Timer.class), jg, bulkActionBytes);
-		} finally {
-			jg.close(); // release reusable jackson write buffers
-		}
+		final MetricsOutputStreamHandler metricsOutputStreamHandler = metricsOutputStreamHandler(gauges, counters, histograms, meters, timers);
+		metricsOutputStreamHandler.timestamp = timestamp;
+		metricsOutputStreamHandler.smile = smile;
+		metricsOutputStreamHandler.writeBulk(os, bulkActionBytes);
 	}
 
-	private <T extends Metric> void reportMetric(Map<MetricName, T> metrics, long timestamp, Metric2RegistryModule.ValueWriter<T> valueWriter,
-												 JsonGenerator jg, byte[] bulkActionBytes) throws IOException {
+	public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+							  Map<MetricName, Histogram> histograms, final Map<MetricName, Meter> meters,
+							  Map<MetricName, Timer> timers, OutputStream os, byte[] bulkActionBytes, long timestamp) throws IOException {
+		reportMetrics(gauges, counters, histograms, meters, timers, os, bulkActionBytes, timestamp, false);
+	}
 
+	/**
+	 * Writes each metric as a bulk index request
+	 */
+	private class BulkWriter implements Metric2Visitor {
+		/**
+		 * The generator for all JSON documents or {@code null}, as each Smile document needs its own generator
+		 */
+		private final JsonGenerator jg;
 		//Workaround, unable to write unquoted raw UTF-8 string to JsonGenerator
-		OutputStream os = (OutputStream) jg.getOutputTarget();
-
-		for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
-			os.write(bulkActionBytes);
-			jg.writeStartObject();
-			MetricName metricName = entry.getKey();
-			jg.writeNumberField("@timestamp", timestamp);
-			jg.writeStringField("name", metricName.getName());
-			writeMap(jg, metricName.getTags());
-			writeMap(jg, globalTags);
-			valueWriter.writeValues(entry.getValue(), jg);
-			jg.writeEndObject();
-			jg.writeRaw('\n');
-			jg.flush();
+		private final OutputStream os;
+		private final byte[] bulkActionBytes;
+		private final long timestamp;
+
+		private BulkWriter(OutputStream os, JsonGenerator jg, byte[] bulkActionBytes, long timestamp) {
+			this.jg = jg;
+			this.os = os;
+			this.bulkActionBytes = bulkActionBytes;
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public void visitGauge(MetricName name, Gauge gauge) {
+			reportMetric(name, gauge, gaugeValueWriter);
+		}
+
+		@Override
+		public void visitCounter(MetricName name, Counter counter) {
+			reportMetric(name, counter, counterValueWriter);
+		}
+
+		@Override
+		public void visitHistogram(MetricName name, Histogram histogram) {
+			reportMetric(name, histogram, histogramValueWriter);
+		}
+
+		@Override
+		public void visitMeter(MetricName name, Meter meter) {
+			reportMetric(name, meter, meterValueWriter);
+		}
+
+		@Override
+		public void visitTimer(MetricName name, Timer timer) {
+			reportMetric(name, timer, timerValueWriter);
+		}
+
+		private <T extends Metric> void reportMetric(MetricName metricName, T metric, Metric2RegistryModule.ValueWriter<T> valueWriter) {
+			try {
+				os.write(bulkActionBytes);
+				final JsonGenerator generator = jg != null ? jg : ElasticsearchClient.createSmileGenerator(os);
+				generator.writeStartObject();
+				generator.writeNumberField("@timestamp", timestamp);
+				generator.writeStringField("name", metricName.getName());
+				writeMap(generator, metricName.getTags());
+				writeMap(generator, globalTags);
+				valueWriter.writeValues(metric, generator);
+				generator.writeEndObject();
+				if (jg != null) {
+					generator.writeRaw('\n');
+					generator.flush();
+				} else {
+					generator.close();
+					os.write(SMILE_STREAM_SEPARATOR);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
 	}
 
@@ -135,30 +288,42 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 		}
 	}
 
-	private class MetricsOutputStreamHandler implements HttpClient.OutputStreamHandler {
-		private final Map<MetricName, Gauge> gauges;
-		private final Map<MetricName, Counter> counters;
-		private final Map<MetricName, Histogram> histograms;
-		private final Map<MetricName, Meter> meters;
-		private final Map<MetricName, Timer> timers;
-		private final long timestamp;
+	private abstract class MetricsOutputStreamHandler implements HttpClient.OutputStreamHandler {
+		private long timestamp;
+		private boolean smile;
 
-		public MetricsOutputStreamHandler(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters, Map<MetricName, Histogram> histograms, Map<MetricName, Meter> meters, Map<MetricName, Timer> timers, long timestamp) {
-			this.gauges = gauges;
-			this.counters = counters;
-			this.histograms = histograms;
-			this.meters = meters;
-			this.timers = timers;
-			this.timestamp = timestamp;
-		}
+		/**
+		 * Passes the metrics which should be reported to the visitor
+		 */
+		protected abstract void visit(Metric2Visitor visitor);
 
 		@Override
 		public void withHttpURLConnection(OutputStream os) throws IOException {
-			String bulkAction = ElasticsearchClient.getBulkHeader("index", getTodaysIndexName(), METRICS_TYPE);
-			byte[] bulkActionBytes = bulkAction.getBytes("UTF-8");
-			reportMetrics(gauges, counters, histograms, meters, timers, os, bulkActionBytes, timestamp);
+			final byte[] bulkActionBytes;
+			if (smile) {
+				bulkActionBytes = ElasticsearchClient.getSmileBulkHeader("index", getTodaysIndexName(), METRICS_TYPE);
+			} else {
+				bulkActionBytes = ElasticsearchClient.getBulkHeader("index", getTodaysIndexName(), METRICS_TYPE).getBytes("UTF-8");
+			}
+			writeBulk(os, bulkActionBytes);
 			os.close();
 		}
+
+		private void writeBulk(OutputStream os, byte[] bulkActionBytes) throws IOException {
+			// the request body is usually written by a thread of the HttpClient, as the metrics are reported asynchronously
+			final Timer.Context time = registry.timer(reportingTimeMetricName).time();
+			final BulkWriter bulkWriter = new BulkWriter(os, smile ? null : jfactory.createGenerator(os), bulkActionBytes, timestamp);
+			try {
+				visit(bulkWriter);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				if (bulkWriter.jg != null) {
+					bulkWriter.jg.close(); // release reusable jackson write buffers
+				}
+				time.stop();
+			}
+		}
 	}
 
 	public static String getTodaysIndexName() {
@@ -166,8 +331,9 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 	}
 
 	public static class Builder extends ScheduledMetrics2Reporter.Builder<ElasticsearchReporter, Builder> {
-		private HttpClient httpClient = new HttpClient();
+		private HttpClient httpClient;
 		private Logger elasticsearchMetricsLogger = LoggerFactory.getLogger(ES_METRICS_LOGGER);
+		private boolean smile;
 		private final CorePlugin corePlugin;
 
 		private Builder(Metric2Registry registry, CorePlugin corePlugin) {
@@ -180,6 +346,10 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 			return new ElasticsearchReporter(this);
 		}
 
+		/**
+		 * @deprecated the metrics are sent by the {@link ElasticsearchClient} of the {@link CorePlugin}
+		 */
+		@Deprecated
 		public HttpClient getHttpClient() {
 			return httpClient;
 		}
@@ -189,6 +359,10 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 			return elasticsearchMetricsLogger;
 		}
 
+		/**
+		 * @deprecated the metrics are sent by the {@link ElasticsearchClient} of the {@link CorePlugin}
+		 */
+		@Deprecated
 		public Builder httpClient(HttpClient httpClient) {
 			this.httpClient = httpClient;
 			return this;
@@ -203,5 +377,17 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 			return corePlugin;
 		}
 
+		public boolean isSmile() {
+			return smile;
+		}
+
+		/**
+		 * @param smile whether the bulk requests should be encoded with Smile instead of JSON
+		 */
+		public Builder smile(boolean smile) {
+			this.smile = smile;
+			return this;
+		}
+
 	}
 }
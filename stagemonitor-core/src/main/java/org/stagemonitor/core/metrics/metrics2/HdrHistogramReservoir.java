@@ -0,0 +1,154 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Reservoir} that is backed by a HdrHistogram {@link Recorder}.
+ * <p>
+ * In contrast to the {@link com.codahale.metrics.ExponentiallyDecayingReservoir}, {@link #update(long)} does not
+ * acquire any lock. It is wait-free and can be called concurrently from any number of threads.
+ * <p>
+ * The snapshot does not contain a sample but all values that have been recorded in the last interval. The intervals are
+ * started by the scheduled reports (see {@link SnapshotCoordinator#startReport(long)}), so that all reporters which
+ * request a snapshot in the same interval get the same snapshot and so that off-schedule requests, like Prometheus
+ * scrapes, don't cut the interval short. This means that the percentiles reported by multiple reporters are consistent,
+ * even though the underlying histogram is reset after each interval.
+ */
+public class HdrHistogramReservoir implements Reservoir {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int NUMBER_OF_SIGNIFICANT_VALUE_DIGITS = 2;
+
+	private final Recorder recorder = new Recorder(NUMBER_OF_SIGNIFICANT_VALUE_DIGITS);
+	private final SnapshotCoordinator snapshotCoordinator;
+
+	private long currentIntervalStart = Long.MIN_VALUE;
+	private volatile HdrHistogramSnapshot snapshot = new HdrHistogramSnapshot(new Histogram(NUMBER_OF_SIGNIFICANT_VALUE_DIGITS));
+
+	public HdrHistogramReservoir(long interval, TimeUnit unit) {
+		this(interval, unit, Clock.defaultClock());
+	}
+
+	public HdrHistogramReservoir(long interval, TimeUnit unit, Clock clock) {
+		this(new SnapshotCoordinator(interval, unit, clock));
+	}
+
+	/**
+	 * @param snapshotCoordinator the coordinator which starts the snapshot intervals
+	 */
+	public HdrHistogramReservoir(SnapshotCoordinator snapshotCoordinator) {
+		this.snapshotCoordinator = snapshotCoordinator;
+	}
+
+	@Override
+	public int size() {
+		return snapshot.size();
+	}
+
+	/**
+	 * Records the value. As HdrHistogram can't track negative values, they are ignored.
+	 */
+	@Override
+	public void update(long value) {
+		if (value >= 0) {
+			recorder.recordValue(value);
+		}
+	}
+
+	/**
+	 * Returns the values which were recorded in the last interval.
+	 * <p>
+	 * The first call after the start of a new interval swaps the recording histogram, subsequent calls in the same
+	 * interval return the same snapshot (see {@link SnapshotCoordinator#getSnapshotIntervalStart()}).
+	 */
+	@Override
+	public Snapshot getSnapshot() {
+		final long intervalStart = snapshotCoordinator.getSnapshotIntervalStart();
+		synchronized (this) {
+			if (intervalStart != currentIntervalStart) {
+				currentIntervalStart = intervalStart;
+				snapshot = new HdrHistogramSnapshot(recorder.getIntervalHistogram());
+			}
+			return snapshot;
+		}
+	}
+
+	static class HdrHistogramSnapshot extends Snapshot {
+
+		private final Histogram histogram;
+
+		HdrHistogramSnapshot(Histogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public double getValue(double quantile) {
+			if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+				throw new IllegalArgumentException(quantile + " is not in [0..1]");
+			}
+			return histogram.getValueAtPercentile(quantile * 100);
+		}
+
+		@Override
+		public long[] getValues() {
+			final long[] values = new long[size()];
+			int i = 0;
+			for (HistogramIterationValue value : histogram.recordedValues()) {
+				final long highestEquivalentValue = histogram.highestEquivalentValue(value.getValueIteratedTo());
+				for (long j = 0; j < value.getCountAtValueIteratedTo() && i < values.length; j++) {
+					values[i++] = highestEquivalentValue;
+				}
+			}
+			return values;
+		}
+
+		@Override
+		public int size() {
+			return (int) Math.min(histogram.getTotalCount(), Integer.MAX_VALUE);
+		}
+
+		@Override
+		public long getMax() {
+			return histogram.getMaxValue();
+		}
+
+		@Override
+		public double getMean() {
+			return histogram.getMean();
+		}
+
+		@Override
+		public long getMin() {
+			return histogram.getMinValue();
+		}
+
+		@Override
+		public double getStdDev() {
+			return histogram.getStdDeviation();
+		}
+
+		@Override
+		public void dump(OutputStream output) {
+			final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF_8));
+			try {
+				for (long value : getValues()) {
+					out.printf("%d%n", value);
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes points in the InfluxDB line protocol into an {@link OutputStream} through a reusable byte buffer.
+ * <p>
+ * The measurement and tags are passed as precomputed byte prefixes and numbers are formatted directly into the buffer,
+ * so that writing a point does not create intermediate strings. Only string values and numbers which are very large
+ * or very small (which are formatted with an exponent) are formatted via {@link Double#toString(double)}.
+ * <p>
+ * Floating point numbers are written with up to 15 significant digits, which is the precision a double can represent
+ * reliably.
+ * <p>
+ * This class is not thread safe.
+ */
+class InfluxDbLineProtocolWriter {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MAX_NUMBER_LENGTH = 32;
+	private static final int SIGNIFICANT_DIGITS = 15;
+	private static final long[] POWERS_OF_TEN = new long[19];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final byte[] buffer;
+	private int position;
+	private OutputStream outputStream;
+	private boolean firstField;
+
+	InfluxDbLineProtocolWriter(int bufferSize) {
+		this.buffer = new byte[Math.max(bufferSize, MAX_NUMBER_LENGTH)];
+	}
+
+	/**
+	 * Resets the writer and sets the stream the points are written to
+	 */
+	void setOutputStream(OutputStream outputStream) {
+		this.outputStream = outputStream;
+		this.position = 0;
+	}
+
+	/**
+	 * Starts a point
+	 *
+	 * @param measurementAndTags the escaped measurement and tags, followed by a space
+	 */
+	void startLine(byte[] measurementAndTags) throws IOException {
+		writeBytes(measurementAndTags);
+		firstField = true;
+	}
+
+	/**
+	 * Writes an integer field with the {@code i} suffix
+	 *
+	 * @param fieldName the field name including the {@code =}
+	 */
+	void integerField(byte[] fieldName, long value) throws IOException {
+		writeFieldName(fieldName);
+		writeLong(value);
+		buffer[position++] = 'i';
+	}
+
+	/**
+	 * Writes an integral number without the {@code i} suffix, which means InfluxDB stores it as a float
+	 *
+	 * @param fieldName the field name including the {@code =}
+	 */
+	void longField(byte[] fieldName, long value) throws IOException {
+		writeFieldName(fieldName);
+		writeLong(value);
+	}
+
+	/**
+	 * Writes a float field. NaN and infinite values are not supported by InfluxDB and are therefore omitted.
+	 *
+	 * @param fieldName the field name including the {@code =}
+	 */
+	void doubleField(byte[] fieldName, double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		writeFieldName(fieldName);
+		writeDouble(value);
+	}
+
+	void booleanField(byte[] fieldName, boolean value) throws IOException {
+		writeFieldName(fieldName);
+		writeAscii(value ? "true" : "false");
+	}
+
+	void stringField(byte[] fieldName, String value) throws IOException {
+		writeFieldName(fieldName);
+		writeByte('"');
+		writeBytes((value.indexOf('"') == -1 ? value : value.replace("\"", "\\\"")).getBytes(UTF_8));
+		writeByte('"');
+	}
+
+	/**
+	 * Writes the timestamp and ends the point
+	 */
+	void endLine(long timestamp) throws IOException {
+		ensureCapacity(MAX_NUMBER_LENGTH);
+		buffer[position++] = ' ';
+		writeLong(timestamp);
+		buffer[position++] = '\n';
+	}
+
+	/**
+	 * Writes the buffered bytes to the {@link OutputStream}
+	 */
+	void flush() throws IOException {
+		if (position > 0) {
+			outputStream.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	private void writeFieldName(byte[] fieldName) throws IOException {
+		if (!firstField) {
+			writeByte(',');
+		}
+		firstField = false;
+		writeBytes(fieldName);
+		ensureCapacity(MAX_NUMBER_LENGTH);
+	}
+
+	private void writeByte(char c) throws IOException {
+		ensureCapacity(1);
+		buffer[position++] = (byte) c;
+	}
+
+	private void writeBytes(byte[] bytes) throws IOException {
+		if (bytes.length > buffer.length) {
+			flush();
+			outputStream.write(bytes);
+		} else {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+	}
+
+	private void writeAscii(String s) throws IOException {
+		ensureCapacity(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buffer[position++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void ensureCapacity(int length) throws IOException {
+		if (position + length > buffer.length) {
+			flush();
+		}
+	}
+
+	/*
+	 * The caller has to ensure that there is room for MAX_NUMBER_LENGTH bytes
+	 */
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAsciiUnchecked(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		writeDigits(value, numberOfDigits(value));
+	}
+
+	/*
+	 * The caller has to ensure that there is room for MAX_NUMBER_LENGTH bytes
+	 */
+	private void writeDouble(double value) {
+		if (value == 0) {
+			writeAsciiUnchecked("0.0");
+			return;
+		}
+		final double abs = Math.abs(value);
+		if (abs < 1e-3 || abs >= 1e7) {
+			// the same range in which Double.toString uses the computerized scientific notation
+			// InfluxDB wants the exponent to be in lower case
+			writeAsciiUnchecked(Double.toString(value).replace('E', 'e'));
+			return;
+		}
+		if (value < 0) {
+			buffer[position++] = '-';
+		}
+		final int exponent = (int) Math.floor(Math.log10(abs));
+		int fractionDigits = SIGNIFICANT_DIGITS - 1 - exponent;
+		final long scaled = Math.round(abs * POWERS_OF_TEN[fractionDigits]);
+		final long integerPart = scaled / POWERS_OF_TEN[fractionDigits];
+		long fraction = scaled % POWERS_OF_TEN[fractionDigits];
+		writeDigits(integerPart, numberOfDigits(integerPart));
+		buffer[position++] = '.';
+		if (fraction == 0) {
+			buffer[position++] = '0';
+			return;
+		}
+		while (fraction % 10 == 0) {
+			fraction /= 10;
+			fractionDigits--;
+		}
+		// the fraction is padded with leading zeros
+		writeDigits(fraction, fractionDigits);
+	}
+
+	private void writeDigits(long value, int digits) {
+		for (int i = position + digits - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		position += digits;
+	}
+
+	private void writeAsciiUnchecked(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			buffer[position++] = (byte) s.charAt(i);
+		}
+	}
+
+	private static int numberOfDigits(long value) {
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			if (value < POWERS_OF_TEN[i]) {
+				return i;
+			}
+		}
+		return POWERS_OF_TEN.length;
+	}
+
+}
@@ -10,22 +10,48 @@ import com.codahale.metrics.Timer;
 
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.HttpRequestBuilder;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 
-	private static final int MAX_BATCH_SIZE = 5000;
+	private static final int BUFFER_SIZE = 8192;
 	private static final Map<MetricName, String> metricNameToInfluxDBFormatCache = new ConcurrentHashMap<MetricName, String>();
 	private static final MetricName reportingTimeMetricName = name("reporting_time").tag("reporter", "influxdb").build();
-
-	private List<String> batchLines = new ArrayList<String>(MAX_BATCH_SIZE);
+	private static final byte[] VALUE = fieldName("value");
+	private static final byte[] VALUE_BOOLEAN = fieldName("value_boolean");
+	private static final byte[] VALUE_STRING = fieldName("value_string");
+	private static final byte[] COUNT = fieldName("count");
+	private static final byte[] M1_RATE = fieldName("m1_rate");
+	private static final byte[] M5_RATE = fieldName("m5_rate");
+	private static final byte[] M15_RATE = fieldName("m15_rate");
+	private static final byte[] MEAN_RATE = fieldName("mean_rate");
+	private static final byte[] MIN = fieldName("min");
+	private static final byte[] MAX = fieldName("max");
+	private static final byte[] MEAN = fieldName("mean");
+	private static final byte[] P50 = fieldName("p50");
+	private static final byte[] STD = fieldName("std");
+	private static final byte[] P25 = fieldName("p25");
+	private static final byte[] P75 = fieldName("p75");
+	private static final byte[] P95 = fieldName("p95");
+	private static final byte[] P98 = fieldName("p98");
+	private static final byte[] P99 = fieldName("p99");
+	private static final byte[] P999 = fieldName("p999");
+
+	/**
+	 * The escaped measurement and tags of each metric name, followed by the global tags and a space
+	 */
+	private final ConcurrentMap<MetricName, byte[]> lineProtocolPrefixes = new ConcurrentHashMap<MetricName, byte[]>();
+	private final InfluxDbLineProtocolWriter writer = new InfluxDbLineProtocolWriter(BUFFER_SIZE);
 	private final String globalTags;
 	private HttpClient httpClient;
 	private final CorePlugin corePlugin;
@@ -42,161 +68,211 @@ public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 	}
 
 	@Override
-	public void reportMetrics(Map<MetricName, Gauge> gauges,
-							  Map<MetricName, Counter> counters,
-							  Map<MetricName, Histogram> histograms,
-							  Map<MetricName, Meter> meters,
-							  Map<MetricName, Timer> timers) {
-
-		final Timer.Context time = registry.timer(reportingTimeMetricName).time();
-		long timestamp = clock.getTime();
-		reportGauges(gauges, timestamp);
-		reportCounter(counters, timestamp);
-		reportHistograms(histograms, timestamp);
-		reportMeters(meters, timestamp);
-		reportTimers(timers, timestamp);
-		flush();
-		time.stop();
+	public void report() {
+		try {
+			final Report report = newReport();
+			reportMetrics(new LineProtocolOutputStreamHandler() {
+				@Override
+				protected void visit(Metric2Visitor visitor) {
+					report.visitMetrics(visitor);
+				}
+			}, report);
+		} finally {
+			reportFinished();
+		}
 	}
 
-	private void reportGauges(Map<MetricName, Gauge> gauges, long timestamp) {
-		for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
-			final String value = getGaugeValueForInfluxDb(entry.getValue().getValue());
-			if (value != null) {
-				reportLine(getInfluxDbLineProtocolString(entry.getKey()), value, timestamp);
+	@Override
+	public void reportMetrics(final Map<MetricName, Gauge> gauges,
+							  final Map<MetricName, Counter> counters,
+							  final Map<MetricName, Histogram> histograms,
+							  final Map<MetricName, Meter> meters,
+							  final Map<MetricName, Timer> timers) {
+
+		reportMetrics(new LineProtocolOutputStreamHandler() {
+			@Override
+			protected void visit(Metric2Visitor visitor) {
+				visitMetrics(gauges, counters, histograms, meters, timers, visitor);
 			}
-		}
+		}, newReport());
 	}
 
-	private void reportCounter(Map<MetricName, Counter> counters, long timestamp) {
-		for (Map.Entry<MetricName, Counter> entry : counters.entrySet()) {
-			final Counter counter = entry.getValue();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()),
-					"count=" + getIntegerValue(counter.getCount()), timestamp);
+	private void reportMetrics(LineProtocolOutputStreamHandler outputStreamHandler, Report report) {
+		outputStreamHandler.timestamp = clock.getTime();
+		sendAsync(httpClient, HttpRequestBuilder.forUrl(corePlugin.getInfluxDbUrl() + "/write?precision=ms&db=" + corePlugin.getInfluxDbDb())
+				.method("POST")
+				.outputStreamHandler(outputStreamHandler)
+				.build(), report);
+		if (lineProtocolPrefixes.size() > registry.getMetrics().size() * 2) {
+			// forget the prefixes of metrics which have been removed from the registry
+			lineProtocolPrefixes.clear();
 		}
 	}
 
-	private void reportHistograms(Map<MetricName, Histogram> histograms, long timestamp) {
-		for (Map.Entry<MetricName, Histogram> entry : histograms.entrySet()) {
-			final Histogram hist = entry.getValue();
-			final Snapshot snapshot = hist.getSnapshot();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()),
-					"count=" + getIntegerValue(hist.getCount()) + ","
-							+ reportHistogramSnapshot(snapshot), timestamp);
-		}
-	}
+	/**
+	 * Streams the metrics in the line protocol into the request body
+	 */
+	private abstract class LineProtocolOutputStreamHandler implements HttpClient.OutputStreamHandler {
+		private long timestamp;
 
-	private void reportMeters(Map<MetricName, Meter> meters, long timestamp) {
-		for (Map.Entry<MetricName, Meter> entry : meters.entrySet()) {
-			final Meter meter = entry.getValue();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()), reportMetered(meter), timestamp);
-		}
-	}
+		/**
+		 * Passes the metrics which should be reported to the visitor
+		 */
+		protected abstract void visit(Metric2Visitor visitor);
 
-	private void reportTimers(Map<MetricName, Timer> timers, long timestamp) {
-		for (Map.Entry<MetricName, Timer> entry : timers.entrySet()) {
-			final Timer timer = entry.getValue();
-			final Snapshot snapshot = timer.getSnapshot();
-			reportLine(getInfluxDbLineProtocolString(entry.getKey()),
-					reportMetered(timer) + ","
-							+ reportTimerSnapshot(snapshot), timestamp);
+		/**
+		 * Invoked by a thread of the {@link HttpClient}, as the metrics are reported asynchronously
+		 */
+		@Override
+		public void withHttpURLConnection(OutputStream os) throws IOException {
+			final Timer.Context time = registry.timer(reportingTimeMetricName).time();
+			synchronized (writer) {
+				writer.setOutputStream(os);
+				try {
+					visit(new LineProtocolVisitor(timestamp));
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				} finally {
+					time.stop();
+				}
+				writer.flush();
+			}
+			os.close();
 		}
 	}
 
-	private String reportTimerSnapshot(Snapshot snapshot) {
-		return "min=" + getDuration(snapshot.getMin()) + ","
-				+ "max=" + getDuration(snapshot.getMax()) + ","
-				+ "mean=" + getDuration(snapshot.getMean()) + ","
-				+ "p50=" + getDuration(snapshot.getMedian()) + ","
-				+ "std=" + getDuration(snapshot.getStdDev()) + ","
-				+ "p25=" + getDuration(snapshot.getValue(0.25)) + ","
-				+ "p75=" + getDuration(snapshot.get75thPercentile()) + ","
-				+ "p95=" + getDuration(snapshot.get95thPercentile()) + ","
-				+ "p98=" + getDuration(snapshot.get98thPercentile()) + ","
-				+ "p99=" + getDuration(snapshot.get99thPercentile()) + ","
-				+ "p999=" + getDuration(snapshot.get999thPercentile());
-	}
-	
-	private String reportHistogramSnapshot(Snapshot snapshot) {
-		return "min=" + snapshot.getMin() + ","
-				+ "max=" + snapshot.getMax() + ","
-				+ "mean=" + snapshot.getMean() + ","
-				+ "p50=" + snapshot.getMedian() + ","
-				+ "std=" + snapshot.getStdDev() + ","
-				+ "p25=" + snapshot.getValue(0.25) + ","
-				+ "p75=" + snapshot.get75thPercentile() + ","
-				+ "p95=" + snapshot.get95thPercentile() + ","
-				+ "p98=" + snapshot.get98thPercentile() + ","
-				+ "p99=" + snapshot.get99thPercentile() + ","
-				+ "p999=" + snapshot.get999thPercentile();
-	}
+	private class LineProtocolVisitor implements Metric2Visitor {
+		private final long timestamp;
 
-	private String reportMetered(Metered metered) {
-		return "count=" + getIntegerValue(metered.getCount()) + ","
-				+ "m1_rate=" + getRate(metered.getOneMinuteRate()) + ","
-				+ "m5_rate=" + getRate(metered.getFiveMinuteRate()) + ","
-				+ "m15_rate=" + getRate(metered.getFifteenMinuteRate()) + ","
-				+ "mean_rate=" + getRate(metered.getMeanRate());
-	}
+		private LineProtocolVisitor(long timestamp) {
+			this.timestamp = timestamp;
+		}
 
-	private void reportLine(String nameAndTags, String fields, long timestamp) {
-		if (batchLines.size() >= MAX_BATCH_SIZE) {
-			flush();
+		@Override
+		public void visitGauge(MetricName name, Gauge gauge) {
+			final Object value = gauge.getValue();
+			if (value == null || value instanceof Number && !isFinite((Number) value)) {
+				return;
+			}
+			try {
+				writer.startLine(getLineProtocolPrefix(name));
+				if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+					writer.longField(VALUE, ((Number) value).longValue());
+				} else if (value instanceof Number) {
+					writer.doubleField(VALUE, ((Number) value).doubleValue());
+				} else if (value instanceof Boolean) {
+					writer.booleanField(VALUE_BOOLEAN, (Boolean) value);
+				} else {
+					writer.stringField(VALUE_STRING, String.valueOf(value));
+				}
+				writer.endLine(timestamp);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
-		batchLines.add(nameAndTags + globalTags + ' ' + fields + ' ' + timestamp);
-	}
 
-	private void flush() {
-		httpClient.send("POST", corePlugin.getInfluxDbUrl() + "/write?precision=ms&db=" + corePlugin.getInfluxDbDb(), batchLines);
-		batchLines = new ArrayList<String>(MAX_BATCH_SIZE);
-	}
+		@Override
+		public void visitCounter(MetricName name, Counter counter) {
+			try {
+				writer.startLine(getLineProtocolPrefix(name));
+				writer.integerField(COUNT, counter.getCount());
+				writer.endLine(timestamp);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 
-	private String getGaugeValueForInfluxDb(Object value) {
-		if (value == null) {
-			return null;
+		@Override
+		public void visitHistogram(MetricName name, Histogram histogram) {
+			try {
+				writer.startLine(getLineProtocolPrefix(name));
+				writer.integerField(COUNT, histogram.getCount());
+				writeHistogramSnapshot(getSnapshot(histogram));
+				writer.endLine(timestamp);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
-		if (value instanceof Number) {
-			final String floatValue = getFloatValue(value);
-			if (floatValue == null) {
-				return null;
+
+		@Override
+		public void visitMeter(MetricName name, Meter meter) {
+			try {
+				writer.startLine(getLineProtocolPrefix(name));
+				writeMetered(meter);
+				writer.endLine(timestamp);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void visitTimer(MetricName name, Timer timer) {
+			try {
+				writer.startLine(getLineProtocolPrefix(name));
+				writeMetered(timer);
+				writeTimerSnapshot(getSnapshot(timer));
+				writer.endLine(timestamp);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
-			return "value=" + floatValue;
-		} else if (value instanceof Boolean) {
-			return "value_boolean=" + value.toString();
-		} else {
-			return "value_string=" + getStringValue(String.valueOf(value));
 		}
 	}
 
-	private String getIntegerValue(Object integer) {
-		return integer.toString() + "i";
+	private void writeTimerSnapshot(Snapshot snapshot) throws IOException {
+		writer.doubleField(MIN, convertDuration(snapshot.getMin()));
+		writer.doubleField(MAX, convertDuration(snapshot.getMax()));
+		writer.doubleField(MEAN, convertDuration(snapshot.getMean()));
+		writer.doubleField(P50, convertDuration(snapshot.getMedian()));
+		writer.doubleField(STD, convertDuration(snapshot.getStdDev()));
+		writer.doubleField(P25, convertDuration(snapshot.getValue(0.25)));
+		writer.doubleField(P75, convertDuration(snapshot.get75thPercentile()));
+		writer.doubleField(P95, convertDuration(snapshot.get95thPercentile()));
+		writer.doubleField(P98, convertDuration(snapshot.get98thPercentile()));
+		writer.doubleField(P99, convertDuration(snapshot.get99thPercentile()));
+		writer.doubleField(P999, convertDuration(snapshot.get999thPercentile()));
 	}
 
-	private String getDuration(double duration) {
-		return getFloatValue(convertDuration(duration));
+	private void writeHistogramSnapshot(Snapshot snapshot) throws IOException {
+		writer.longField(MIN, snapshot.getMin());
+		writer.longField(MAX, snapshot.getMax());
+		writer.doubleField(MEAN, snapshot.getMean());
+		writer.doubleField(P50, snapshot.getMedian());
+		writer.doubleField(STD, snapshot.getStdDev());
+		writer.doubleField(P25, snapshot.getValue(0.25));
+		writer.doubleField(P75, snapshot.get75thPercentile());
+		writer.doubleField(P95, snapshot.get95thPercentile());
+		writer.doubleField(P98, snapshot.get98thPercentile());
+		writer.doubleField(P99, snapshot.get99thPercentile());
+		writer.doubleField(P999, snapshot.get999thPercentile());
 	}
 
-	private String getRate(double rate) {
-		return getFloatValue(convertRate(rate));
+	private void writeMetered(Metered metered) throws IOException {
+		writer.integerField(COUNT, metered.getCount());
+		writer.doubleField(M1_RATE, convertRate(metered.getOneMinuteRate()));
+		writer.doubleField(M5_RATE, convertRate(metered.getFiveMinuteRate()));
+		writer.doubleField(M15_RATE, convertRate(metered.getFifteenMinuteRate()));
+		writer.doubleField(MEAN_RATE, convertRate(metered.getMeanRate()));
 	}
 
-	private String getFloatValue(Object number) {
-		String result = number.toString();
-		if (result.equals("NaN") || result.contains("Infinity")) {
-			return null;
-		} else {
-			// InfluxDB wants the exponent to be in lower case
-			return result.replace('E', 'e');
+	private byte[] getLineProtocolPrefix(MetricName metricName) {
+		byte[] prefix = lineProtocolPrefixes.get(metricName);
+		if (prefix == null) {
+			final StringBuilder sb = new StringBuilder();
+			appendInfluxDbLineProtocolString(sb, metricName);
+			sb.append(globalTags).append(' ');
+			prefix = sb.toString().getBytes(InfluxDbLineProtocolWriter.UTF_8);
+			lineProtocolPrefixes.put(metricName, prefix);
 		}
+		return prefix;
 	}
 
-	private String getStringValue(String value) {
-		final String s = value;
-		if (s.indexOf('"') == -1) {
-			return new StringBuilder(s.length() + 2).append('"').append(s).append('"').toString();
-		} else {
-			return new StringBuilder(s.length() + 6).append('"').append(s.replace("\"", "\\\"")).append('"').toString();
-		}
+	private static boolean isFinite(Number number) {
+		final double value = number.doubleValue();
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	private static byte[] fieldName(String fieldName) {
+		return (fieldName + '=').getBytes(InfluxDbLineProtocolWriter.UTF_8);
 	}
 
 	public static class Builder extends ScheduledMetrics2Reporter.Builder<InfluxDbReporter, Builder> {
@@ -231,14 +307,18 @@ public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 		String influxDbString = metricNameToInfluxDBFormatCache.get(metricName);
 		if (influxDbString == null) {
 			final StringBuilder sb = new StringBuilder(metricName.getName().length() + metricName.getTagKeys().size() * 16 + metricName.getTagKeys().size());
-			sb.append(escapeForInfluxDB(metricName.getName()));
-			appendTags(sb, metricName.getTags());
+			appendInfluxDbLineProtocolString(sb, metricName);
 			influxDbString = sb.toString();
 			metricNameToInfluxDBFormatCache.put(metricName, influxDbString);
 		}
 		return influxDbString;
 	}
 
+	private static void appendInfluxDbLineProtocolString(StringBuilder sb, MetricName metricName) {
+		sb.append(escapeForInfluxDB(metricName.getName()));
+		appendTags(sb, metricName.getTags());
+	}
+
 	private static String getInfluxDbTags(Map<String, String> tags) {
 		final StringBuilder sb = new StringBuilder();
 		appendTags(sb, tags);
@@ -0,0 +1,37 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+/**
+ * Determines whether and when the metrics of a {@link Metric2Registry} are mirrored into the wrapped legacy Dropwizard
+ * {@link com.codahale.metrics.MetricRegistry} (see {@link Metric2Registry#getMetricRegistry()})
+ */
+public enum LegacyMirroringMode {
+
+	/**
+	 * The metrics are not mirrored. The legacy registry stays empty.
+	 */
+	OFF {
+		@Override
+		public String toString() {
+			return "Off (only metrics2 reporters)";
+		}
+	},
+	/**
+	 * All metrics are mirrored as soon as they are registered
+	 */
+	EAGER {
+		@Override
+		public String toString() {
+			return "Eager (mirror on registration)";
+		}
+	},
+	/**
+	 * The metrics are mirrored on the first call to {@link Metric2Registry#getMetricRegistry()} which happens when a
+	 * legacy reporter like the Graphite or JMX reporter is started. From then on, metrics are mirrored on registration.
+	 */
+	LAZY {
+		@Override
+		public String toString() {
+			return "Lazy (mirror when a legacy reporter is started)";
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Meter;
+
+/**
+ * Determines which implementation backs the {@link Meter}s created by the {@link Metric2Registry}
+ */
+public enum MeterType {
+
+	DROPWIZARD {
+		@Override
+		public Meter newMeter() {
+			return new Meter();
+		}
+
+		@Override
+		public String toString() {
+			return "Dropwizard meter";
+		}
+	},
+	STRIPED {
+		@Override
+		public Meter newMeter() {
+			return new StripedMeter();
+		}
+
+		@Override
+		public String toString() {
+			return "Striped meter (less contention on frequently marked meters)";
+		}
+	};
+
+	/**
+	 * Creates a new {@link Meter}
+	 *
+	 * @return a new {@link Meter}
+	 */
+	public abstract Meter newMeter();
+}
@@ -1,5 +1,6 @@
 package org.stagemonitor.core.metrics.metrics2;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -7,9 +8,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
-import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
@@ -17,31 +21,81 @@ import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Reservoir;
 import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 /**
  * A metrics registry that does not use a simple dotted metric name but a key-value pair for the metric identity
  */
 public class Metric2Registry implements Metric2Set {
 
+	/**
+	 * The value of the <code>operation_name</code> tag of the series into which all series are folded that exceed the
+	 * cardinality limit (see {@link #setMaxSeriesPerMetricName(int)}). The overflow series has no other tags.
+	 */
+	public static final String OVERFLOW_OPERATION_NAME = "__overflow__";
+
+	private static final Logger logger = LoggerFactory.getLogger(Metric2Registry.class);
+	private static final String CARDINALITY_LIMIT_EXCEEDED = "metrics_cardinality_limit_exceeded";
+	private static final MetricName.MetricNameTemplate cardinalityLimitExceededTemplate = name(CARDINALITY_LIMIT_EXCEEDED)
+			.templateFor("metric_name");
+	private static final MetricName evictedMetricName = name("metrics_evicted").build();
+	/**
+	 * The number of rejected series which are remembered per metric name so that each rejected series is only counted
+	 * once by <code>metrics_cardinality_limit_exceeded</code>
+	 */
+	private static final int MAX_REJECTED_SERIES_PER_METRIC_NAME = 1000;
+
 	private final ConcurrentMap<MetricName, Metric> metrics = new ConcurrentHashMap<MetricName, Metric>();
+	private final ConcurrentMap<String, Series> seriesPerMetricName = new ConcurrentHashMap<String, Series>();
+	private final ConcurrentMap<MetricName, IdleState> idleStates = new ConcurrentHashMap<MetricName, IdleState>();
+	// per-type indexes of the metrics map so that reporters don't have to scan all metrics for each type
+	private final ConcurrentMap<MetricName, Gauge> gauges = new ConcurrentHashMap<MetricName, Gauge>();
+	private final ConcurrentMap<MetricName, Counter> counters = new ConcurrentHashMap<MetricName, Counter>();
+	private final ConcurrentMap<MetricName, Histogram> histograms = new ConcurrentHashMap<MetricName, Histogram>();
+	private final ConcurrentMap<MetricName, Meter> meters = new ConcurrentHashMap<MetricName, Meter>();
+	private final ConcurrentMap<MetricName, Timer> timers = new ConcurrentHashMap<MetricName, Timer>();
+	private final Clock clock;
+	private final SnapshotCoordinator snapshotCoordinator;
 	
 	// An internal reference to a legacy Dropwizard Metric Registry
 	// that we echo registration/removal of Metrics to so that it
 	// matches the state of our registry and supports the Dropwizard
 	// Metrics listener and reporting patterns.
 	private final MetricRegistry metricRegistry;
+	private volatile LegacyMirroringMode legacyMirroringMode = LegacyMirroringMode.EAGER;
+	private volatile boolean mirroring = true;
+
+	private volatile ReservoirType reservoirType = ReservoirType.EXPONENTIALLY_DECAYING;
+	private volatile MeterType meterType = MeterType.DROPWIZARD;
+	private volatile int maxSeriesPerMetricName = Integer.MAX_VALUE;
+	private volatile long timeToIdleMillis = -1;
+	private volatile Set<String> evictableMetricNames = Collections.emptySet();
 
 	public Metric2Registry() {
 		this(new MetricRegistry());
 	}
 
 	public Metric2Registry(MetricRegistry metricRegistry) {
+		this(metricRegistry, Clock.defaultClock());
+	}
+
+	Metric2Registry(MetricRegistry metricRegistry, Clock clock) {
 		this.metricRegistry = metricRegistry;
+		this.clock = clock;
+		this.snapshotCoordinator = new SnapshotCoordinator(1, TimeUnit.MINUTES, clock);
 	}
 
 	/**
 	 * Given a {@link Metric}, registers it under the given name.
+	 * <p>
+	 * If the metric name already has the maximum number of series (see {@link #setMaxSeriesPerMetricName(int)}), the
+	 * metric is not registered and a warning is logged. The dropped series are counted by the metric
+	 * <code>metrics_cardinality_limit_exceeded</code>.
 	 *
 	 * @param name   the name of the metric
 	 * @param metric the metric
@@ -49,25 +103,43 @@ public class Metric2Registry implements Metric2Set {
 	 * @return {@code metric}
 	 * @throws IllegalArgumentException if the name is already registered
 	 */
-	@SuppressWarnings("unchecked")
 	public <T extends Metric> T register(MetricName name, T metric) throws IllegalArgumentException {
 		if (metric instanceof MetricSet) {
 			throw new IllegalArgumentException("This metrics registry is not compatible with MetricSets. Use a Metric2Set instead.");
-		} else {
-			final Metric existing = metrics.putIfAbsent(name, metric);
-			if (existing != null) {
-				throw new IllegalArgumentException("A metric named " + name + " already exists");
-			}
-			else {
-				// This is a new metric - we have to register the Metric with
-				// the legacy Dropwizard Metric registry as
-				// well to support existing reports and listeners
-				metricRegistry.register(name.toGraphiteName(), metric);
-			}
 		}
+		if (metrics.containsKey(name)) {
+			throw new IllegalArgumentException("A metric named " + name + " already exists");
+		}
+		addMetric(name, metric, getSeries(name.getName()), true);
 		return metric;
 	}
 
+	/**
+	 * Adds the metric, unless the metric name already has the maximum number of series. The series is reserved before
+	 * the metric is added, so that concurrent registrations can't exceed the limit.
+	 *
+	 * @return {@code false}, if the cardinality limit is exceeded
+	 * @throws IllegalArgumentException if the name is already registered
+	 */
+	private boolean addMetric(MetricName name, Metric metric, Series series, boolean registeredExplicitly) throws IllegalArgumentException {
+		if (!reserveSeries(name, series, registeredExplicitly)) {
+			return false;
+		}
+		final Metric existing = metrics.putIfAbsent(name, metric);
+		if (existing != null) {
+			series.count.decrementAndGet();
+			throw new IllegalArgumentException("A metric named " + name + " already exists");
+		}
+		addToIndex(name, metric);
+		// This is a new metric - we have to register the Metric with
+		// the legacy Dropwizard Metric registry as
+		// well to support existing reports and listeners
+		if (mirroring) {
+			mirror(name, metric);
+		}
+		return true;
+	}
+
 	/**
 	 * Given a metric set, registers them.
 	 *
@@ -158,9 +230,17 @@ public class Metric2Registry implements Metric2Set {
 	public boolean remove(MetricName name) {
 		final Metric metric = metrics.remove(name);
 		if (metric != null) {
+			removeFromIndex(name, metric);
 			// We have to unregister the Metric with the legacy Dropwizard Metric registry as
 			// well to support existing reports and listeners
-			metricRegistry.remove(name.toGraphiteName());
+			if (mirroring) {
+				metricRegistry.remove(name.toGraphiteName());
+			}
+			final Series series = getSeries(name.getName());
+			series.count.decrementAndGet();
+			// the freed up series can be used by a previously rejected series
+			series.rejected.clear();
+			idleStates.remove(name);
 			return true;
 		}
 		return false;
@@ -278,22 +358,197 @@ public class Metric2Registry implements Metric2Set {
 		if (builder.isInstance(metric)) {
 			return (T) metric;
 		} else if (metric == null) {
+			final Series series = getSeries(name.getName());
+			if (series.rejected.contains(name)) {
+				return getOrAdd(series.overflowName, builder);
+			}
+			final T newMetric = builder.newMetric(this);
 			try {
-				return register(name, builder.newMetric());
+				if (!addMetric(name, newMetric, series, false)) {
+					return getOrAdd(series.overflowName, builder);
+				}
 			} catch (IllegalArgumentException e) {
 				final Metric added = metrics.get(name);
 				if (builder.isInstance(added)) {
 					return (T) added;
 				}
+				throw new IllegalArgumentException(name + " is already used for a different type of metric");
+			}
+			if (!(newMetric instanceof Counter) && evictableMetricNames.contains(name.getName())) {
+				idleStates.put(name, new IdleState(clock.getTime()));
 			}
+			return newMetric;
 		}
 		throw new IllegalArgumentException(name + " is already used for a different type of metric");
 	}
 
+	private boolean reserveSeries(MetricName name, Series series, boolean registeredExplicitly) {
+		if (CARDINALITY_LIMIT_EXCEEDED.equals(name.getName()) || name.equals(series.overflowName)) {
+			series.count.incrementAndGet();
+			return true;
+		}
+		int count;
+		do {
+			count = series.count.get();
+			if (count >= maxSeriesPerMetricName) {
+				rejectSeries(name, series, registeredExplicitly);
+				return false;
+			}
+		} while (!series.count.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	private void rejectSeries(MetricName name, Series series, boolean registeredExplicitly) {
+		if (series.rejected.size() >= MAX_REJECTED_SERIES_PER_METRIC_NAME) {
+			series.rejected.clear();
+		}
+		if (!series.rejected.add(name)) {
+			return;
+		}
+		final Counter limitExceeded = counter(cardinalityLimitExceededTemplate.build(name.getName()));
+		limitExceeded.inc();
+		if (limitExceeded.getCount() == 1) {
+			logger.warn("The metric {} has more than {} different series. Additional timers, meters, counters and " +
+					"histograms are tracked as a single series with operation_name={}, additional gauges are not registered. " +
+					"This is probably caused by metrics with high cardinality tags like the URL. " +
+					"Check stagemonitor.groupUrls or increase stagemonitor.metrics.maxSeriesPerMetricName.",
+					name.getName(), maxSeriesPerMetricName, OVERFLOW_OPERATION_NAME);
+		}
+		if (registeredExplicitly) {
+			logger.warn("Not registering {}, because the metric {} already has {} different series (see " +
+					"stagemonitor.metrics.maxSeriesPerMetricName)", name, name.getName(), maxSeriesPerMetricName);
+		}
+	}
+
+	private Series getSeries(String metricName) {
+		final Series series = seriesPerMetricName.get(metricName);
+		if (series != null) {
+			return series;
+		}
+		final Series newSeries = new Series(metricName);
+		final Series previous = seriesPerMetricName.putIfAbsent(metricName, newSeries);
+		return previous != null ? previous : newSeries;
+	}
+
+	/**
+	 * Removes all {@link Timer}s, {@link Meter}s and {@link Histogram}s which have been created via
+	 * {@link #timer(MetricName)}, {@link #meter(MetricName)} or {@link #histogram(MetricName)} with one of the evictable
+	 * metric names and whose count has not changed for longer than the time to idle (see
+	 * {@link #setTimeToIdle(long, TimeUnit, Collection)}).
+	 * <p>
+	 * This method has to be called periodically and the precision of the idle time depends on the period.
+	 *
+	 * @return the number of evicted metrics
+	 */
+	public int evictIdleMetrics() {
+		final long timeToIdleMillis = this.timeToIdleMillis;
+		if (timeToIdleMillis <= 0) {
+			return 0;
+		}
+		final long now = clock.getTime();
+		int evicted = 0;
+		for (Map.Entry<MetricName, IdleState> entry : idleStates.entrySet()) {
+			final Metric metric = metrics.get(entry.getKey());
+			if (!(metric instanceof Counting)) {
+				idleStates.remove(entry.getKey());
+			} else if (entry.getValue().isIdle(((Counting) metric).getCount(), now, timeToIdleMillis) && remove(entry.getKey())) {
+				evicted++;
+			}
+		}
+		if (evicted > 0) {
+			counter(evictedMetricName).inc(evicted);
+			logger.debug("Evicted {} idle metrics", evicted);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Passes all metrics which match the given filter to the visitor, ordered by type (gauges, counters, histograms,
+	 * meters and timers).
+	 * <p>
+	 * In contrast to {@link #getGauges(Metric2Filter)} etc., this does not copy the metrics into intermediate maps.
+	 * Metrics which are registered or removed concurrently may or may not be visited.
+	 *
+	 * @param filter  the metric filter to match
+	 * @param visitor the visitor which receives the metrics
+	 */
+	public void visit(Metric2Filter filter, Metric2Visitor visitor) {
+		for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
+			if (filter.matches(entry.getKey(), entry.getValue())) {
+				visitor.visitGauge(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<MetricName, Counter> entry : counters.entrySet()) {
+			if (filter.matches(entry.getKey(), entry.getValue())) {
+				visitor.visitCounter(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<MetricName, Histogram> entry : histograms.entrySet()) {
+			if (filter.matches(entry.getKey(), entry.getValue())) {
+				visitor.visitHistogram(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<MetricName, Meter> entry : meters.entrySet()) {
+			if (filter.matches(entry.getKey(), entry.getValue())) {
+				visitor.visitMeter(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<MetricName, Timer> entry : timers.entrySet()) {
+			if (filter.matches(entry.getKey(), entry.getValue())) {
+				visitor.visitTimer(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void addToIndex(MetricName name, Metric metric) {
+		if (metric instanceof Gauge) {
+			gauges.put(name, (Gauge) metric);
+		}
+		if (metric instanceof Counter) {
+			counters.put(name, (Counter) metric);
+		}
+		if (metric instanceof Histogram) {
+			histograms.put(name, (Histogram) metric);
+		}
+		if (metric instanceof Meter) {
+			meters.put(name, (Meter) metric);
+		}
+		if (metric instanceof Timer) {
+			timers.put(name, (Timer) metric);
+		}
+		if (metrics.get(name) != metric) {
+			// removed concurrently before it was added to the index
+			removeFromIndex(name, metric);
+		}
+	}
+
+	private void removeFromIndex(MetricName name, Metric metric) {
+		gauges.remove(name, metric);
+		counters.remove(name, metric);
+		histograms.remove(name, metric);
+		meters.remove(name, metric);
+		timers.remove(name, metric);
+	}
+
+	private Map<MetricName, ? extends Metric> getIndex(Class<? extends Metric> klass) {
+		if (klass == Gauge.class) {
+			return gauges;
+		} else if (klass == Counter.class) {
+			return counters;
+		} else if (klass == Histogram.class) {
+			return histograms;
+		} else if (klass == Meter.class) {
+			return meters;
+		} else if (klass == Timer.class) {
+			return timers;
+		}
+		return metrics;
+	}
+
 	@SuppressWarnings("unchecked")
 	private <T extends Metric> Map<MetricName, T> getMetrics(Class<T> klass, Metric2Filter filter) {
 		final Map<MetricName, T> metrics = new HashMap<MetricName, T>();
-		for (Map.Entry<MetricName, Metric> entry : this.metrics.entrySet()) {
+		for (Map.Entry<MetricName, ? extends Metric> entry : getIndex(klass).entrySet()) {
 			if (klass.isInstance(entry.getValue()) && filter.matches(entry.getKey(), entry.getValue())) {
 				metrics.put(entry.getKey(), (T) entry.getValue());
 			}
@@ -304,7 +559,7 @@ public class Metric2Registry implements Metric2Set {
 	@SuppressWarnings("unchecked")
 	protected <T extends Metric> Map<MetricName, T> getMetrics(Class<T> klass, MetricFilter filter) {
 		final Map<MetricName, T> metrics = new HashMap<MetricName, T>();
-		for (Map.Entry<MetricName, Metric> entry : this.metrics.entrySet()) {
+		for (Map.Entry<MetricName, ? extends Metric> entry : getIndex(klass).entrySet()) {
 			if (klass.isInstance(entry.getValue()) && filter.matches(entry.getKey().toGraphiteName(), entry.getValue())) {
 				metrics.put(entry.getKey(), (T) entry.getValue());
 			}
@@ -349,7 +604,7 @@ public class Metric2Registry implements Metric2Set {
 	private interface MetricBuilder<T extends Metric> {
 		MetricBuilder<Counter> COUNTERS = new MetricBuilder<Counter>() {
 			@Override
-			public Counter newMetric() {
+			public Counter newMetric(Metric2Registry registry) {
 				return new Counter();
 			}
 
@@ -361,8 +616,8 @@ public class Metric2Registry implements Metric2Set {
 
 		MetricBuilder<Histogram> HISTOGRAMS = new MetricBuilder<Histogram>() {
 			@Override
-			public Histogram newMetric() {
-				return new Histogram(new ExponentiallyDecayingReservoir());
+			public Histogram newMetric(Metric2Registry registry) {
+				return new Histogram(registry.newReservoir());
 			}
 
 			@Override
@@ -373,8 +628,8 @@ public class Metric2Registry implements Metric2Set {
 
 		MetricBuilder<Meter> METERS = new MetricBuilder<Meter>() {
 			@Override
-			public Meter newMetric() {
-				return new Meter();
+			public Meter newMetric(Metric2Registry registry) {
+				return registry.meterType.newMeter();
 			}
 
 			@Override
@@ -385,8 +640,8 @@ public class Metric2Registry implements Metric2Set {
 
 		MetricBuilder<Timer> TIMERS = new MetricBuilder<Timer>() {
 			@Override
-			public Timer newMetric() {
-				return new Timer();
+			public Timer newMetric(Metric2Registry registry) {
+				return new Timer(registry.newReservoir());
 			}
 
 			@Override
@@ -395,17 +650,203 @@ public class Metric2Registry implements Metric2Set {
 			}
 		};
 
-		T newMetric();
+		T newMetric(Metric2Registry registry);
 
 		boolean isInstance(Metric metric);
 	}
 
+	/**
+	 * Keeps track of the series of a metric name to enforce the cardinality limit
+	 */
+	private static class Series {
+		private final AtomicInteger count = new AtomicInteger();
+		private final Set<MetricName> rejected = Collections.newSetFromMap(new ConcurrentHashMap<MetricName, Boolean>());
+		/**
+		 * The single series of a metric name into which all timers, meters, counters and histograms are folded that
+		 * exceed the cardinality limit, regardless of their tags
+		 */
+		private final MetricName overflowName;
+
+		private Series(String metricName) {
+			this.overflowName = name(metricName).operationName(OVERFLOW_OPERATION_NAME).build();
+		}
+	}
+
+	/**
+	 * Keeps track of when the count of a metric has changed the last time
+	 */
+	private static class IdleState {
+		private long lastCount;
+		private long lastUpdate;
+
+		private IdleState(long created) {
+			this.lastUpdate = created;
+		}
+
+		private synchronized boolean isIdle(long count, long now, long timeToIdleMillis) {
+			if (count != lastCount) {
+				lastCount = count;
+				lastUpdate = now;
+				return false;
+			}
+			return now - lastUpdate >= timeToIdleMillis;
+		}
+	}
+
+	/**
+	 * Sets the type of the {@link Reservoir} that is used for {@link Timer}s and {@link Histogram}s which are created
+	 * via {@link #timer(MetricName)} and {@link #histogram(MetricName)} from now on.
+	 * <p>
+	 * Already registered metrics keep their reservoir type, but interval based reservoirs of already registered metrics
+	 * use the new snapshot interval as well.
+	 *
+	 * @param reservoirType    the reservoir type
+	 * @param snapshotInterval the interval of the snapshots (only relevant for interval based reservoirs like
+	 *                         {@link ReservoirType#HDR_HISTOGRAM}). This should be equal to the reporting interval, as
+	 *                         the intervals are started by the scheduled reports with this interval
+	 *                         (see {@link SnapshotCoordinator#startReport(long)}).
+	 * @param unit             the unit of the snapshotInterval
+	 */
+	public void setReservoirType(ReservoirType reservoirType, long snapshotInterval, TimeUnit unit) {
+		this.reservoirType = reservoirType;
+		this.snapshotCoordinator.setInterval(snapshotInterval, unit);
+	}
+
+	/**
+	 * Sets the implementation of the {@link Meter}s which are created via {@link #meter(MetricName)} from now on.
+	 * <p>
+	 * Already registered metrics are not affected.
+	 *
+	 * @param meterType the meter type
+	 */
+	public void setMeterType(MeterType meterType) {
+		this.meterType = meterType;
+	}
+
+	public MeterType getMeterType() {
+		return meterType;
+	}
+
+	/**
+	 * Limits the number of series (i.e. distinct tag combinations) per metric name.
+	 * <p>
+	 * When the limit is reached, additional series which are created via {@link #counter(MetricName)},
+	 * {@link #meter(MetricName)}, {@link #histogram(MetricName)} and {@link #timer(MetricName)} are folded into a
+	 * single series per metric name, which only has the tag <code>operation_name</code>={@link #OVERFLOW_OPERATION_NAME}.
+	 * Additional metrics which are registered explicitly, like gauges, are not registered at all and a warning is logged.
+	 * Each rejected series is counted once by the metric <code>metrics_cardinality_limit_exceeded</code>. This protects
+	 * against unbounded growth of the registry, for example when a timer is created for each distinct URL. Note that
+	 * the overflow series itself also counts towards the limit but is always created, so that there are at most
+	 * <code>maxSeriesPerMetricName + 1</code> series per metric name.
+	 *
+	 * @param maxSeriesPerMetricName the maximum number of series per metric name, values below 1 deactivate the limit
+	 */
+	public void setMaxSeriesPerMetricName(int maxSeriesPerMetricName) {
+		this.maxSeriesPerMetricName = maxSeriesPerMetricName > 0 ? maxSeriesPerMetricName : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Sets the duration after which {@link Timer}s, {@link Meter}s and {@link Histogram}s that have not been updated
+	 * are removed from this registry and from the wrapped legacy {@link MetricRegistry} by {@link #evictIdleMetrics()}.
+	 * <p>
+	 * This prevents that series which are created per operation name stay in the registry (and are reported)
+	 * forever, even if the operation is not called anymore. If the operation is called again, the series is
+	 * re-created.
+	 * <p>
+	 * Eviction is opt-in per metric name, as updates to an evicted metric are lost if a caller holds on to a reference
+	 * of the metric. Only add metric names whose metrics are always obtained via {@link #timer(MetricName)} etc. The
+	 * names only apply to metrics which are created after this call. Counters and metrics which have been registered
+	 * explicitly via {@link #register(MetricName, Metric)} are never evicted.
+	 *
+	 * @param timeToIdle  the time to idle, values below 1 deactivate the eviction
+	 * @param unit        the unit of timeToIdle
+	 * @param metricNames the names of the metrics which may be evicted (see {@link MetricName#getName()})
+	 */
+	public void setTimeToIdle(long timeToIdle, TimeUnit unit, Collection<String> metricNames) {
+		this.timeToIdleMillis = unit.toMillis(timeToIdle);
+		this.evictableMetricNames = Collections.unmodifiableSet(new HashSet<String>(metricNames));
+	}
+
+	/**
+	 * Sets whether and when metrics are mirrored into the wrapped legacy {@link MetricRegistry}.
+	 * <p>
+	 * Mirroring a metric requires to compute its graphite name and to register it a second time. If only metrics2
+	 * reporters like the Elasticsearch or InfluxDB reporter are used, this overhead can be avoided with
+	 * {@link LegacyMirroringMode#OFF} or {@link LegacyMirroringMode#LAZY}.
+	 *
+	 * @param legacyMirroringMode the mirroring mode
+	 */
+	public synchronized void setLegacyMirroringMode(LegacyMirroringMode legacyMirroringMode) {
+		this.legacyMirroringMode = legacyMirroringMode;
+		if (legacyMirroringMode == LegacyMirroringMode.EAGER) {
+			startMirroring();
+		} else if (mirroring) {
+			mirroring = false;
+			for (MetricName name : metrics.keySet()) {
+				metricRegistry.remove(name.toGraphiteName());
+			}
+		}
+	}
+
+	public LegacyMirroringMode getLegacyMirroringMode() {
+		return legacyMirroringMode;
+	}
+
+	private synchronized void startMirroring() {
+		if (mirroring) {
+			return;
+		}
+		// set the flag before copying the metrics so that metrics which are registered concurrently are not missed
+		mirroring = true;
+		for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+			try {
+				mirror(entry.getKey(), entry.getValue());
+			} catch (IllegalArgumentException e) {
+				// already mirrored by a concurrent registration
+			}
+			if (metrics.get(entry.getKey()) != entry.getValue()) {
+				// removed concurrently
+				metricRegistry.remove(entry.getKey().toGraphiteName());
+			}
+		}
+	}
+
+	private void mirror(MetricName name, Metric metric) {
+		metricRegistry.register(name.toGraphiteName(), metric);
+	}
+
+	/**
+	 * Returns the {@link SnapshotCoordinator} which should be used by reporters to get the snapshots of timers and
+	 * histograms. The interval of the coordinator is the snapshot interval (see
+	 * {@link #setReservoirType(ReservoirType, long, TimeUnit)}).
+	 *
+	 * @return the {@link SnapshotCoordinator} of this registry
+	 */
+	public SnapshotCoordinator getSnapshotCoordinator() {
+		return snapshotCoordinator;
+	}
+
+	public ReservoirType getReservoirType() {
+		return reservoirType;
+	}
+
+	private Reservoir newReservoir() {
+		return reservoirType.newReservoir(snapshotCoordinator);
+	}
+
 	/**
 	 * Returns the wrapped legacy {@link MetricRegistry}
+	 * <p>
+	 * In {@link LegacyMirroringMode#LAZY} mode, the first call to this method mirrors all metrics into the legacy
+	 * registry. In {@link LegacyMirroringMode#OFF} mode, the legacy registry does not contain the metrics of this
+	 * registry.
 	 *
 	 * @return the wrapped legacy {@link MetricRegistry}
 	 */
 	public MetricRegistry getMetricRegistry() {
+		if (!mirroring && legacyMirroringMode == LegacyMirroringMode.LAZY) {
+			startMirroring();
+		}
 		return metricRegistry;
 	}
 
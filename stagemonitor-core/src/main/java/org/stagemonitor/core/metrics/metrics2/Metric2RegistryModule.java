@@ -6,6 +6,7 @@ import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
 import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -141,7 +142,7 @@ public class Metric2RegistryModule extends Module {
 
 	private class HistogramValueWriter implements ValueWriter<Histogram> {
 		public void writeValues(Histogram histogram, JsonGenerator jg) throws IOException {
-			final Snapshot snapshot = histogram.getSnapshot();
+			final Snapshot snapshot = getSnapshot(histogram);
 			jg.writeNumberField("count", histogram.getCount());
 			writeHistogramSnapshot(snapshot, jg);
 		}
@@ -156,10 +157,21 @@ public class Metric2RegistryModule extends Module {
 	private class TimerValueWriter implements ValueWriter<Timer> {
 		public void writeValues(Timer timer, JsonGenerator jg) throws IOException {
 			writeMetered(timer, jg);
-			writeTimerSnapshot(timer.getSnapshot(), jg);
+			writeTimerSnapshot(getSnapshot(timer), jg);
 		}
 	}
 
+	/**
+	 * Returns the snapshot of the timer or histogram which should be written. Reporters can override this method to
+	 * share the snapshots with other reporters (see {@link ScheduledMetrics2Reporter#getSnapshot(Sampling)}).
+	 *
+	 * @param sampling the timer or histogram
+	 * @return the snapshot of the timer or histogram
+	 */
+	protected Snapshot getSnapshot(Sampling sampling) {
+		return sampling.getSnapshot();
+	}
+
 	private void writeTimerSnapshot(Snapshot snapshot, JsonGenerator jg) throws IOException {
 		writeDoubleUnlessNaN(jg, "min", convertDuration(snapshot.getMin()));
 		writeDoubleUnlessNaN(jg, "max", convertDuration(snapshot.getMax()));
@@ -0,0 +1,26 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Receives the metrics of a {@link Metric2Registry} one by one, without copying them into intermediate maps.
+ *
+ * @see Metric2Registry#visit(Metric2Filter, Metric2Visitor)
+ */
+public interface Metric2Visitor {
+
+	void visitGauge(MetricName name, Gauge gauge);
+
+	void visitCounter(MetricName name, Counter counter);
+
+	void visitHistogram(MetricName name, Histogram histogram);
+
+	void visitMeter(MetricName name, Meter meter);
+
+	void visitTimer(MetricName name, Timer timer);
+
+}
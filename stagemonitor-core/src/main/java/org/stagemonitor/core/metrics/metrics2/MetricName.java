@@ -6,12 +6,15 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.stagemonitor.core.util.GraphiteSanitizer;
 
-import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -28,40 +31,73 @@ import java.util.concurrent.ConcurrentMap;
  * The cool thing is that it is completely backwards compatible to graphite metric names and can also automatically
  * replace characters disallowed in graphite (see {@link #toGraphiteName()}).
  * <p>
+ * Internally, the tags are stored in two parallel arrays of interned keys and values and the hash code is computed
+ * upfront. This makes {@link #hashCode()} and {@link #equals(Object)} cheap which is important as {@link MetricName}s
+ * are the keys of the {@link Metric2Registry}.
+ * <p>
  * This class is immutable
  */
 public class MetricName {
 
+	private static final String[] EMPTY = new String[0];
+
 	@JsonIgnore
-	private int hashCode;
+	private final int hashCode;
 
 	private final String name;
 
-	// The insertion order is important for the correctness of #toGraphiteName
-	private final LinkedHashMap<String, String> tags;
+	// The order is important for the correctness of #toGraphiteName
+	@JsonIgnore
+	private final String[] tagKeys;
+	@JsonIgnore
+	private final String[] tagValues;
 
-	private MetricName(String name, LinkedHashMap<String, String> tags) {
-		this.name = name;
-		this.tags = tags;
+	// lazily initialized views, it's safe to publish them without synchronisation as they only have final fields
+	@JsonIgnore
+	private List<String> tagKeysList;
+	@JsonIgnore
+	private List<String> tagValuesList;
+	@JsonIgnore
+	private Map<String, String> tags;
+
+	private MetricName(String name, String[] tagKeys, String[] tagValues, int size) {
+		this.name = intern(name);
+		this.tagKeys = new String[size];
+		this.tagValues = new String[size];
+		int hashCode = 0;
+		for (int i = 0; i < size; i++) {
+			this.tagKeys[i] = intern(tagKeys[i]);
+			this.tagValues[i] = intern(tagValues[i]);
+			// same as Map.Entry#hashCode so that the hash code does not depend on the order of the tags
+			hashCode += hashCode(tagKeys[i]) ^ hashCode(tagValues[i]);
+		}
+		this.hashCode = 31 * hashCode(name) + hashCode;
 	}
 
 	@JsonCreator
 	private MetricName(@JsonProperty("name") String name, @JsonProperty("tags") Map<String, String> tags) {
-		this.name = name;
-		this.tags = new LinkedHashMap<String, String>(tags);
+		this(name, tags.keySet().toArray(EMPTY), tags.values().toArray(EMPTY), tags.size());
 	}
 
 	/**
 	 * Returns a copy of this name and appends a single tag
 	 * <p>
-	 * Note that this method does not override existing tags
+	 * If there is already a tag with the same key, the value is replaced
 	 *
 	 * @param key   the key of the tag
 	 * @param value the value of the tag
 	 * @return a copy of this name including the provided tag
 	 */
 	public MetricName withTag(String key, String value) {
-		return name(name).tags(tags).tag(key, value).build();
+		return withTags(new String[]{key}, new String[]{value});
+	}
+
+	private MetricName withTags(String[] keys, String[] values) {
+		final Builder builder = new Builder(name, tagKeys.length + keys.length).tags(tagKeys, tagValues, tagKeys.length);
+		for (int i = 0; i < keys.length; i++) {
+			builder.tag(keys[i], values[i]);
+		}
+		return builder.build();
 	}
 
 	/**
@@ -86,17 +122,32 @@ public class MetricName {
 	}
 
 	public Map<String, String> getTags() {
-		return Collections.unmodifiableMap(tags);
+		Map<String, String> tags = this.tags;
+		if (tags == null) {
+			tags = new TagsMap(tagKeys, tagValues);
+			this.tags = tags;
+		}
+		return tags;
 	}
 
 	@JsonIgnore
 	public List<String> getTagKeys() {
-		return new ArrayList<String>(tags.keySet());
+		List<String> tagKeysList = this.tagKeysList;
+		if (tagKeysList == null) {
+			tagKeysList = Collections.unmodifiableList(Arrays.asList(tagKeys));
+			this.tagKeysList = tagKeysList;
+		}
+		return tagKeysList;
 	}
 
 	@JsonIgnore
 	public List<String> getTagValues() {
-		return new ArrayList<String>(tags.values());
+		List<String> tagValuesList = this.tagValuesList;
+		if (tagValuesList == null) {
+			tagValuesList = Collections.unmodifiableList(Arrays.asList(tagValues));
+			this.tagValuesList = tagValuesList;
+		}
+		return tagValuesList;
 	}
 
 	/**
@@ -106,14 +157,15 @@ public class MetricName {
 	 */
 	public String toGraphiteName() {
 		StringBuilder sb = new StringBuilder(GraphiteSanitizer.sanitizeGraphiteMetricSegment(name));
-		for (String value : tags.values()) {
+		for (String value : tagValues) {
 			sb.append('.').append(GraphiteSanitizer.sanitizeGraphiteMetricSegment(value));
 		}
 		return sb.toString();
 	}
 
 	/**
-	 * A {@link MetricName} is only considered equal to another {@link MetricName} if the tags are in the same order.
+	 * Two {@link MetricName}s are considered equal if they have the same name and tags. The order of the tags does not
+	 * matter.
 	 */
 	@Override
 	public boolean equals(Object o) {
@@ -122,39 +174,65 @@ public class MetricName {
 
 		MetricName that = (MetricName) o;
 
-		return name.equals(that.name) && tags.equals(that.tags);
+		if (hashCode != that.hashCode || tagKeys.length != that.tagKeys.length || !name.equals(that.name)) {
+			return false;
+		}
+		// fast path: same order
+		if (Arrays.equals(tagKeys, that.tagKeys)) {
+			return Arrays.equals(tagValues, that.tagValues);
+		}
+		return that.containsAllTags(tagKeys, tagValues);
 	}
 
 	@Override
 	public int hashCode() {
-		int result = hashCode;
-		if (result == 0) {
-			result = name.hashCode();
-			result = 31 * result + tags.hashCode();
-			hashCode = result;
-		}
-		return result;
+		return hashCode;
 	}
 
 	public boolean matches(MetricName other) {
-		return name.equals(other.name) && containsAllTags(other.tags);
+		return name.equals(other.name) && containsAllTags(other.tagKeys, other.tagValues);
 	}
 
-	private boolean containsAllTags(Map<String, String> tags) {
-		for (Map.Entry<String, String> entry : tags.entrySet()) {
-			if (!entry.getValue().equals(this.tags.get(entry.getKey()))) {
+	private boolean containsAllTags(String[] keys, String[] values) {
+		for (int i = 0; i < keys.length; i++) {
+			final int index = indexOf(tagKeys, tagKeys.length, keys[i]);
+			if (index < 0 || !equals(values[i], tagValues[index])) {
 				return false;
 			}
 		}
 		return true;
 	}
 
+	private static int indexOf(String[] keys, int size, String key) {
+		for (int i = 0; i < size; i++) {
+			if (equals(key, keys[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equals(String s1, String s2) {
+		return s1 == s2 || s1 != null && s1.equals(s2);
+	}
+
+	private static int hashCode(String s) {
+		return s == null ? 0 : s.hashCode();
+	}
+
+	private static String intern(String s) {
+		return s == null ? null : s.intern();
+	}
+
 	/**
 	 * A {@link MetricNameTemplate} lets you efficiently create similar {@link MetricName}s so that if a {@link
 	 * MetricName} has already been {@link #build(String)} for the same value(s), the previous instance is reused.
 	 * <p>
 	 * In other words, this is a cache for {@link MetricName}s
 	 * <p>
+	 * Looking up a cached {@link MetricName} via {@link #build(String)}, {@link #build(String, String)} or
+	 * {@link #build(String, String, String)} does not allocate any objects.
+	 * <p>
 	 * Example:
 	 * <pre>
 	 *     MetricName.MetricNameTemplate timerMetricNameTemplate = name("response_time")
@@ -165,42 +243,70 @@ public class MetricName {
 	 * </pre>
 	 */
 	public static class MetricNameTemplate {
-		private final ConcurrentMap<Object, MetricName> metricNameCache = new ConcurrentHashMap<Object, MetricName>();
-		private final MetricName template;
-		private final String key;
-		private final List<String> keys;
+		// ConcurrentHashMap does not support null keys
+		private static final Object NULL_VALUE = new Object();
 
-		private MetricNameTemplate(MetricName template, String key) {
-			this.template = template;
-			this.key = key;
-			this.keys = null;
-		}
+		// for one value, this maps from the value to the MetricName
+		// for two and three values, this is a tree of nested maps with one level per value
+		// for more values, this maps from a list of the values to the MetricName
+		private final ConcurrentMap<Object, Object> metricNameCache = new ConcurrentHashMap<Object, Object>();
+		private final MetricName template;
+		private final String[] keys;
 
 		private MetricNameTemplate(MetricName template, String... keys) {
 			this.template = template;
-			this.key = null;
-			this.keys = Arrays.asList(keys);
+			this.keys = keys;
 		}
 
 		/**
-		 * Creates a new or reused {@link MetricName} according to the {@link #template} with the given {@link #key}
+		 * Creates a new or reused {@link MetricName} according to the {@link #template} with the given {@link #keys}
 		 * and the provided value
 		 *
 		 * @param value The tag value
 		 * @return A {@link MetricName} according to the {@link #template}
-		 * @throws IllegalArgumentException When this template is intended for multiple values i.e. was initialized via
-		 *                                  {@link MetricNameTemplate#MetricNameTemplate(MetricName, String...)}
+		 * @throws IllegalArgumentException When this template is intended for multiple values
 		 */
 		public MetricName build(String value) {
-			if (key == null) {
-				throw new IllegalArgumentException("Size of key does not match size of values");
+			assertNumberOfValues(1);
+			final MetricName metricName = (MetricName) metricNameCache.get(value);
+			if (metricName != null) {
+				return metricName;
 			}
-			MetricName metricName = metricNameCache.get(value);
-			if (metricName == null) {
-				metricName = template.withTag(key, value);
-				metricNameCache.put(value, metricName);
+			return putIfAbsent(metricNameCache, value, template.withTag(keys[0], value));
+		}
+
+		/**
+		 * Creates a new or reused {@link MetricName} according to the {@link #template} with the given {@link #keys}
+		 * and the provided values
+		 *
+		 * @return A {@link MetricName} according to the {@link #template}
+		 * @throws IllegalArgumentException When this template is not intended for two values
+		 */
+		public MetricName build(String value1, String value2) {
+			assertNumberOfValues(2);
+			final ConcurrentMap<Object, Object> level2 = getNextLevel(metricNameCache, value1);
+			final MetricName metricName = (MetricName) level2.get(nullSafe(value2));
+			if (metricName != null) {
+				return metricName;
 			}
-			return metricName;
+			return putIfAbsent(level2, nullSafe(value2), template.withTags(keys, new String[]{value1, value2}));
+		}
+
+		/**
+		 * Creates a new or reused {@link MetricName} according to the {@link #template} with the given {@link #keys}
+		 * and the provided values
+		 *
+		 * @return A {@link MetricName} according to the {@link #template}
+		 * @throws IllegalArgumentException When this template is not intended for three values
+		 */
+		public MetricName build(String value1, String value2, String value3) {
+			assertNumberOfValues(3);
+			final ConcurrentMap<Object, Object> level3 = getNextLevel(getNextLevel(metricNameCache, value1), value2);
+			final MetricName metricName = (MetricName) level3.get(nullSafe(value3));
+			if (metricName != null) {
+				return metricName;
+			}
+			return putIfAbsent(level3, nullSafe(value3), template.withTags(keys, new String[]{value1, value2, value3}));
 		}
 
 		/**
@@ -209,25 +315,51 @@ public class MetricName {
 		 *
 		 * @param values The tag values (must match the size of {@link #keys}
 		 * @return A {@link MetricName} according to the {@link #template}
-		 * @throws IllegalArgumentException When number of {@link #keys} does not match the number of provided values or
-		 *                                  this template is intended for a single value i.e. was initialized via {@link
-		 *                                  MetricNameTemplate#MetricNameTemplate(MetricName, String)}
+		 * @throws IllegalArgumentException When number of {@link #keys} does not match the number of provided values
 		 */
 		public MetricName build(String... values) {
-			if (keys == null || keys.size() != values.length) {
+			assertNumberOfValues(values.length);
+			switch (values.length) {
+				case 1:
+					return build(values[0]);
+				case 2:
+					return build(values[0], values[1]);
+				case 3:
+					return build(values[0], values[1], values[2]);
+				default:
+					final List<String> valuesList = Arrays.asList(values.clone());
+					final MetricName metricName = (MetricName) metricNameCache.get(valuesList);
+					if (metricName != null) {
+						return metricName;
+					}
+					return putIfAbsent(metricNameCache, valuesList, template.withTags(keys, values));
+			}
+		}
+
+		private void assertNumberOfValues(int numberOfValues) {
+			if (keys.length != numberOfValues) {
 				throw new IllegalArgumentException("Size of key does not match size of values");
 			}
-			List<String> valuesList = Arrays.asList(values);
-			MetricName metricName = metricNameCache.get(valuesList);
-			if (metricName == null) {
-				Builder builder = name(template.name).tags(template.tags);
-				for (int i = 0; i < keys.size(); i++) {
-					builder.tag(keys.get(i), valuesList.get(i));
-				}
-				metricName = builder.build();
-				metricNameCache.put(valuesList, metricName);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static ConcurrentMap<Object, Object> getNextLevel(ConcurrentMap<Object, Object> level, String value) {
+			final Object key = nullSafe(value);
+			final ConcurrentMap<Object, Object> nextLevel = (ConcurrentMap<Object, Object>) level.get(key);
+			if (nextLevel != null) {
+				return nextLevel;
 			}
-			return metricName;
+			return putIfAbsent(level, key, new ConcurrentHashMap<Object, Object>());
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> T putIfAbsent(ConcurrentMap<Object, Object> map, Object key, T value) {
+			final Object previous = map.putIfAbsent(key, value);
+			return previous != null ? (T) previous : value;
+		}
+
+		private static Object nullSafe(String value) {
+			return value != null ? value : NULL_VALUE;
 		}
 	}
 
@@ -235,10 +367,18 @@ public class MetricName {
 
 		private final String name;
 
-		private final LinkedHashMap<String, String> tags = new LinkedHashMap<String, String>(8);
+		private String[] tagKeys;
+		private String[] tagValues;
+		private int size;
 
 		public Builder(String name) {
+			this(name, 8);
+		}
+
+		private Builder(String name, int initialCapacity) {
 			this.name = name;
+			this.tagKeys = new String[initialCapacity];
+			this.tagValues = new String[initialCapacity];
 		}
 
 		/**
@@ -249,7 +389,18 @@ public class MetricName {
 		 * @return <code>this</code> for chaining
 		 */
 		public Builder tag(String key, String value) {
-			this.tags.put(key, value);
+			final int index = indexOf(tagKeys, size, key);
+			if (index >= 0) {
+				tagValues[index] = value;
+				return this;
+			}
+			if (size == tagKeys.length) {
+				tagKeys = Arrays.copyOf(tagKeys, size * 2 + 1);
+				tagValues = Arrays.copyOf(tagValues, size * 2 + 1);
+			}
+			tagKeys[size] = key;
+			tagValues[size] = value;
+			size++;
 			return this;
 		}
 
@@ -278,12 +429,21 @@ public class MetricName {
 		}
 
 		public Builder tags(Map<String, String> tags) {
-			this.tags.putAll(tags);
+			for (Map.Entry<String, String> entry : tags.entrySet()) {
+				tag(entry.getKey(), entry.getValue());
+			}
+			return this;
+		}
+
+		private Builder tags(String[] keys, String[] values, int size) {
+			for (int i = 0; i < size; i++) {
+				tag(keys[i], values[i]);
+			}
 			return this;
 		}
 
 		public MetricName build() {
-			return new MetricName(name, tags);
+			return new MetricName(name, tagKeys, tagValues, size);
 		}
 
 		/**
@@ -303,9 +463,79 @@ public class MetricName {
 		 * @return The {@link MetricNameTemplate}
 		 */
 		public MetricNameTemplate templateFor(String... keys) {
-			return new MetricNameTemplate(build(), keys);
+			return new MetricNameTemplate(build(), keys.clone());
+		}
+
+	}
+
+	/**
+	 * A read only view of the tags which preserves the order of the tags
+	 */
+	private static class TagsMap extends AbstractMap<String, String> {
+
+		private final String[] keys;
+		private final String[] values;
+
+		private TagsMap(String[] keys, String[] values) {
+			this.keys = keys;
+			this.values = values;
 		}
 
+		@Override
+		public int size() {
+			return keys.length;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && indexOf(keys, keys.length, (String) key) >= 0;
+		}
+
+		@Override
+		public String get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			final int index = indexOf(keys, keys.length, (String) key);
+			return index < 0 ? null : values[index];
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return new AbstractSet<Entry<String, String>>() {
+				@Override
+				public Iterator<Entry<String, String>> iterator() {
+					return new Iterator<Entry<String, String>>() {
+						private int i = 0;
+
+						@Override
+						public boolean hasNext() {
+							return i < keys.length;
+						}
+
+						@Override
+						public Entry<String, String> next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							final Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys[i], values[i]);
+							i++;
+							return entry;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return keys.length;
+				}
+			};
+		}
 	}
 
 	@Override
@@ -27,4 +27,17 @@ public class QuantizedClock extends Clock {
 		final long time = delegate.getTime();
 		return time - (time % periodInMS);
 	}
+
+	/**
+	 * Returns the start of the interval which is current at the provided point in time.
+	 * <p>
+	 * Like {@link #getTime()}, the time is truncated to the interval boundary.
+	 *
+	 * @param timeMillis     the point in time
+	 * @param intervalMillis the length of the interval
+	 * @return the start of the current interval
+	 */
+	public static long getIntervalStart(long timeMillis, long intervalMillis) {
+		return timeMillis - (timeMillis % intervalMillis);
+	}
 }
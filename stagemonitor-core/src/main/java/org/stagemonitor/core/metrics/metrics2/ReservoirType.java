@@ -0,0 +1,54 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines which {@link Reservoir} backs the {@link com.codahale.metrics.Timer}s and
+ * {@link com.codahale.metrics.Histogram}s created by the {@link Metric2Registry}
+ */
+public enum ReservoirType {
+
+	EXPONENTIALLY_DECAYING {
+		@Override
+		public Reservoir newReservoir(SnapshotCoordinator snapshotCoordinator) {
+			return new ExponentiallyDecayingReservoir();
+		}
+
+		@Override
+		public String toString() {
+			return "Exponentially decaying sample (locks on update)";
+		}
+	},
+	HDR_HISTOGRAM {
+		@Override
+		public Reservoir newReservoir(SnapshotCoordinator snapshotCoordinator) {
+			return new HdrHistogramReservoir(snapshotCoordinator);
+		}
+
+		@Override
+		public String toString() {
+			return "HdrHistogram of the last reporting interval (lock-free)";
+		}
+	};
+
+	/**
+	 * Creates a new {@link Reservoir}
+	 *
+	 * @param snapshotIntervalMillis the interval of the snapshots, only applies to interval based reservoirs
+	 * @return a new {@link Reservoir}
+	 */
+	public Reservoir newReservoir(long snapshotIntervalMillis) {
+		return newReservoir(new SnapshotCoordinator(snapshotIntervalMillis, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Creates a new {@link Reservoir}
+	 *
+	 * @param snapshotCoordinator determines the snapshot intervals, only applies to interval based reservoirs
+	 * @return a new {@link Reservoir}
+	 */
+	public abstract Reservoir newReservoir(SnapshotCoordinator snapshotCoordinator);
+}
@@ -1,10 +1,15 @@
 package org.stagemonitor.core.metrics.metrics2;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -13,11 +18,15 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Sampling;
 import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.HttpRequest;
 
 /**
  * A {@link ScheduledReporter} that works with a {@link Metric2Registry}
@@ -28,27 +37,163 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 
 	protected final Metric2Registry registry;
 	private final Metric2Filter filter;
+	private final ChangedMetricsFilter changedMetricsFilter;
 	private final ScheduledExecutorService executor;
 	protected Clock clock;
 	private boolean started;
+	private volatile long reportingIntervalMillis;
+	private volatile Future<?> pendingRequest;
 
 	protected ScheduledMetrics2Reporter(Builder builder) {
 		super(null, null, null, builder.getRateUnit(), builder.getDurationUnit(), builder.getExecutor());
 		this.registry = builder.getRegistry();
 		this.filter = builder.getFilter();
+		if (builder.isReportOnlyChangedMetrics()) {
+			this.changedMetricsFilter = new ChangedMetricsFilter(builder.getHeartbeatIntervals());
+		} else {
+			this.changedMetricsFilter = null;
+		}
 		this.executor = builder.getExecutor();
 		this.clock = builder.getClock();
 	}
 
+	/**
+	 * Reports the metrics which match the filter of this reporter via
+	 * {@link #reportMetrics(Map, Map, Map, Map, Map)}, which is expected to deliver the metrics synchronously. Reporters
+	 * which deliver the metrics asynchronously have to override this method.
+	 */
 	@Override
 	public void report() {
-		reportMetrics(
-				registry.getGauges(filter),
-				registry.getCounters(filter),
-				registry.getHistograms(filter),
-				registry.getMeters(filter),
-				registry.getTimers(filter)
-		);
+		try {
+			final Report report = newReport();
+			reportMetrics(
+					report.getGauges(),
+					registry.getCounters(report.filter),
+					registry.getHistograms(report.filter),
+					registry.getMeters(report.filter),
+					registry.getTimers(report.filter)
+			);
+			report.delivered();
+		} finally {
+			reportFinished();
+		}
+	}
+
+	/**
+	 * Starts a new report. The metrics of a report have to be visited via {@link Report#visitMetrics(Metric2Visitor)}
+	 * and {@link Report#delivered()} has to be called as soon as the report has been delivered to the backend.
+	 *
+	 * @return the new report
+	 */
+	protected Report newReport() {
+		if (changedMetricsFilter != null) {
+			return new Report(changedMetricsFilter.newReportFilter());
+		}
+		return new Report(null);
+	}
+
+	/**
+	 * Has to be called at the end of each {@link #report()}. Subclasses which override {@link #report()} have to call
+	 * this method as well.
+	 * <p>
+	 * If only changed metrics are reported, this starts the next interval of the {@link ChangedMetricsFilter} which
+	 * forgets about the metrics which have not been reported in the current interval. Otherwise, the filter would keep
+	 * the state of metrics which have been removed from the registry forever.
+	 */
+	protected void reportFinished() {
+		if (changedMetricsFilter != null) {
+			changedMetricsFilter.nextInterval();
+		}
+	}
+
+	/**
+	 * @return the filter which tracks the reported metrics, or {@code null} if all metrics are reported
+	 */
+	ChangedMetricsFilter getChangedMetricsFilter() {
+		return changedMetricsFilter;
+	}
+
+	/**
+	 * Sends the request of a report asynchronously, so that the reporting thread does not wait for the response.
+	 * <p>
+	 * The metrics are visited by a thread of the {@link HttpClient} while the request body is written. The request is
+	 * not sent, if the request of the previous report is still in flight or if the {@link HttpClient} rejects it,
+	 * because there are too many requests in flight to the host. The report is marked as delivered, when the response
+	 * has a 2xx status code.
+	 *
+	 * @param httpClient the client to send the request with
+	 * @param request    the request which writes the metrics of the report into the request body
+	 * @param report     the report whose metrics are sent
+	 * @return {@code false}, if the request has not been sent
+	 */
+	protected <T> boolean sendAsync(final HttpClient httpClient, final HttpRequest<T> request, final Report report) {
+		return sendAsync(request.getSafeUrl(), new AsyncRequest() {
+			@Override
+			public Future<?> send() {
+				return httpClient.sendAsync(new DeliveryTrackingRequest<T>(request, report));
+			}
+		});
+	}
+
+	/**
+	 * Sends the request of a report asynchronously, unless the request of the previous report is still in flight.
+	 *
+	 * @param safeUrl the url of the request without credentials
+	 * @param request sends the request
+	 * @return {@code false}, if the request has not been sent
+	 */
+	protected boolean sendAsync(String safeUrl, AsyncRequest request) {
+		final Future<?> previousRequest = this.pendingRequest;
+		if (previousRequest != null && !previousRequest.isDone()) {
+			logger.debug("Skipping report to {}, as the previous report is still in flight", safeUrl);
+			return false;
+		}
+		try {
+			pendingRequest = request.send();
+			return true;
+		} catch (RejectedExecutionException e) {
+			logger.debug("Skipping report to {}: {}", safeUrl, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the snapshot of the timer or histogram for the current reporting interval. In contrast to
+	 * {@link Sampling#getSnapshot()}, the snapshot is only computed once per tick and shared between all scheduled
+	 * reporters with the same reporting interval (see {@link SnapshotCoordinator}).
+	 *
+	 * @param sampling the timer or histogram
+	 * @return the snapshot of the current interval
+	 */
+	protected Snapshot getSnapshot(Sampling sampling) {
+		return registry.getSnapshotCoordinator().getSnapshot(sampling, reportingIntervalMillis);
+	}
+
+	/**
+	 * Passes the given metrics to the visitor. This makes it possible to implement
+	 * {@link #reportMetrics(Map, Map, Map, Map, Map)} with the same visitor that is used for {@link #visitMetrics(Metric2Visitor)}.
+	 */
+	protected static void visitMetrics(Map<MetricName, Gauge> gauges,
+									   Map<MetricName, Counter> counters,
+									   Map<MetricName, Histogram> histograms,
+									   Map<MetricName, Meter> meters,
+									   Map<MetricName, Timer> timers,
+									   Metric2Visitor visitor) {
+		for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
+			visitor.visitGauge(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<MetricName, Counter> entry : counters.entrySet()) {
+			visitor.visitCounter(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<MetricName, Histogram> entry : histograms.entrySet()) {
+			visitor.visitHistogram(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<MetricName, Meter> entry : meters.entrySet()) {
+			visitor.visitMeter(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<MetricName, Timer> entry : timers.entrySet()) {
+			visitor.visitTimer(entry.getKey(), entry.getValue());
+		}
 	}
 
 	/**
@@ -98,6 +243,7 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 				@Override
 				public void run() {
 					try {
+						registry.getSnapshotCoordinator().startReport(periodInMS);
 						report();
 					} catch (RuntimeException ex) {
 						logger.error("RuntimeException thrown from {}#report. Exception was suppressed.", ScheduledMetrics2Reporter.this.getClass().getSimpleName(), ex);
@@ -105,10 +251,26 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 				}
 			}, getOffsetUntilTimestampIsDivisableByPeriod(clock.getTime(), periodInMS), periodInMS, TimeUnit.MILLISECONDS);
 			this.clock = new QuantizedClock(clock, periodInMS);
+			this.reportingIntervalMillis = periodInMS;
+			registry.getSnapshotCoordinator().addReporter(periodInMS);
 			this.started = true;
 		}
 	}
 
+	@Override
+	public void stop() {
+		try {
+			super.stop();
+		} finally {
+			synchronized (this) {
+				if (reportingIntervalMillis > 0) {
+					registry.getSnapshotCoordinator().removeReporter(reportingIntervalMillis);
+					reportingIntervalMillis = 0;
+				}
+			}
+		}
+	}
+
 	/*
 	 * Makes sure that values are always submitted at the same time on each server no matter when they where started (aka. quantization)
 	 *
@@ -119,6 +281,162 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 		return periodInMS - (currentTimestamp % periodInMS);
 	}
 
+	/**
+	 * The metrics of a single report
+	 * <p>
+	 * If only changed metrics are reported, the values of a report are only considered as reported once the report
+	 * has been delivered (see {@link ChangedMetricsFilter}). The values of gauges are computed only once per report.
+	 */
+	protected class Report {
+		private final ChangedMetricsFilter.ReportFilter changedMetricsFilter;
+		private final Metric2Filter filter;
+
+		private Report(ChangedMetricsFilter.ReportFilter changedMetricsFilter) {
+			this.changedMetricsFilter = changedMetricsFilter;
+			if (changedMetricsFilter != null) {
+				this.filter = new AndMetric2Filter(ScheduledMetrics2Reporter.this.filter, changedMetricsFilter);
+			} else {
+				this.filter = ScheduledMetrics2Reporter.this.filter;
+			}
+		}
+
+		/**
+		 * Passes all metrics of the registry which match the filter of this reporter to the visitor without copying
+		 * them into intermediate maps.
+		 * <p>
+		 * Reporters which don't need random access to the metrics should override {@link #report()} and use this
+		 * method instead of {@link #reportMetrics(Map, Map, Map, Map, Map)}.
+		 *
+		 * @param visitor the visitor which receives the metrics
+		 */
+		public void visitMetrics(final Metric2Visitor visitor) {
+			if (changedMetricsFilter == null) {
+				registry.visit(filter, visitor);
+				return;
+			}
+			registry.visit(filter, new Metric2Visitor() {
+				@Override
+				public void visitGauge(MetricName name, Gauge gauge) {
+					visitor.visitGauge(name, changedMetricsFilter.getMatchedGauge(name, gauge));
+				}
+
+				@Override
+				public void visitCounter(MetricName name, Counter counter) {
+					visitor.visitCounter(name, counter);
+				}
+
+				@Override
+				public void visitHistogram(MetricName name, Histogram histogram) {
+					visitor.visitHistogram(name, histogram);
+				}
+
+				@Override
+				public void visitMeter(MetricName name, Meter meter) {
+					visitor.visitMeter(name, meter);
+				}
+
+				@Override
+				public void visitTimer(MetricName name, Timer timer) {
+					visitor.visitTimer(name, timer);
+				}
+			});
+		}
+
+		private Map<MetricName, Gauge> getGauges() {
+			final Map<MetricName, Gauge> gauges = registry.getGauges(filter);
+			if (changedMetricsFilter == null) {
+				return gauges;
+			}
+			final Map<MetricName, Gauge> matchedGauges = new HashMap<MetricName, Gauge>(gauges.size() * 2);
+			for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
+				matchedGauges.put(entry.getKey(), changedMetricsFilter.getMatchedGauge(entry.getKey(), entry.getValue()));
+			}
+			return matchedGauges;
+		}
+
+		/**
+		 * Has to be called when the metrics of this report have been delivered to the backend
+		 */
+		public void delivered() {
+			if (changedMetricsFilter != null) {
+				changedMetricsFilter.delivered();
+			}
+		}
+
+		/**
+		 * Wraps the response handler of the request which sends this report, so that the report is marked as delivered
+		 * when the response has a 2xx status code
+		 *
+		 * @param responseHandler the response handler of the request
+		 * @return the response handler which tracks the delivery
+		 */
+		public <T> HttpClient.ResponseHandler<T> trackDelivery(final HttpClient.ResponseHandler<T> responseHandler) {
+			return new HttpClient.ResponseHandler<T>() {
+				@Override
+				public T handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
+					if (e == null && statusCode != null && statusCode >= 200 && statusCode < 300) {
+						delivered();
+					}
+					return responseHandler.handleResponse(httpRequest, is, statusCode, e);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Sends the request of a report asynchronously
+	 */
+	protected interface AsyncRequest {
+		/**
+		 * @return the {@link Future} of the request
+		 * @throws RejectedExecutionException if the request can't be sent at the moment
+		 */
+		Future<?> send() throws RejectedExecutionException;
+	}
+
+	/**
+	 * Marks the report as delivered when the response has a 2xx status code (see {@link Report#trackDelivery})
+	 */
+	private static class DeliveryTrackingRequest<T> implements HttpRequest<T> {
+		private final HttpRequest<T> request;
+		private final Report report;
+
+		private DeliveryTrackingRequest(HttpRequest<T> request, Report report) {
+			this.request = request;
+			this.report = report;
+		}
+
+		@Override
+		public String getMethod() {
+			return request.getMethod();
+		}
+
+		@Override
+		public String getUrl() {
+			return request.getUrl();
+		}
+
+		@Override
+		public Map<String, String> getHeaders() {
+			return request.getHeaders();
+		}
+
+		@Override
+		public HttpClient.OutputStreamHandler getOutputStreamHandler() {
+			return request.getOutputStreamHandler();
+		}
+
+		@Override
+		public HttpClient.ResponseHandler<T> getResponseHandler() {
+			return report.trackDelivery(request.getResponseHandler());
+		}
+
+		@Override
+		public String getSafeUrl() {
+			return request.getSafeUrl();
+		}
+	}
+
 	public abstract static class Builder<R extends ScheduledMetrics2Reporter, B extends Builder> {
 		private final Metric2Registry registry;
 		private final ScheduledExecutorService executor;
@@ -127,6 +445,8 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 		private TimeUnit durationUnit = TimeUnit.MILLISECONDS;
 		private Clock clock = Clock.defaultClock();
 		private Map<String, String> globalTags = Collections.emptyMap();
+		private boolean reportOnlyChangedMetrics = false;
+		private int heartbeatIntervals = 10;
 
 		protected Builder(Metric2Registry registry, String reporterName) {
 			this.executor = Executors.newSingleThreadScheduledExecutor(new ExecutorUtils.NamedThreadFactory(reporterName));
@@ -210,6 +530,39 @@ public abstract class ScheduledMetrics2Reporter extends ScheduledReporter {
 			return (B) this;
 		}
 
+		public boolean isReportOnlyChangedMetrics() {
+			return reportOnlyChangedMetrics;
+		}
+
+		/**
+		 * Only report metrics whose count (or value in case of gauges) has changed since the last delivered report.
+		 * This reduces the amount of data that has to be sent to and stored by the backend.
+		 *
+		 * @param reportOnlyChangedMetrics whether to skip unchanged metrics
+		 * @return {@code this}
+		 * @see ChangedMetricsFilter
+		 */
+		public B reportOnlyChangedMetrics(boolean reportOnlyChangedMetrics) {
+			this.reportOnlyChangedMetrics = reportOnlyChangedMetrics;
+			return (B) this;
+		}
+
+		public int getHeartbeatIntervals() {
+			return heartbeatIntervals;
+		}
+
+		/**
+		 * When {@link #reportOnlyChangedMetrics(boolean)} is active, unchanged metrics are still reported every
+		 * {@code heartbeatIntervals} reporting intervals. Values below 1 disable the heartbeat.
+		 *
+		 * @param heartbeatIntervals the number of intervals after which unchanged metrics are reported anyway
+		 * @return {@code this}
+		 */
+		public B heartbeatIntervals(int heartbeatIntervals) {
+			this.heartbeatIntervals = heartbeatIntervals;
+			return (B) this;
+		}
+
 		/**
 		 * Builds a reporter with the given properties.
 		 *
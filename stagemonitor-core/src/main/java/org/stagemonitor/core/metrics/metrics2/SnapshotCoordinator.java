@@ -0,0 +1,175 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates the snapshots of {@link com.codahale.metrics.Timer}s and {@link com.codahale.metrics.Histogram}s between
+ * the scheduled reporters of a {@link Metric2Registry}.
+ * <p>
+ * The scheduled reports start the snapshot intervals of interval based reservoirs like the
+ * {@link HdrHistogramReservoir} (see {@link #startReport(long)}).
+ * <p>
+ * Computing a snapshot of an {@link com.codahale.metrics.ExponentiallyDecayingReservoir} is expensive as it copies and
+ * sorts the values of the reservoir. If several scheduled reporters with the same reporting interval are running, the
+ * snapshot of a metric is only computed once per tick of that interval and shared between them (see
+ * {@link #getSnapshot(Sampling, long)}). Reporters with the same reporting interval are triggered at the same quantized
+ * points in time, so they get the same immutable snapshot. The snapshots of a tick are discarded as soon as the next
+ * tick of the reporting interval begins.
+ */
+public class SnapshotCoordinator {
+
+	private static final long NOT_SCHEDULED = Long.MIN_VALUE;
+
+	private final Clock clock;
+	private final ConcurrentMap<Long, ReportingInterval> reportingIntervals = new ConcurrentHashMap<Long, ReportingInterval>();
+	private volatile long intervalMillis;
+	private volatile long scheduledIntervalStart = NOT_SCHEDULED;
+
+	public SnapshotCoordinator(long interval, TimeUnit unit) {
+		this(interval, unit, Clock.defaultClock());
+	}
+
+	public SnapshotCoordinator(long interval, TimeUnit unit, Clock clock) {
+		this.clock = clock;
+		setInterval(interval, unit);
+	}
+
+	/**
+	 * Returns the snapshot of the metric for the current tick of the reporting interval.
+	 * <p>
+	 * The snapshot is only cached if at least two scheduled reporters with this reporting interval are running (see
+	 * {@link #addReporter(long)}). Otherwise, nobody would share the snapshot and the cache would only keep it alive
+	 * until the next tick. Callers which are not scheduled, like Prometheus scrapes, should call
+	 * {@link Sampling#getSnapshot()} directly.
+	 *
+	 * @param sampling                the timer or histogram
+	 * @param reportingIntervalMillis the reporting interval of the reporter
+	 * @return the snapshot which was computed on the first request for the metric in the current tick
+	 */
+	public Snapshot getSnapshot(Sampling sampling, long reportingIntervalMillis) {
+		final ReportingInterval reportingInterval = reportingIntervals.get(reportingIntervalMillis);
+		final Tick tick = reportingInterval != null ? reportingInterval.currentTick : null;
+		if (tick == null) {
+			return sampling.getSnapshot();
+		}
+		Snapshot snapshot = tick.snapshots.get(sampling);
+		if (snapshot == null) {
+			snapshot = sampling.getSnapshot();
+			final Snapshot previous = tick.snapshots.putIfAbsent(sampling, snapshot);
+			if (previous != null) {
+				snapshot = previous;
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Has to be called when a scheduled reporter is started
+	 *
+	 * @param reportingIntervalMillis the reporting interval of the reporter
+	 */
+	public synchronized void addReporter(long reportingIntervalMillis) {
+		ReportingInterval reportingInterval = reportingIntervals.get(reportingIntervalMillis);
+		if (reportingInterval == null) {
+			reportingInterval = new ReportingInterval();
+			reportingIntervals.put(reportingIntervalMillis, reportingInterval);
+		}
+		reportingInterval.reporters++;
+	}
+
+	/**
+	 * Has to be called when a scheduled reporter is stopped
+	 *
+	 * @param reportingIntervalMillis the reporting interval of the reporter
+	 */
+	public synchronized void removeReporter(long reportingIntervalMillis) {
+		final ReportingInterval reportingInterval = reportingIntervals.get(reportingIntervalMillis);
+		if (reportingInterval != null && --reportingInterval.reporters < 2) {
+			reportingInterval.currentTick = null;
+			if (reportingInterval.reporters <= 0) {
+				reportingIntervals.remove(reportingIntervalMillis);
+			}
+		}
+	}
+
+	/**
+	 * Has to be called by scheduled reporters at the beginning of each scheduled report.
+	 * <p>
+	 * The first call of a tick discards the snapshots which have been shared in the previous tick of the reporting
+	 * interval. If the reporting interval is equal to the snapshot interval, it also starts the next snapshot interval.
+	 * Interval based reservoirs like the {@link HdrHistogramReservoir} swap their histogram when the snapshot is
+	 * requested for the first time after the start of a new snapshot interval. Reporters with the same reporting
+	 * interval are triggered at the same quantized points in time, so calls which are less than half an interval apart
+	 * belong to the same tick.
+	 *
+	 * @param reportingIntervalMillis the reporting interval of the reporter
+	 */
+	public void startReport(long reportingIntervalMillis) {
+		final long now = clock.getTime();
+		synchronized (this) {
+			if (reportingIntervalMillis == intervalMillis && isNextTick(scheduledIntervalStart, now, reportingIntervalMillis)) {
+				scheduledIntervalStart = now;
+			}
+			final ReportingInterval reportingInterval = reportingIntervals.get(reportingIntervalMillis);
+			if (reportingInterval != null && reportingInterval.reporters >= 2) {
+				final Tick tick = reportingInterval.currentTick;
+				if (tick == null || isNextTick(tick.start, now, reportingIntervalMillis)) {
+					reportingInterval.currentTick = new Tick(now);
+				}
+			}
+		}
+	}
+
+	private static boolean isNextTick(long previousTick, long now, long reportingIntervalMillis) {
+		return previousTick == NOT_SCHEDULED || now - previousTick >= reportingIntervalMillis / 2;
+	}
+
+	/**
+	 * Returns the start of the current snapshot interval.
+	 * <p>
+	 * The intervals are started by the scheduled reports (see {@link #startReport(long)}), so that requesting a snapshot
+	 * off-schedule, for example by a Prometheus scrape, does not end the interval early. If no scheduled report has
+	 * started an interval for two intervals, there is no scheduled reporter with the snapshot interval and the interval
+	 * is derived from the clock instead.
+	 *
+	 * @return the start of the current snapshot interval
+	 */
+	long getSnapshotIntervalStart() {
+		final long now = clock.getTime();
+		final long scheduled = scheduledIntervalStart;
+		if (scheduled != NOT_SCHEDULED && now - scheduled < 2 * intervalMillis) {
+			return scheduled;
+		}
+		return QuantizedClock.getIntervalStart(now, intervalMillis);
+	}
+
+	/**
+	 * Sets the snapshot interval, which should be equal to the reporting interval
+	 *
+	 * @param interval the interval
+	 * @param unit     the unit of the interval
+	 */
+	public void setInterval(long interval, TimeUnit unit) {
+		this.intervalMillis = Math.max(1, unit.toMillis(interval));
+	}
+
+	private static class ReportingInterval {
+		private int reporters;
+		private volatile Tick currentTick;
+	}
+
+	private static class Tick {
+		private final long start;
+		private final ConcurrentMap<Sampling, Snapshot> snapshots = new ConcurrentHashMap<Sampling, Snapshot>();
+
+		private Tick(long start) {
+			this.start = start;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.EWMA;
+import com.codahale.metrics.Meter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link Meter} which is optimized for meters that are marked by a lot of threads concurrently, like the
+ * {@code error_rate} of all operations.
+ * <p>
+ * The stock {@link Meter} adds each event to four {@link LongAdder}s: the count and the uncounted events of the one,
+ * five and fifteen minute {@link EWMA}. Marking this meter only increments a single, striped {@link LongAdder}. The
+ * events since the last tick are passed to the {@link EWMA}s when the rates are ticked, which only happens every
+ * five seconds. Marking the meter with zero events is a no-op.
+ * <p>
+ * Note that the {@link Meter} superclass still allocates its own (unused) counters as it does not offer a constructor
+ * to customize them.
+ */
+public class StripedMeter extends Meter {
+
+	private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+	private final LongAdder count = new LongAdder();
+	private final EWMA m1Rate = EWMA.oneMinuteEWMA();
+	private final EWMA m5Rate = EWMA.fiveMinuteEWMA();
+	private final EWMA m15Rate = EWMA.fifteenMinuteEWMA();
+	private final long startTime;
+	private final AtomicLong lastTick;
+	private final Clock clock;
+	private long countAtLastTick = 0;
+
+	public StripedMeter() {
+		this(Clock.defaultClock());
+	}
+
+	public StripedMeter(Clock clock) {
+		super(clock);
+		this.clock = clock;
+		this.startTime = clock.getTick();
+		this.lastTick = new AtomicLong(startTime);
+	}
+
+	@Override
+	public void mark() {
+		mark(1);
+	}
+
+	@Override
+	public void mark(long n) {
+		if (n == 0) {
+			return;
+		}
+		tickIfNecessary();
+		count.add(n);
+	}
+
+	private void tickIfNecessary() {
+		final long oldTick = lastTick.get();
+		final long newTick = clock.getTick();
+		final long age = newTick - oldTick;
+		if (age > TICK_INTERVAL) {
+			final long newIntervalStartTick = newTick - age % TICK_INTERVAL;
+			if (lastTick.compareAndSet(oldTick, newIntervalStartTick)) {
+				tick(age / TICK_INTERVAL);
+			}
+		}
+	}
+
+	private synchronized void tick(long requiredTicks) {
+		final long currentCount = count.sum();
+		final long uncounted = currentCount - countAtLastTick;
+		countAtLastTick = currentCount;
+		m1Rate.update(uncounted);
+		m5Rate.update(uncounted);
+		m15Rate.update(uncounted);
+		for (long i = 0; i < requiredTicks; i++) {
+			m1Rate.tick();
+			m5Rate.tick();
+			m15Rate.tick();
+		}
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public double getFifteenMinuteRate() {
+		tickIfNecessary();
+		return m15Rate.getRate(TimeUnit.SECONDS);
+	}
+
+	@Override
+	public double getFiveMinuteRate() {
+		tickIfNecessary();
+		return m5Rate.getRate(TimeUnit.SECONDS);
+	}
+
+	@Override
+	public double getMeanRate() {
+		final long count = getCount();
+		if (count == 0) {
+			return 0.0;
+		} else {
+			final double elapsed = (clock.getTick() - startTime);
+			return count / elapsed * TimeUnit.SECONDS.toNanos(1);
+		}
+	}
+
+	@Override
+	public double getOneMinuteRate() {
+		tickIfNecessary();
+		return m1Rate.getRate(TimeUnit.SECONDS);
+	}
+}
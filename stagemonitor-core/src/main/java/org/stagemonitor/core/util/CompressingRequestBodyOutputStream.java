@@ -0,0 +1,149 @@
+package org.stagemonitor.core.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The {@link OutputStream} a request body is written to when request compression is enabled.
+ * <p>
+ * The first bytes of the body are buffered until it is known whether the body is larger than the minimum size. Smaller
+ * bodies are sent uncompressed with a fixed content length. Larger bodies are streamed through a
+ * {@link GZIPOutputStream} into the connection using the chunked transfer encoding, so that they don't have to be
+ * buffered completely.
+ * <p>
+ * The body is completed by {@link #finish()}, {@link #close()} does nothing because the {@link
+ * HttpClient.OutputStreamHandler}s usually close the stream they have written to.
+ */
+class CompressingRequestBodyOutputStream extends OutputStream {
+
+	private static final int GZIP_BUFFER_SIZE = 8192;
+
+	private final HttpURLConnection connection;
+	private final int compressionLevel;
+	private final byte[] buffer;
+	private int bufferPosition;
+	private long rawBytes;
+	private long sentBytes;
+	private GZIPOutputStream gzipOutputStream;
+	private boolean finished;
+
+	/**
+	 * @param connection       the connection the body should be sent with
+	 * @param compressionLevel the compression level (1-9)
+	 * @param minSizeBytes     bodies which are not larger than this are sent uncompressed
+	 */
+	CompressingRequestBodyOutputStream(HttpURLConnection connection, int compressionLevel, int minSizeBytes) {
+		this.connection = connection;
+		this.compressionLevel = compressionLevel;
+		this.buffer = new byte[Math.max(0, minSizeBytes)];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (gzipOutputStream == null && bufferPosition < buffer.length) {
+			buffer[bufferPosition++] = (byte) b;
+		} else {
+			getGzipOutputStream().write(b);
+		}
+		rawBytes++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (gzipOutputStream == null && bufferPosition + len <= buffer.length) {
+			System.arraycopy(b, off, buffer, bufferPosition, len);
+			bufferPosition += len;
+		} else {
+			getGzipOutputStream().write(b, off, len);
+		}
+		rawBytes += len;
+	}
+
+	private GZIPOutputStream getGzipOutputStream() throws IOException {
+		if (gzipOutputStream == null) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+			connection.setChunkedStreamingMode(0);
+			gzipOutputStream = new GZIPOutputStream(new CountingOutputStream(connection.getOutputStream()), GZIP_BUFFER_SIZE) {
+				{
+					def.setLevel(compressionLevel);
+				}
+			};
+			gzipOutputStream.write(buffer, 0, bufferPosition);
+		}
+		return gzipOutputStream;
+	}
+
+	/**
+	 * Sends the remainder of the body
+	 */
+	void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (gzipOutputStream != null) {
+			gzipOutputStream.close();
+		} else {
+			connection.setFixedLengthStreamingMode(bufferPosition);
+			final OutputStream outputStream = connection.getOutputStream();
+			outputStream.write(buffer, 0, bufferPosition);
+			outputStream.close();
+			sentBytes = bufferPosition;
+		}
+	}
+
+	@Override
+	public void close() {
+		// the body is completed by finish()
+	}
+
+	boolean isCompressed() {
+		return gzipOutputStream != null;
+	}
+
+	/**
+	 * @return the number of bytes which have been written to this stream
+	 */
+	long getRawBytes() {
+		return rawBytes;
+	}
+
+	/**
+	 * @return the number of bytes which have been sent, after compression
+	 */
+	long getSentBytes() {
+		return sentBytes;
+	}
+
+	private class CountingOutputStream extends OutputStream {
+		private final OutputStream outputStream;
+
+		private CountingOutputStream(OutputStream outputStream) {
+			this.outputStream = outputStream;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			outputStream.write(b);
+			sentBytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			outputStream.write(b, off, len);
+			sentBytes += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			outputStream.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			outputStream.close();
+		}
+	}
+}
@@ -25,8 +25,20 @@ public final class ExecutorUtils {
 	}
 
 	public static ScheduledThreadPoolExecutor createSingleThreadSchedulingDeamonPool(final String threadName, int queueCapacity, CorePlugin corePlugin) {
+		return createSchedulingDeamonPool(threadName, queueCapacity, corePlugin);
+	}
+
+	/**
+	 * Creates a scheduling pool of daemon threads which is shut down when stagemonitor shuts down
+	 *
+	 * @param threadName the name of the threads
+	 * @param poolSize   the number of threads
+	 * @param corePlugin the core plugin
+	 * @return the scheduling pool
+	 */
+	public static ScheduledThreadPoolExecutor createSchedulingDeamonPool(final String threadName, int poolSize, CorePlugin corePlugin) {
 		final ThreadFactory daemonThreadFactory = new NamedThreadFactory(threadName);
-		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(queueCapacity, daemonThreadFactory);
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(poolSize, daemonThreadFactory);
 		// makes sure that the thread pool is always shut down properly
 		// so that there are no ClassLoaderLeaks when redeploying
 		corePlugin.closeOnShutdown(new Closeable() {
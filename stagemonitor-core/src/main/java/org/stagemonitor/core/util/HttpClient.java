@@ -2,10 +2,13 @@ package org.stagemonitor.core.util;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.util.http.HttpRequest;
 import org.stagemonitor.core.util.http.HttpRequestBuilder;
 import org.stagemonitor.util.IOUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -16,15 +19,81 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.xml.bind.DatatypeConverter;
 
-public class HttpClient {
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * A HTTP client based on {@link HttpURLConnection}.
+ * <p>
+ * The responses are always read completely, which lets the JVM reuse the underlying connections (keep-alive). The
+ * number of idle connections the JVM keeps per host is controlled by the system property {@code http.maxConnections}.
+ * <p>
+ * Requests can either be sent synchronously via {@link #send(HttpRequest)}, or asynchronously via
+ * {@link #sendAsync(HttpRequest)}, which limits the number of requests which are in flight per host.
+ */
+public class HttpClient implements Closeable {
 
 	private static final long CONNECT_TIMEOUT_SEC = 5;
 	private static final long READ_TIMEOUT_SEC = 15;
+	/**
+	 * The number of bytes of the request bodies before compression
+	 */
+	static final MetricName RAW_REQUEST_BYTES = name("http_request_body_bytes").tag("type", "raw").build();
+	/**
+	 * The number of bytes of the request bodies which have actually been sent, after compression
+	 */
+	static final MetricName COMPRESSED_REQUEST_BYTES = name("http_request_body_bytes").tag("type", "compressed").build();
+	/**
+	 * The number of asynchronous requests which have been rejected because too many requests to the same host were
+	 * in flight
+	 */
+	static final MetricName REJECTED_ASYNC_REQUESTS = name("http_async_requests_rejected").build();
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
 	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final int compressionLevel;
+	private final int compressionMinSizeBytes;
+	private final int maxConnectionsPerHost;
+	private final Metric2Registry metricRegistry;
+	private final ConcurrentMap<String, Semaphore> inFlightRequestPermitsByHost = new ConcurrentHashMap<String, Semaphore>();
+	private ThreadPoolExecutor asyncExecutor;
+
+	/**
+	 * Creates a {@link HttpClient} which does not compress request bodies
+	 */
+	public HttpClient() {
+		this(0, 0, DEFAULT_MAX_CONNECTIONS_PER_HOST, null);
+	}
+
+	/**
+	 * Creates a {@link HttpClient} which transparently compresses request bodies with gzip and adds the
+	 * {@code Content-Encoding: gzip} header. Requests which already declare a {@code Content-Encoding} are sent as
+	 * they are.
+	 *
+	 * @param compressionLevel        the gzip compression level from 1 (fastest) to 9 (best compression), 0 disables
+	 *                                the compression
+	 * @param compressionMinSizeBytes request bodies which are not larger than this are sent uncompressed
+	 * @param maxConnectionsPerHost   the maximum number of asynchronous requests per host which are in flight
+	 *                                at the same time
+	 * @param metricRegistry          the registry the number of raw and compressed bytes and the number of
+	 *                                rejected requests are tracked in (may be {@code null})
+	 */
+	public HttpClient(int compressionLevel, int compressionMinSizeBytes, int maxConnectionsPerHost, Metric2Registry metricRegistry) {
+		this.compressionLevel = compressionLevel;
+		this.compressionMinSizeBytes = compressionMinSizeBytes;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.metricRegistry = metricRegistry;
+	}
 
 	public void send(String method, String url, final List<String> requestBodyLines) {
 		send(HttpRequestBuilder.<Integer>forUrl(url)
@@ -43,6 +112,118 @@ public class HttpClient {
 				.build());
 	}
 
+	/**
+	 * Sends the request in a background thread.
+	 * <p>
+	 * The {@link OutputStreamHandler} and the {@link ResponseHandler} of the request are invoked by the background
+	 * thread, so they must not rely on state which is modified by the caller after this method returns.
+	 * <p>
+	 * At most {@code maxConnectionsPerHost} requests per host are in flight at the same time. If that limit is
+	 * reached, the request is rejected immediately instead of being queued. This is the signal for the caller to
+	 * back off, for example by keeping the data for a later attempt or dropping it.
+	 * <p>
+	 * The requests are sent by a fixed number of {@code maxConnectionsPerHost} threads, which are shared between all
+	 * hosts. If requests to several hosts are in flight, a request may wait for a free thread.
+	 *
+	 * @param request the request to send
+	 * @return the {@link Future} of the result of the {@link ResponseHandler}
+	 * @throws RejectedExecutionException if there are already {@code maxConnectionsPerHost} requests in flight
+	 *                                    for the host of the request
+	 */
+	public <T> Future<T> sendAsync(final HttpRequest<T> request) throws RejectedExecutionException {
+		return sendAsync(request, null);
+	}
+
+	/**
+	 * Sends the request in a background thread (see {@link #sendAsync(HttpRequest)}) and invokes the callback in
+	 * that thread after the request has been sent, no matter whether it has succeeded.
+	 *
+	 * @param request      the request to send
+	 * @param onCompletion the callback which is invoked after the request has been sent (may be {@code null})
+	 * @return the {@link Future} of the result of the {@link ResponseHandler}
+	 * @throws RejectedExecutionException if there are already {@code maxConnectionsPerHost} requests in flight
+	 *                                    for the host of the request, in which case the callback is not invoked
+	 */
+	public <T> Future<T> sendAsync(final HttpRequest<T> request, final Runnable onCompletion) throws RejectedExecutionException {
+		final Semaphore permits = getInFlightRequestPermits(request.getUrl());
+		if (!permits.tryAcquire()) {
+			if (metricRegistry != null) {
+				metricRegistry.counter(REJECTED_ASYNC_REQUESTS).inc();
+			}
+			throw new RejectedExecutionException("There are already " + maxConnectionsPerHost + " requests in flight to " + request.getSafeUrl());
+		}
+		try {
+			return getAsyncExecutor().submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					try {
+						return send(request);
+					} finally {
+						permits.release();
+						if (onCompletion != null) {
+							onCompletion.run();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the client has been closed
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of asynchronous requests which are currently in flight for the host of the url
+	 *
+	 * @param url the url or any other url of the same host
+	 * @return the number of requests which are in flight
+	 */
+	public int getInFlightRequests(String url) {
+		return maxConnectionsPerHost - getInFlightRequestPermits(url).availablePermits();
+	}
+
+	private Semaphore getInFlightRequestPermits(String url) {
+		final String host = getHostKey(url);
+		Semaphore permits = inFlightRequestPermitsByHost.get(host);
+		if (permits == null) {
+			inFlightRequestPermitsByHost.putIfAbsent(host, new Semaphore(maxConnectionsPerHost));
+			permits = inFlightRequestPermitsByHost.get(host);
+		}
+		return permits;
+	}
+
+	private static String getHostKey(String url) {
+		try {
+			final URL parsedUrl = new URL(url);
+			return parsedUrl.getProtocol() + "://" + parsedUrl.getHost() + ":" + parsedUrl.getPort();
+		} catch (MalformedURLException e) {
+			// the request will fail anyway
+			return url;
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			// requests to different hosts share the threads, the queue is bounded by the in flight request permits
+			final int threads = Math.max(1, maxConnectionsPerHost);
+			asyncExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ExecutorUtils.NamedThreadFactory("stagemonitor-http-client"));
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * Stops the threads which send the asynchronous requests after the pending requests have been sent
+	 */
+	@Override
+	public synchronized void close() {
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+		}
+	}
+
 	public <T> T send(final HttpRequest<T> request) {
 		HttpURLConnection connection = null;
 		InputStream inputStream = null;
@@ -71,7 +252,11 @@ public class HttpClient {
 			}
 
 			if (request.getOutputStreamHandler() != null) {
-				request.getOutputStreamHandler().withHttpURLConnection(connection.getOutputStream());
+				if (isCompressRequestBody(request)) {
+					sendCompressedRequestBody(request, connection);
+				} else {
+					request.getOutputStreamHandler().withHttpURLConnection(connection.getOutputStream());
+				}
 			}
 
 			inputStream = connection.getInputStream();
@@ -97,7 +282,22 @@ public class HttpClient {
 
 			return null;
 		} finally {
-			IOUtils.closeQuietly(inputStream);
+			// reading the rest of the response lets the JVM reuse the connection
+			IOUtils.consumeAndClose(inputStream);
+		}
+	}
+
+	private boolean isCompressRequestBody(HttpRequest<?> request) {
+		return compressionLevel > 0 && (request.getHeaders() == null || !request.getHeaders().containsKey("Content-Encoding"));
+	}
+
+	private void sendCompressedRequestBody(HttpRequest<?> request, HttpURLConnection connection) throws IOException {
+		final CompressingRequestBodyOutputStream os = new CompressingRequestBodyOutputStream(connection, compressionLevel, compressionMinSizeBytes);
+		request.getOutputStreamHandler().withHttpURLConnection(os);
+		os.finish();
+		if (metricRegistry != null) {
+			metricRegistry.counter(RAW_REQUEST_BYTES).inc(os.getRawBytes());
+			metricRegistry.counter(COMPRESSED_REQUEST_BYTES).inc(os.getSentBytes());
 		}
 	}
 
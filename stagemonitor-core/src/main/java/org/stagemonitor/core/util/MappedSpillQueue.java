@@ -0,0 +1,301 @@
+package org.stagemonitor.core.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A FIFO queue of byte array records which is backed by memory mapped segment files.
+ * <p>
+ * Each segment file starts with the read position of the segment followed by the records, each one prefixed with its
+ * length. The length of a record is written after the record itself, so that a partially written record is never
+ * visible if the JVM crashes while writing it. When a segment is full, a new one is created. Segments which have been
+ * read completely are unmapped and deleted. When there are as many segments as allowed by the size cap, new records
+ * are rejected.
+ * <p>
+ * After a restart of the JVM, the queue continues where it stopped, as long as the same directory is used. The
+ * operating system writes the mapped pages back to the files, even if the JVM crashes. However, the pages are only
+ * forced to the disk when the queue is {@linkplain #close() closed}, so records which have been written since can get
+ * lost if the operating system crashes or the machine loses power.
+ * <p>
+ * This class is thread safe.
+ */
+public class MappedSpillQueue implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedSpillQueue.class);
+	private static final String SEGMENT_SUFFIX = ".spill";
+	private static final int HEADER_SIZE = 4;
+	private static final int LENGTH_SIZE = 4;
+	/**
+	 * {@code sun.misc.Unsafe#invokeCleaner}, which is available as of Java 9
+	 */
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		} catch (Exception e) {
+			// Java 8, see unmap
+			invokeCleaner = null;
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	private final File directory;
+	private final int segmentSizeBytes;
+	private final int maxSegments;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSegmentId;
+
+	/**
+	 * @param directory        the directory which contains the segment files, it is created if it does not exist
+	 * @param segmentSizeBytes the size of a segment file, has to be larger than 8
+	 * @param maxSizeBytes     the maximum size of all segment files
+	 * @throws IOException if the directory or the existing segments can't be accessed
+	 */
+	public MappedSpillQueue(File directory, int segmentSizeBytes, long maxSizeBytes) throws IOException {
+		if (segmentSizeBytes <= HEADER_SIZE + LENGTH_SIZE) {
+			throw new IllegalArgumentException("The segment size has to be larger than " + (HEADER_SIZE + LENGTH_SIZE) + " bytes, but is " + segmentSizeBytes);
+		}
+		this.directory = directory;
+		this.segmentSizeBytes = segmentSizeBytes;
+		this.maxSegments = (int) Math.max(1, maxSizeBytes / segmentSizeBytes);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory " + directory);
+		}
+		recoverSegments();
+	}
+
+	private void recoverSegments() throws IOException {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.length() < HEADER_SIZE) {
+				// the segment was created but never written to
+				deleteSegmentFile(file);
+				continue;
+			}
+			final Segment segment = new Segment(file, (int) file.length());
+			segments.add(segment);
+			nextSegmentId = Math.max(nextSegmentId, getSegmentId(file) + 1);
+		}
+		removeReadSegments(false);
+		if (!segments.isEmpty()) {
+			logger.info("Recovered {} spilled segments from {}", segments.size(), directory);
+		}
+	}
+
+	private static long getSegmentId(File file) {
+		final String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Appends a record to the queue
+	 *
+	 * @param record the record
+	 * @return {@code false}, if the record was rejected because the queue is full or the record is larger than a
+	 * segment
+	 * @throws IOException if a new segment could not be created
+	 */
+	public synchronized boolean offer(byte[] record) throws IOException {
+		if (record.length == 0) {
+			// a length of 0 marks the end of a segment
+			return true;
+		}
+		final int size = LENGTH_SIZE + record.length;
+		if (size > segmentSizeBytes - HEADER_SIZE) {
+			return false;
+		}
+		Segment tail = segments.peekLast();
+		if (tail != null && tail.getRemaining() < size) {
+			// the tail can't be written to anymore, so it can be deleted as soon as it is read completely
+			removeReadSegments(true);
+			tail = segments.peekLast();
+		}
+		if (tail == null || tail.getRemaining() < size) {
+			if (segments.size() >= maxSegments) {
+				return false;
+			}
+			tail = createSegment();
+		}
+		tail.write(record);
+		return true;
+	}
+
+	private Segment createSegment() throws IOException {
+		final File file = new File(directory, String.format("%019d", nextSegmentId++) + SEGMENT_SUFFIX);
+		final Segment segment = new Segment(file, segmentSizeBytes);
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Returns the oldest record without removing it
+	 *
+	 * @return the oldest record or {@code null}, if the queue is empty
+	 */
+	public synchronized byte[] peek() {
+		removeReadSegments(false);
+		final Segment head = segments.peekFirst();
+		if (head == null || !head.hasNext()) {
+			return null;
+		}
+		return head.peek();
+	}
+
+	/**
+	 * Removes the oldest record, which has been returned by {@link #peek()} before
+	 */
+	public synchronized void remove() {
+		removeReadSegments(false);
+		final Segment head = segments.peekFirst();
+		if (head != null && head.hasNext()) {
+			head.remove();
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return peek() == null;
+	}
+
+	/**
+	 * Deletes the segments which have been read completely
+	 *
+	 * @param includingTail whether the last segment may be deleted as well, usually it is still written to
+	 */
+	private void removeReadSegments(boolean includingTail) {
+		final int minSegments = includingTail ? 0 : 1;
+		while (segments.size() > minSegments && !segments.peekFirst().hasNext()) {
+			final Segment segment = segments.removeFirst();
+			// the file has to be unmapped before it is deleted, otherwise its disk space is released only after the
+			// buffer has been garbage collected
+			unmap(segment.buffer);
+			deleteSegmentFile(segment.file);
+		}
+	}
+
+	/**
+	 * Releases the memory mapping right away. The buffer must not be accessed afterwards.
+	 * <p>
+	 * If that is not possible on this JVM, the mapping is released when the buffer is garbage collected.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} else {
+				final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				final Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (Exception e) {
+			logger.debug("Could not unmap spilled segment: {}", e.getMessage());
+		}
+	}
+
+	private static void deleteSegmentFile(File file) {
+		if (!file.delete()) {
+			logger.warn("Could not delete spilled segment {}", file);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			unmap(segment.buffer);
+		}
+		segments.clear();
+	}
+
+	private static class Segment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int readPosition;
+		private int writePosition;
+
+		private Segment(File file, int size) throws IOException {
+			this.file = file;
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				randomAccessFile.close();
+			}
+			readPosition = Math.max(HEADER_SIZE, buffer.getInt(0));
+			writePosition = readPosition;
+			while (writePosition + LENGTH_SIZE <= size) {
+				final int length = buffer.getInt(writePosition);
+				if (length <= 0 || writePosition + LENGTH_SIZE + length > size) {
+					break;
+				}
+				writePosition += LENGTH_SIZE + length;
+			}
+		}
+
+		private int getRemaining() {
+			return buffer.capacity() - writePosition;
+		}
+
+		private void write(byte[] record) {
+			final ByteBuffer view = buffer.duplicate();
+			view.position(writePosition + LENGTH_SIZE);
+			view.put(record);
+			buffer.putInt(writePosition, record.length);
+			writePosition += LENGTH_SIZE + record.length;
+		}
+
+		private boolean hasNext() {
+			return readPosition < writePosition;
+		}
+
+		private byte[] peek() {
+			final byte[] record = new byte[buffer.getInt(readPosition)];
+			final ByteBuffer view = buffer.duplicate();
+			view.position(readPosition + LENGTH_SIZE);
+			view.get(record);
+			return record;
+		}
+
+		private void remove() {
+			readPosition += LENGTH_SIZE + buffer.getInt(readPosition);
+			buffer.putInt(0, readPosition);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.stagemonitor.core.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded multi-producer single-consumer ring buffer of preallocated, mutable events.
+ * <p>
+ * Producers never block and don't allocate: they {@linkplain #tryClaim() claim} a sequence, fill the
+ * {@linkplain #get(long) event} of that sequence and {@linkplain #publish(long) publish} it. If the buffer is full,
+ * {@link #tryClaim()} fails immediately so that the caller can decide what to do with the event. The only
+ * coordination between producers is a compare-and-set of the producer sequence.
+ * <p>
+ * The single consumer processes the published events in batches via {@link #drain(EventHandler, int)}. After an
+ * event has been handled, its slot is reused for one of the next events, so the handler must not keep references to
+ * the event.
+ * <p>
+ * Alternatively, the buffer can hold references to immutable or otherwise owned objects instead of preallocated
+ * events. In this mode, which is created via {@link #MpscRingBuffer(int)}, producers {@linkplain #offer(Object) offer}
+ * the objects and the consumer {@linkplain #drainTo(Collection, int) drains} them into a collection. The slots are
+ * cleared after draining, so that the buffer does not keep the objects alive.
+ *
+ * @param <E> the type of the events
+ */
+public class MpscRingBuffer<E> {
+
+	private final Object[] events;
+	private final AtomicLongArray publishedSequences;
+	private final int mask;
+	private final int capacity;
+	private final AtomicLong producerSequence = new AtomicLong();
+	private final AtomicLong consumerSequence = new AtomicLong();
+
+	/**
+	 * @param capacity     the capacity, which is rounded up to the next power of two
+	 * @param eventFactory creates the preallocated events
+	 */
+	public MpscRingBuffer(int capacity, EventFactory<E> eventFactory) {
+		this(capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			events[i] = eventFactory.newEvent();
+		}
+	}
+
+	/**
+	 * Creates a buffer without preallocated events, which is used via {@link #offer(Object)} and
+	 * {@link #drainTo(Collection, int)}
+	 *
+	 * @param capacity the capacity, which is rounded up to the next power of two
+	 */
+	public MpscRingBuffer(int capacity) {
+		this.capacity = Integer.highestOneBit(Math.min(Math.max(2, capacity), 1 << 30) * 2 - 1);
+		this.mask = this.capacity - 1;
+		this.events = new Object[this.capacity];
+		this.publishedSequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			publishedSequences.set(i, -1);
+		}
+	}
+
+	/**
+	 * Claims the next sequence
+	 *
+	 * @return the claimed sequence or -1 if the buffer is full
+	 */
+	public long tryClaim() {
+		long sequence;
+		do {
+			sequence = producerSequence.get();
+			if (sequence - consumerSequence.get() >= capacity) {
+				return -1;
+			}
+		} while (!producerSequence.compareAndSet(sequence, sequence + 1));
+		return sequence;
+	}
+
+	/**
+	 * Returns the event of the claimed sequence which has to be filled before calling {@link #publish(long)}
+	 *
+	 * @param sequence the sequence returned by {@link #tryClaim()}
+	 * @return the event of the sequence
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E) events[index(sequence)];
+	}
+
+	/**
+	 * Makes the event of the sequence visible to the consumer
+	 *
+	 * @param sequence the sequence returned by {@link #tryClaim()}
+	 */
+	public void publish(long sequence) {
+		publishedSequences.lazySet(index(sequence), sequence);
+	}
+
+	/**
+	 * Passes the published events to the handler in the order of their sequences.
+	 * <p>
+	 * Must only be called by the single consumer thread.
+	 *
+	 * @param handler      handles the events
+	 * @param maxBatchSize the maximum number of events to handle
+	 * @return the number of handled events
+	 */
+	@SuppressWarnings("unchecked")
+	public int drain(EventHandler<E> handler, int maxBatchSize) {
+		long sequence = consumerSequence.get();
+		int handled = 0;
+		while (handled < maxBatchSize) {
+			final int index = index(sequence);
+			if (publishedSequences.get(index) != sequence) {
+				break;
+			}
+			try {
+				handler.onEvent((E) events[index]);
+			} finally {
+				// frees the slot, even if the handler has thrown an exception
+				sequence++;
+				consumerSequence.lazySet(sequence);
+			}
+			handled++;
+		}
+		return handled;
+	}
+
+	/**
+	 * Adds an object to a buffer which has been created via {@link #MpscRingBuffer(int)}
+	 *
+	 * @param element the object to add
+	 * @return {@code false}, if the buffer is full
+	 */
+	public boolean offer(E element) {
+		final long sequence = tryClaim();
+		if (sequence < 0) {
+			return false;
+		}
+		// the write is made visible to the consumer by the ordered write of publish
+		events[index(sequence)] = element;
+		publish(sequence);
+		return true;
+	}
+
+	/**
+	 * Moves the published objects into the collection in the order of their sequences.
+	 * <p>
+	 * Must only be called by the single consumer thread.
+	 *
+	 * @param collection  the collection to add the objects to
+	 * @param maxElements the maximum number of objects to move
+	 * @return the number of objects which have been added to the collection
+	 */
+	@SuppressWarnings("unchecked")
+	public int drainTo(Collection<? super E> collection, int maxElements) {
+		long sequence = consumerSequence.get();
+		int drained = 0;
+		while (drained < maxElements) {
+			final int index = index(sequence);
+			if (publishedSequences.get(index) != sequence) {
+				break;
+			}
+			collection.add((E) events[index]);
+			events[index] = null;
+			sequence++;
+			drained++;
+		}
+		consumerSequence.lazySet(sequence);
+		return drained;
+	}
+
+	/**
+	 * @return the number of claimed events which have not been handled yet
+	 */
+	public int size() {
+		return (int) Math.max(0, producerSequence.get() - consumerSequence.get());
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence & mask);
+	}
+
+	public interface EventFactory<E> {
+		E newEvent();
+	}
+
+	public interface EventHandler<E> {
+		void onEvent(E event);
+	}
+}
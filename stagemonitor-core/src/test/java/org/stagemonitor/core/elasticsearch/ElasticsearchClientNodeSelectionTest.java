@@ -0,0 +1,179 @@
+package org.stagemonitor.core.elasticsearch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.util.HttpClient;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ElasticsearchClientNodeSelectionTest {
+
+	private ElasticsearchClient elasticsearchClient;
+	private CorePlugin corePlugin;
+
+	@Before
+	public void setUp() throws Exception {
+		corePlugin = mock(CorePlugin.class);
+		when(corePlugin.getElasticsearchUrls()).thenReturn(Arrays.asList(new URL("http://node1:9200"), new URL("http://node2:9200"), new URL("http://node3:9200")));
+		when(corePlugin.getThreadPoolQueueCapacityLimit()).thenReturn(10000);
+		elasticsearchClient = new ElasticsearchClient(corePlugin, new HttpClient(), -1, Collections.emptyList());
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+		final Set<ElasticsearchNode> selectedNodes = new HashSet<ElasticsearchNode>();
+		for (int i = 0; i < 3; i++) {
+			selectedNodes.add(elasticsearchClient.selectNode());
+		}
+		assertThat(selectedNodes).hasSize(3);
+	}
+
+	@Test
+	public void testLeastOutstandingRequests() throws Exception {
+		final List<ElasticsearchNode> nodes = elasticsearchClient.getNodes();
+		nodes.get(0).onRequestStarted();
+		nodes.get(2).onRequestStarted();
+		for (int i = 0; i < 3; i++) {
+			assertThat(elasticsearchClient.selectNode()).isSameAs(nodes.get(1));
+		}
+	}
+
+	@Test
+	public void testOpenCircuitBreaker() throws Exception {
+		final List<ElasticsearchNode> nodes = elasticsearchClient.getNodes();
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < ElasticsearchNode.FAILURE_THRESHOLD; i++) {
+			nodes.get(0).onFailure(now);
+		}
+		assertThat(nodes.get(0).isAvailable(now)).isFalse();
+		assertThat(nodes.get(0).isAvailable(now + ElasticsearchNode.OPEN_CIRCUIT_MILLIS)).isTrue();
+		for (int i = 0; i < 6; i++) {
+			assertThat(elasticsearchClient.selectNode()).isNotSameAs(nodes.get(0));
+		}
+
+		nodes.get(0).onSuccess();
+		assertThat(nodes.get(0).isAvailable(now)).isTrue();
+	}
+
+	@Test
+	public void testSingleTrialRequestIfCircuitBreakerIsHalfOpen() throws Exception {
+		final List<ElasticsearchNode> nodes = elasticsearchClient.getNodes();
+		final ElasticsearchNode node = nodes.get(0);
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < ElasticsearchNode.FAILURE_THRESHOLD; i++) {
+			node.onFailure(now - ElasticsearchNode.OPEN_CIRCUIT_MILLIS);
+		}
+
+		assertThat(elasticsearchClient.acquireNode()).isSameAs(node);
+		for (int i = 0; i < 6; i++) {
+			assertThat(elasticsearchClient.acquireNode()).isNotSameAs(node);
+		}
+
+		node.onFailure(System.currentTimeMillis());
+		assertThat(node.tryStartTrial(System.currentTimeMillis())).isFalse();
+
+		assertThat(node.tryStartTrial(System.currentTimeMillis() + ElasticsearchNode.OPEN_CIRCUIT_MILLIS)).isTrue();
+		node.onSuccess();
+		assertThat(node.isCircuitClosed()).isTrue();
+	}
+
+	@Test
+	public void testConcurrentTrialRequests() throws Exception {
+		final ElasticsearchNode node = elasticsearchClient.getNodes().get(0);
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < ElasticsearchNode.FAILURE_THRESHOLD; i++) {
+			node.onFailure(now - ElasticsearchNode.OPEN_CIRCUIT_MILLIS);
+		}
+		final int threads = 8;
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final AtomicInteger trials = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						barrier.await();
+						if (node.tryStartTrial(now)) {
+							trials.incrementAndGet();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertThat(trials.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testNoNodeIfAllCircuitBreakersAreOpen() throws Exception {
+		final long now = System.currentTimeMillis();
+		for (ElasticsearchNode node : elasticsearchClient.getNodes()) {
+			for (int i = 0; i < ElasticsearchNode.FAILURE_THRESHOLD; i++) {
+				node.onFailure(now);
+			}
+		}
+		assertThat(elasticsearchClient.acquireNode()).isNull();
+	}
+
+	@Test
+	public void testSuccessfulHealthCheckDoesNotCloseCircuitBreaker() throws Exception {
+		final ElasticsearchNode node = elasticsearchClient.getNodes().get(0);
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < ElasticsearchNode.FAILURE_THRESHOLD; i++) {
+			node.onFailure(now);
+		}
+		node.setHealthy(true);
+		assertThat(node.isAvailable(now)).isFalse();
+		assertThat(node.isCircuitClosed()).isFalse();
+	}
+
+	@Test
+	public void testSkipUnhealthyNodes() throws Exception {
+		final List<ElasticsearchNode> nodes = elasticsearchClient.getNodes();
+		nodes.get(0).setHealthy(false);
+		nodes.get(1).setHealthy(false);
+		for (int i = 0; i < 3; i++) {
+			assertThat(elasticsearchClient.selectNode()).isSameAs(nodes.get(2));
+		}
+	}
+
+	@Test
+	public void testFallBackToRoundRobinIfNoNodeIsAvailable() throws Exception {
+		for (ElasticsearchNode node : elasticsearchClient.getNodes()) {
+			node.setHealthy(false);
+		}
+		assertThat(elasticsearchClient.selectNode()).isNotNull();
+	}
+
+	@Test
+	public void testDefaultCredentials() throws Exception {
+		when(corePlugin.getElasticsearchDefaultUsername()).thenReturn("user");
+		when(corePlugin.getElasticsearchDefaultPassword()).thenReturn("password");
+		assertThat(elasticsearchClient.getElasticsearchUrl().getUserInfo()).isEqualTo("user:password");
+	}
+}
@@ -0,0 +1,126 @@
+package org.stagemonitor.core.elasticsearch;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.util.IOUtils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static java.lang.Boolean.TRUE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ElasticsearchClientSpillTest {
+
+	private static final int PORT = 41235;
+	private static final String PATH = "/stagemonitor-spans-2017.01.01/spans/_bulk";
+	private static final String BULK = "{\"index\":{}}\n{\"name\":\"test\"}\n";
+
+	@Rule
+	public TemporaryFolder spillDirectory = new TemporaryFolder();
+	private final List<String> receivedBulkRequests = new CopyOnWriteArrayList<String>();
+	private ElasticsearchClient elasticsearchClient;
+	private CorePlugin corePlugin;
+	private Server server;
+
+	@Before
+	public void setUp() throws Exception {
+		corePlugin = mock(CorePlugin.class);
+		final URL url = new URL("http://localhost:" + PORT);
+		when(corePlugin.getElasticsearchUrl()).thenReturn(url);
+		when(corePlugin.getElasticsearchUrls()).thenReturn(Collections.singletonList(url));
+		when(corePlugin.getThreadPoolQueueCapacityLimit()).thenReturn(10000);
+		when(corePlugin.isInitialized()).thenReturn(TRUE);
+		when(corePlugin.getElasticsearchSpillDirectory()).thenReturn(spillDirectory.getRoot().getAbsolutePath());
+		when(corePlugin.getElasticsearchSpillMaxSizeMb()).thenReturn(1);
+		elasticsearchClient = new ElasticsearchClient(corePlugin, new HttpClient(), -1, Collections.emptyList());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		elasticsearchClient.close();
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testSpillWhileNotAvailableAndReplayWhenAvailableAgain() throws Exception {
+		elasticsearchClient.checkEsAvailability();
+		assertThat(elasticsearchClient.isElasticsearchAvailable()).isFalse();
+
+		assertThat(elasticsearchClient.spillBulk(PATH, os -> os.write(BULK.getBytes("UTF-8")))).isTrue();
+		assertThat(receivedBulkRequests).isEmpty();
+
+		startElasticsearch();
+		elasticsearchClient.checkEsAvailability();
+		assertThat(elasticsearchClient.isElasticsearchAvailable()).isTrue();
+		elasticsearchClient.waitForCompletion();
+
+		assertThat(receivedBulkRequests).containsExactly(PATH + "\n" + BULK);
+	}
+
+	@Test
+	public void testSpillFailedBulkRequests() throws Exception {
+		startElasticsearch();
+		elasticsearchClient.checkEsAvailability();
+		server.stop();
+
+		elasticsearchClient.sendBulk(PATH, ElasticsearchClient.CONTENT_TYPE_NDJSON, os -> os.write(BULK.getBytes("UTF-8")),
+				(httpRequest, is, statusCode, e) -> null);
+		assertThat(receivedBulkRequests).isEmpty();
+
+		startElasticsearch();
+		elasticsearchClient.checkEsAvailability();
+		elasticsearchClient.waitForCompletion();
+
+		assertThat(receivedBulkRequests).containsExactly(PATH + "\n" + BULK);
+	}
+
+	@Test
+	public void testSpillingDisabledIfMaxSizeIsZero() throws Exception {
+		when(corePlugin.getElasticsearchSpillMaxSizeMb()).thenReturn(0);
+		final ElasticsearchClient client = new ElasticsearchClient(corePlugin, new HttpClient(), -1, Collections.emptyList());
+		try {
+			assertThat(client.isSpillingEnabled()).isFalse();
+			assertThat(client.spillBulk(PATH, os -> os.write(BULK.getBytes("UTF-8")))).isFalse();
+		} finally {
+			client.close();
+		}
+	}
+
+	private void startElasticsearch() throws Exception {
+		server = new Server(PORT);
+		server.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+				if (target.endsWith("/_bulk")) {
+					receivedBulkRequests.add(target + "\n" + new String(IOUtils.readToBytes(request.getInputStream()), "UTF-8"));
+					response.getWriter().write("{\"errors\":false,\"items\":[]}");
+				} else if (target.equals("/_cluster/health")) {
+					response.getWriter().write("{\"status\":\"green\"}");
+				} else {
+					response.getWriter().write("{\"version\":{\"number\":\"6.0.0\"}}");
+				}
+				baseRequest.setHandled(true);
+			}
+		});
+		server.start();
+	}
+}
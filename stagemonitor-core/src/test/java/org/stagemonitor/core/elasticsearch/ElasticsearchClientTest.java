@@ -135,6 +135,31 @@ public class ElasticsearchClientTest extends AbstractElasticsearchTest {
 		assertThat(errors.get()).isEqualTo(1);
 	}
 
+	@Test
+	public void testMissingDocumentOfUpdateIsNoErrorIfRetried() {
+		AtomicInteger errors = new AtomicInteger();
+		AtomicInteger missingDocumentItem = new AtomicInteger(-1);
+		elasticsearchClient.getHttpClient().send("POST", elasticsearchUrl + "/_bulk", CONTENT_TYPE_NDJSON, os ->
+				os.write(("{ \"index\" : { \"_index\" : \"test\", \"_type\" : \"type1\", \"_id\" : \"1\" } }\n" +
+						"{ \"field1\" : \"value1\" }\n" +
+						"{ \"update\" : {\"_id\" : \"42\", \"_type\" : \"type1\", \"_index\" : \"index1\"} }\n" +
+						"{ \"doc\" : {\"field\" : \"value\"} }\n"
+				).getBytes("UTF-8")), new ElasticsearchClient.BulkErrorCountingResponseHandler() {
+			@Override
+			public void onBulkError(int errorCount) {
+				errors.set(errorCount);
+			}
+
+			@Override
+			protected boolean onMissingDocument(int itemIndex) {
+				missingDocumentItem.set(itemIndex);
+				return true;
+			}
+		});
+		assertThat(errors.get()).isEqualTo(0);
+		assertThat(missingDocumentItem.get()).isEqualTo(1);
+	}
+
 	@Test
 	public void testCreateEmptyIndex() throws Exception {
 		elasticsearchClient.createEmptyIndex("test");
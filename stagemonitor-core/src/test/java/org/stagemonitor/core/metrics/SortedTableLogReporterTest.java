@@ -2,6 +2,7 @@ package org.stagemonitor.core.metrics;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 import java.util.Locale;
@@ -16,6 +17,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.SnapshotCoordinator;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 
 public class SortedTableLogReporterTest extends MetricsReporterTestHelper {
@@ -29,8 +31,10 @@ public class SortedTableLogReporterTest extends MetricsReporterTestHelper {
 	@Before
 	public void setUp() throws Exception {
 		logger = mock(Logger.class);
+		final Metric2Registry registry = mock(Metric2Registry.class);
+		when(registry.getSnapshotCoordinator()).thenReturn(new SnapshotCoordinator(1, TimeUnit.MINUTES));
 		reporter = SortedTableLogReporter
-				.forRegistry(mock(Metric2Registry.class))
+				.forRegistry(registry)
 				.log(logger)
 				.convertRatesTo(TimeUnit.SECONDS)
 				.convertDurationsTo(DURATION_UNIT)
@@ -0,0 +1,265 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class ChangedMetricsFilterTest {
+
+	private final MetricName metricName = name("test").build();
+
+	@Test
+	public void testOnlyChangedCountsMatch() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(0);
+		final Counter counter = new Counter();
+
+		assertThat(deliver(filter, counter)).isTrue();
+		filter.nextInterval();
+		assertThat(deliver(filter, counter)).isFalse();
+		filter.nextInterval();
+
+		counter.inc();
+		assertThat(deliver(filter, counter)).isTrue();
+		filter.nextInterval();
+		assertThat(deliver(filter, counter)).isFalse();
+	}
+
+	@Test
+	public void testOnlyChangedGaugeValuesMatch() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(0);
+		final AtomicInteger value = new AtomicInteger();
+		final Gauge<Integer> gauge = new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return value.get();
+			}
+		};
+
+		assertThat(deliver(filter, gauge)).isTrue();
+		assertThat(deliver(filter, gauge)).isFalse();
+		value.set(42);
+		assertThat(deliver(filter, gauge)).isTrue();
+		assertThat(deliver(filter, gauge)).isFalse();
+	}
+
+	@Test
+	public void testMatchedGaugeValueIsComputedOnce() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(0);
+		final AtomicInteger invocations = new AtomicInteger();
+		final Gauge<Integer> gauge = new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return invocations.incrementAndGet();
+			}
+		};
+
+		final ChangedMetricsFilter.ReportFilter report = filter.newReportFilter();
+		assertThat(report.matches(metricName, gauge)).isTrue();
+		assertThat(report.getMatchedGauge(metricName, gauge).getValue()).isEqualTo(1);
+		assertThat(invocations.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testMeterWithDecayingRatesMatches() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(0);
+		final AtomicLong tick = new AtomicLong();
+		final Meter meter = new Meter(new Clock() {
+			@Override
+			public long getTick() {
+				return tick.get();
+			}
+		});
+		meter.mark(1000);
+		tick.addAndGet(TimeUnit.SECONDS.toNanos(5));
+
+		assertThat(deliver(filter, meter)).isTrue();
+		assertThat(deliver(filter, meter)).isFalse();
+
+		// the count does not change, but the rates decay
+		tick.addAndGet(TimeUnit.MINUTES.toNanos(1));
+		assertThat(deliver(filter, meter)).isTrue();
+		assertThat(deliver(filter, meter)).isFalse();
+
+		// the rates have decayed to zero
+		tick.addAndGet(TimeUnit.DAYS.toNanos(1));
+		assertThat(deliver(filter, meter)).isTrue();
+		tick.addAndGet(TimeUnit.MINUTES.toNanos(1));
+		assertThat(deliver(filter, meter)).isFalse();
+	}
+
+	@Test
+	public void testUndeliveredValuesMatchAgain() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(0);
+		final Counter counter = new Counter();
+
+		assertThat(filter.newReportFilter().matches(metricName, counter)).isTrue();
+		filter.nextInterval();
+		// the previous report has not been delivered
+		assertThat(deliver(filter, counter)).isTrue();
+		filter.nextInterval();
+		assertThat(deliver(filter, counter)).isFalse();
+	}
+
+	@Test
+	public void testValuesAreReportedWhenTheResponseArrivesLater() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(0);
+		final Counter counter = new Counter();
+
+		final ChangedMetricsFilter.ReportFilter report = filter.newReportFilter();
+		assertThat(report.matches(metricName, counter)).isTrue();
+		filter.nextInterval();
+		report.delivered();
+		assertThat(deliver(filter, counter)).isFalse();
+	}
+
+	@Test
+	public void testHeartbeat() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(3);
+		final Counter counter = new Counter();
+
+		assertThat(deliver(filter, counter)).isTrue();
+		assertThat(deliver(filter, counter)).isFalse();
+		assertThat(deliver(filter, counter)).isFalse();
+		assertThat(deliver(filter, counter)).isTrue();
+		assertThat(deliver(filter, counter)).isFalse();
+
+		counter.inc();
+		assertThat(deliver(filter, counter)).isTrue();
+		assertThat(deliver(filter, counter)).isFalse();
+	}
+
+	@Test
+	public void testForgetsMetricsWhichAreNotReportedAnymore() throws Exception {
+		final ChangedMetricsFilter filter = new ChangedMetricsFilter(0);
+		final Counter counter = new Counter();
+
+		assertThat(deliver(filter, counter)).isTrue();
+		filter.nextInterval();
+		// the metric has been removed from the registry and is therefore not passed to the filter
+		filter.nextInterval();
+		assertThat(deliver(filter, counter)).isTrue();
+	}
+
+	@Test
+	public void testReporterOnlyReportsChangedMetrics() throws Exception {
+		final Metric2Registry registry = new Metric2Registry();
+		final Counter counter = registry.counter(metricName);
+		final AtomicInteger reportedCounters = new AtomicInteger();
+		final ScheduledMetrics2Reporter reporter = new ScheduledMetrics2Reporter.Builder<ScheduledMetrics2Reporter, ScheduledMetrics2Reporter.Builder>(registry, "test") {
+			@Override
+			public ScheduledMetrics2Reporter build() {
+				return new ScheduledMetrics2Reporter(this) {
+					@Override
+					public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+											  Map<MetricName, Histogram> histograms,
+											  Map<MetricName, Meter> meters,
+											  Map<MetricName, Timer> timers) {
+						reportedCounters.addAndGet(counters.size());
+					}
+				};
+			}
+		}.reportOnlyChangedMetrics(true).build();
+
+		reporter.report();
+		reporter.report();
+		assertThat(reportedCounters.get()).isEqualTo(1);
+		counter.inc();
+		reporter.report();
+		assertThat(reportedCounters.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testReporterDropsStateOfRemovedMetrics() throws Exception {
+		final Metric2Registry registry = new Metric2Registry();
+		registry.counter(metricName);
+		final AtomicInteger reportedCounters = new AtomicInteger();
+		final ScheduledMetrics2Reporter reporter = countingReporter(registry, reportedCounters);
+
+		reporter.report();
+		assertThat(reporter.getChangedMetricsFilter().size()).isEqualTo(1);
+		registry.remove(metricName);
+		reporter.report();
+		assertThat(reporter.getChangedMetricsFilter().size()).isEqualTo(0);
+
+		// a metric with the same name and value is reported again after it has been re-created
+		registry.counter(metricName);
+		reporter.report();
+		assertThat(reportedCounters.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testReporterReportsMetricsOfFailedReportAgain() throws Exception {
+		final Metric2Registry registry = new Metric2Registry();
+		registry.counter(metricName);
+		final AtomicInteger reportedCounters = new AtomicInteger();
+		final AtomicBoolean fail = new AtomicBoolean(true);
+		final ScheduledMetrics2Reporter reporter = new ScheduledMetrics2Reporter.Builder<ScheduledMetrics2Reporter, ScheduledMetrics2Reporter.Builder>(registry, "test") {
+			@Override
+			public ScheduledMetrics2Reporter build() {
+				return new ScheduledMetrics2Reporter(this) {
+					@Override
+					public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+											  Map<MetricName, Histogram> histograms,
+											  Map<MetricName, Meter> meters,
+											  Map<MetricName, Timer> timers) {
+						if (fail.get()) {
+							throw new IllegalStateException("backend not available");
+						}
+						reportedCounters.addAndGet(counters.size());
+					}
+				};
+			}
+		}.reportOnlyChangedMetrics(true).build();
+
+		try {
+			reporter.report();
+		} catch (IllegalStateException expected) {
+		}
+		fail.set(false);
+		reporter.report();
+		reporter.report();
+		assertThat(reportedCounters.get()).isEqualTo(1);
+	}
+
+	private ScheduledMetrics2Reporter countingReporter(Metric2Registry registry, final AtomicInteger reportedCounters) {
+		return new ScheduledMetrics2Reporter.Builder<ScheduledMetrics2Reporter, ScheduledMetrics2Reporter.Builder>(registry, "test") {
+			@Override
+			public ScheduledMetrics2Reporter build() {
+				return new ScheduledMetrics2Reporter(this) {
+					@Override
+					public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+											  Map<MetricName, Histogram> histograms,
+											  Map<MetricName, Meter> meters,
+											  Map<MetricName, Timer> timers) {
+						reportedCounters.addAndGet(counters.size());
+					}
+				};
+			}
+		}.reportOnlyChangedMetrics(true).build();
+	}
+
+	/**
+	 * Matches the metric in a new report, which is delivered right away
+	 */
+	private boolean deliver(ChangedMetricsFilter filter, Metric metric) {
+		final ChangedMetricsFilter.ReportFilter report = filter.newReportFilter();
+		final boolean matches = report.matches(metricName, metric);
+		report.delivered();
+		return matches;
+	}
+}
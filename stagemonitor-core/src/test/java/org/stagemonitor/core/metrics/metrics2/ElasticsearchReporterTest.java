@@ -6,6 +6,8 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import org.junit.After;
 import org.junit.Before;
@@ -21,9 +23,13 @@ import org.stagemonitor.core.util.JsonUtils;
 import org.stagemonitor.util.StringUtils;
 
 import java.io.ByteArrayOutputStream;
-import java.net.HttpURLConnection;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static java.util.Collections.singleton;
@@ -56,34 +62,31 @@ public class ElasticsearchReporterTest {
 	private CorePlugin corePlugin;
 	private Metric2Registry registry;
 	private Clock clock;
+	private ElasticsearchClient elasticsearchClient;
 
 	@Before
 	public void setUp() throws Exception {
 		this.clock = mock(Clock.class);
 		timestamp = System.currentTimeMillis();
 		when(clock.getTime()).thenReturn(timestamp);
-		final HttpClient httpClient = mock(HttpClient.class);
-		when(httpClient.send(any(), any(), any(), any(), any())).thenAnswer(new Answer<Integer>() {
-			@Override
-			public Integer answer(InvocationOnMock invocation) throws Throwable {
-				HttpClient.OutputStreamHandler handler = (HttpClient.OutputStreamHandler) invocation.getArguments()[3];
-				final HttpURLConnection connection = mock(HttpURLConnection.class);
-				when(connection.getOutputStream()).thenReturn(out);
-				handler.withHttpURLConnection(connection.getOutputStream());
-				return 200;
-			}
-		});
 		metricsLogger = mock(Logger.class);
 		corePlugin = mock(CorePlugin.class);
 		registry = new Metric2Registry();
-		final ElasticsearchClient elasticsearchClient = mock(ElasticsearchClient.class);
+		elasticsearchClient = mock(ElasticsearchClient.class);
 		when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(true);
+		when(elasticsearchClient.sendBulkAsync(any(), any(), any(), any())).thenAnswer(new Answer<Future<Void>>() {
+			@Override
+			public Future<Void> answer(InvocationOnMock invocation) throws Throwable {
+				HttpClient.OutputStreamHandler handler = (HttpClient.OutputStreamHandler) invocation.getArguments()[2];
+				handler.withHttpURLConnection(out);
+				return CompletableFuture.completedFuture(null);
+			}
+		});
 		when(corePlugin.getElasticsearchClient()).thenReturn(elasticsearchClient);
 		when(corePlugin.isStagemonitorActive()).thenReturn(true);
 		elasticsearchReporter = ElasticsearchReporter.forRegistry(registry, corePlugin)
 				.convertDurationsTo(DURATION_UNIT)
 				.globalTags(singletonMap("app", "test"))
-				.httpClient(httpClient)
 				.clock(clock)
 				.elasticsearchMetricsLogger(metricsLogger)
 				.filter(MetricNameFilter.excludePatterns(singleton(name("reporting_time").build())))
@@ -97,6 +100,33 @@ public class ElasticsearchReporterTest {
 		elasticsearchReporter.close();
 	}
 
+	@Test
+	public void testSpillsMetricsWhenRequestIsRejected() throws Exception {
+		when(elasticsearchClient.sendBulkAsync(any(), any(), any(), any())).thenThrow(new RejectedExecutionException());
+		registry.counter(name("test_counter").build()).inc();
+
+		elasticsearchReporter.report();
+
+		verify(elasticsearchClient).spillBulk(eq("/" + ElasticsearchReporter.getTodaysIndexName() + "/metrics/_bulk"), any());
+	}
+
+	@Test
+	public void testSpillsMetricsOnServerError() throws Exception {
+		when(elasticsearchClient.sendBulkAsync(any(), any(), any(), any())).thenAnswer(new Answer<Future<Void>>() {
+			@Override
+			public Future<Void> answer(InvocationOnMock invocation) throws Throwable {
+				final HttpClient.ResponseHandler<?> responseHandler = (HttpClient.ResponseHandler<?>) invocation.getArguments()[3];
+				responseHandler.handleResponse(null, null, 503, new IOException("Service Unavailable"));
+				return CompletableFuture.completedFuture(null);
+			}
+		});
+		registry.counter(name("test_counter").build()).inc();
+
+		elasticsearchReporter.report();
+
+		verify(elasticsearchClient).spillBulk(eq("/" + ElasticsearchReporter.getTodaysIndexName() + "/metrics/_bulk"), any());
+	}
+
 	@Test(expected = IllegalStateException.class)
 	public void testScheduleTwice() throws Exception {
 		elasticsearchReporter.start(100, TimeUnit.MILLISECONDS);
@@ -195,6 +225,28 @@ public class ElasticsearchReporterTest {
 				"{\"@timestamp\":%d,\"name\":\"gauge\",\"app\":\"test\",\"value\":1.0}\n", StringUtils.getLogstashStyleDate(), timestamp)));
 	}
 
+	@Test
+	public void testReportSmile() throws Exception {
+		final byte[] bulkActionBytes = ElasticsearchClient.getSmileBulkHeader("index", "stagemonitor-metrics", "metrics");
+		elasticsearchReporter.reportMetrics(
+				metricNameMap(name("gauge").build(), gauge(1)),
+				metricNameMap(Counter.class),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(Timer.class), out, bulkActionBytes, timestamp, true);
+
+		final byte[] bytes = out.toByteArray();
+		assertEquals(ElasticsearchClient.SMILE_STREAM_SEPARATOR, bytes[bytes.length - 1] & 0xFF);
+		final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+		final byte[] metric = Arrays.copyOfRange(bytes, bulkActionBytes.length, bytes.length - 1);
+		assertEquals(
+				objectMap("@timestamp", timestamp)
+						.add("name", "gauge")
+						.add("app", "test")
+						.add("value", 1.0),
+				new TreeMap<String, Object>(smileMapper.readValue(metric, Map.class)));
+	}
+
 	@Test
 	public void testReportBooleanGauge() throws Exception {
 		elasticsearchReporter.reportMetrics(
@@ -0,0 +1,147 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HdrHistogramReservoirTest {
+
+	private Clock clock;
+	private HdrHistogramReservoir reservoir;
+
+	@Before
+	public void setUp() throws Exception {
+		clock = mock(Clock.class);
+		when(clock.getTime()).thenReturn(60_000L);
+		reservoir = new HdrHistogramReservoir(1, TimeUnit.MINUTES, clock);
+	}
+
+	@Test
+	public void testSnapshotContainsValuesOfLastInterval() throws Exception {
+		for (int i = 1; i <= 100; i++) {
+			reservoir.update(i);
+		}
+		when(clock.getTime()).thenReturn(120_000L);
+
+		final Snapshot snapshot = reservoir.getSnapshot();
+		assertThat(snapshot.size()).isEqualTo(100);
+		assertThat(snapshot.getMin()).isEqualTo(1);
+		assertThat(snapshot.getMax()).isEqualTo(100);
+		assertThat(snapshot.getMean()).isCloseTo(50.5, within(0.5));
+		assertThat(snapshot.getMedian()).isCloseTo(50, within(1.0));
+		assertThat(snapshot.get95thPercentile()).isCloseTo(95, within(1.0));
+		assertThat(snapshot.getValues()).hasSize(100);
+	}
+
+	@Test
+	public void testSameSnapshotWithinInterval() throws Exception {
+		when(clock.getTime()).thenReturn(120_000L);
+		reservoir.update(42);
+		final Snapshot snapshot = reservoir.getSnapshot();
+		assertThat(snapshot.size()).isEqualTo(1);
+
+		reservoir.update(43);
+		when(clock.getTime()).thenReturn(179_999L);
+		assertThat(reservoir.getSnapshot()).isSameAs(snapshot);
+
+		when(clock.getTime()).thenReturn(180_000L);
+		final Snapshot nextSnapshot = reservoir.getSnapshot();
+		assertThat(nextSnapshot.size()).isEqualTo(1);
+		assertThat(nextSnapshot.getMax()).isEqualTo(43);
+	}
+
+	@Test
+	public void testReporterTriggeredJustBeforeIntervalBoundary() throws Exception {
+		final SnapshotCoordinator snapshotCoordinator = new SnapshotCoordinator(1, TimeUnit.MINUTES, clock);
+		final HdrHistogramReservoir reservoir = new HdrHistogramReservoir(snapshotCoordinator);
+		snapshotCoordinator.startReport(60_000);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+
+		reservoir.update(1);
+		reservoir.update(2);
+		// the scheduler of the reporter fires slightly before the next interval
+		when(clock.getTime()).thenReturn(119_995L);
+		snapshotCoordinator.startReport(60_000);
+		final Snapshot snapshot = reservoir.getSnapshot();
+		assertThat(snapshot.size()).isEqualTo(2);
+
+		// another reporter with the same reporting interval fires slightly after the boundary
+		when(clock.getTime()).thenReturn(120_005L);
+		snapshotCoordinator.startReport(60_000);
+		assertThat(reservoir.getSnapshot()).isSameAs(snapshot);
+	}
+
+	@Test
+	public void testOffScheduleSnapshotDoesNotEndInterval() throws Exception {
+		final SnapshotCoordinator snapshotCoordinator = new SnapshotCoordinator(1, TimeUnit.MINUTES, clock);
+		final HdrHistogramReservoir reservoir = new HdrHistogramReservoir(snapshotCoordinator);
+		snapshotCoordinator.startReport(60_000);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+
+		reservoir.update(1);
+		// for example a Prometheus scrape or a reporter with a different reporting interval
+		when(clock.getTime()).thenReturn(95_000L);
+		snapshotCoordinator.startReport(10_000);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+		reservoir.update(2);
+
+		when(clock.getTime()).thenReturn(120_000L);
+		snapshotCoordinator.startReport(60_000);
+		final Snapshot snapshot = reservoir.getSnapshot();
+		assertThat(snapshot.size()).isEqualTo(2);
+		assertThat(snapshot.getMin()).isEqualTo(1);
+		assertThat(snapshot.getMax()).isEqualTo(2);
+	}
+
+	@Test
+	public void testIntervalIsDerivedFromClockWithoutScheduledReports() throws Exception {
+		final SnapshotCoordinator snapshotCoordinator = new SnapshotCoordinator(1, TimeUnit.MINUTES, clock);
+		final HdrHistogramReservoir reservoir = new HdrHistogramReservoir(snapshotCoordinator);
+		snapshotCoordinator.startReport(60_000);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+		reservoir.update(1);
+
+		// the reporter has been stopped
+		when(clock.getTime()).thenReturn(120_000L);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+		when(clock.getTime()).thenReturn(180_000L);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testEmptySnapshot() throws Exception {
+		final Snapshot snapshot = reservoir.getSnapshot();
+		assertThat(snapshot.size()).isEqualTo(0);
+		assertThat(snapshot.getMean()).isEqualTo(0);
+		assertThat(snapshot.getMax()).isEqualTo(0);
+		assertThat(snapshot.getValues()).isEmpty();
+	}
+
+	@Test
+	public void testIgnoresNegativeValues() throws Exception {
+		reservoir.update(-1);
+		when(clock.getTime()).thenReturn(120_000L);
+		assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testRegistryCreatesTimersWithConfiguredReservoir() throws Exception {
+		final Metric2Registry registry = new Metric2Registry();
+		registry.setReservoirType(ReservoirType.HDR_HISTOGRAM, 1, TimeUnit.MINUTES);
+		final Timer timer = registry.timer(MetricName.name("test").build());
+		timer.update(1, TimeUnit.MILLISECONDS);
+
+		assertThat(timer.getCount()).isEqualTo(1);
+		assertThat(timer.getSnapshot()).isInstanceOf(HdrHistogramReservoir.HdrHistogramSnapshot.class);
+	}
+}
@@ -0,0 +1,82 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+
+public class InfluxDbLineProtocolWriterTest {
+
+	private static final byte[] PREFIX = "test ".getBytes(InfluxDbLineProtocolWriter.UTF_8);
+	private static final byte[] VALUE = "value=".getBytes(InfluxDbLineProtocolWriter.UTF_8);
+
+	@Test
+	public void testDoubles() throws Exception {
+		assertThat(formatDouble(0)).isEqualTo("0.0");
+		assertThat(formatDouble(400)).isEqualTo("400.0");
+		assertThat(formatDouble(0.6)).isEqualTo("0.6");
+		assertThat(formatDouble(-12.5)).isEqualTo("-12.5");
+		assertThat(formatDouble(0.001)).isEqualTo("0.001");
+		assertThat(formatDouble(0.0123456)).isEqualTo("0.0123456");
+		assertThat(formatDouble(1234567.125)).isEqualTo("1234567.125");
+		assertThat(formatDouble(9999999.999999999)).isEqualTo("10000000.0");
+		assertThat(formatDouble(1.0 / 3)).isEqualTo("0.333333333333333");
+		assertThat(formatDouble(0.1 + 0.2)).isEqualTo("0.3");
+		assertThat(formatDouble(1e-8)).isEqualTo("1.0e-8");
+		assertThat(formatDouble(1.5e10)).isEqualTo("1.5e10");
+	}
+
+	@Test
+	public void testDoublesRoundTrip() throws Exception {
+		for (double value = 0.001; value < 1e7; value *= 1.37) {
+			assertThat(Double.parseDouble(formatDouble(value))).isCloseTo(value, withinPercentage(1e-10));
+		}
+	}
+
+	@Test
+	public void testLongs() throws Exception {
+		assertThat(formatLong(0)).isEqualTo("0");
+		assertThat(formatLong(-42)).isEqualTo("-42");
+		assertThat(formatLong(Long.MAX_VALUE)).isEqualTo(Long.toString(Long.MAX_VALUE));
+		assertThat(formatLong(Long.MIN_VALUE)).isEqualTo(Long.toString(Long.MIN_VALUE));
+	}
+
+	@Test
+	public void testLine() throws Exception {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		// small buffer to test flushing
+		final InfluxDbLineProtocolWriter writer = new InfluxDbLineProtocolWriter(8);
+		writer.setOutputStream(os);
+		writer.startLine(PREFIX);
+		writer.integerField("count=".getBytes(InfluxDbLineProtocolWriter.UTF_8), 1);
+		writer.doubleField("nan=".getBytes(InfluxDbLineProtocolWriter.UTF_8), Double.NaN);
+		writer.stringField("string=".getBytes(InfluxDbLineProtocolWriter.UTF_8), "f\"oö");
+		writer.booleanField("boolean=".getBytes(InfluxDbLineProtocolWriter.UTF_8), true);
+		writer.endLine(1234);
+		writer.flush();
+		assertThat(os.toString("UTF-8")).isEqualTo("test count=1i,string=\"f\\\"oö\",boolean=true 1234\n");
+	}
+
+	private String formatDouble(double value) throws IOException {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final InfluxDbLineProtocolWriter writer = new InfluxDbLineProtocolWriter(64);
+		writer.setOutputStream(os);
+		writer.startLine(PREFIX);
+		writer.doubleField(VALUE, value);
+		writer.flush();
+		return os.toString("UTF-8").substring("test value=".length());
+	}
+
+	private String formatLong(long value) throws IOException {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final InfluxDbLineProtocolWriter writer = new InfluxDbLineProtocolWriter(64);
+		writer.setOutputStream(os);
+		writer.startLine(PREFIX);
+		writer.longField(VALUE, value);
+		writer.flush();
+		return os.toString("UTF-8").substring("test value=".length());
+	}
+}
@@ -9,19 +9,29 @@ import com.codahale.metrics.Timer;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.http.HttpRequest;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.format;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static org.junit.Assert.assertEquals;
-import static org.mockito.Matchers.eq;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.counter;
@@ -37,19 +47,23 @@ public class InfluxDbReporterTest {
 	private static final TimeUnit DURATION_UNIT = TimeUnit.MICROSECONDS;
 
 	private InfluxDbReporter influxDbReporter;
+	private Metric2Registry registry;
 	private HttpClient httpClient;
+	private CorePlugin corePlugin;
+	private Clock clock;
 	private long timestamp;
 
 	@Before
 	public void setUp() throws Exception {
 		httpClient = mock(HttpClient.class);
-		Clock clock = mock(Clock.class);
+		clock = mock(Clock.class);
 		timestamp = System.currentTimeMillis();
 		when(clock.getTime()).thenReturn(timestamp);
-		final CorePlugin corePlugin = mock(CorePlugin.class);
+		corePlugin = mock(CorePlugin.class);
 		when(corePlugin.getInfluxDbUrl()).thenReturn(new URL("http://localhost:8086"));
 		when(corePlugin.getInfluxDbDb()).thenReturn("stm");
-		influxDbReporter = InfluxDbReporter.forRegistry(new Metric2Registry(), corePlugin)
+		registry = new Metric2Registry();
+		influxDbReporter = InfluxDbReporter.forRegistry(registry, corePlugin)
 				.convertRatesTo(TimeUnit.SECONDS)
 				.convertDurationsTo(DURATION_UNIT)
 				.globalTags(singletonMap("app", "test"))
@@ -67,8 +81,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("cpu_usage,core=1,type=user,app=test value=3 %d", timestamp))));
+		assertEquals(singletonList(format("cpu_usage,core=1,type=user,app=test value=3 %d", timestamp)), getReportedLines());
 	}
 
 	@Test
@@ -80,8 +93,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(Collections.emptyList()));
+		assertEquals(Collections.emptyList(), getReportedLines());
 	}
 
 	@Test
@@ -93,8 +105,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("gauge,app=test value_boolean=true %d", timestamp))));
+		assertEquals(singletonList(format("gauge,app=test value_boolean=true %d", timestamp)), getReportedLines());
 	}
 
 	@Test
@@ -106,8 +117,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("gauge,app=test value_string=\"foo\" %d", timestamp))));
+		assertEquals(singletonList(format("gauge,app=test value_string=\"foo\" %d", timestamp)), getReportedLines());
 	}
 
 	@Test
@@ -119,8 +129,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("cpu_usage,core=1,type=user,app=test value=1.0e-8 %d", timestamp))));
+		assertEquals(singletonList(format("cpu_usage,core=1,type=user,app=test value=1.0e-8 %d", timestamp)), getReportedLines());
 	}
 
 	@Test
@@ -132,8 +141,71 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("web_sessions,app=test count=123i %d", timestamp))));
+		assertEquals(singletonList(format("web_sessions,app=test count=123i %d", timestamp)), getReportedLines());
+	}
+
+	@Test
+	public void testReportStreamsMetricsOfRegistry() throws Exception {
+		registry.counter(name("web_sessions").build()).inc(123);
+
+		influxDbReporter.report();
+
+		assertTrue(getReportedLines().contains(format("web_sessions,app=test count=123i %d", timestamp)));
+	}
+
+	@Test
+	public void testReportNaNTimerValues() throws Exception {
+		influxDbReporter.reportMetrics(
+				metricNameMap(Gauge.class),
+				metricNameMap(Counter.class),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(name("response_time").build(), timer(Double.NaN)));
+
+		assertEquals(singletonList(format("response_time,app=test count=1i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0,min=0.4,max=0.2,p50=0.6,std=0.5,p25=0.0,p75=0.7,p95=0.8,p98=0.9,p99=1.0,p999=1.1 %d", timestamp)), getReportedLines());
+	}
+
+	@Test
+	public void testSkipReportWhilePreviousReportIsInFlight() throws Exception {
+		final CompletableFuture<Object> inFlight = new CompletableFuture<Object>();
+		when(httpClient.sendAsync(any())).thenReturn(inFlight);
+
+		influxDbReporter.report();
+		influxDbReporter.report();
+		verify(httpClient, times(1)).sendAsync(any());
+
+		inFlight.complete(null);
+		influxDbReporter.report();
+		verify(httpClient, times(2)).sendAsync(any());
+	}
+
+	@Test
+	public void testRejectedReportIsSkipped() throws Exception {
+		when(httpClient.sendAsync(any())).thenThrow(new RejectedExecutionException());
+
+		influxDbReporter.report();
+		influxDbReporter.report();
+
+		verify(httpClient, times(2)).sendAsync(any());
+	}
+
+	private HttpRequest getRequest() {
+		final ArgumentCaptor<HttpRequest> request = ArgumentCaptor.forClass(HttpRequest.class);
+		verify(httpClient).sendAsync(request.capture());
+		assertEquals("POST", request.getValue().getMethod());
+		assertEquals("http://localhost:8086/write?precision=ms&db=stm", request.getValue().getUrl());
+		return request.getValue();
+	}
+
+	private List<String> getReportedLines() throws IOException {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		getRequest().getOutputStreamHandler().withHttpURLConnection(os);
+		final String body = os.toString("UTF-8");
+		if (body.isEmpty()) {
+			return Collections.emptyList();
+		}
+		assertTrue(body.endsWith("\n"));
+		return Arrays.asList(body.split("\n"));
 	}
 
 	@Test
@@ -145,8 +217,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("histogram,app=test count=1i,min=400,max=200,mean=400.0,p50=600.0,std=500.0,p25=0.0,p75=700.0,p95=800.0,p98=900.0,p99=1000.0,p999=1100.0 %d", timestamp))));
+		assertEquals(singletonList(format("histogram,app=test count=1i,min=400,max=200,mean=400.0,p50=600.0,std=500.0,p25=0.0,p75=700.0,p95=800.0,p98=900.0,p99=1000.0,p999=1100.0 %d", timestamp)), getReportedLines());
 	}
 
 	@Test
@@ -158,8 +229,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(name("meter").build(), meter(10)),
 				metricNameMap(Timer.class));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("meter,app=test count=10i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0 %d", timestamp))));
+		assertEquals(singletonList(format("meter,app=test count=10i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0 %d", timestamp)), getReportedLines());
 	}
 
 	@Test
@@ -171,8 +241,7 @@ public class InfluxDbReporterTest {
 				metricNameMap(Meter.class),
 				metricNameMap(name("response_time").build(), timer(400)));
 
-		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
-				eq(singletonList(format("response_time,app=test count=1i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0,min=0.4,max=0.2,mean=0.4,p50=0.6,std=0.5,p25=0.0,p75=0.7,p95=0.8,p98=0.9,p99=1.0,p999=1.1 %d", timestamp))));
+		assertEquals(singletonList(format("response_time,app=test count=1i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0,min=0.4,max=0.2,mean=0.4,p50=0.6,std=0.5,p25=0.0,p75=0.7,p95=0.8,p98=0.9,p99=1.0,p999=1.1 %d", timestamp)), getReportedLines());
 	}
 
 	@Test
@@ -1,13 +1,23 @@
 package org.stagemonitor.core.metrics.metrics2;
 
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import static org.junit.Assert.*;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.stagemonitor.core.metrics.MetricNameFilter;
 import org.mockito.Mockito;
 
 public class Metric2RegistryTest {
@@ -89,7 +99,256 @@ public class Metric2RegistryTest {
 		assertEquals(1, 		 stagemonitorEntry.getValue().getValue());
 	}
 
-	
+
+	@Test
+	public void testCardinalityLimit() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.setMaxSeriesPerMetricName(2);
+		final Timer timer1 = registry.timer(MetricName.name("response_time").operationName("1").operationType("http").build());
+		final Timer timer2 = registry.timer(MetricName.name("response_time").operationName("2").operationType("http").build());
+		final Timer timer3 = registry.timer(MetricName.name("response_time").operationName("3").operationType("http").build());
+		final Timer timer4 = registry.timer(MetricName.name("response_time").operationName("4").operationType("http").build());
+
+		assertNotSame(timer1, timer2);
+		assertSame(timer3, timer4);
+		assertSame(timer1, registry.timer(MetricName.name("response_time").operationName("1").operationType("http").build()));
+		assertSame(timer3, registry.getTimers().get(MetricName.name("response_time")
+				.operationName(Metric2Registry.OVERFLOW_OPERATION_NAME).build()));
+		assertEquals(3, registry.getTimers().size());
+		assertEquals(2, registry.getCounters().get(MetricName.name("metrics_cardinality_limit_exceeded")
+				.tag("metric_name", "response_time").build()).getCount());
+
+		// other metric names are not affected
+		registry.meter(MetricName.name("error_rate").operationName("3").build());
+		assertEquals(1, registry.getMeters().size());
+
+		// removing series frees up slots (the overflow series also counts towards the limit)
+		registry.remove(MetricName.name("response_time").operationName("1").operationType("http").build());
+		registry.remove(MetricName.name("response_time").operationName("2").operationType("http").build());
+		final Timer timer5 = registry.timer(MetricName.name("response_time").operationName("5").operationType("http").build());
+		assertNotSame(timer3, timer5);
+	}
+
+	@Test
+	public void testCardinalityLimitOtherTags() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.setMaxSeriesPerMetricName(2);
+		for (int i = 0; i < 100; i++) {
+			registry.meter(MetricName.name("requests").tag("url", "/" + i).build()).mark();
+			registry.counter(MetricName.name("hits").operationName("home").tag("url", "/" + i).build()).inc();
+		}
+
+		assertEquals(3, registry.getMeters().size());
+		assertEquals(98, registry.getMeters().get(MetricName.name("requests")
+				.operationName(Metric2Registry.OVERFLOW_OPERATION_NAME).build()).getCount());
+		assertEquals(98, registry.getCounters().get(MetricName.name("hits")
+				.operationName(Metric2Registry.OVERFLOW_OPERATION_NAME).build()).getCount());
+		assertEquals(98, registry.getCounters().get(MetricName.name("metrics_cardinality_limit_exceeded")
+				.tag("metric_name", "requests").build()).getCount());
+	}
+
+	@Test
+	public void testCardinalityLimitGauges() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.setMaxSeriesPerMetricName(2);
+		for (int i = 0; i < 10; i++) {
+			registry.registerNewMetrics(MetricName.name("queue_size").tag("queue", Integer.toString(i)).build(), getGauge());
+		}
+		registry.register(MetricName.name("queue_size").tag("queue", "10").build(), getGauge());
+
+		assertEquals(2, registry.getGauges().size());
+		assertEquals(9, registry.getCounters().get(MetricName.name("metrics_cardinality_limit_exceeded")
+				.tag("metric_name", "queue_size").build()).getCount());
+	}
+
+	@Test
+	public void testCardinalityLimitCountsEachRejectedSeriesOnce() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.setMaxSeriesPerMetricName(1);
+		registry.timer(MetricName.name("response_time").operationName("1").build());
+		for (int i = 0; i < 10; i++) {
+			registry.timer(MetricName.name("response_time").operationName("2").build()).update(1, TimeUnit.MILLISECONDS);
+		}
+
+		assertEquals(10, registry.getTimers().get(MetricName.name("response_time")
+				.operationName(Metric2Registry.OVERFLOW_OPERATION_NAME).build()).getCount());
+		assertEquals(1, registry.getCounters().get(MetricName.name("metrics_cardinality_limit_exceeded")
+				.tag("metric_name", "response_time").build()).getCount());
+	}
+
+	@Test
+	public void testCardinalityLimitConcurrentRegistrations() throws Exception {
+		final Metric2Registry registry = new Metric2Registry();
+		registry.setMaxSeriesPerMetricName(10);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100; i++) {
+					registry.timer(MetricName.name("response_time").operationName(thread + "-" + i).build());
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// the overflow series is the only one which may exceed the limit
+		assertEquals(11, registry.getTimers().size());
+	}
+
+	@Test
+	public void testEvictIdleMetrics() {
+		final Clock clock = Mockito.mock(Clock.class);
+		Mockito.when(clock.getTime()).thenReturn(0L);
+		Metric2Registry registry = new Metric2Registry(new MetricRegistry(), clock);
+		registry.setTimeToIdle(1, TimeUnit.MINUTES, Collections.singleton("response_time"));
+		final MetricName idle = MetricName.name("response_time").operationName("idle").build();
+		final MetricName active = MetricName.name("response_time").operationName("active").build();
+		final MetricName counter = MetricName.name("sessions").build();
+		final MetricName gauge = MetricName.name("online").build();
+		registry.timer(idle).update(1, TimeUnit.MILLISECONDS);
+		registry.timer(active).update(1, TimeUnit.MILLISECONDS);
+		registry.counter(counter).inc();
+		registry.register(gauge, getGauge());
+		assertEquals(0, registry.evictIdleMetrics());
+
+		Mockito.when(clock.getTime()).thenReturn(30_000L);
+		registry.timer(active).update(1, TimeUnit.MILLISECONDS);
+		assertEquals(0, registry.evictIdleMetrics());
+
+		Mockito.when(clock.getTime()).thenReturn(60_000L);
+		assertEquals(1, registry.evictIdleMetrics());
+		assertFalse(registry.getNames().contains(idle));
+		assertFalse(registry.getMetricRegistry().getNames().contains(idle.toGraphiteName()));
+		assertTrue(registry.getNames().contains(active));
+		assertTrue(registry.getNames().contains(counter));
+		assertTrue(registry.getNames().contains(gauge));
+		assertEquals(1, registry.counter(MetricName.name("metrics_evicted").build()).getCount());
+
+		// evicted metrics are re-created on demand
+		assertEquals(0, registry.timer(idle).getCount());
+
+		Mockito.when(clock.getTime()).thenReturn(90_000L);
+		assertEquals(1, registry.evictIdleMetrics());
+		assertFalse(registry.getNames().contains(active));
+	}
+
+	@Test
+	public void testOnlyEvictConfiguredMetricNames() {
+		final Clock clock = Mockito.mock(Clock.class);
+		Mockito.when(clock.getTime()).thenReturn(0L);
+		Metric2Registry registry = new Metric2Registry(new MetricRegistry(), clock);
+		registry.setTimeToIdle(1, TimeUnit.MINUTES, Collections.singleton("response_time"));
+		// like the timers of the Metric2RegistryStatsFactory, which are held by the jaeger client
+		final MetricName heldName = MetricName.name("jaeger_reporter_latency").build();
+		final Timer held = registry.timer(heldName);
+
+		Mockito.when(clock.getTime()).thenReturn(60_000L);
+		assertEquals(0, registry.evictIdleMetrics());
+		held.update(1, TimeUnit.MILLISECONDS);
+		assertSame(held, registry.timer(heldName));
+		assertEquals(1, registry.getTimers().get(heldName).getCount());
+	}
+
+	@Test
+	public void testUpdateOfEvictedHeldReferenceIsLost() {
+		final Clock clock = Mockito.mock(Clock.class);
+		Mockito.when(clock.getTime()).thenReturn(0L);
+		Metric2Registry registry = new Metric2Registry(new MetricRegistry(), clock);
+		registry.setTimeToIdle(1, TimeUnit.MINUTES, Collections.singleton("response_time"));
+		final MetricName name = MetricName.name("response_time").operationName("held").build();
+		final Timer held = registry.timer(name);
+
+		Mockito.when(clock.getTime()).thenReturn(60_000L);
+		assertEquals(1, registry.evictIdleMetrics());
+		held.update(1, TimeUnit.MILLISECONDS);
+
+		// this is why only metrics which are always looked up may be evicted
+		assertFalse(registry.getNames().contains(name));
+		assertNotSame(held, registry.timer(name));
+		assertEquals(0, registry.timer(name).getCount());
+	}
+
+	@Test
+	public void testVisit() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.register(MetricName.name("gauge").build(), getGauge());
+		registry.counter(MetricName.name("counter").build());
+		registry.histogram(MetricName.name("histogram").build());
+		registry.meter(MetricName.name("meter").build());
+		registry.timer(MetricName.name("timer").build());
+		registry.timer(MetricName.name("removed").build());
+		registry.remove(MetricName.name("removed").build());
+
+		final Metric2Visitor visitor = Mockito.mock(Metric2Visitor.class);
+		registry.visit(Metric2Filter.ALL, visitor);
+
+		final InOrder inOrder = Mockito.inOrder(visitor);
+		inOrder.verify(visitor).visitGauge(Mockito.eq(MetricName.name("gauge").build()), Mockito.<Gauge>any());
+		inOrder.verify(visitor).visitCounter(Mockito.eq(MetricName.name("counter").build()), Mockito.<Counter>any());
+		inOrder.verify(visitor).visitHistogram(Mockito.eq(MetricName.name("histogram").build()), Mockito.<Histogram>any());
+		inOrder.verify(visitor).visitMeter(Mockito.eq(MetricName.name("meter").build()), Mockito.<Meter>any());
+		inOrder.verify(visitor).visitTimer(Mockito.eq(MetricName.name("timer").build()), Mockito.<Timer>any());
+		Mockito.verifyNoMoreInteractions(visitor);
+
+		assertEquals(1, registry.getTimers().size());
+		assertEquals(1, registry.getGauges().size());
+	}
+
+	@Test
+	public void testVisitWithFilter() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.timer(MetricName.name("timer").tag("foo", "bar").build());
+		registry.timer(MetricName.name("timer").tag("foo", "baz").build());
+
+		final Metric2Visitor visitor = Mockito.mock(Metric2Visitor.class);
+		registry.visit(MetricNameFilter.includePatterns(MetricName.name("timer").tag("foo", "bar").build()), visitor);
+
+		Mockito.verify(visitor).visitTimer(Mockito.eq(MetricName.name("timer").tag("foo", "bar").build()), Mockito.<Timer>any());
+		Mockito.verifyNoMoreInteractions(visitor);
+	}
+
+	@Test
+	public void testLegacyMirroringOff() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.timer(MetricName.name("before").build());
+		registry.setLegacyMirroringMode(LegacyMirroringMode.OFF);
+		registry.timer(MetricName.name("after").build());
+
+		assertEquals(2, registry.getTimers().size());
+		assertTrue(registry.getMetricRegistry().getNames().isEmpty());
+		assertTrue(registry.remove(MetricName.name("after").build()));
+	}
+
+	@Test
+	public void testLegacyMirroringLazy() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.setLegacyMirroringMode(LegacyMirroringMode.LAZY);
+		registry.timer(MetricName.name("test").tag("foo", "1").build());
+		registry.timer(MetricName.name("test").tag("foo", "2").build());
+		registry.remove(MetricName.name("test").tag("foo", "2").build());
+
+		final MetricRegistry legacyRegistry = registry.getMetricRegistry();
+		assertEquals(1, legacyRegistry.getTimers().size());
+		assertTrue(legacyRegistry.getNames().contains(MetricName.name("test").tag("foo", "1").build().toGraphiteName()));
+
+		// once the legacy registry has been requested, new metrics are mirrored immediately
+		registry.meter(MetricName.name("meter").build());
+		assertEquals(1, legacyRegistry.getMeters().size());
+		registry.remove(MetricName.name("meter").build());
+		assertEquals(0, legacyRegistry.getMeters().size());
+	}
+
+	@Test
+	public void testIdleMetricsAreNotEvictedByDefault() {
+		Metric2Registry registry = new Metric2Registry();
+		registry.timer(MetricName.name("response_time").build());
+		assertEquals(0, registry.evictIdleMetrics());
+		assertEquals(1, registry.getTimers().size());
+	}
+
 	//
 	// Helper ones
 	//
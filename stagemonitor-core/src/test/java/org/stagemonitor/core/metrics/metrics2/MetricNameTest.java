@@ -1,10 +1,15 @@
 package org.stagemonitor.core.metrics.metrics2;
 
 import org.junit.Test;
+import org.stagemonitor.core.util.JsonUtils;
+
+import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 public class MetricNameTest {
@@ -91,4 +96,55 @@ public class MetricNameTest {
 		final MetricName.MetricNameTemplate metricNameTemplate = name("foo").tag("bar", "").tag("qux", "quux").templateFor("bar", "qux");
 		metricNameTemplate.build(null, null);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testTemplateThreeValues() {
+		final MetricName.MetricNameTemplate metricNameTemplate = name("foo").templateFor("bar", "qux", "quux");
+		assertEquals(name("foo").tag("bar", "a").tag("qux", "b").tag("quux", "c").build(), metricNameTemplate.build("a", "b", "c"));
+		assertSame(metricNameTemplate.build("a", "b", "c"), metricNameTemplate.build("a", "b", "c"));
+		assertSame(metricNameTemplate.build("a", "b", "c"), metricNameTemplate.build(new String[]{"a", "b", "c"}));
+		assertNotEquals(metricNameTemplate.build("a", "b", "c"), metricNameTemplate.build("a", "b", "d"));
+		assertSame(metricNameTemplate.build("a", null, "c"), metricNameTemplate.build("a", null, "c"));
+	}
+
+	@Test
+	public void testTemplateFourValues() {
+		final MetricName.MetricNameTemplate metricNameTemplate = name("foo").templateFor("a", "b", "c", "d");
+		assertEquals(name("foo").tag("a", "1").tag("b", "2").tag("c", "3").tag("d", "4").build(), metricNameTemplate.build("1", "2", "3", "4"));
+		assertSame(metricNameTemplate.build("1", "2", "3", "4"), metricNameTemplate.build("1", "2", "3", "4"));
+	}
+
+	@Test
+	public void testTagOrder() {
+		final MetricName metricName = name("foo").tag("b", "1").tag("a", "2").tag("b", "3").build();
+		assertEquals(Arrays.asList("b", "a"), metricName.getTagKeys());
+		assertEquals(Arrays.asList("3", "2"), metricName.getTagValues());
+		assertEquals("foo.3.2", metricName.toGraphiteName());
+		assertEquals("{b=3, a=2}", metricName.getTags().toString());
+		assertEquals("2", metricName.getTags().get("a"));
+		assertSame(metricName.getTagKeys(), metricName.getTagKeys());
+	}
+
+	@Test
+	public void testWithTag() {
+		final MetricName metricName = name("foo").tag("bar", "baz").build();
+		assertEquals(name("foo").tag("bar", "baz").tag("qux", "quux").build(), metricName.withTag("qux", "quux"));
+		assertEquals(name("foo").tag("bar", "qux").build(), metricName.withTag("bar", "qux"));
+	}
+
+	@Test
+	public void testMatches() {
+		final MetricName metricName = name("foo").tag("bar", "baz").tag("qux", "quux").build();
+		assertTrue(metricName.matches(name("foo").tag("qux", "quux").build()));
+		assertFalse(metricName.matches(name("foo").tag("qux", "baz").build()));
+		assertFalse(metricName.matches(name("bar").build()));
+	}
+
+	@Test
+	public void testJsonRoundTrip() throws Exception {
+		final MetricName metricName = name("foo").tag("bar", "baz").tag("qux", "quux").build();
+		final String json = JsonUtils.toJson(metricName);
+		assertEquals("{\"name\":\"foo\",\"tags\":{\"bar\":\"baz\",\"qux\":\"quux\"}}", json);
+		assertEquals(metricName, JsonUtils.getMapper().readValue(json, MetricName.class));
+	}
+}
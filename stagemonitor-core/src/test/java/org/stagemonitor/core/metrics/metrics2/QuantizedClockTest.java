@@ -28,4 +28,13 @@ public class QuantizedClockTest {
 		when(delegate.getTime()).thenReturn(1000L);
 		assertEquals(1000, new QuantizedClock(delegate, 100).getTime());
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void getIntervalStart() throws Exception {
+		assertEquals(1000, QuantizedClock.getIntervalStart(1000, 100));
+		assertEquals(1000, QuantizedClock.getIntervalStart(1049, 100));
+		assertEquals(1000, QuantizedClock.getIntervalStart(1050, 100));
+		assertEquals(1000, QuantizedClock.getIntervalStart(1099, 100));
+		assertEquals(1100, QuantizedClock.getIntervalStart(1100, 100));
+	}
+}
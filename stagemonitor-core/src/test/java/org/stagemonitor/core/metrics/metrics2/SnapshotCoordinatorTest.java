@@ -0,0 +1,142 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SnapshotCoordinatorTest {
+
+	private Clock clock;
+	private SnapshotCoordinator snapshotCoordinator;
+
+	@Before
+	public void setUp() throws Exception {
+		clock = mock(Clock.class);
+		when(clock.getTime()).thenReturn(60_000L);
+		snapshotCoordinator = new SnapshotCoordinator(1, TimeUnit.MINUTES, clock);
+	}
+
+	@Test
+	public void testSnapshotIsComputedOncePerTick() throws Exception {
+		snapshotCoordinator.addReporter(60_000);
+		snapshotCoordinator.addReporter(60_000);
+		final Timer timer = spy(new Timer());
+		timer.update(1, TimeUnit.MILLISECONDS);
+
+		snapshotCoordinator.startReport(60_000);
+		final Snapshot snapshot = snapshotCoordinator.getSnapshot(timer, 60_000);
+		timer.update(2, TimeUnit.MILLISECONDS);
+		when(clock.getTime()).thenReturn(60_005L);
+		snapshotCoordinator.startReport(60_000);
+		assertThat(snapshotCoordinator.getSnapshot(timer, 60_000)).isSameAs(snapshot);
+		verify(timer, times(1)).getSnapshot();
+
+		when(clock.getTime()).thenReturn(119_995L);
+		snapshotCoordinator.startReport(60_000);
+		final Snapshot nextSnapshot = snapshotCoordinator.getSnapshot(timer, 60_000);
+		assertThat(nextSnapshot).isNotSameAs(snapshot);
+		assertThat(nextSnapshot.size()).isEqualTo(2);
+	}
+
+	@Test
+	public void testSnapshotsAreKeyedByReportingInterval() throws Exception {
+		snapshotCoordinator.addReporter(60_000);
+		snapshotCoordinator.addReporter(60_000);
+		snapshotCoordinator.addReporter(10_000);
+		snapshotCoordinator.addReporter(10_000);
+		final Timer timer = new Timer();
+
+		snapshotCoordinator.startReport(60_000);
+		final Snapshot snapshot = snapshotCoordinator.getSnapshot(timer, 60_000);
+		timer.update(1, TimeUnit.MILLISECONDS);
+		when(clock.getTime()).thenReturn(70_000L);
+		snapshotCoordinator.startReport(10_000);
+
+		assertThat(snapshotCoordinator.getSnapshot(timer, 10_000).size()).isEqualTo(1);
+		assertThat(snapshotCoordinator.getSnapshot(timer, 60_000)).isSameAs(snapshot);
+	}
+
+	@Test
+	public void testSnapshotIsNotCachedForSingleReporter() throws Exception {
+		snapshotCoordinator.addReporter(60_000);
+		final Timer timer = spy(new Timer());
+
+		snapshotCoordinator.startReport(60_000);
+		snapshotCoordinator.getSnapshot(timer, 60_000);
+		snapshotCoordinator.getSnapshot(timer, 60_000);
+		verify(timer, times(2)).getSnapshot();
+	}
+
+	@Test
+	public void testSnapshotIsNotCachedForUnscheduledCaller() throws Exception {
+		snapshotCoordinator.addReporter(60_000);
+		snapshotCoordinator.addReporter(60_000);
+		final Timer timer = spy(new Timer());
+
+		snapshotCoordinator.startReport(60_000);
+		snapshotCoordinator.getSnapshot(timer, 0);
+		snapshotCoordinator.getSnapshot(timer, 0);
+		verify(timer, times(2)).getSnapshot();
+	}
+
+	@Test
+	public void testSnapshotsAreDiscardedWhenReporterIsRemoved() throws Exception {
+		snapshotCoordinator.addReporter(60_000);
+		snapshotCoordinator.addReporter(60_000);
+		final Timer timer = spy(new Timer());
+		snapshotCoordinator.startReport(60_000);
+		snapshotCoordinator.getSnapshot(timer, 60_000);
+
+		snapshotCoordinator.removeReporter(60_000);
+		snapshotCoordinator.getSnapshot(timer, 60_000);
+		verify(timer, times(2)).getSnapshot();
+	}
+
+	@Test
+	public void testSnapshotsOfDifferentMetrics() throws Exception {
+		snapshotCoordinator.addReporter(60_000);
+		snapshotCoordinator.addReporter(60_000);
+		snapshotCoordinator.startReport(60_000);
+		final Timer timer1 = new Timer();
+		final Timer timer2 = new Timer();
+		timer1.update(1, TimeUnit.MILLISECONDS);
+
+		assertThat(snapshotCoordinator.getSnapshot(timer1, 60_000).size()).isEqualTo(1);
+		assertThat(snapshotCoordinator.getSnapshot(timer2, 60_000).size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testOffScheduleSnapshotOfHdrHistogramIsNotCachedForNextTick() throws Exception {
+		final Metric2Registry registry = new Metric2Registry(new MetricRegistry(), clock);
+		registry.setReservoirType(ReservoirType.HDR_HISTOGRAM, 1, TimeUnit.MINUTES);
+		final SnapshotCoordinator coordinator = registry.getSnapshotCoordinator();
+		coordinator.addReporter(60_000);
+		coordinator.addReporter(60_000);
+		final Timer timer = registry.timer(MetricName.name("test").build());
+		coordinator.startReport(60_000);
+		assertThat(coordinator.getSnapshot(timer, 60_000).size()).isEqualTo(0);
+
+		timer.update(1, TimeUnit.MILLISECONDS);
+		// for example the console reporter
+		when(clock.getTime()).thenReturn(119_000L);
+		assertThat(coordinator.getSnapshot(timer, 0).size()).isEqualTo(0);
+		timer.update(2, TimeUnit.MILLISECONDS);
+
+		when(clock.getTime()).thenReturn(120_000L);
+		coordinator.startReport(60_000);
+		assertThat(coordinator.getSnapshot(timer, 60_000).size()).isEqualTo(2);
+	}
+}
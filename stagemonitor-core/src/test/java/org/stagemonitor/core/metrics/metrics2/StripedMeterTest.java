@@ -0,0 +1,68 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StripedMeterTest {
+
+	private Clock clock;
+	private Meter meter;
+	private StripedMeter stripedMeter;
+
+	@Before
+	public void setUp() throws Exception {
+		clock = mock(Clock.class);
+		when(clock.getTick()).thenReturn(0L);
+		meter = new Meter(clock);
+		stripedMeter = new StripedMeter(clock);
+	}
+
+	@Test
+	public void testNoEvents() throws Exception {
+		assertSameValues();
+		assertThat(stripedMeter.getCount()).isZero();
+		assertThat(stripedMeter.getMeanRate()).isZero();
+	}
+
+	@Test
+	public void testMarkZeroIsNoOp() throws Exception {
+		stripedMeter.mark(0);
+		assertThat(stripedMeter.getCount()).isZero();
+	}
+
+	@Test
+	public void testRatesAreEqualToDropwizardMeter() throws Exception {
+		for (int second = 0; second < 600; second++) {
+			when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(second));
+			final int events = second % 7;
+			for (int i = 0; i < events; i++) {
+				meter.mark();
+				stripedMeter.mark();
+			}
+			meter.mark(second % 3);
+			stripedMeter.mark(second % 3);
+			assertSameValues();
+		}
+		// no events for some time
+		when(clock.getTick()).thenReturn(TimeUnit.SECONDS.toNanos(900));
+		assertSameValues();
+	}
+
+	private void assertSameValues() {
+		assertThat(stripedMeter.getCount()).isEqualTo(meter.getCount());
+		assertThat(stripedMeter.getOneMinuteRate()).isCloseTo(meter.getOneMinuteRate(), offset(1e-9));
+		assertThat(stripedMeter.getFiveMinuteRate()).isCloseTo(meter.getFiveMinuteRate(), offset(1e-9));
+		assertThat(stripedMeter.getFifteenMinuteRate()).isCloseTo(meter.getFifteenMinuteRate(), offset(1e-9));
+		assertThat(stripedMeter.getMeanRate()).isCloseTo(meter.getMeanRate(), offset(1e-9));
+	}
+}
@@ -3,10 +3,18 @@ package org.stagemonitor.core.util;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.junit.Test;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.util.http.HttpRequestBuilder;
 import org.stagemonitor.core.util.http.StatusCodeResponseHandler;
+import org.stagemonitor.util.IOUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -65,4 +73,127 @@ public class HttpClientTest extends AbstractEmbeddedServerTest {
 				})
 				.build());
 	}
+
+	@Test
+	public void testCompressRequestBody() throws Exception {
+		final String[] received = new String[3];
+		startWithHandler(new RequestBodyCapturingHandler(received));
+		final Metric2Registry metricRegistry = new Metric2Registry();
+		httpClient = new HttpClient(6, 10, 4, metricRegistry);
+		final String body = "{\"foo\":\"bar\"}{\"foo\":\"bar\"}{\"foo\":\"bar\"}";
+
+		assertEquals(Integer.valueOf(200), httpClient.send(HttpRequestBuilder.<Integer>forUrl("http://localhost:" + getPort())
+				.method("POST")
+				.body(body)
+				.successHandler(new StatusCodeResponseHandler()).build()));
+
+		assertThat(received[0]).isEqualTo("gzip");
+		assertThat(received[1]).isNull();
+		assertThat(received[2]).isEqualTo(body);
+		assertThat(metricRegistry.counter(HttpClient.RAW_REQUEST_BYTES).getCount()).isEqualTo(body.length());
+		assertThat(metricRegistry.counter(HttpClient.COMPRESSED_REQUEST_BYTES).getCount()).isPositive();
+	}
+
+	@Test
+	public void testDontCompressSmallRequestBody() throws Exception {
+		final String[] received = new String[3];
+		startWithHandler(new RequestBodyCapturingHandler(received));
+		final Metric2Registry metricRegistry = new Metric2Registry();
+		httpClient = new HttpClient(6, 1024, 4, metricRegistry);
+
+		httpClient.send(HttpRequestBuilder.<Integer>forUrl("http://localhost:" + getPort())
+				.method("POST")
+				.body("{\"foo\":\"bar\"}")
+				.successHandler(new StatusCodeResponseHandler()).build());
+
+		assertThat(received[0]).isNull();
+		assertThat(received[1]).isEqualTo("13");
+		assertThat(received[2]).isEqualTo("{\"foo\":\"bar\"}");
+		assertThat(metricRegistry.counter(HttpClient.RAW_REQUEST_BYTES).getCount()).isEqualTo(13);
+		assertThat(metricRegistry.counter(HttpClient.COMPRESSED_REQUEST_BYTES).getCount()).isEqualTo(13);
+	}
+
+	@Test
+	public void testDontCompressRequestBodyWithContentEncoding() throws Exception {
+		final String[] received = new String[3];
+		startWithHandler(new RequestBodyCapturingHandler(received));
+		httpClient = new HttpClient(6, 0, 4, null);
+
+		httpClient.send(HttpRequestBuilder.<Integer>forUrl("http://localhost:" + getPort())
+				.method("POST")
+				.addHeader("Content-Encoding", "identity")
+				.body("{\"foo\":\"bar\"}")
+				.successHandler(new StatusCodeResponseHandler()).build());
+
+		assertThat(received[0]).isEqualTo("identity");
+		assertThat(received[2]).isEqualTo("{\"foo\":\"bar\"}");
+	}
+
+	@Test
+	public void testSendAsync() throws Exception {
+		startWithHandler(new RequestBodyCapturingHandler(new String[3]));
+
+		final Future<Integer> future = httpClient.sendAsync(HttpRequestBuilder.<Integer>forUrl("http://localhost:" + getPort())
+				.successHandler(new StatusCodeResponseHandler()).build());
+
+		assertEquals(Integer.valueOf(200), future.get(10, TimeUnit.SECONDS));
+		httpClient.close();
+	}
+
+	@Test
+	public void testRejectAsyncRequestsWhenTooManyInFlight() throws Exception {
+		final CountDownLatch blockResponse = new CountDownLatch(1);
+		startWithHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				baseRequest.setHandled(true);
+				try {
+					blockResponse.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		final Metric2Registry metricRegistry = new Metric2Registry();
+		httpClient = new HttpClient(0, 0, 1, metricRegistry);
+		final String url = "http://localhost:" + getPort();
+
+		final Future<Integer> future = httpClient.sendAsync(HttpRequestBuilder.<Integer>forUrl(url)
+				.successHandler(new StatusCodeResponseHandler()).build());
+		assertThat(httpClient.getInFlightRequests(url)).isEqualTo(1);
+		try {
+			httpClient.sendAsync(HttpRequestBuilder.<Integer>forUrl(url).build());
+			fail();
+		} catch (RejectedExecutionException e) {
+			assertThat(metricRegistry.counter(HttpClient.REJECTED_ASYNC_REQUESTS).getCount()).isEqualTo(1);
+		}
+
+		blockResponse.countDown();
+		assertEquals(Integer.valueOf(200), future.get(10, TimeUnit.SECONDS));
+		assertThat(httpClient.getInFlightRequests(url)).isEqualTo(0);
+		httpClient.close();
+	}
+
+	/**
+	 * Captures the Content-Encoding, the Content-Length and the decompressed body of the request
+	 */
+	private static class RequestBodyCapturingHandler extends AbstractHandler {
+		private final String[] received;
+
+		private RequestBodyCapturingHandler(String[] received) {
+			this.received = received;
+		}
+
+		@Override
+		public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			received[0] = request.getHeader("Content-Encoding");
+			received[1] = request.getHeader("Content-Length");
+			InputStream inputStream = request.getInputStream();
+			if ("gzip".equals(received[0])) {
+				inputStream = new GZIPInputStream(inputStream);
+			}
+			received[2] = new String(IOUtils.readToBytes(inputStream), "UTF-8");
+		}
+	}
 }
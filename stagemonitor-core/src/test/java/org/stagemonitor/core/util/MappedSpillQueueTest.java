@@ -0,0 +1,99 @@
+package org.stagemonitor.core.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappedSpillQueueTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testFifo() throws Exception {
+		final MappedSpillQueue queue = new MappedSpillQueue(temporaryFolder.getRoot(), 64, 1024);
+		assertThat(queue.isEmpty()).isTrue();
+		for (int i = 0; i < 10; i++) {
+			assertThat(queue.offer(("record" + i).getBytes("UTF-8"))).isTrue();
+		}
+		for (int i = 0; i < 10; i++) {
+			assertThat(new String(queue.peek(), "UTF-8")).isEqualTo("record" + i);
+			queue.remove();
+		}
+		assertThat(queue.peek()).isNull();
+		assertThat(temporaryFolder.getRoot().listFiles()).hasSize(1);
+	}
+
+	@Test
+	public void testRejectWhenFull() throws Exception {
+		final MappedSpillQueue queue = new MappedSpillQueue(temporaryFolder.getRoot(), 64, 128);
+		int offered = 0;
+		while (queue.offer("0123456789".getBytes("UTF-8"))) {
+			offered++;
+		}
+		// two segments with 60 usable bytes each fit 4 records of 14 bytes
+		assertThat(offered).isEqualTo(8);
+
+		queue.peek();
+		queue.remove();
+		assertThat(queue.offer("0123456789".getBytes("UTF-8"))).isFalse();
+		for (int i = 0; i < 4; i++) {
+			queue.remove();
+		}
+		assertThat(queue.offer("0123456789".getBytes("UTF-8"))).isTrue();
+	}
+
+	@Test
+	public void testRejectRecordLargerThanSegment() throws Exception {
+		final MappedSpillQueue queue = new MappedSpillQueue(temporaryFolder.getRoot(), 64, 1024);
+		assertThat(queue.offer(new byte[100])).isFalse();
+		assertThat(queue.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testDeletesSegmentsWhichHaveBeenRead() throws Exception {
+		final MappedSpillQueue queue = new MappedSpillQueue(temporaryFolder.getRoot(), 64, 1024);
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 10; i++) {
+				assertThat(queue.offer(("record" + i).getBytes("UTF-8"))).isTrue();
+			}
+			for (int i = 0; i < 10; i++) {
+				assertThat(new String(queue.peek(), "UTF-8")).isEqualTo("record" + i);
+				queue.remove();
+			}
+			assertThat(queue.isEmpty()).isTrue();
+			assertThat(temporaryFolder.getRoot().listFiles()).hasSize(1);
+		}
+		queue.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectZeroSegmentSize() throws Exception {
+		new MappedSpillQueue(temporaryFolder.getRoot(), 0, 0);
+	}
+
+	@Test
+	public void testRecoverAfterRestart() throws Exception {
+		final File directory = temporaryFolder.getRoot();
+		MappedSpillQueue queue = new MappedSpillQueue(directory, 64, 1024);
+		for (int i = 0; i < 10; i++) {
+			queue.offer(("record" + i).getBytes("UTF-8"));
+		}
+		queue.remove();
+		queue.remove();
+		queue.close();
+
+		queue = new MappedSpillQueue(directory, 64, 1024);
+		assertThat(new String(queue.peek(), "UTF-8")).isEqualTo("record2");
+		queue.offer("record10".getBytes("UTF-8"));
+		for (int i = 2; i <= 10; i++) {
+			assertThat(new String(queue.peek(), "UTF-8")).isEqualTo("record" + i);
+			queue.remove();
+		}
+		assertThat(queue.isEmpty()).isTrue();
+	}
+}
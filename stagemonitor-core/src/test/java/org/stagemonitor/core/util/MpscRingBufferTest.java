@@ -0,0 +1,221 @@
+package org.stagemonitor.core.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class MpscRingBufferTest {
+
+	private final MpscRingBuffer<LongEvent> ringBuffer = newRingBuffer(4);
+
+	@Test
+	public void testCapacityIsRoundedUpToPowerOfTwo() throws Exception {
+		assertThat(newRingBuffer(1000).getCapacity()).isEqualTo(1024);
+		assertThat(newRingBuffer(1024).getCapacity()).isEqualTo(1024);
+	}
+
+	@Test
+	public void testDrainInOrder() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			offer(i);
+		}
+		final List<Long> values = new ArrayList<Long>();
+		assertThat(ringBuffer.drain(collectTo(values), 2)).isEqualTo(2);
+		assertThat(ringBuffer.drain(collectTo(values), 10)).isEqualTo(1);
+		assertThat(ringBuffer.drain(collectTo(values), 10)).isEqualTo(0);
+		assertThat(values).containsExactly(0L, 1L, 2L);
+	}
+
+	@Test
+	public void testFull() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			assertThat(offer(i)).isTrue();
+		}
+		assertThat(ringBuffer.size()).isEqualTo(4);
+		assertThat(offer(4)).isFalse();
+
+		final List<Long> values = new ArrayList<Long>();
+		ringBuffer.drain(collectTo(values), 1);
+		assertThat(offer(4)).isTrue();
+		ringBuffer.drain(collectTo(values), 10);
+		assertThat(values).containsExactly(0L, 1L, 2L, 3L, 4L);
+	}
+
+	@Test
+	public void testUnpublishedEventsAreNotDrained() throws Exception {
+		final long sequence = ringBuffer.tryClaim();
+		offer(1);
+		final List<Long> values = new ArrayList<Long>();
+		assertThat(ringBuffer.drain(collectTo(values), 10)).isEqualTo(0);
+
+		ringBuffer.get(sequence).value = 0;
+		ringBuffer.publish(sequence);
+		assertThat(ringBuffer.drain(collectTo(values), 10)).isEqualTo(2);
+		assertThat(values).containsExactly(0L, 1L);
+	}
+
+	@Test
+	public void testExceptionInHandlerFreesSlot() throws Exception {
+		offer(0);
+		offer(1);
+		try {
+			ringBuffer.drain(new MpscRingBuffer.EventHandler<LongEvent>() {
+				@Override
+				public void onEvent(LongEvent event) {
+					throw new IllegalStateException();
+				}
+			}, 10);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		final List<Long> values = new ArrayList<Long>();
+		ringBuffer.drain(collectTo(values), 10);
+		assertThat(values).containsExactly(1L);
+	}
+
+	@Test
+	public void testMultipleProducers() throws Exception {
+		final MpscRingBuffer<LongEvent> ringBuffer = newRingBuffer(64);
+		final int producers = 4;
+		final int eventsPerProducer = 10_000;
+		final CountDownLatch done = new CountDownLatch(producers);
+		final AtomicInteger rejected = new AtomicInteger();
+		for (int i = 0; i < producers; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < eventsPerProducer; j++) {
+						final long sequence = ringBuffer.tryClaim();
+						if (sequence < 0) {
+							rejected.incrementAndGet();
+						} else {
+							ringBuffer.get(sequence).value = 1;
+							ringBuffer.publish(sequence);
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		final long[] sum = new long[1];
+		final MpscRingBuffer.EventHandler<LongEvent> handler = new MpscRingBuffer.EventHandler<LongEvent>() {
+			@Override
+			public void onEvent(LongEvent event) {
+				sum[0] += event.value;
+			}
+		};
+		while (done.getCount() > 0) {
+			ringBuffer.drain(handler, 16);
+		}
+		ringBuffer.drain(handler, Integer.MAX_VALUE);
+
+		assertThat(sum[0] + rejected.get()).isEqualTo(producers * eventsPerProducer);
+		assertThat(ringBuffer.size()).isZero();
+	}
+
+	@Test
+	public void testOfferUntilFull() throws Exception {
+		final MpscRingBuffer<Integer> ringBuffer = new MpscRingBuffer<Integer>(4);
+		for (int i = 0; i < 4; i++) {
+			assertThat(ringBuffer.offer(i)).isTrue();
+		}
+		assertThat(ringBuffer.offer(4)).isFalse();
+		assertThat(ringBuffer.size()).isEqualTo(4);
+
+		final List<Integer> drained = new ArrayList<Integer>();
+		assertThat(ringBuffer.drainTo(drained, 2)).isEqualTo(2);
+		assertThat(drained).containsExactly(0, 1);
+		assertThat(ringBuffer.offer(5)).isTrue();
+		assertThat(ringBuffer.offer(6)).isTrue();
+		assertThat(ringBuffer.offer(7)).isFalse();
+
+		drained.clear();
+		assertThat(ringBuffer.drainTo(drained, 10)).isEqualTo(4);
+		assertThat(drained).containsExactly(2, 3, 5, 6);
+		assertThat(ringBuffer.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void testDrainToReleasesReferences() throws Exception {
+		final MpscRingBuffer<Object> ringBuffer = new MpscRingBuffer<Object>(4);
+		ringBuffer.offer(new Object());
+
+		ringBuffer.drainTo(new ArrayList<Object>(), 10);
+
+		assertThat(ringBuffer.get(0)).isNull();
+	}
+
+	@Test
+	public void testMultipleProducersOffer() throws Exception {
+		final int producers = 4;
+		final int elementsPerProducer = 10_000;
+		final MpscRingBuffer<Integer> ringBuffer = new MpscRingBuffer<Integer>(64);
+		final CountDownLatch done = new CountDownLatch(producers);
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < elementsPerProducer; i++) {
+						while (!ringBuffer.offer(producer * elementsPerProducer + i)) {
+							Thread.yield();
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+
+		final Set<Integer> consumed = new HashSet<Integer>();
+		final List<Integer> batch = new ArrayList<Integer>();
+		while (consumed.size() < producers * elementsPerProducer) {
+			ringBuffer.drainTo(batch, 16);
+			consumed.addAll(batch);
+			batch.clear();
+		}
+		done.await();
+		assertThat(consumed).hasSize(producers * elementsPerProducer);
+		assertThat(ringBuffer.isEmpty()).isTrue();
+	}
+
+	private static MpscRingBuffer<LongEvent> newRingBuffer(int capacity) {
+		return new MpscRingBuffer<LongEvent>(capacity, new MpscRingBuffer.EventFactory<LongEvent>() {
+			@Override
+			public LongEvent newEvent() {
+				return new LongEvent();
+			}
+		});
+	}
+
+	private boolean offer(long value) {
+		final long sequence = ringBuffer.tryClaim();
+		if (sequence < 0) {
+			return false;
+		}
+		ringBuffer.get(sequence).value = value;
+		ringBuffer.publish(sequence);
+		return true;
+	}
+
+	private static MpscRingBuffer.EventHandler<LongEvent> collectTo(final List<Long> values) {
+		return new MpscRingBuffer.EventHandler<LongEvent>() {
+			@Override
+			public void onEvent(LongEvent event) {
+				values.add(event.value);
+			}
+		};
+	}
+
+	private static class LongEvent {
+		private long value;
+	}
+}
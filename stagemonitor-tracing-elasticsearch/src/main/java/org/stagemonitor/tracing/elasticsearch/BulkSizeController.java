@@ -0,0 +1,111 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+/**
+ * Adapts the size of the span bulk requests and the number of concurrent bulk requests to the latency of
+ * Elasticsearch (additive increase, multiplicative decrease).
+ * <p>
+ * As long as bulk requests which filled the current target size complete faster than the target latency, the target
+ * size grows by a quarter until it reaches the maximum size. When a request is slower than the target latency or
+ * when Elasticsearch rejects it with a 429 status, the target size is halved until it reaches the minimum size.
+ * <p>
+ * The flush workers share one instance, so that they back off together. When Elasticsearch rejects a request with a
+ * 429 status, the number of bulk requests which may be in flight at the same time is halved as well. After as many
+ * requests in a row as are currently allowed to be in flight have not been rejected, one more concurrent request is
+ * allowed, until each flush worker can send a request again.
+ * <p>
+ * This class is thread safe.
+ */
+class BulkSizeController {
+
+	static final int MIN_BATCH_SIZE_BYTES = 16 * 1024;
+
+	private final int maxBatchSizeBytes;
+	private final long targetLatencyMs;
+	private final int maxConcurrentRequests;
+	private int targetBatchSizeBytes;
+	private int concurrentRequestsLimit;
+	private int concurrentRequests;
+	private int acceptedRequestsInARow;
+
+	/**
+	 * @param maxBatchSizeBytes     the upper bound of the target size, should stay below Elasticsearch's
+	 *                              {@code http.max_content_length}
+	 * @param targetLatencyMs       bulk requests which take longer than this cause the batch size to shrink
+	 * @param maxConcurrentRequests the upper bound of the number of concurrent bulk requests, which is the number of
+	 *                              flush workers
+	 */
+	BulkSizeController(int maxBatchSizeBytes, long targetLatencyMs, int maxConcurrentRequests) {
+		this.maxBatchSizeBytes = Math.max(MIN_BATCH_SIZE_BYTES, maxBatchSizeBytes);
+		this.targetLatencyMs = targetLatencyMs;
+		this.targetBatchSizeBytes = Math.max(MIN_BATCH_SIZE_BYTES, this.maxBatchSizeBytes / 4);
+		this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+		this.concurrentRequestsLimit = this.maxConcurrentRequests;
+	}
+
+	/**
+	 * @return the number of bytes at which a batch is sent
+	 */
+	synchronized int getTargetBatchSizeBytes() {
+		return targetBatchSizeBytes;
+	}
+
+	/**
+	 * @return the number of bytes a batch must not exceed, unless it consists of a single item
+	 */
+	int getMaxBatchSizeBytes() {
+		return maxBatchSizeBytes;
+	}
+
+	/**
+	 * @return the number of bulk requests which may currently be in flight at the same time
+	 */
+	synchronized int getConcurrentRequestsLimit() {
+		return concurrentRequestsLimit;
+	}
+
+	/**
+	 * Waits until another bulk request may be sent. Each call has to be followed by a call to
+	 * {@link #onBulkCompleted(int, long, boolean)} or {@link #onBulkFailed()}.
+	 *
+	 * @throws InterruptedException if the thread has been interrupted while waiting
+	 */
+	synchronized void acquireRequest() throws InterruptedException {
+		while (concurrentRequests >= concurrentRequestsLimit) {
+			wait();
+		}
+		concurrentRequests++;
+	}
+
+	/**
+	 * @param batchSizeBytes the size of the bulk request
+	 * @param latencyMs      the time it took to send the bulk request and to receive the response
+	 * @param rejected       whether Elasticsearch rejected the request or some of its items with a 429 status
+	 */
+	synchronized void onBulkCompleted(int batchSizeBytes, long latencyMs, boolean rejected) {
+		if (rejected || latencyMs > targetLatencyMs) {
+			targetBatchSizeBytes = Math.max(MIN_BATCH_SIZE_BYTES, targetBatchSizeBytes / 2);
+		} else if (batchSizeBytes >= targetBatchSizeBytes) {
+			targetBatchSizeBytes = (int) Math.min(maxBatchSizeBytes, targetBatchSizeBytes + targetBatchSizeBytes / 4L);
+		}
+		if (rejected) {
+			concurrentRequestsLimit = Math.max(1, concurrentRequestsLimit / 2);
+			acceptedRequestsInARow = 0;
+		} else if (concurrentRequestsLimit < maxConcurrentRequests && ++acceptedRequestsInARow >= concurrentRequestsLimit) {
+			concurrentRequestsLimit++;
+			acceptedRequestsInARow = 0;
+		}
+		releaseRequest();
+	}
+
+	/**
+	 * Has to be called instead of {@link #onBulkCompleted(int, long, boolean)}, if the bulk request could not be sent
+	 */
+	synchronized void onBulkFailed() {
+		releaseRequest();
+	}
+
+	private void releaseRequest() {
+		concurrentRequests--;
+		notifyAll();
+	}
+}
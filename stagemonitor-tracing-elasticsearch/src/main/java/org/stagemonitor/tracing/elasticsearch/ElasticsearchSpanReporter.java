@@ -1,5 +1,7 @@
 package org.stagemonitor.tracing.elasticsearch;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationRegistry;
@@ -8,30 +10,42 @@ import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.util.ExecutorUtils;
-import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.HttpClient.OutputStreamHandler;
 import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.core.util.http.HttpRequest;
 import org.stagemonitor.tracing.B3HeaderFormat;
 import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.TracingPlugin;
+import org.stagemonitor.tracing.reporter.SpanJsonEncoder;
 import org.stagemonitor.tracing.reporter.SpanReporter;
 import org.stagemonitor.tracing.wrapper.SpanWrapper;
 import org.stagemonitor.util.StringUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
+import io.opentracing.tag.Tags;
+
 import static org.stagemonitor.core.elasticsearch.ElasticsearchClient.CONTENT_TYPE_NDJSON;
+import static org.stagemonitor.core.elasticsearch.ElasticsearchClient.CONTENT_TYPE_SMILE;
+import static org.stagemonitor.core.elasticsearch.ElasticsearchClient.SMILE_STREAM_SEPARATOR;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 import static org.stagemonitor.tracing.B3IdentifierTagger.PARENT_ID;
 import static org.stagemonitor.tracing.B3IdentifierTagger.SPAN_ID;
@@ -41,23 +55,34 @@ import static org.stagemonitor.tracing.B3IdentifierTagger.TRACE_ID;
  * Holds spans in a {@link BlockingQueue} and flushes them asynchronously via a bulk request to Elasticsearch based on three conditions:
  * <ul>
  *     <li>Periodically, after the flush interval (defaults to 1 sec)</li>
- *     <li>When the span queue exceeds the max batch size and there is currently no flush scheduled, a immediate async flush is scheduled</li>
+ *     <li>When the span queue exceeds the max batch size, an idle flush worker is submitted for an immediate async flush</li>
  *     <li>If the span queue size is still higher than the max batch size after a flush, spans are flushed again</li>
  * </ul>
- * If the queue is full, spans are dropped to prevent excessive heap usage and {@link OutOfMemoryError}s
+ * There can be multiple flush workers which send bulk requests concurrently, as long as the total size of the in-flight
+ * requests stays within the configured budget.
+ * If the queue is full, spans are dropped to prevent excessive heap usage and {@link OutOfMemoryError}s.
+ * If Elasticsearch is not available, the spans are handed over to {@link ElasticsearchClient#spillBulk}.
  */
 public class ElasticsearchSpanReporter extends SpanReporter {
 
 	static final MetricName spansDroppedMetricName = name("elasticsearch_spans_dropped").build();
 	static final MetricName bulkSizeMetricName = name("elasticsearch_spans_bulk_size").build();
+	static final MetricName bulkBytesMetricName = name("elasticsearch_spans_bulk_bytes").build();
+	static final MetricName spansRetriedMetricName = name("elasticsearch_spans_retried").build();
+	private static final int MAX_RETRIES = 3;
+	private static final long RETRY_BASE_DELAY_MS = 500;
 	static final String ES_SPAN_LOGGER = "ElasticsearchSpanReporter";
 	static final Charset UTF_8 = Charset.forName("UTF-8");
-	private static final byte[] indexHeader = "{\"index\":{}}\n".getBytes(UTF_8);
-	private static final String SPANS_TYPE = "spans";
+	static final String SPANS_TYPE = "spans";
+	private static final String BULK_PATH = "/_bulk";
+	private static volatile IndexName currentIndexName = new IndexName(0);
 	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchSpanReporter.class);
 
 	private final Logger spanLogger;
-	private SpanFlushingRunnable spanFlushingRunnable;
+	private SpanFlushingRunnable[] spanFlushingRunnables;
+	private Semaphore inFlightBytes;
+	private int maxInFlightBytes;
+	private BulkSizeController bulkSizeController;
 
 	private ElasticsearchTracingPlugin elasticsearchTracingPlugin;
 	private ElasticsearchClient elasticsearchClient;
@@ -66,6 +91,7 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 	private Metric2Registry metricRegistry;
 	private ScheduledThreadPoolExecutor scheduler;
 	private ElasticsearchUpdateSpanReporter updateReporter;
+	private boolean smile;
 
 	public ElasticsearchSpanReporter() {
 		this(LoggerFactory.getLogger(ES_SPAN_LOGGER));
@@ -82,26 +108,61 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 		elasticsearchTracingPlugin = configuration.getConfig(ElasticsearchTracingPlugin.class);
 		elasticsearchClient = corePlugin.getElasticsearchClient();
 		metricRegistry = corePlugin.getMetricRegistry();
-		scheduler = ExecutorUtils.createSingleThreadSchedulingDeamonPool("elasticsearch-reporter", 10, corePlugin);
-		spanFlushingRunnable = new SpanFlushingRunnable(new FlushCallable());
-		scheduler.scheduleWithFixedDelay(spanFlushingRunnable, elasticsearchTracingPlugin.getFlushDelayMs(),
-				elasticsearchTracingPlugin.getFlushDelayMs(), TimeUnit.MILLISECONDS);
 		bulkQueue = new ArrayBlockingQueue<OutputStreamHandler>(elasticsearchTracingPlugin.getMaxQueueSize());
-		this.updateReporter = new ElasticsearchUpdateSpanReporter(corePlugin, tracingPlugin, elasticsearchTracingPlugin, this);
+		smile = elasticsearchTracingPlugin.isSmile();
+		maxInFlightBytes = Math.max(1, elasticsearchTracingPlugin.getMaxInFlightBytes());
+		inFlightBytes = new Semaphore(maxInFlightBytes);
+		final int flushWorkers = Math.max(1, elasticsearchTracingPlugin.getFlushWorkers());
+		bulkSizeController = new BulkSizeController(elasticsearchTracingPlugin.getMaxBatchSizeBytes(),
+				elasticsearchTracingPlugin.getTargetBulkLatencyMs(), flushWorkers);
+		final int flushDelayMs = elasticsearchTracingPlugin.getFlushDelayMs();
+		scheduler = ExecutorUtils.createSchedulingDeamonPool("elasticsearch-reporter", flushWorkers, corePlugin);
+		spanFlushingRunnables = new SpanFlushingRunnable[flushWorkers];
+		for (int i = 0; i < flushWorkers; i++) {
+			spanFlushingRunnables[i] = new SpanFlushingRunnable(new FlushCallable());
+			// staggers the periodic flushes of the workers
+			scheduler.scheduleWithFixedDelay(spanFlushingRunnables[i], flushDelayMs + i * flushDelayMs / flushWorkers,
+					flushDelayMs, TimeUnit.MILLISECONDS);
+		}
+		this.updateReporter = new ElasticsearchUpdateSpanReporter(elasticsearchClient, this, scheduler, smile);
 	}
 
 	@Override
 	public void report(SpanContextInformation spanContext, final SpanWrapper spanWrapper) {
 		logger.debug("Reporting span");
 		if (elasticsearchTracingPlugin.isOnlyLogElasticsearchSpanReports()) {
-			final String spansIndex = "stagemonitor-spans-" + StringUtils.getLogstashStyleDate();
-			spanLogger.info(ElasticsearchClient.getBulkHeader("index", spansIndex, SPANS_TYPE) + JsonUtils.toJson(spanWrapper));
+			spanLogger.info(getBulkHeader("index", getIndexName(spanWrapper.getStartTimestampMillis()), getDocumentId(spanWrapper))
+					+ JsonUtils.toJson(spanWrapper));
 		} else {
-			scheduleSendBulk(new SpanBulkIndexOutputStreamHandler(spanWrapper));
+			scheduleSendBulk(new SpanBulkIndexOutputStreamHandler(spanWrapper, smile));
+		}
+	}
+
+	/**
+	 * Queues all spans of the batch before checking whether a flush has to be scheduled, so that a batch results in a
+	 * single bulk request, unless it exceeds the max batch size
+	 */
+	@Override
+	public void report(List<SpanContextInformation> spanContexts) {
+		if (elasticsearchTracingPlugin.isOnlyLogElasticsearchSpanReports()) {
+			for (SpanContextInformation spanContext : spanContexts) {
+				report(spanContext, spanContext.getSpanWrapper());
+			}
+			return;
 		}
+		logger.debug("Reporting {} spans", spanContexts.size());
+		for (SpanContextInformation spanContext : spanContexts) {
+			queueBulk(new SpanBulkIndexOutputStreamHandler(spanContext.getSpanWrapper(), smile));
+		}
+		onBulksQueued();
 	}
 
 	void scheduleSendBulk(OutputStreamHandler bulkBytes) {
+		queueBulk(bulkBytes);
+		onBulksQueued();
+	}
+
+	private void queueBulk(OutputStreamHandler bulkBytes) {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Scheduling bulk request\n{}", bulkBytes.toString());
 		}
@@ -109,101 +170,391 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 		if (!addedToQueue) {
 			metricRegistry.counter(spansDroppedMetricName).inc();
 		}
+	}
+
+	private void onBulksQueued() {
 		scheduleFlushIfBulkQueueExceedsMaxBatchSize();
 		if (!tracingPlugin.isReportAsync()) {
-			spanFlushingRunnable.run();
+			spanFlushingRunnables[0].run();
 		}
 	}
 
+	/**
+	 * Submits an idle flush worker, if there are more spans in the queue than fit into a batch
+	 */
 	private void scheduleFlushIfBulkQueueExceedsMaxBatchSize() {
-		if (bulkQueue.size() > elasticsearchTracingPlugin.getMaxBatchSize() && scheduler.getQueue().isEmpty()) {
-			synchronized (this) {
-				if (scheduler.getQueue().isEmpty()) {
-					scheduler.schedule(spanFlushingRunnable, 0, TimeUnit.SECONDS);
+		if (bulkQueue.size() > elasticsearchTracingPlugin.getMaxBatchSize()) {
+			for (SpanFlushingRunnable spanFlushingRunnable : spanFlushingRunnables) {
+				if (spanFlushingRunnable.trySubmit()) {
+					try {
+						scheduler.execute(spanFlushingRunnable);
+					} catch (RejectedExecutionException e) {
+						logger.debug("Not flushing spans, as the reporter is shut down");
+					}
+					return;
 				}
 			}
 		}
 	}
 
 	static String getTodaysIndexName() {
-		return "stagemonitor-spans-" + StringUtils.getLogstashStyleDate();
+		return getIndexName(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the name of the daily index a span which started at the provided time belongs to
+	 * <p>
+	 * The name of the current day is cached, as formatting the date for every span is comparatively expensive.
+	 */
+	static String getIndexName(long timestampMillis) {
+		final long day = timestampMillis / TimeUnit.DAYS.toMillis(1);
+		final IndexName indexName = currentIndexName;
+		if (indexName.day == day) {
+			return indexName.name;
+		}
+		final IndexName newIndexName = new IndexName(day);
+		if (day > indexName.day) {
+			currentIndexName = newIndexName;
+		}
+		return newIndexName.name;
+	}
+
+	/**
+	 * Returns the Elasticsearch id of a span or {@code null}, if the span has no trace or span id
+	 * <p>
+	 * The client and the server side of a remote call may share the same span id, which is why the id also contains
+	 * the {@link Tags#SPAN_KIND}.
+	 */
+	static String getDocumentId(SpanWrapper spanWrapper) {
+		final String traceId = spanWrapper.getStringTag(TRACE_ID);
+		final String spanId = spanWrapper.getStringTag(SPAN_ID);
+		if (traceId == null || spanId == null) {
+			return null;
+		}
+		return getDocumentId(traceId, spanId, spanWrapper.getStringTag(Tags.SPAN_KIND.getKey()));
+	}
+
+	static String getDocumentId(String traceId, String spanId, String spanKind) {
+		if (spanKind == null) {
+			return traceId + '-' + spanId;
+		}
+		return traceId + '-' + spanId + '-' + spanKind;
+	}
+
+	static String getBulkHeader(String action, String index, String id) {
+		final StringBuilder sb = new StringBuilder(128)
+				.append("{\"").append(action).append("\":{\"_index\":\"").append(index)
+				.append("\",\"_type\":\"").append(SPANS_TYPE).append('"');
+		if (id != null) {
+			sb.append(",\"_id\":\"").append(id).append('"');
+		}
+		return sb.append("}}\n").toString();
+	}
+
+	static void writeBulkHeader(OutputStream os, String action, String index, String id, boolean smile) throws IOException {
+		if (!smile) {
+			os.write(getBulkHeader(action, index, id).getBytes(UTF_8));
+		} else if (id != null) {
+			ElasticsearchClient.writeSmileBulkHeader(os, action, "_index", index, "_type", SPANS_TYPE, "_id", id);
+		} else {
+			ElasticsearchClient.writeSmileBulkHeader(os, action, "_index", index, "_type", SPANS_TYPE);
+		}
+	}
+
+	private static class IndexName {
+		private final long day;
+		private final String name;
+
+		private IndexName(long day) {
+			this.day = day;
+			this.name = "stagemonitor-spans-" + StringUtils.getLogstashStyleDate(TimeUnit.DAYS.toMillis(day));
+		}
 	}
 
 	private static class SpanBulkIndexOutputStreamHandler implements OutputStreamHandler {
 
 		private final SpanWrapper spanWrapper;
+		private final boolean smile;
 
-		private SpanBulkIndexOutputStreamHandler(SpanWrapper spanWrapper) {
+		private SpanBulkIndexOutputStreamHandler(SpanWrapper spanWrapper, boolean smile) {
 			this.spanWrapper = spanWrapper;
+			this.smile = smile;
 		}
 
+		/**
+		 * Spans are indexed into the index of the day they have started at, so that a span is always written to the
+		 * same index, even if it is retried or replayed after midnight. Spans with a trace and span id get a
+		 * deterministic id, which makes retries idempotent and allows {@link ElasticsearchUpdateSpanReporter} to update
+		 * them without searching for them first.
+		 */
 		@Override
 		public void withHttpURLConnection(OutputStream os) throws IOException {
-			os.write(indexHeader);
-			JsonUtils.writeWithoutClosingStream(os, spanWrapper);
-			os.write('\n');
+			writeBulkHeader(os, "index", getIndexName(spanWrapper.getStartTimestampMillis()), getDocumentId(spanWrapper), smile);
+			if (smile) {
+				final JsonGenerator generator = ElasticsearchClient.createSmileGenerator(os);
+				SpanJsonEncoder.get().write(spanWrapper, generator);
+				generator.close();
+				os.write(SMILE_STREAM_SEPARATOR);
+			} else {
+				SpanJsonEncoder.get().write(spanWrapper, os);
+				os.write('\n');
+			}
 		}
 	}
 
+	/**
+	 * Serializes the queued spans into a {@link BulkBuffer} until the target size of the {@link BulkSizeController} or
+	 * the max batch size is reached and sends them as a bulk request.
+	 * <p>
+	 * Spans which Elasticsearch rejects with a 429 status are retried with a jittered exponential backoff.
+	 * <p>
+	 * Each flush worker has its own instance, so that the workers only share the queue, the budget of in-flight bytes
+	 * and the {@link BulkSizeController}.
+	 */
 	private class FlushCallable implements Callable<Boolean> {
-		private final List<OutputStreamHandler> currentBulk = new ArrayList<OutputStreamHandler>(elasticsearchTracingPlugin.getMaxBatchSize());
-		private final BulkErrorCountingResponseHandler responseHandler = new BulkErrorCountingResponseHandler(metricRegistry);
-		private final BulkWritingOutputStreamHandler outputStreamHandler = new BulkWritingOutputStreamHandler();
-		private HttpClient httpClient = elasticsearchClient.getHttpClient();
+		private final List<OutputStreamHandler> pendingSpans = new ArrayList<OutputStreamHandler>(elasticsearchTracingPlugin.getMaxBatchSize());
+		private final List<RejectedBulkItem> rejectedItems = new ArrayList<RejectedBulkItem>();
+		private final BulkBuffer bulkBuffer = new BulkBuffer();
+		private final BulkErrorCountingResponseHandler responseHandler = new BulkErrorCountingResponseHandler();
+		private boolean rejected;
 
 		@Override
 		public Boolean call() throws Exception {
 			final int maxBatchSize = elasticsearchTracingPlugin.getMaxBatchSize();
-			// the batching with drainTo should remove most of the contention imposed by the queue
-			// as there is less contention on the head of the queue caused by elements being added and immediately removed
-			bulkQueue.drainTo(currentBulk, maxBatchSize);
-			if (currentBulk.isEmpty()) {
+			if (pendingSpans.isEmpty()) {
+				// the batching with drainTo should remove most of the contention imposed by the queue
+				// as there is less contention on the head of the queue caused by elements being added and immediately removed
+				bulkQueue.drainTo(pendingSpans, maxBatchSize);
+			}
+			fillBulkBuffer(maxBatchSize);
+			if (bulkBuffer.getItemCount() == 0) {
 				return false;
 			}
-			logger.debug("Flushing {} span batch requests", currentBulk.size());
-			metricRegistry.histogram(bulkSizeMetricName).update(currentBulk.size());
+			logger.debug("Flushing {} span batch requests", bulkBuffer.getItemCount());
+			metricRegistry.histogram(bulkSizeMetricName).update(bulkBuffer.getItemCount());
+			metricRegistry.histogram(bulkBytesMetricName).update(bulkBuffer.size());
 			sendBulkRequest();
-			// reusing the batch list is safe as this method is executed single threaded
-			currentBulk.clear();
-			return bulkQueue.size() >= maxBatchSize;
+			// reusing the buffer is safe as this method is executed by one thread at a time (see SpanFlushingRunnable#run)
+			bulkBuffer.reset();
+			return !pendingSpans.isEmpty() || bulkQueue.size() >= maxBatchSize;
+		}
+
+		private void fillBulkBuffer(int maxBatchSize) throws IOException {
+			final int targetBatchSizeBytes = bulkSizeController.getTargetBatchSizeBytes();
+			final long now = System.currentTimeMillis();
+			for (Iterator<RejectedBulkItem> iterator = rejectedItems.iterator(); iterator.hasNext() && bulkBuffer.size() < targetBatchSizeBytes; ) {
+				final RejectedBulkItem rejectedItem = iterator.next();
+				if (rejectedItem.retryAt <= now) {
+					bulkBuffer.addItem(rejectedItem.bulkLines, rejectedItem.attempts, rejectedItem.update);
+					iterator.remove();
+				}
+			}
+			int added = 0;
+			while (added < pendingSpans.size() && bulkBuffer.getItemCount() < maxBatchSize && bulkBuffer.size() < targetBatchSizeBytes) {
+				bulkBuffer.addItem(pendingSpans.get(added));
+				added++;
+				if (bulkBuffer.size() > bulkSizeController.getMaxBatchSizeBytes() && bulkBuffer.getItemCount() > 1) {
+					// the span does not fit into this batch, it is serialized again for the next one
+					bulkBuffer.removeLastItem();
+					added--;
+					break;
+				}
+			}
+			pendingSpans.subList(0, added).clear();
 		}
 
 		private void sendBulkRequest() {
 			if (!elasticsearchClient.isElasticsearchAvailable()) {
+				// keeps the spans for later, if a spill directory is configured
+				elasticsearchClient.spillBulk(BULK_PATH, bulkBuffer);
 				return;
 			}
-			final String url = elasticsearchClient.getElasticsearchUrl() + "/" + getTodaysIndexName() + "/" + SPANS_TYPE + "/_bulk";
-			httpClient.send("POST", url, CONTENT_TYPE_NDJSON, outputStreamHandler, responseHandler);
+			// a single batch may exceed the budget, in which case it has to wait until there are no other requests in flight
+			final int permits = Math.min(bulkBuffer.size(), maxInFlightBytes);
+			try {
+				bulkSizeController.acquireRequest();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				elasticsearchClient.spillBulk(BULK_PATH, bulkBuffer);
+				return;
+			}
+			boolean completed = false;
+			try {
+				inFlightBytes.acquire(permits);
+				try {
+					rejected = false;
+					final long start = System.currentTimeMillis();
+					elasticsearchClient.sendBulk(BULK_PATH, smile ? CONTENT_TYPE_SMILE : CONTENT_TYPE_NDJSON, bulkBuffer, responseHandler);
+					bulkSizeController.onBulkCompleted(bulkBuffer.size(), System.currentTimeMillis() - start, rejected);
+					completed = true;
+				} finally {
+					inFlightBytes.release(permits);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				elasticsearchClient.spillBulk(BULK_PATH, bulkBuffer);
+			} finally {
+				if (!completed) {
+					bulkSizeController.onBulkFailed();
+				}
+			}
 		}
 
-		private class BulkWritingOutputStreamHandler implements OutputStreamHandler {
-			@Override
-			public void withHttpURLConnection(OutputStream os) throws IOException {
-				for (OutputStreamHandler bulkLine : currentBulk) {
-					bulkLine.withHttpURLConnection(os);
-				}
-				os.close();
+		/**
+		 * Schedules a rejected item of the current bulk request for a retry
+		 *
+		 * @return {@code false}, if the item has been retried too often already and should be dropped
+		 */
+		private boolean retry(int itemIndex) {
+			final int attempts = bulkBuffer.getAttempts(itemIndex) + 1;
+			if (attempts > MAX_RETRIES || rejectedItems.size() >= elasticsearchTracingPlugin.getMaxQueueSize()) {
+				return false;
 			}
+			final double jitter = 0.5 + ThreadLocalRandom.current().nextDouble();
+			final long backoffMs = (long) (RETRY_BASE_DELAY_MS * (1 << (attempts - 1)) * jitter);
+			rejectedItems.add(new RejectedBulkItem(bulkBuffer.getItem(itemIndex), attempts, System.currentTimeMillis() + backoffMs,
+					bulkBuffer.getUpdate(itemIndex)));
+			metricRegistry.counter(spansRetriedMetricName).inc();
+			return true;
 		}
 
 		private class BulkErrorCountingResponseHandler extends ElasticsearchClient.BulkErrorCountingResponseHandler {
-			private final Metric2Registry metricRegistry;
 
-			private BulkErrorCountingResponseHandler(Metric2Registry metricRegistry) {
-				this.metricRegistry = metricRegistry;
+			@Override
+			public Void handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
+				if (statusCode != null && statusCode == 429) {
+					// the whole request has been rejected
+					rejected = true;
+					for (int i = 0; i < bulkBuffer.getItemCount(); i++) {
+						if (!retry(i)) {
+							metricRegistry.counter(spansDroppedMetricName).inc();
+						}
+					}
+					return null;
+				}
+				return super.handleResponse(httpRequest, is, statusCode, e);
 			}
 
 			@Override
 			public void onBulkError(int errorCount) {
 				metricRegistry.counter(spansDroppedMetricName).inc(errorCount);
 			}
+
+			@Override
+			protected boolean onRejectedItem(int itemIndex) {
+				rejected = true;
+				return retry(itemIndex);
+			}
+
+			/**
+			 * The span of an update may not have been indexed yet or may be in a different index than assumed, which is
+			 * why the span is looked up (see {@link ElasticsearchUpdateSpanReporter#onMissingDocument})
+			 */
+			@Override
+			protected boolean onMissingDocument(int itemIndex) {
+				final ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler update = bulkBuffer.getUpdate(itemIndex);
+				if (update != null) {
+					return updateReporter.onMissingDocument(update);
+				}
+				return retry(itemIndex);
+			}
+		}
+	}
+
+	private static class RejectedBulkItem {
+		private final byte[] bulkLines;
+		private final int attempts;
+		private final long retryAt;
+		private final ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler update;
+
+		private RejectedBulkItem(byte[] bulkLines, int attempts, long retryAt, ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler update) {
+			this.bulkLines = bulkLines;
+			this.attempts = attempts;
+			this.retryAt = retryAt;
+			this.update = update;
+		}
+	}
+
+	/**
+	 * The serialized bulk lines of a batch, which remembers where each item starts and which items are span updates
+	 */
+	static class BulkBuffer extends ByteArrayOutputStream implements OutputStreamHandler {
+		private int[] itemOffsets = new int[64];
+		private int[] itemAttempts = new int[64];
+		private ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler[] itemUpdates =
+				new ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler[64];
+		private int itemCount;
+
+		void addItem(OutputStreamHandler item) throws IOException {
+			startItem(0, item instanceof ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler
+					? (ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler) item : null);
+			item.withHttpURLConnection(this);
+		}
+
+		void addItem(byte[] bulkLines, int attempts, ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler update) {
+			startItem(attempts, update);
+			write(bulkLines, 0, bulkLines.length);
+		}
+
+		private void startItem(int attempts, ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler update) {
+			if (itemCount == itemOffsets.length) {
+				itemOffsets = Arrays.copyOf(itemOffsets, itemCount * 2);
+				itemAttempts = Arrays.copyOf(itemAttempts, itemCount * 2);
+				itemUpdates = Arrays.copyOf(itemUpdates, itemCount * 2);
+			}
+			itemOffsets[itemCount] = count;
+			itemAttempts[itemCount] = attempts;
+			itemUpdates[itemCount] = update;
+			itemCount++;
+		}
+
+		void removeLastItem() {
+			itemCount--;
+			count = itemOffsets[itemCount];
+			itemUpdates[itemCount] = null;
+		}
+
+		int getItemCount() {
+			return itemCount;
+		}
+
+		int getAttempts(int itemIndex) {
+			return itemAttempts[itemIndex];
+		}
+
+		/**
+		 * @return the span update of the item or {@code null}, if the item is no span update
+		 */
+		ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler getUpdate(int itemIndex) {
+			return itemUpdates[itemIndex];
+		}
+
+		byte[] getItem(int itemIndex) {
+			final int end = itemIndex + 1 < itemCount ? itemOffsets[itemIndex + 1] : count;
+			return Arrays.copyOfRange(buf, itemOffsets[itemIndex], end);
+		}
+
+		@Override
+		public synchronized void reset() {
+			super.reset();
+			Arrays.fill(itemUpdates, 0, itemCount, null);
+			itemCount = 0;
+		}
+
+		@Override
+		public void withHttpURLConnection(OutputStream os) throws IOException {
+			os.write(buf, 0, count);
+			os.close();
 		}
 	}
 
+	/**
+	 * The reporter stays active while Elasticsearch is not available, if the spans can be spilled to disk
+	 */
 	@Override
 	public boolean isActive(SpanContextInformation spanContext) {
 		final boolean logOnly = elasticsearchTracingPlugin.isOnlyLogElasticsearchSpanReports();
-		return elasticsearchClient.isElasticsearchAvailable() || logOnly;
+		return elasticsearchClient.isElasticsearchAvailable() || elasticsearchClient.isSpillingEnabled() || logOnly;
 	}
 
 	@Override
@@ -223,8 +574,4 @@ public class ElasticsearchSpanReporter extends SpanReporter {
 		updateReporter.updateSpan(spanIdentifiers, tags);
 	}
 
-	ElasticsearchUpdateSpanReporter getUpdateReporter() {
-		return updateReporter;
-	}
-
 }
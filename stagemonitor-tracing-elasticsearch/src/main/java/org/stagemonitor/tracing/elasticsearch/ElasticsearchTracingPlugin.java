@@ -9,6 +9,7 @@ import org.stagemonitor.tracing.TracingPlugin;
 import java.util.Collections;
 import java.util.List;
 
+import static org.stagemonitor.tracing.elasticsearch.ElasticsearchSpanReporter.bulkBytesMetricName;
 import static org.stagemonitor.tracing.elasticsearch.ElasticsearchSpanReporter.bulkSizeMetricName;
 import static org.stagemonitor.tracing.elasticsearch.ElasticsearchSpanReporter.spansDroppedMetricName;
 
@@ -57,6 +58,53 @@ public class ElasticsearchTracingPlugin extends StagemonitorPlugin {
 					"You can monitor the amount of reported spans and the actual batch sizes via the histogram " + bulkSizeMetricName.getName())
 			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
 			.buildWithDefault(250);
+	private final ConfigurationOption<Integer> maxBatchSizeBytes = ConfigurationOption.integerOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.maxBatchSizeBytes")
+			.dynamic(false)
+			.label("Max batch size (bytes)")
+			.description("The maximum size of a _bulk request to elasticsearch. Should be lower than the http.max_content_length " +
+					"of elasticsearch. Within this limit, the size of the batches adapts to the latency of the bulk requests " +
+					"(see stagemonitor.tracing.elasticsearch.reporter.targetBulkLatencyMs). " +
+					"You can monitor the actual batch sizes via the histogram " + bulkBytesMetricName.getName())
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(5 * 1024 * 1024);
+	private final ConfigurationOption<Integer> targetBulkLatencyMs = ConfigurationOption.integerOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.targetBulkLatencyMs")
+			.dynamic(false)
+			.label("Target bulk latency (ms)")
+			.description("The batches of spans grow as long as the _bulk requests take less than this time and shrink " +
+					"when they take longer or when elasticsearch rejects them because it is overloaded.")
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(1000);
+	private final ConfigurationOption<Integer> flushWorkers = ConfigurationOption.integerOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.flushWorkers")
+			.dynamic(false)
+			.label("Flush workers")
+			.description("The number of threads which serialize the queued spans and send them to elasticsearch. " +
+					"Each worker sends one _bulk request at a time, so increasing the number of workers allows multiple " +
+					"concurrent _bulk requests. When elasticsearch rejects a request because it is overloaded (429), " +
+					"the number of concurrent _bulk requests is halved and then slowly raised again. Consider increasing this value if spans are dropped because the queue is full " +
+					"although elasticsearch is healthy.")
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(1);
+	private final ConfigurationOption<Integer> maxInFlightBytes = ConfigurationOption.integerOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.maxInFlightBytes")
+			.dynamic(false)
+			.label("Max in-flight bytes")
+			.description("The maximum total size of the _bulk requests which are sent concurrently by the flush workers " +
+					"(see stagemonitor.tracing.elasticsearch.reporter.flushWorkers). A worker waits until enough of the " +
+					"other requests have completed before it sends its batch.")
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(20 * 1024 * 1024);
+	private final ConfigurationOption<Boolean> smile = ConfigurationOption.booleanOption()
+			.key("stagemonitor.tracing.elasticsearch.reporter.smile")
+			.dynamic(false)
+			.label("Encode spans with Smile")
+			.description("If set to true, the _bulk requests of the spans are encoded in the binary Smile format instead " +
+					"of JSON. This reduces the CPU usage of the serialization as well as the size of the requests. " +
+					"Spans which are only logged are always JSON encoded.")
+			.configurationCategory(ELASTICSEARCH_TRACING_PLUGIN)
+			.buildWithDefault(false);
 	private final ConfigurationOption<Integer> flushDelayMs = ConfigurationOption.integerOption()
 			.key("stagemonitor.tracing.elasticsearch.reporter.flushDelayMs")
 			.dynamic(true)
@@ -87,6 +135,26 @@ public class ElasticsearchTracingPlugin extends StagemonitorPlugin {
 		return maxBatchSize.getValue();
 	}
 
+	public int getMaxBatchSizeBytes() {
+		return maxBatchSizeBytes.getValue();
+	}
+
+	public int getTargetBulkLatencyMs() {
+		return targetBulkLatencyMs.getValue();
+	}
+
+	public int getFlushWorkers() {
+		return flushWorkers.getValue();
+	}
+
+	public int getMaxInFlightBytes() {
+		return maxInFlightBytes.getValue();
+	}
+
+	public boolean isSmile() {
+		return smile.getValue();
+	}
+
 	public int getFlushDelayMs() {
 		return flushDelayMs.getValue();
 	}
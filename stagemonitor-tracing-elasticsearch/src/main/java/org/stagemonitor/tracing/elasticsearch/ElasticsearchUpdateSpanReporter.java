@@ -1,258 +1,189 @@
 package org.stagemonitor.tracing.elasticsearch;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
-import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.JsonUtils;
-import org.stagemonitor.core.util.http.HttpRequest;
 import org.stagemonitor.tracing.B3HeaderFormat;
-import org.stagemonitor.tracing.TracingPlugin;
-import org.stagemonitor.util.IOUtils;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-
+import java.util.regex.Pattern;
+
+import io.opentracing.tag.Tags;
+
+import static org.stagemonitor.tracing.B3IdentifierTagger.SPAN_ID;
+import static org.stagemonitor.tracing.B3IdentifierTagger.TRACE_ID;
+
+/**
+ * Updates spans which have already been reported.
+ * <p>
+ * The Elasticsearch ids of the spans are derived from their trace and span ids and their kind (see
+ * {@link ElasticsearchSpanReporter#getDocumentId(String, String, String)}), so the update can be sent as a bulk update
+ * without searching for the id first. The identifiers which are handed out to other parties, for example to the
+ * browser for end user monitoring, are the ones of server spans, which is why the update is first sent to the server
+ * span in the index of the current day.
+ * <p>
+ * The updates are no upserts, as they would create orphaned documents if the span is in a different index. If the
+ * document does not exist, because the span has not been indexed yet, because it has started before midnight or
+ * because it is no server span, the span is searched for by its trace and span id in all span indices. The search is
+ * repeated with a backoff until the span is found or the update times out.
+ */
 class ElasticsearchUpdateSpanReporter {
 
 	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchUpdateSpanReporter.class);
-	private static final byte[] EMPTY_QUERY_HEADER = "{}\n".getBytes(ElasticsearchSpanReporter.UTF_8);
-	private static final byte[] QUERY_PART1 = "{\"query\": {\"bool\": {\"must\": [{\"term\": {\"id\": {\"value\": \"".getBytes(ElasticsearchSpanReporter.UTF_8);
-	private static final byte[] QUERY_PART2 = "\"}}},{\"term\": {\"trace_id\":{\"value\": \"".getBytes(ElasticsearchSpanReporter.UTF_8);
-	private static final byte[] QUERY_PART3 = "\"}}},{\"range\": {\"@timestamp\": {\"gte\": \"now-1h\"}}}]}},\"_source\": \"trace_id\"}\n".getBytes(ElasticsearchSpanReporter.UTF_8);
+	private static final byte[] DOC_START = "{\"doc\":".getBytes(ElasticsearchSpanReporter.UTF_8);
+	private static final byte[] DOC_END = "}\n".getBytes(ElasticsearchSpanReporter.UTF_8);
 	/**
-	 * The time after which {@link UpdateDescription}s are discarded when no Elasticsearch id could be determined (via
-	 * _msearch).
+	 * The time after which an update is discarded if the span could not be found
 	 */
-	private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(30);
-	private static final long ES_REFRESH_INTERVAL = TimeUnit.SECONDS.toMillis(5);
-	private final JsonNodeResponseHandler responseHandler = new JsonNodeResponseHandler();
-	private final MultiSearchOutputStreamHandler multiSearchOutputStreamHandler = new MultiSearchOutputStreamHandler();
-	private final Runnable updateRunnable;
-	private final ElasticsearchTracingPlugin elasticsearchTracingPlugin;
+	private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+	private static final long LOOKUP_BASE_DELAY_MS = 500;
+	private static final long LOOKUP_MAX_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
+	private static final Pattern HEX_ID = Pattern.compile("[0-9a-fA-F]{1,32}");
 
-	private final BlockingQueue<UpdateDescription> updateDescriptionQueue;
-	private final List<UpdateDescription> updateBatch;
-	private final ElasticsearchSpanReporter elasticsearchSpanReporter;
-	private final CorePlugin corePlugin;
 	private final ElasticsearchClient elasticsearchClient;
-	private final HttpClient httpClient;
-	private final TracingPlugin tracingPlugin;
+	private final ElasticsearchSpanReporter elasticsearchSpanReporter;
+	private final ScheduledExecutorService scheduler;
+	private final boolean smile;
 
-	public ElasticsearchUpdateSpanReporter(CorePlugin corePlugin, TracingPlugin tracingPlugin,
-										   ElasticsearchTracingPlugin elasticsearchTracingPlugin,
-										   ElasticsearchSpanReporter elasticsearchSpanReporter) {
-		this.tracingPlugin = tracingPlugin;
-		this.corePlugin = corePlugin;
-		this.elasticsearchClient = corePlugin.getElasticsearchClient();
+	ElasticsearchUpdateSpanReporter(ElasticsearchClient elasticsearchClient, ElasticsearchSpanReporter elasticsearchSpanReporter,
+									ScheduledExecutorService scheduler, boolean smile) {
+		this.elasticsearchClient = elasticsearchClient;
 		this.elasticsearchSpanReporter = elasticsearchSpanReporter;
-		this.httpClient = elasticsearchClient.getHttpClient();
-		this.elasticsearchTracingPlugin = elasticsearchTracingPlugin;
-
-		updateBatch = new ArrayList<UpdateDescription>(elasticsearchTracingPlugin.getMaxBatchSize());
-		updateDescriptionQueue = new ArrayBlockingQueue<UpdateDescription>(1000);
-		updateRunnable = new SpanFlushingRunnable(new UpdateCallable());
-		final ScheduledThreadPoolExecutor scheduler = ExecutorUtils.createSingleThreadSchedulingDeamonPool("elasticsearch-update-reporter", 10, corePlugin);
-		scheduler.scheduleWithFixedDelay(updateRunnable, elasticsearchTracingPlugin.getFlushDelayMs(), elasticsearchTracingPlugin.getFlushDelayMs(), TimeUnit.MILLISECONDS);
+		this.scheduler = scheduler;
+		this.smile = smile;
 	}
 
 	public void updateSpan(B3HeaderFormat.B3Identifiers spanIdentifiers, Map<String, Object> tagsToUpdate) {
 		if (!elasticsearchClient.isElasticsearchAvailable()) {
 			return;
 		}
-		final UpdateDescription updateDescription = new UpdateDescription();
-		updateDescription.spanIdentifiers = spanIdentifiers;
-		final long now = System.currentTimeMillis();
-		if (tracingPlugin.isReportAsync()) {
-			final long delay = elasticsearchTracingPlugin.getFlushDelayMs() + ES_REFRESH_INTERVAL;
-			updateDescription.tryToFindIdNotBefore = now + delay;
-		} else {
-			updateDescription.tryToFindIdNotBefore = now;
-		}
-		updateDescription.tryToFindIdNotAfter = now + TIMEOUT;
-		updateDescription.tagsToUpdate = tagsToUpdate;
-		addToUpdateDescriptionQueue(updateDescription);
 		logger.debug("scheduling update for span {}", spanIdentifiers);
-		if (!tracingPlugin.isReportAsync()) {
-			updateRunnable.run();
-		}
+		final String traceId = spanIdentifiers.getTraceId();
+		final String spanId = spanIdentifiers.getSpanId();
+		elasticsearchSpanReporter.scheduleSendBulk(new BulkUpdateOutputStreamHandler(traceId, spanId,
+				ElasticsearchSpanReporter.getTodaysIndexName(), ElasticsearchSpanReporter.getDocumentId(traceId, spanId, Tags.SPAN_KIND_SERVER),
+				tagsToUpdate, smile, System.currentTimeMillis() + TIMEOUT_MS));
 	}
 
-	void flush() {
-		while (!updateDescriptionQueue.isEmpty()) {
-			updateRunnable.run();
+	/**
+	 * Schedules the search for the span of an update whose document does not exist
+	 *
+	 * @param update the update which failed with a 404 status
+	 * @return {@code true}, if the span will be searched for, {@code false} if the update timed out and should be
+	 * counted as an error
+	 */
+	boolean onMissingDocument(final BulkUpdateOutputStreamHandler update) {
+		final long delay = Math.min(LOOKUP_MAX_DELAY_MS, LOOKUP_BASE_DELAY_MS << Math.min(update.lookups, 16));
+		if (System.currentTimeMillis() + delay > update.notAfter || !isHexId(update.traceId) || !isHexId(update.spanId)) {
+			logger.debug("Discarding update of span {} because it could not be found", update.id);
+			return false;
+		}
+		update.lookups++;
+		try {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					lookUpSpan(update);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException e) {
+			logger.debug("Not looking up span {}, as the reporter is shut down", update.id);
+			return false;
 		}
 	}
 
-	private static class UpdateDescription {
-		private String id;
-		// don't try to get the id before this timestamp as the span probably is not available yet
-		private long tryToFindIdNotBefore;
-		private long tryToFindIdNotAfter;
-		private B3HeaderFormat.B3Identifiers spanIdentifiers;
-		private Map<String, Object> tagsToUpdate;
-	}
-
-	static class BulkUpdateOutputStreamHandler implements HttpClient.OutputStreamHandler {
-		private final String id;
-		private final Object partialDocument;
-
-		BulkUpdateOutputStreamHandler(String id, Object partialDocument) {
-			this.id = id;
-			this.partialDocument = partialDocument;
-		}
-
-		@Override
-		public void withHttpURLConnection(OutputStream os) throws IOException {
-			os.write("{\"update\":{\"_id\":\"".getBytes(ElasticsearchSpanReporter.UTF_8));
-			os.write(id.getBytes(ElasticsearchSpanReporter.UTF_8));
-			os.write("\"}}\n".getBytes(ElasticsearchSpanReporter.UTF_8));
-			os.write("{\"doc\":".getBytes(ElasticsearchSpanReporter.UTF_8));
-			JsonUtils.writeWithoutClosingStream(os, partialDocument);
-			os.write('}');
-			os.write('\n');
+	private void lookUpSpan(BulkUpdateOutputStreamHandler update) {
+		final JsonNode hit = findSpan(update);
+		if (hit != null) {
+			logger.debug("Elasticsearch id for span {} is {}", update.id, hit.get("_id").asText());
+			elasticsearchSpanReporter.scheduleSendBulk(update.withDocument(hit.get("_index").asText(), hit.get("_id").asText()));
+		} else {
+			// not found; maybe not yet indexed or refreshed (available for search)
+			onMissingDocument(update);
 		}
 	}
 
-	private class UpdateCallable implements Callable<Boolean> {
-
-		private final Map<Object, UpdateDescription> updateDescriptionByTraceId = new HashMap<Object, UpdateDescription>();
-
-		@Override
-		public Boolean call() throws Exception {
-			try {
-				updateDescriptionQueue.drainTo(updateBatch);
-				removeUpdateDescriptionsWhichShouldNotRunYet();
-				if (updateBatch.isEmpty()) {
-					return false;
-				}
-				logger.debug("Performing id search for {} spans", updateBatch.size());
-				initLookupMap();
-				JsonNode multiSearchResponse = searchForElasticsearchIdsByTraceIds();
-				setElasticsearchIds(multiSearchResponse, updateDescriptionByTraceId);
-				scheduleUpdateOrPutBackToQueue();
-				return updateDescriptionQueue.size() >= elasticsearchTracingPlugin.getMaxBatchSize();
-			} finally {
-				updateBatch.clear();
-				updateDescriptionByTraceId.clear();
-			}
-		}
-
-		private void initLookupMap() {
-			for (UpdateDescription updateDescription : updateBatch) {
-				updateDescriptionByTraceId.put(updateDescription.spanIdentifiers.getTraceId(), updateDescription);
-			}
-		}
-
-		private void removeUpdateDescriptionsWhichShouldNotRunYet() {
-			final long now = System.currentTimeMillis();
-			for (Iterator<UpdateDescription> iterator = updateBatch.iterator(); iterator.hasNext(); ) {
-				UpdateDescription updateDescription = iterator.next();
-				if (now < updateDescription.tryToFindIdNotBefore) {
-					iterator.remove();
-					addToUpdateDescriptionQueue(updateDescription);
-				}
-			}
-		}
-
-		private JsonNode searchForElasticsearchIdsByTraceIds() {
-			return httpClient.send("POST",
-					corePlugin.getElasticsearchUrl() + "/stagemonitor-spans*/_msearch",
-					ElasticsearchClient.CONTENT_TYPE_NDJSON,
-					multiSearchOutputStreamHandler,
-					responseHandler);
-		}
-
-		private void scheduleUpdateOrPutBackToQueue() {
-			final long now = System.currentTimeMillis();
-			for (UpdateDescription updateDescription : updateBatch) {
-				if (updateDescription.id == null) {
-					if (updateDescription.tryToFindIdNotAfter > now) {
-						// not found; maybe not yet indexed or refreshed (available for search)
-						logger.debug("Could not find id for span {}. Putting back in queue and try again later", updateDescription.spanIdentifiers, TIMEOUT);
-						addToUpdateDescriptionQueue(updateDescription);
-					} else {
-						logger.debug("Discarding update span {} because it could not be found within {}ms", updateDescription.spanIdentifiers, TIMEOUT);
-					}
-				} else {
-					logger.debug("Scheduling update for span {}", updateDescription.spanIdentifiers);
-					elasticsearchSpanReporter.scheduleSendBulk(new BulkUpdateOutputStreamHandler(updateDescription.id, updateDescription.tagsToUpdate));
-				}
-			}
-		}
-
-		private void setElasticsearchIds(JsonNode multiSearchResponse, Map<Object, UpdateDescription> updateDescriptionByTraceId) {
-			for (JsonNode response : multiSearchResponse.get("responses")) {
-				final JsonNode hits = response.get("hits");
-				if (hits == null) {
-					if (response.get("error") != null) {
-						logger.debug("{}", response);
-					}
-					continue;
-				}
-				final JsonNode innerHits = hits.get("hits");
-				if (innerHits != null && innerHits.size() == 1) {
-					JsonNode hit = innerHits.get(0);
-					final String traceId = hit.get("_source").get("trace_id").asText();
-					final UpdateDescription updateDescription = updateDescriptionByTraceId.get(traceId);
-					updateDescription.id = hit.get("_id").asText();
-					logger.debug("Elasticsearch id for span {} is {}", updateDescription.spanIdentifiers, updateDescription.id);
-				}
+	/**
+	 * The client and the server span of a remote call share the span id. If both are found, the server span is
+	 * updated.
+	 */
+	private JsonNode findSpan(BulkUpdateOutputStreamHandler update) {
+		if (!elasticsearchClient.isElasticsearchAvailable()) {
+			return null;
+		}
+		final JsonNode response = elasticsearchClient.getJson("/stagemonitor-spans*/_search?size=10&_source=false&q=" +
+				TRACE_ID + ":" + update.traceId + "%20AND%20" + SPAN_ID + ":" + update.spanId, true);
+		final JsonNode hits = response != null ? response.path("hits").get("hits") : null;
+		if (hits == null) {
+			return null;
+		}
+		final String serverSpanId = ElasticsearchSpanReporter.getDocumentId(update.traceId, update.spanId, Tags.SPAN_KIND_SERVER);
+		for (JsonNode hit : hits) {
+			if (serverSpanId.equals(hit.get("_id").asText())) {
+				return hit;
 			}
 		}
+		return hits.size() == 1 ? hits.get(0) : null;
 	}
 
-	private void addToUpdateDescriptionQueue(UpdateDescription updateDescription) {
-		final boolean addedToQueue = updateDescriptionQueue.offer(updateDescription);
-		if (!addedToQueue) {
-			logger.debug("Could not add updateDescription to queue because it is full");
-		}
+	private static boolean isHexId(String id) {
+		return id != null && HEX_ID.matcher(id).matches();
 	}
 
-	private class MultiSearchOutputStreamHandler implements HttpClient.OutputStreamHandler {
-
-		@Override
-		public void withHttpURLConnection(OutputStream os) throws IOException {
-			for (UpdateDescription updateDescription : updateBatch) {
-				writeMultiSearchEntry(os, updateDescription);
-			}
-			os.close();
+	static class BulkUpdateOutputStreamHandler implements HttpClient.OutputStreamHandler {
+		private final String traceId;
+		private final String spanId;
+		private final String index;
+		private final String id;
+		private final Map<String, Object> partialDocument;
+		private final boolean smile;
+		private final long notAfter;
+		// only accessed by one thread at a time, as the lookups are scheduled one after another
+		private int lookups;
+
+		BulkUpdateOutputStreamHandler(String traceId, String spanId, String index, String id, Map<String, Object> partialDocument,
+									  boolean smile, long notAfter) {
+			this.traceId = traceId;
+			this.spanId = spanId;
+			this.index = index;
+			this.id = id;
+			this.partialDocument = partialDocument;
+			this.smile = smile;
+			this.notAfter = notAfter;
 		}
 
-		private void writeMultiSearchEntry(OutputStream os, UpdateDescription updateDescription) throws IOException {
-			os.write(EMPTY_QUERY_HEADER);
-			os.write(QUERY_PART1);
-			os.write(updateDescription.spanIdentifiers.getSpanId().getBytes(ElasticsearchSpanReporter.UTF_8));
-			os.write(QUERY_PART2);
-			os.write(updateDescription.spanIdentifiers.getTraceId().getBytes(ElasticsearchSpanReporter.UTF_8));
-			os.write(QUERY_PART3);
+		private BulkUpdateOutputStreamHandler withDocument(String index, String id) {
+			final BulkUpdateOutputStreamHandler update = new BulkUpdateOutputStreamHandler(traceId, spanId, index, id,
+					partialDocument, smile, notAfter);
+			update.lookups = lookups;
+			return update;
 		}
-	}
-
-	private static class JsonNodeResponseHandler implements HttpClient.ResponseHandler<JsonNode> {
 
 		@Override
-		public JsonNode handleResponse(HttpRequest<?> httpRequest, InputStream is, Integer statusCode, IOException e) throws IOException {
-			if (statusCode == 200) {
-				return JsonUtils.getMapper().readTree(is);
+		public void withHttpURLConnection(OutputStream os) throws IOException {
+			ElasticsearchSpanReporter.writeBulkHeader(os, "update", index, id, smile);
+			if (smile) {
+				final JsonGenerator generator = ElasticsearchClient.createSmileGenerator(os);
+				generator.writeStartObject();
+				generator.writeObjectField("doc", partialDocument);
+				generator.writeEndObject();
+				generator.close();
+				os.write(ElasticsearchClient.SMILE_STREAM_SEPARATOR);
 			} else {
-				IOUtils.consumeAndClose(is);
-				return null;
+				os.write(DOC_START);
+				JsonUtils.writeWithoutClosingStream(os, partialDocument);
+				os.write(DOC_END);
 			}
 		}
 	}
@@ -4,11 +4,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class SpanFlushingRunnable implements Runnable {
 
 	private static final Logger logger = LoggerFactory.getLogger(SpanFlushingRunnable.class);
 	private final Callable<Boolean> flushCallable;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private final AtomicBoolean submitted = new AtomicBoolean();
 
 	SpanFlushingRunnable(Callable<Boolean> flushCallable) {
 		this.flushCallable = flushCallable;
@@ -16,6 +19,8 @@ class SpanFlushingRunnable implements Runnable {
 
 	@Override
 	public synchronized void run() {
+		submitted.set(false);
+		running.set(true);
 		try {
 			boolean hasMoreElements = true;
 			while (hasMoreElements) {
@@ -23,6 +28,19 @@ class SpanFlushingRunnable implements Runnable {
 			}
 		} catch (Exception e) {
 			logger.warn("Exception while reporting spans to Elasticsearch", e);
+		} finally {
+			running.set(false);
 		}
 	}
+
+	/**
+	 * Marks this runnable as submitted for an immediate flush, unless it is running or has already been submitted.
+	 * A running flush keeps going as long as there are enough spans in the queue, so there is no need to submit it
+	 * again.
+	 *
+	 * @return {@code true}, if the caller should submit this runnable
+	 */
+	boolean trySubmit() {
+		return !running.get() && submitted.compareAndSet(false, true);
+	}
 }
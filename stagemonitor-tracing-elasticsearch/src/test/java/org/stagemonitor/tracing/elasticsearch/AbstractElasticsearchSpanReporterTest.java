@@ -82,6 +82,8 @@ public class AbstractElasticsearchSpanReporterTest {
 		when(corePlugin.getThreadPoolQueueCapacityLimit()).thenReturn(1000);
 		when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(true);
 		when(elasticsearchClient.getHttpClient()).thenReturn(httpClient);
+		when(elasticsearchClient.sendBulk(any(), any(), any(), any())).then(invocation -> httpClient.send("POST",
+				url + invocation.<String>getArgument(0), invocation.getArgument(1), invocation.getArgument(2), invocation.getArgument(3)));
 		registry = new Metric2Registry();
 		when(corePlugin.getMetricRegistry()).thenReturn(registry);
 		spanLogger = mock(Logger.class);
@@ -0,0 +1,116 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkSizeControllerTest {
+
+	private final BulkSizeController controller = new BulkSizeController(1024 * 1024, 1000, 4);
+
+	@Test
+	public void testGrowWhenFast() throws Exception {
+		final int initialSize = controller.getTargetBatchSizeBytes();
+		completeBulk(initialSize, 10, false);
+		assertThat(controller.getTargetBatchSizeBytes()).isGreaterThan(initialSize);
+	}
+
+	@Test
+	public void testDontGrowWhenBatchWasNotFull() throws Exception {
+		final int initialSize = controller.getTargetBatchSizeBytes();
+		completeBulk(initialSize / 2, 10, false);
+		assertThat(controller.getTargetBatchSizeBytes()).isEqualTo(initialSize);
+	}
+
+	@Test
+	public void testNeverExceedMaxSize() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			completeBulk(controller.getTargetBatchSizeBytes(), 10, false);
+		}
+		assertThat(controller.getTargetBatchSizeBytes()).isEqualTo(1024 * 1024);
+	}
+
+	@Test
+	public void testShrinkWhenSlow() throws Exception {
+		final int initialSize = controller.getTargetBatchSizeBytes();
+		completeBulk(initialSize, 2000, false);
+		assertThat(controller.getTargetBatchSizeBytes()).isEqualTo(initialSize / 2);
+	}
+
+	@Test
+	public void testShrinkWhenRejected() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		}
+		assertThat(controller.getTargetBatchSizeBytes()).isEqualTo(BulkSizeController.MIN_BATCH_SIZE_BYTES);
+	}
+
+	@Test
+	public void testHalveConcurrentRequestsWhenRejected() throws Exception {
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(4);
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(2);
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(1);
+	}
+
+	@Test
+	public void testRecoverConcurrentRequestsWhenAccepted() throws Exception {
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(1);
+
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, false);
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(2);
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, false);
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(2);
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, false);
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(3);
+		for (int i = 0; i < 100; i++) {
+			completeBulk(controller.getTargetBatchSizeBytes(), 10, false);
+		}
+		assertThat(controller.getConcurrentRequestsLimit()).isEqualTo(4);
+	}
+
+	@Test(timeout = 10000)
+	public void testWaitForFreeRequestSlot() throws Exception {
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		completeBulk(controller.getTargetBatchSizeBytes(), 10, true);
+		controller.acquireRequest();
+
+		final Thread waiting = new Thread(() -> {
+			try {
+				controller.acquireRequest();
+				controller.onBulkFailed();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		waiting.start();
+		while (waiting.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		controller.onBulkFailed();
+		waiting.join();
+	}
+
+	private void completeBulk(int batchSizeBytes, long latencyMs, boolean rejected) throws InterruptedException {
+		controller.acquireRequest();
+		controller.onBulkCompleted(batchSizeBytes, latencyMs, rejected);
+	}
+
+	@Test
+	public void testBulkBuffer() throws Exception {
+		final ElasticsearchSpanReporter.BulkBuffer bulkBuffer = new ElasticsearchSpanReporter.BulkBuffer();
+		bulkBuffer.addItem(os -> os.write("foo\n".getBytes("UTF-8")));
+		bulkBuffer.addItem("bar\n".getBytes("UTF-8"), 2, null);
+		bulkBuffer.addItem(os -> os.write("baz\n".getBytes("UTF-8")));
+		bulkBuffer.removeLastItem();
+
+		assertThat(bulkBuffer.getItemCount()).isEqualTo(2);
+		assertThat(new String(bulkBuffer.getItem(1), "UTF-8")).isEqualTo("bar\n");
+		assertThat(bulkBuffer.getAttempts(1)).isEqualTo(2);
+		assertThat(bulkBuffer.toString("UTF-8")).isEqualTo("foo\nbar\n");
+	}
+}
@@ -11,6 +11,7 @@ import org.stagemonitor.configuration.ConfigurationRegistry;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.tracing.B3HeaderFormat;
+import org.stagemonitor.tracing.B3IdentifierTagger;
 import org.stagemonitor.tracing.TracingPlugin;
 import org.stagemonitor.tracing.reporter.ReportingSpanEventListener;
 import org.stagemonitor.tracing.sampling.SamplePriorityDeterminingSpanEventListener;
@@ -113,15 +114,67 @@ public class ElasticsearchSpanReporterIntegrationTest extends AbstractElasticsea
 
 		span.finish();
 		elasticsearchClient.waitForCompletion();
+
+		// the span is looked up after a backoff until it has been indexed
+		JsonNode spanJson = null;
+		for (long timeout = System.currentTimeMillis() + 10000; System.currentTimeMillis() < timeout; Thread.sleep(100)) {
+			refresh();
+			final JsonNode hits = elasticsearchClient.getJson("/stagemonitor-spans*/_search").get("hits");
+			assertThat(hits.get("total").intValue()).as(hits.toString()).isEqualTo(1);
+			spanJson = hits.get("hits").elements().next().get("_source");
+			if (spanJson.has("foo")) {
+				break;
+			}
+		}
+		assertThat(spanJson.get("foo")).as(spanJson.toString()).isNotNull();
+		assertThat(spanJson.get("foo").asText()).as(spanJson.toString()).isEqualTo("bar");
+	}
+
+	@Test
+	public void testUpdateSpanWhichIsNoServerSpan_searchesForSpan() throws Exception {
+		final Span span = tracer.buildSpan("Test#test")
+				.withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+				.start();
+		span.finish();
+		elasticsearchClient.waitForCompletion();
 		refresh();
 
-		reporter.getUpdateReporter().flush();
+		reporter.updateSpan(B3HeaderFormat.getB3Identifiers(tracer, span), null, Collections.singletonMap("foo", "bar"));
+
+		// the update of the server span fails and the span is looked up after a backoff
+		JsonNode spanJson = null;
+		for (long timeout = System.currentTimeMillis() + 10000; System.currentTimeMillis() < timeout; Thread.sleep(100)) {
+			refresh();
+			final JsonNode hits = elasticsearchClient.getJson("/stagemonitor-spans*/_search").get("hits");
+			assertThat(hits.get("total").intValue()).as(hits.toString()).isEqualTo(1);
+			spanJson = hits.get("hits").elements().next().get("_source");
+			if (spanJson.has("foo")) {
+				break;
+			}
+		}
+		assertThat(spanJson.get("foo")).as(spanJson.toString()).isNotNull();
+		assertThat(spanJson.get("foo").asText()).as(spanJson.toString()).isEqualTo("bar");
+	}
+
+	@Test
+	public void testUpdateDoesNotMergeClientAndServerSpan() throws Exception {
+		final Span serverSpan = tracer.buildSpan("Test#server")
+				.withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER)
+				.start();
+		final B3HeaderFormat.B3Identifiers serverIdentifiers = B3HeaderFormat.getB3Identifiers(tracer, serverSpan);
+		serverSpan.finish();
+		final Span clientSpan = tracer.buildSpan("Test#client")
+				.withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+				.start();
+		// the client span of a remote call shares its span id with the server span
+		clientSpan.setTag(B3IdentifierTagger.TRACE_ID, serverIdentifiers.getTraceId());
+		clientSpan.setTag(B3IdentifierTagger.SPAN_ID, serverIdentifiers.getSpanId());
+		clientSpan.finish();
+		elasticsearchClient.waitForCompletion();
 		refresh();
 
 		final JsonNode hits = elasticsearchClient.getJson("/stagemonitor-spans*/_search").get("hits");
-		assertThat(hits.get("total").intValue()).as(hits.toString()).isEqualTo(1);
-		final JsonNode spanJson = hits.get("hits").elements().next().get("_source");
-		assertThat(spanJson.get("foo").asText()).as(spanJson.toString()).isEqualTo("bar");
+		assertThat(hits.get("total").intValue()).as(hits.toString()).isEqualTo(2);
 	}
 
 	private void validateSpanJson(JsonNode spanJson) {
@@ -1,22 +1,34 @@
 package org.stagemonitor.tracing.elasticsearch;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
+import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.util.HttpClient.OutputStreamHandler;
+import org.stagemonitor.tracing.B3IdentifierTagger;
 import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.reporter.SpanReporter;
 import org.stagemonitor.tracing.utils.SpanUtils;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
 import org.stagemonitor.util.StringUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import io.opentracing.Span;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.tag.Tags;
 
@@ -55,8 +67,96 @@ public class ElasticsearchSpanReporterTest extends AbstractElasticsearchSpanRepo
 		final List<MockSpan> sampledSpans = getSampledSpans();
 		assertThat(sampledSpans).hasSize(1);
 		Mockito.verify(httpClient, Mockito.times(0)).send(any(), any(), any(), any(), any());
-		Mockito.verify(spanLogger).info(ArgumentMatchers.startsWith("{\"index\":{\"_index\":\"stagemonitor-spans-" + StringUtils.getLogstashStyleDate() + "\",\"_type\":\"spans\"}}\n"));
+		Mockito.verify(spanLogger).info(ArgumentMatchers.startsWith("{\"index\":{\"_index\":\"stagemonitor-spans-1970.01.01\",\"_type\":\"spans\""));
+		Assert.assertTrue(reporter.isActive(spanContext));
+	}
+
+	@Test
+	public void testSpillSpansWhileElasticsearchIsNotAvailable() throws Exception {
+		Mockito.when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(false);
+		Mockito.when(elasticsearchClient.isSpillingEnabled()).thenReturn(true);
+
+		final SpanContextInformation spanContext = reportSpanWithCallTree(1000, "Report Me");
+
 		Assert.assertTrue(reporter.isActive(spanContext));
+		Mockito.verify(elasticsearchClient).spillBulk(ArgumentMatchers.eq("/_bulk"), any());
+		Mockito.verify(httpClient, Mockito.times(0)).send(any(), any(), any(), any(), any());
+	}
+
+	@Test
+	public void testIndexSpanIntoIndexOfStartDay() throws Exception {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Mockito.when(elasticsearchClient.sendBulk(any(), any(), any(), any())).then(invocation -> {
+			// the bulk buffer is reused after the request
+			invocation.<OutputStreamHandler>getArgument(2).withHttpURLConnection(output);
+			return null;
+		});
+
+		reportSpanWithCallTree(1000, "Report Me");
+
+		Mockito.verify(elasticsearchClient).sendBulk(ArgumentMatchers.eq("/_bulk"), any(), any(), any());
+		assertThat(output.toString()).startsWith("{\"index\":{\"_index\":\"stagemonitor-spans-1970.01.01\",\"_type\":\"spans\"");
+	}
+
+	@Test
+	public void testReportBatchInOneBulkRequest() throws Exception {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Mockito.when(elasticsearchClient.sendBulk(any(), any(), any(), any())).then(invocation -> {
+			invocation.<OutputStreamHandler>getArgument(2).withHttpURLConnection(output);
+			return null;
+		});
+
+		reporter.report(Arrays.asList(spanContext("1", "2"), spanContext("1", "3")));
+
+		Mockito.verify(elasticsearchClient).sendBulk(ArgumentMatchers.eq("/_bulk"), any(), any(), any());
+		assertThat(output.toString()).contains("\"_id\":\"1-2-server\"").contains("\"_id\":\"1-3-server\"");
+	}
+
+	private static SpanContextInformation spanContext(String traceId, String spanId) {
+		final Map<String, Object> tags = new HashMap<>();
+		tags.put(B3IdentifierTagger.TRACE_ID, traceId);
+		tags.put(B3IdentifierTagger.SPAN_ID, spanId);
+		tags.put(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER);
+		final SpanContextInformation spanContext = Mockito.mock(SpanContextInformation.class);
+		Mockito.when(spanContext.getSpanWrapper()).thenReturn(spanWrapper(tags));
+		return spanContext;
+	}
+
+	@Test
+	public void testGetIndexName() throws Exception {
+		assertThat(ElasticsearchSpanReporter.getIndexName(0)).isEqualTo("stagemonitor-spans-1970.01.01");
+		assertThat(ElasticsearchSpanReporter.getIndexName(System.currentTimeMillis()))
+				.isEqualTo("stagemonitor-spans-" + StringUtils.getLogstashStyleDate());
+		assertThat(ElasticsearchSpanReporter.getIndexName(TimeUnit.DAYS.toMillis(1) - 1)).isEqualTo("stagemonitor-spans-1970.01.01");
+		assertThat(ElasticsearchSpanReporter.getIndexName(TimeUnit.DAYS.toMillis(1))).isEqualTo("stagemonitor-spans-1970.01.02");
+	}
+
+	@Test
+	public void testDocumentIdContainsSpanKind() throws Exception {
+		final Map<String, Object> serverTags = new HashMap<>();
+		serverTags.put(B3IdentifierTagger.TRACE_ID, "1");
+		serverTags.put(B3IdentifierTagger.SPAN_ID, "2");
+		serverTags.put(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER);
+		final Map<String, Object> clientTags = new HashMap<>(serverTags);
+		clientTags.put(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT);
+
+		assertThat(ElasticsearchSpanReporter.getDocumentId(spanWrapper(serverTags))).isEqualTo("1-2-server");
+		assertThat(ElasticsearchSpanReporter.getDocumentId(spanWrapper(clientTags))).isEqualTo("1-2-client");
+		assertThat(ElasticsearchSpanReporter.getDocumentId(spanWrapper(Collections.singletonMap(B3IdentifierTagger.TRACE_ID, "1")))).isNull();
+	}
+
+	private static SpanWrapper spanWrapper(Map<String, Object> tags) {
+		return new SpanWrapper(Mockito.mock(Span.class), "test", 0, 0, Collections.emptyList(), tags);
+	}
+
+	@Test
+	public void testInactiveWhileElasticsearchIsNotAvailableWithoutSpilling() throws Exception {
+		Mockito.when(elasticsearchClient.isElasticsearchAvailable()).thenReturn(false);
+
+		final SpanContextInformation spanContext = reportSpanWithCallTree(1000, "Report Me");
+
+		Assert.assertFalse(reporter.isActive(spanContext));
+		Mockito.verify(elasticsearchClient, Mockito.times(0)).spillBulk(any(), any());
 	}
 
 	@Test
@@ -146,11 +246,39 @@ public class ElasticsearchSpanReporterTest extends AbstractElasticsearchSpanRepo
 	@Test
 	public void testToBulkUpdateBytes() throws Exception {
 		final ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler bulkUpdateOutputStreamHandler =
-				new ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler("test-id", Collections.singletonMap("foo", "bar"));
+				new ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler("1", "2", "test-index", "test-id",
+						Collections.singletonMap("foo", "bar"), false, Long.MAX_VALUE);
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
 		bulkUpdateOutputStreamHandler.withHttpURLConnection(output);
 		assertThat(output.toString())
-				.isEqualTo("{\"update\":{\"_id\":\"test-id\"}}\n" +
+				.isEqualTo("{\"update\":{\"_index\":\"test-index\",\"_type\":\"spans\",\"_id\":\"test-id\"}}\n" +
 						"{\"doc\":{\"foo\":\"bar\"}}\n");
 	}
+
+	@Test
+	public void testToBulkUpdateBytesSmile() throws Exception {
+		final ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler bulkUpdateOutputStreamHandler =
+				new ElasticsearchUpdateSpanReporter.BulkUpdateOutputStreamHandler("1", "2", "test-index", "test-id",
+						Collections.singletonMap("foo", "bar"), true, Long.MAX_VALUE);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		bulkUpdateOutputStreamHandler.withHttpURLConnection(output);
+
+		final byte[] bytes = output.toByteArray();
+		final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+		final int separator = indexOf(bytes, (byte) ElasticsearchClient.SMILE_STREAM_SEPARATOR);
+		assertThat(bytes[bytes.length - 1]).isEqualTo((byte) ElasticsearchClient.SMILE_STREAM_SEPARATOR);
+		assertThat(smileMapper.readTree(Arrays.copyOfRange(bytes, 0, separator)).toString())
+				.isEqualTo("{\"update\":{\"_index\":\"test-index\",\"_type\":\"spans\",\"_id\":\"test-id\"}}");
+		assertThat(smileMapper.readTree(Arrays.copyOfRange(bytes, separator + 1, bytes.length - 1)).toString())
+				.isEqualTo("{\"doc\":{\"foo\":\"bar\"}}");
+	}
+
+	private static int indexOf(byte[] bytes, byte b) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
 }
@@ -0,0 +1,39 @@
+package org.stagemonitor.tracing.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanFlushingRunnableTest {
+
+	@Test
+	public void testSubmitOnlyOnce() throws Exception {
+		final AtomicInteger flushes = new AtomicInteger();
+		final SpanFlushingRunnable spanFlushingRunnable = new SpanFlushingRunnable(() -> {
+			flushes.incrementAndGet();
+			return false;
+		});
+
+		assertThat(spanFlushingRunnable.trySubmit()).isTrue();
+		assertThat(spanFlushingRunnable.trySubmit()).isFalse();
+		spanFlushingRunnable.run();
+		assertThat(flushes.get()).isEqualTo(1);
+		assertThat(spanFlushingRunnable.trySubmit()).isTrue();
+	}
+
+	@Test
+	public void testDontSubmitWhileRunning() throws Exception {
+		final AtomicBoolean submittedWhileRunning = new AtomicBoolean(true);
+		final SpanFlushingRunnable[] spanFlushingRunnable = new SpanFlushingRunnable[1];
+		spanFlushingRunnable[0] = new SpanFlushingRunnable(() -> {
+			submittedWhileRunning.set(spanFlushingRunnable[0].trySubmit());
+			return false;
+		});
+
+		spanFlushingRunnable[0].run();
+		assertThat(submittedWhileRunning.get()).isFalse();
+	}
+}
@@ -5,24 +5,26 @@ import org.stagemonitor.tracing.profiler.CallStackElement;
 import org.stagemonitor.tracing.sampling.PostExecutionInterceptorContext;
 import org.stagemonitor.tracing.sampling.PreExecutionInterceptorContext;
 import org.stagemonitor.tracing.utils.SpanUtils;
-import org.stagemonitor.tracing.wrapper.AbstractSpanEventListener;
-import org.stagemonitor.tracing.wrapper.SpanEventListener;
-import org.stagemonitor.tracing.wrapper.SpanEventListenerFactory;
 import org.stagemonitor.tracing.wrapper.SpanWrapper;
 import org.stagemonitor.tracing.wrapper.StatelessSpanEventListener;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.WeakHashMap;
 
 import io.opentracing.Span;
 import io.opentracing.util.GlobalTracer;
 
 public class SpanContextInformation {
 
-	private static final ConcurrentHashMap<Span, SpanContextInformation> spanContextMap =
-			new ConcurrentHashMap<Span, SpanContextInformation>();
+	/**
+	 * Only used for spans which are not a {@link SpanWrapper}, the information of a {@link SpanWrapper} is attached to
+	 * the span itself
+	 */
+	private static final Map<Span, SpanContextInformation> unwrappedSpanContextMap =
+			Collections.synchronizedMap(new WeakHashMap<Span, SpanContextInformation>());
 
 	private long overhead1;
 	private SpanContextInformation parent;
@@ -45,17 +47,34 @@ public class SpanContextInformation {
 	 * Gets or creates the {@link SpanContextInformation} for the provided span.
 	 */
 	public static SpanContextInformation forSpan(Span span) {
-		if (span != null) {
-			if (!spanContextMap.containsKey(span)) {
-				spanContextMap.putIfAbsent(span, new SpanContextInformation());
+		if (span instanceof SpanWrapper) {
+			final SpanWrapper spanWrapper = (SpanWrapper) span;
+			final SpanContextInformation info = spanWrapper.getSpanContextInformation();
+			if (info != null) {
+				return info;
+			}
+			// concurrent callers have to end up with the same instance
+			return spanWrapper.setSpanContextInformationIfAbsent(new SpanContextInformation());
+		} else if (span != null) {
+			synchronized (unwrappedSpanContextMap) {
+				SpanContextInformation info = unwrappedSpanContextMap.get(span);
+				if (info == null) {
+					info = new SpanContextInformation();
+					unwrappedSpanContextMap.put(span, info);
+				}
+				return info;
 			}
-			return spanContextMap.get(span);
 		}
 		return null;
 	}
 
 	public static SpanContextInformation get(Span span) {
-		return spanContextMap.get(span);
+		if (span instanceof SpanWrapper) {
+			return ((SpanWrapper) span).getSpanContextInformation();
+		} else if (span != null) {
+			return unwrappedSpanContextMap.get(span);
+		}
+		return null;
 	}
 
 	public String getOperationName() {
@@ -190,32 +209,24 @@ public class SpanContextInformation {
 		}
 	}
 
-	public static class SpanContextSpanEventListener extends AbstractSpanEventListener implements SpanEventListenerFactory {
-
-		private SpanContextInformation info;
+	public static class SpanContextSpanEventListener extends StatelessSpanEventListener {
 
 		@Override
 		public void onStart(SpanWrapper spanWrapper) {
-			info = SpanContextInformation.forSpan(spanWrapper);
+			final SpanContextInformation info = SpanContextInformation.forSpan(spanWrapper);
 			info.spanWrapper = spanWrapper;
 			info.setParent(SpanContextInformation.getCurrent());
 
-			spanContextMap.put(spanWrapper, info);
 			for (Map.Entry<String, String> entry : Stagemonitor.getMeasurementSession().asMap().entrySet()) {
 				spanWrapper.setTag(entry.getKey(), entry.getValue());
 			}
 		}
-
-		@Override
-		public SpanEventListener create() {
-			return new SpanContextSpanEventListener();
-		}
 	}
 
 	public static class SpanFinalizer extends StatelessSpanEventListener {
 		@Override
 		public void onFinish(SpanWrapper spanWrapper, String operationName, long durationNanos) {
-			spanContextMap.remove(spanWrapper);
+			spanWrapper.setSpanContextInformation(null);
 		}
 	}
 }
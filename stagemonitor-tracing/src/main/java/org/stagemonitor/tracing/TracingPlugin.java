@@ -10,7 +10,6 @@ import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.StagemonitorPlugin;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
-import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.tracing.anonymization.AnonymizingSpanEventListener;
 import org.stagemonitor.tracing.impl.DefaultTracerFactory;
 import org.stagemonitor.tracing.mdc.MDCSpanEventListener;
@@ -36,7 +35,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.regex.Pattern;
 
 import io.opentracing.Span;
@@ -222,7 +220,10 @@ public class TracingPlugin extends StagemonitorPlugin {
 					.key("stagemonitor.tracing.metrics.async")
 					.dynamic(true)
 					.label("Track Metrics Async")
-					.description("Set to true to track response time metrics asynchronously.")
+					.description("Set to true to track response time metrics asynchronously. " +
+							"This reduces the contention on the locks of the default reservoir of the response time timers. " +
+							"If stagemonitor.metrics.reservoir is set to HDR_HISTOGRAM, updating the timers is lock-free " +
+							"and this can be set to false.")
 					.configurationCategory(TRACING_PLUGIN)
 					.tags("metircs", "advanced")
 					.buildWithDefault(true);
@@ -351,6 +352,69 @@ public class TracingPlugin extends StagemonitorPlugin {
 					.tags("external-requests", "sampling")
 					.configurationCategory(TRACING_PLUGIN)
 					.buildWithDefault(0d);
+	private final ConfigurationOption<Boolean> tailSamplingEnabled = ConfigurationOption.booleanOption()
+					.key("stagemonitor.tracing.sampling.tail.enabled")
+					.dynamic(false)
+					.label("Enable tail-based sampling")
+					.description("When enabled, the spans of a trace are buffered until the local root span has finished. " +
+									"Then it is decided whether the trace is reported or discarded as a whole: traces which contain an error " +
+									"and traces whose root span is a latency outlier are always kept, of the other traces only a baseline " +
+									"percentage is kept (see 'stagemonitor.tracing.sampling.tail.baselinePercent').\n" +
+									"\n" +
+									"Note that only spans which have been sampled by the regular sampling mechanisms reach the buffer. " +
+									"So you probably want to set 'stagemonitor.tracing.sampling.percent.default' to 1 when enabling this.")
+					.tags("sampling")
+					.configurationCategory(TRACING_PLUGIN)
+					.buildWithDefault(false);
+	private final ConfigurationOption<Double> tailSamplingBaselinePercent = ConfigurationOption.doubleOption()
+					.key("stagemonitor.tracing.sampling.tail.baselinePercent")
+					.dynamic(true)
+					.label("Tail-based sampling: baseline probability in %")
+					.description("The percentage of the traces without errors and latency outliers which are reported when " +
+									"tail-based sampling is enabled. When set to '0.1', 10% of these traces will be reported.")
+					.tags("sampling")
+					.addValidator(new ConfigurationOption.Validator<Double>() {
+						@Override
+						public void assertValid(Double rate) {
+							checkArgument(rate >= 0.0 && rate <= 1, "rate should be between 0 and 1: was %s", rate);
+						}
+					})
+					.configurationCategory(TRACING_PLUGIN)
+					.buildWithDefault(0.1);
+	private final ConfigurationOption<Double> tailSamplingLatencyOutlierDeviations = ConfigurationOption.doubleOption()
+					.key("stagemonitor.tracing.sampling.tail.latencyOutlierDeviations")
+					.dynamic(true)
+					.label("Tail-based sampling: latency outlier threshold")
+					.description("A trace is considered to be a latency outlier, when the duration of its root span is more than " +
+									"x mean deviations above the moving average duration of the root spans with the same operation name.")
+					.tags("sampling")
+					.addValidator(new ConfigurationOption.Validator<Double>() {
+						@Override
+						public void assertValid(Double deviations) {
+							checkArgument(deviations >= 0.0, "deviations should not be negative: was %s", deviations);
+						}
+					})
+					.configurationCategory(TRACING_PLUGIN)
+					.buildWithDefault(3d);
+	private final ConfigurationOption<Integer> tailSamplingMaxBufferedSpans = ConfigurationOption.integerOption()
+					.key("stagemonitor.tracing.sampling.tail.maxBufferedSpans")
+					.dynamic(false)
+					.label("Tail-based sampling: maximum number of buffered spans")
+					.description("Caps the memory used by tail-based sampling. When the limit is reached, the oldest traces are " +
+									"decided early with the spans which have been buffered so far. The number of evicted traces is reported " +
+									"via the metric 'tail_sampling_evicted'.")
+					.tags("sampling")
+					.configurationCategory(TRACING_PLUGIN)
+					.buildWithDefault(10000);
+	private final ConfigurationOption<Integer> tailSamplingWindowSeconds = ConfigurationOption.integerOption()
+					.key("stagemonitor.tracing.sampling.tail.windowSeconds")
+					.dynamic(false)
+					.label("Tail-based sampling: time window in seconds")
+					.description("The maximum time the spans of a trace are buffered. When the local root span has not finished " +
+									"within this time, the trace is decided with the spans which have been buffered so far.")
+					.tags("sampling")
+					.configurationCategory(TRACING_PLUGIN)
+					.buildWithDefault(30);
 
 	private static RequestMonitor requestMonitor;
 
@@ -448,8 +512,8 @@ public class TracingPlugin extends StagemonitorPlugin {
 		for (SpanEventListenerFactory spanEventListenerFactory : spanInterceptorFactories) {
 			spanWrappingTracer.addEventListenerFactory(spanEventListenerFactory);
 		}
-		final ThreadPoolExecutor singleThreadDeamonPool = ExecutorUtils.createSingleThreadDeamonPool("metric-tracking", 1000, corePlugin);
-		final MetricsSpanEventListener spanEventListener = new MetricsSpanEventListener(metricRegistry, singleThreadDeamonPool, tracingPlugin);
+		final MetricsSpanEventListener spanEventListener = new MetricsSpanEventListener(metricRegistry, tracingPlugin);
+		corePlugin.closeOnShutdown(spanEventListener);
 		spanWrappingTracer.addEventListenerFactory(spanEventListener);
 		spanWrappingTracer.addEventListenerFactory(new CallTreeSpanEventListener(corePlugin.getMetricRegistry(), tracingPlugin));
 		spanWrappingTracer.addEventListenerFactory(new AnonymizingSpanEventListener(tracingPlugin));
@@ -604,6 +668,26 @@ public class TracingPlugin extends StagemonitorPlugin {
 		return excludeExternalRequestsFasterThan.getValue();
 	}
 
+	public boolean isTailSamplingEnabled() {
+		return tailSamplingEnabled.getValue();
+	}
+
+	public double getTailSamplingBaselinePercent() {
+		return tailSamplingBaselinePercent.getValue();
+	}
+
+	public double getTailSamplingLatencyOutlierDeviations() {
+		return tailSamplingLatencyOutlierDeviations.getValue();
+	}
+
+	public int getTailSamplingMaxBufferedSpans() {
+		return tailSamplingMaxBufferedSpans.getValue();
+	}
+
+	public int getTailSamplingWindowSeconds() {
+		return tailSamplingWindowSeconds.getValue();
+	}
+
 	public boolean isReportAsync() {
 		return reportSpansAsync.getValue();
 	}
@@ -6,6 +6,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
+import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.core.util.MpscRingBuffer;
 import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.TracingPlugin;
 import org.stagemonitor.tracing.utils.SpanUtils;
@@ -15,9 +17,9 @@ import org.stagemonitor.util.StringUtils;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import io.opentracing.Span;
 import io.opentracing.tag.Tags;
@@ -44,14 +46,42 @@ public class MetricsSpanEventListener extends StatelessSpanEventListener impleme
 	private static final MetricName.MetricNameTemplate externalRequestRateTemplate = name("external_requests_rate")
 			.templateFor("operation_name");
 
+	/**
+	 * Counts the spans whose metrics had to be tracked synchronously because the ring buffer of the metric tracking
+	 * thread was full
+	 */
+	static final MetricName METRIC_TRACKING_OVERFLOW = name("metric_tracking_overflow").build();
+	private static final int RING_BUFFER_CAPACITY = 1024;
+	private static final int MAX_BATCH_SIZE = 256;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
 	private final Metric2Registry metricRegistry;
-	private final ThreadPoolExecutor executorService;
 	private final TracingPlugin tracingPlugin;
+	private final MpscRingBuffer<ResponseTimeEvent> ringBuffer;
+	private final MpscRingBuffer.EventHandler<ResponseTimeEvent> responseTimeEventHandler = new MpscRingBuffer.EventHandler<ResponseTimeEvent>() {
+		@Override
+		public void onEvent(ResponseTimeEvent event) {
+			trackResponseTimeMetrics(event.error, event.operationName, event.durationNanos, event.operationType, event.trackMetricsByOperationName);
+		}
+	};
+	private final AtomicBoolean started = new AtomicBoolean();
+	private volatile Thread metricTrackingThread;
+	private volatile boolean waiting;
+	private volatile boolean running = true;
 
-	public MetricsSpanEventListener(Metric2Registry metricRegistry, ThreadPoolExecutor executorService, TracingPlugin tracingPlugin) {
+	public MetricsSpanEventListener(Metric2Registry metricRegistry, TracingPlugin tracingPlugin) {
+		this(metricRegistry, tracingPlugin, RING_BUFFER_CAPACITY);
+	}
+
+	MetricsSpanEventListener(Metric2Registry metricRegistry, TracingPlugin tracingPlugin, int ringBufferCapacity) {
 		this.metricRegistry = metricRegistry;
-		this.executorService = executorService;
 		this.tracingPlugin = tracingPlugin;
+		this.ringBuffer = new MpscRingBuffer<ResponseTimeEvent>(ringBufferCapacity, new MpscRingBuffer.EventFactory<ResponseTimeEvent>() {
+			@Override
+			public ResponseTimeEvent newEvent() {
+				return new ResponseTimeEvent();
+			}
+		});
 	}
 
 	@Override
@@ -71,23 +101,22 @@ public class MetricsSpanEventListener extends StatelessSpanEventListener impleme
 	}
 
 	private void trackResponseTimeMetricsAsync(final String operationName, final long durationNanos, final boolean error, final String operationType, final boolean trackMetricsByOperationName) {
-		try {
-			// tracking metrics in a single thread to reduce latency and contention of the locks in ExponentiallyDecayingReservoir
-			if (tracingPlugin.isTrackMetricsAsync() && executorService.getQueue().remainingCapacity() != 0) {
-				executorService.submit(new Runnable() {
-					@Override
-					public void run() {
-						trackResponseTimeMetrics(error, operationName, durationNanos, operationType, trackMetricsByOperationName);
-					}
-				});
-			} else {
-				trackResponseTimeMetrics(error, operationName, durationNanos, operationType, trackMetricsByOperationName);
+		// tracking metrics in a single thread to reduce latency and contention of the locks in ExponentiallyDecayingReservoir
+		// not needed when the lock-free HdrHistogramReservoir is used (see stagemonitor.metrics.reservoir)
+		if (tracingPlugin.isTrackMetricsAsync() && running) {
+			startIfNecessary();
+			final long sequence = ringBuffer.tryClaim();
+			if (sequence >= 0) {
+				ringBuffer.get(sequence).set(operationName, operationType, durationNanos, error, trackMetricsByOperationName);
+				ringBuffer.publish(sequence);
+				if (waiting) {
+					LockSupport.unpark(metricTrackingThread);
+				}
+				return;
 			}
-		} catch (RejectedExecutionException e) {
-			// race condition
-			logger.warn("Queue for metric tracking executor service is full, tracking metric synchronously");
-			trackResponseTimeMetrics(error, operationName, durationNanos, operationType, trackMetricsByOperationName);
+			metricRegistry.counter(METRIC_TRACKING_OVERFLOW).inc();
 		}
+		trackResponseTimeMetrics(error, operationName, durationNanos, operationType, trackMetricsByOperationName);
 	}
 
 	private void trackResponseTimeMetrics(boolean error, String operationName, long durationNanos, String operationType, boolean trackMetricsByOperationName) {
@@ -102,10 +131,12 @@ public class MetricsSpanEventListener extends StatelessSpanEventListener impleme
 			}
 			metricRegistry.meter(getErrorMetricName("All", operationType)).mark();
 		} else {
+			// only make sure the error rate exists; mark(0) does not change the count or the rates
+			// but still writes to the contended counters of the meter
 			if (trackMetricsByOperationName) {
-				metricRegistry.meter(getErrorMetricName(operationName, operationType)).mark(0);
+				metricRegistry.meter(getErrorMetricName(operationName, operationType));
 			}
-			metricRegistry.meter(getErrorMetricName("All", operationType)).mark(0);
+			metricRegistry.meter(getErrorMetricName("All", operationType));
 		}
 	}
 
@@ -153,8 +184,77 @@ public class MetricsSpanEventListener extends StatelessSpanEventListener impleme
 		return null;
 	}
 
+	/**
+	 * The metric tracking thread is only started when metrics are tracked asynchronously for the first time
+	 */
+	private void startIfNecessary() {
+		if (!started.get() && started.compareAndSet(false, true)) {
+			final Thread thread = new ExecutorUtils.NamedThreadFactory("metric-tracking").newThread(new Runnable() {
+				@Override
+				public void run() {
+					trackQueuedResponseTimeMetrics();
+				}
+			});
+			metricTrackingThread = thread;
+			thread.start();
+		}
+	}
+
+	private void trackQueuedResponseTimeMetrics() {
+		while (true) {
+			try {
+				if (ringBuffer.drain(responseTimeEventHandler, MAX_BATCH_SIZE) > 0) {
+					continue;
+				}
+			} catch (RuntimeException e) {
+				logger.warn("Error while tracking metrics", e);
+				continue;
+			}
+			if (!running) {
+				// all events which have been published before closing have been handled
+				return;
+			}
+			waitForEvents();
+		}
+	}
+
+	/**
+	 * Parks the thread until a producer unparks it. The timeout is only a safety net.
+	 */
+	private void waitForEvents() {
+		waiting = true;
+		if (ringBuffer.size() == 0 && running) {
+			LockSupport.parkNanos(this, MAX_PARK_NANOS);
+		}
+		waiting = false;
+	}
+
 	@Override
 	public void close() throws IOException {
-		executorService.shutdown();
+		running = false;
+		final Thread thread = metricTrackingThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * The preallocated and reused event which holds the values of a finished span that are needed to track the
+	 * response time metrics
+	 */
+	private static class ResponseTimeEvent {
+		private String operationName;
+		private String operationType;
+		private long durationNanos;
+		private boolean error;
+		private boolean trackMetricsByOperationName;
+
+		private void set(String operationName, String operationType, long durationNanos, boolean error, boolean trackMetricsByOperationName) {
+			this.operationName = operationName;
+			this.operationType = operationType;
+			this.durationNanos = durationNanos;
+			this.error = error;
+			this.trackMetricsByOperationName = trackMetricsByOperationName;
+		}
 	}
 }
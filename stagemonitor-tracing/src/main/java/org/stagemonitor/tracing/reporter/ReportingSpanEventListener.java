@@ -4,36 +4,42 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 import org.stagemonitor.core.CorePlugin;
-import org.stagemonitor.core.util.CompletedFuture;
-import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.tracing.B3HeaderFormat;
 import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.TracingPlugin;
+import org.stagemonitor.tracing.sampling.TailSamplingSpanBuffer;
 import org.stagemonitor.tracing.wrapper.SpanWrapper;
 import org.stagemonitor.tracing.wrapper.StatelessSpanEventListener;
 
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.RejectedExecutionException;
 
 public class ReportingSpanEventListener extends StatelessSpanEventListener {
 
 	private static final Logger logger = LoggerFactory.getLogger(ReportingSpanEventListener.class);
 
 	private final TracingPlugin tracingPlugin;
-	private final ExecutorService asyncSpanReporterPool;
+	private final CorePlugin corePlugin;
 	private final List<SpanReporter> spanReporters = new CopyOnWriteArrayList<SpanReporter>();
+	private final List<SpanReporterConsumer> spanReporterConsumers = new CopyOnWriteArrayList<SpanReporterConsumer>();
 	private final ConfigurationRegistry configuration;
+	private final TailSamplingSpanBuffer tailSamplingSpanBuffer;
 
 	public ReportingSpanEventListener(ConfigurationRegistry configuration) {
 		this.configuration = configuration;
 		this.tracingPlugin = configuration.getConfig(TracingPlugin.class);
-		final CorePlugin corePlugin = configuration.getConfig(CorePlugin.class);
-		this.asyncSpanReporterPool = ExecutorUtils
-				.createSingleThreadDeamonPool("async-request-reporter", corePlugin.getThreadPoolQueueCapacityLimit(), corePlugin);
+		this.corePlugin = configuration.getConfig(CorePlugin.class);
+		if (tracingPlugin.isTailSamplingEnabled()) {
+			tailSamplingSpanBuffer = new TailSamplingSpanBuffer(tracingPlugin, corePlugin, new TailSamplingSpanBuffer.Reporter() {
+				@Override
+				public void report(SpanContextInformation spanContext) {
+					ReportingSpanEventListener.this.report(spanContext, spanContext.getSpanWrapper());
+				}
+			});
+		} else {
+			tailSamplingSpanBuffer = null;
+		}
 	}
 
 	@Override
@@ -41,29 +47,24 @@ public class ReportingSpanEventListener extends StatelessSpanEventListener {
 		final SpanContextInformation info = SpanContextInformation.forSpan(spanWrapper);
 		if (tracingPlugin.isSampled(spanWrapper)) {
 			try {
-				report(info, spanWrapper);
+				if (tailSamplingSpanBuffer != null) {
+					tailSamplingSpanBuffer.add(info);
+				} else {
+					report(info, spanWrapper);
+				}
 			} catch (Exception e) {
 				logger.warn(e.getMessage() + " (this exception is ignored) " + info.toString(), e);
 			}
 		}
 	}
 
-	private Future<?> report(final SpanContextInformation spanContext, final SpanWrapper spanWrapper) {
-		try {
-			if (tracingPlugin.isReportAsync()) {
-				return asyncSpanReporterPool.submit(new Runnable() {
-					@Override
-					public void run() {
-						doReport(spanContext, spanWrapper);
-					}
-				});
-			} else {
-				doReport(spanContext, spanWrapper);
-				return new CompletedFuture<Object>(null);
+	private void report(SpanContextInformation spanContext, SpanWrapper spanWrapper) {
+		if (tracingPlugin.isReportAsync()) {
+			for (SpanReporterConsumer spanReporterConsumer : spanReporterConsumers) {
+				spanReporterConsumer.offer(spanContext);
 			}
-		} catch (RejectedExecutionException e) {
-			ExecutorUtils.logRejectionWarning(e);
-			return new CompletedFuture<Object>(null);
+		} else {
+			doReport(spanContext, spanWrapper);
 		}
 	}
 
@@ -80,10 +81,16 @@ public class ReportingSpanEventListener extends StatelessSpanEventListener {
 	}
 
 	/**
-	 * Shuts down the internal thread pool
+	 * Stops the reporting threads after the spans which are already queued or buffered for tail-based sampling have
+	 * been reported
 	 */
 	public void close() {
-		asyncSpanReporterPool.shutdown();
+		if (tailSamplingSpanBuffer != null) {
+			tailSamplingSpanBuffer.close();
+		}
+		for (SpanReporterConsumer spanReporterConsumer : spanReporterConsumers) {
+			spanReporterConsumer.close();
+		}
 	}
 
 	/**
@@ -93,6 +100,10 @@ public class ReportingSpanEventListener extends StatelessSpanEventListener {
 	 */
 	public void addReporter(SpanReporter spanReporter) {
 		spanReporters.add(0, spanReporter);
+		final SpanReporterConsumer spanReporterConsumer = new SpanReporterConsumer(spanReporter, corePlugin);
+		// makes sure that the thread is always stopped so that there are no ClassLoaderLeaks when redeploying
+		corePlugin.closeOnShutdown(spanReporterConsumer);
+		spanReporterConsumers.add(0, spanReporterConsumer);
 		spanReporter.init(configuration);
 	}
 
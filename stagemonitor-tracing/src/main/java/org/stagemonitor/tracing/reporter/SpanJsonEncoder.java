@@ -0,0 +1,278 @@
+package org.stagemonitor.tracing.reporter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.tracing.wrapper.SpanTags;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import io.opentracing.tag.Tags;
+
+import static org.stagemonitor.tracing.utils.SpanUtils.IPV4_STRING;
+import static org.stagemonitor.tracing.utils.SpanUtils.PARAMETERS_PREFIX;
+
+/**
+ * Serializes {@link SpanWrapper}s to JSON without going through the {@link com.fasterxml.jackson.databind.ObjectMapper}
+ * for each span.
+ * <p>
+ * The produced JSON is the same as the one of {@link SpanJsonModule}, which delegates to this class. Compared to a
+ * plain {@link JsonUtils#writeWithoutClosingStream(OutputStream, Object)}, an encoder
+ * <ul>
+ * <li>reuses one {@link JsonGenerator} for all spans it writes</li>
+ * <li>caches the quoted UTF-8 bytes of tag names</li>
+ * <li>writes parameters and IP addresses without temporary maps or {@link java.net.InetAddress}es</li>
+ * <li>reads primitive tag values from the {@link SpanTags} without boxing them</li>
+ * <li>reuses the {@link DateFormat} for the timestamp</li>
+ * </ul>
+ * <p>
+ * Encoders are not thread safe. Use {@link #get()} to obtain the encoder of the current thread.
+ */
+public class SpanJsonEncoder {
+
+	private static final int MAX_CACHED_FIELD_NAMES = 1024;
+	private static final SerializedString PARAMETERS = new SerializedString("parameters");
+	private static final SerializedString KEY = new SerializedString("key");
+	private static final SerializedString VALUE = new SerializedString("value");
+	private static final SerializedString ERROR = new SerializedString("error");
+	private static final SerializedString NAME = new SerializedString("name");
+	private static final SerializedString DURATION_MS = new SerializedString("duration_ms");
+	private static final SerializedString TIMESTAMP = new SerializedString("@timestamp");
+	private static final SerializedString IP = new SerializedString("ip");
+	private static final SerializedString IPV4 = new SerializedString(IPV4_STRING);
+
+	private static final ThreadLocal<SpanJsonEncoder> encoders = new ThreadLocal<SpanJsonEncoder>() {
+		@Override
+		protected SpanJsonEncoder initialValue() {
+			return new SpanJsonEncoder();
+		}
+	};
+
+	private final Map<String, SerializedString> fieldNames = new HashMap<String, SerializedString>();
+	private final char[] chars = new char[256];
+	private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	private final Date date = new Date();
+	private final RedirectingOutputStream out = new RedirectingOutputStream();
+	private JsonGenerator generator;
+
+	SpanJsonEncoder() {
+	}
+
+	/**
+	 * @return the encoder of the current thread
+	 */
+	public static SpanJsonEncoder get() {
+		return encoders.get();
+	}
+
+	/**
+	 * Writes the span as JSON object to the output stream without closing it
+	 *
+	 * @param span the span to serialize
+	 * @param os   the stream to write to
+	 * @throws IOException if the stream can't be written to
+	 */
+	public void write(SpanWrapper span, OutputStream os) throws IOException {
+		final JsonGenerator gen = getGenerator();
+		out.target = os;
+		try {
+			write(span, gen);
+			gen.flush();
+		} catch (IOException e) {
+			// the generator might be in the middle of an object
+			generator = null;
+			throw e;
+		} catch (RuntimeException e) {
+			generator = null;
+			throw e;
+		} finally {
+			out.target = null;
+		}
+	}
+
+	private JsonGenerator getGenerator() throws IOException {
+		if (generator == null) {
+			generator = JsonUtils.getMapper().getFactory().createGenerator(out);
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+			// don't separate consecutive spans with a space
+			generator.setRootValueSeparator(null);
+		}
+		return generator;
+	}
+
+	/**
+	 * Writes the span as JSON object to the generator, which may also be a binary one like Smile
+	 *
+	 * @param span the span to serialize
+	 * @param gen  the generator to write to
+	 * @throws IOException if the generator can't write to its target
+	 */
+	public void write(SpanWrapper span, JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		final SpanTags tags = span.getSpanTags();
+		synchronized (tags) {
+			final int capacity = tags.capacity();
+			boolean hasParameters = false;
+			for (int slot = 0; slot < capacity; slot++) {
+				final String key = tags.keyAt(slot);
+				if (key == null || key.startsWith(SpanWrapper.INTERNAL_TAG_PREFIX)) {
+					continue;
+				}
+				final byte type = tags.typeAt(slot);
+				if (key.startsWith(PARAMETERS_PREFIX)) {
+					hasParameters = true;
+				} else if (key.equals(Tags.PEER_HOST_IPV4.getKey()) && type == SpanTags.TYPE_INT) {
+					final int length = formatIpv4((int) tags.longAt(slot));
+					gen.writeFieldName(IPV4);
+					gen.writeString(chars, 0, length);
+					gen.writeFieldName(IP);
+					gen.writeString(chars, 0, length);
+				} else if (key.equals(Tags.PEER_HOST_IPV6.getKey()) && type == SpanTags.TYPE_STRING) {
+					gen.writeFieldName(IP);
+					gen.writeString((String) tags.objectAt(slot));
+				} else {
+					gen.writeFieldName(getFieldName(key));
+					writeValue(gen, tags, slot);
+				}
+			}
+			if (hasParameters) {
+				writeParameters(tags, capacity, gen);
+			}
+
+			// always include error tag so we can have a successful/error filter in Kibana
+			if (!tags.containsKey(Tags.ERROR.getKey())) {
+				gen.writeFieldName(ERROR);
+				gen.writeBoolean(false);
+			}
+		}
+
+		gen.writeFieldName(NAME);
+		gen.writeString(span.getOperationName());
+		gen.writeFieldName(DURATION_MS);
+		gen.writeNumber(span.getDurationMs());
+		gen.writeFieldName(TIMESTAMP);
+		gen.writeString(formatTimestamp(span.getStartTimestampMillis()));
+		gen.writeEndObject();
+	}
+
+	private void writeParameters(SpanTags tags, int capacity, JsonGenerator gen) throws IOException {
+		gen.writeFieldName(PARAMETERS);
+		gen.writeStartArray();
+		for (int slot = 0; slot < capacity; slot++) {
+			final String key = tags.keyAt(slot);
+			if (key != null && key.startsWith(PARAMETERS_PREFIX)) {
+				gen.writeStartObject();
+				gen.writeFieldName(KEY);
+				final int length = key.length() - PARAMETERS_PREFIX.length();
+				if (length <= chars.length) {
+					key.getChars(PARAMETERS_PREFIX.length(), key.length(), chars, 0);
+					gen.writeString(chars, 0, length);
+				} else {
+					gen.writeString(key.substring(PARAMETERS_PREFIX.length()));
+				}
+				gen.writeFieldName(VALUE);
+				writeValue(gen, tags, slot);
+				gen.writeEndObject();
+			}
+		}
+		gen.writeEndArray();
+	}
+
+	/**
+	 * Writes primitive values straight from the {@link SpanTags} slot without boxing them
+	 */
+	private static void writeValue(JsonGenerator gen, SpanTags tags, int slot) throws IOException {
+		switch (tags.typeAt(slot)) {
+			case SpanTags.TYPE_STRING:
+				gen.writeString((String) tags.objectAt(slot));
+				break;
+			case SpanTags.TYPE_BOOLEAN:
+				gen.writeBoolean(tags.longAt(slot) != 0);
+				break;
+			case SpanTags.TYPE_INT:
+				gen.writeNumber((int) tags.longAt(slot));
+				break;
+			case SpanTags.TYPE_LONG:
+				gen.writeNumber(tags.longAt(slot));
+				break;
+			case SpanTags.TYPE_FLOAT:
+				gen.writeNumber((float) tags.doubleAt(slot));
+				break;
+			case SpanTags.TYPE_DOUBLE:
+				gen.writeNumber(tags.doubleAt(slot));
+				break;
+			default:
+				gen.writeObject(tags.objectAt(slot));
+		}
+	}
+
+	private SerializedString getFieldName(String key) {
+		SerializedString fieldName = fieldNames.get(key);
+		if (fieldName == null) {
+			fieldName = new SerializedString(key);
+			// tag names are usually a small set of constants, don't let unusual ones fill the memory
+			if (fieldNames.size() < MAX_CACHED_FIELD_NAMES) {
+				fieldNames.put(key, fieldName);
+			}
+		}
+		return fieldName;
+	}
+
+	/**
+	 * Writes the dotted-quad representation of the IPv4 address into {@link #chars}
+	 *
+	 * @param address the IPv4 address as big endian integer
+	 * @return the number of chars written
+	 */
+	private int formatIpv4(int address) {
+		int length = 0;
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			final int octet = (address >>> shift) & 0xFF;
+			if (octet >= 100) {
+				chars[length++] = (char) ('0' + octet / 100);
+			}
+			if (octet >= 10) {
+				chars[length++] = (char) ('0' + octet / 10 % 10);
+			}
+			chars[length++] = (char) ('0' + octet % 10);
+			if (shift > 0) {
+				chars[length++] = '.';
+			}
+		}
+		return length;
+	}
+
+	private String formatTimestamp(long timestamp) {
+		// mirrors StringUtils.timestampAsIsoString, which creates a new DateFormat for each invocation
+		dateFormat.setTimeZone(TimeZone.getDefault());
+		date.setTime(timestamp);
+		return dateFormat.format(date);
+	}
+
+	/**
+	 * Lets the generator write to a different stream for each span
+	 */
+	private static class RedirectingOutputStream extends OutputStream {
+		private OutputStream target;
+
+		@Override
+		public void write(int b) throws IOException {
+			target.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target.write(b, off, len);
+		}
+	}
+}
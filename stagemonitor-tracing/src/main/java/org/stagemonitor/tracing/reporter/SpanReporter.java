@@ -6,6 +6,7 @@ import org.stagemonitor.tracing.B3HeaderFormat;
 import org.stagemonitor.tracing.SpanContextInformation;
 import org.stagemonitor.tracing.wrapper.SpanWrapper;
 
+import java.util.List;
 import java.util.Map;
 
 import io.opentracing.Span;
@@ -23,6 +24,31 @@ public abstract class SpanReporter implements StagemonitorSPI {
 	 */
 	public abstract void report(SpanContextInformation spanContext, SpanWrapper spanWrapper) throws Exception;
 
+	/**
+	 * Callback method that is called with a batch of {@link Span}s which are ready to be reported, if spans are
+	 * reported asynchronously. The batch only contains spans for which {@link #isActive(SpanContextInformation)}
+	 * returned <code>true</code>.
+	 * <p>
+	 * The default implementation calls {@link #report(SpanContextInformation, SpanWrapper)} for each span. Override
+	 * this method if the backend can process multiple spans at once.
+	 *
+	 * @param spanContexts context information about the spans, see {@link SpanContextInformation#getSpanWrapper()}
+	 * @throws Exception the last exception thrown while reporting the individual spans
+	 */
+	public void report(List<SpanContextInformation> spanContexts) throws Exception {
+		Exception exception = null;
+		for (SpanContextInformation spanContext : spanContexts) {
+			try {
+				report(spanContext, spanContext.getSpanWrapper());
+			} catch (Exception e) {
+				exception = e;
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
 	/**
 	 * Whether this {@link SpanReporter} is active
 	 *
@@ -0,0 +1,169 @@
+package org.stagemonitor.tracing.reporter;
+
+import com.codahale.metrics.Gauge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.core.util.MpscRingBuffer;
+import org.stagemonitor.tracing.SpanContextInformation;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * Hands the finished spans to a single {@link SpanReporter} in batches.
+ * <p>
+ * Each {@link SpanReporter} has its own consumer with its own buffer and thread, so that a slow reporter can't delay
+ * the others. When the buffer of a reporter is full, spans are dropped for this reporter only.
+ */
+class SpanReporterConsumer implements Runnable, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpanReporterConsumer.class);
+	private static final int MAX_BATCH_SIZE = 256;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final SpanReporter spanReporter;
+	private final MpscRingBuffer<SpanContextInformation> ringBuffer;
+	private final Metric2Registry metricRegistry;
+	private final MetricName droppedMetricName;
+	private final MetricName queuedMetricName;
+	private final MetricName lagMetricName;
+	private final AtomicBoolean started = new AtomicBoolean();
+	private final AtomicBoolean dropWarningLogged = new AtomicBoolean();
+	private volatile boolean running = true;
+	private volatile boolean waiting;
+	private volatile Thread thread;
+
+	SpanReporterConsumer(SpanReporter spanReporter, CorePlugin corePlugin) {
+		this.spanReporter = spanReporter;
+		this.ringBuffer = new MpscRingBuffer<SpanContextInformation>(corePlugin.getThreadPoolQueueCapacityLimit());
+		this.metricRegistry = corePlugin.getMetricRegistry();
+		final String reporterName = getReporterName(spanReporter);
+		droppedMetricName = name("span_reporter_dropped").tag("reporter", reporterName).build();
+		queuedMetricName = name("span_reporter_queued").tag("reporter", reporterName).build();
+		lagMetricName = name("span_reporter_lag").tag("reporter", reporterName).build();
+	}
+
+	private static String getReporterName(SpanReporter spanReporter) {
+		final String simpleName = spanReporter.getClass().getSimpleName();
+		return simpleName.isEmpty() ? spanReporter.getClass().getName() : simpleName;
+	}
+
+	/**
+	 * Queues the span for reporting. May be called by multiple threads.
+	 *
+	 * @return {@code false}, if the span has been dropped because the buffer is full or the consumer has been closed
+	 */
+	boolean offer(SpanContextInformation spanContext) {
+		if (!running) {
+			return false;
+		}
+		startIfNecessary();
+		if (ringBuffer.offer(spanContext)) {
+			if (waiting) {
+				LockSupport.unpark(thread);
+			}
+			return true;
+		}
+		metricRegistry.counter(droppedMetricName).inc();
+		if (dropWarningLogged.compareAndSet(false, true)) {
+			logger.warn("The buffer of the span reporter {} is full, spans are dropped. This could be due to a " +
+					"unreachable service such as elasticsearch or due to a spike in incoming requests. " +
+					"Consider increasing the default capacity limit with the configuration key '{}'. " +
+					"This warning is only logged once, see the metric {} for the number of dropped spans.",
+					spanReporter.getClass().getName(), CorePlugin.POOLS_QUEUE_CAPACITY_LIMIT_KEY, droppedMetricName);
+		}
+		return false;
+	}
+
+	private void startIfNecessary() {
+		if (!started.get() && started.compareAndSet(false, true)) {
+			metricRegistry.registerNewMetrics(queuedMetricName, new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return ringBuffer.size();
+				}
+			});
+			final Thread consumerThread = new ExecutorUtils.NamedThreadFactory("span-reporter-" + getReporterName(spanReporter)).newThread(this);
+			thread = consumerThread;
+			consumerThread.start();
+		}
+	}
+
+	@Override
+	public void run() {
+		final List<SpanContextInformation> batch = new ArrayList<SpanContextInformation>(MAX_BATCH_SIZE);
+		final List<SpanContextInformation> activeSpans = new ArrayList<SpanContextInformation>(MAX_BATCH_SIZE);
+		while (true) {
+			if (ringBuffer.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+				report(batch, activeSpans);
+				batch.clear();
+				activeSpans.clear();
+			} else if (running) {
+				waitForSpans();
+			} else {
+				// all spans which have been queued before closing have been reported
+				return;
+			}
+		}
+	}
+
+	private void waitForSpans() {
+		waiting = true;
+		if (ringBuffer.isEmpty() && running) {
+			LockSupport.parkNanos(this, MAX_PARK_NANOS);
+		}
+		waiting = false;
+	}
+
+	private void report(List<SpanContextInformation> batch, List<SpanContextInformation> activeSpans) {
+		trackLag(batch.get(0).getSpanWrapper());
+		for (SpanContextInformation spanContext : batch) {
+			try {
+				if (spanReporter.isActive(spanContext)) {
+					activeSpans.add(spanContext);
+				}
+			} catch (Exception e) {
+				logger.warn(e.getMessage() + " (this exception is ignored)", e);
+			}
+		}
+		if (!activeSpans.isEmpty()) {
+			try {
+				spanReporter.report(activeSpans);
+			} catch (Exception e) {
+				logger.warn(e.getMessage() + " (this exception is ignored)", e);
+			}
+		}
+	}
+
+	/**
+	 * Tracks the time between finishing the oldest span of the batch and reporting it
+	 */
+	private void trackLag(SpanWrapper oldestSpan) {
+		if (oldestSpan != null) {
+			final long finishedTimestampMillis = oldestSpan.getStartTimestampMillis() + TimeUnit.NANOSECONDS.toMillis(oldestSpan.getDurationNanos());
+			final long lagMillis = Math.max(0, System.currentTimeMillis() - finishedTimestampMillis);
+			metricRegistry.timer(lagMetricName).update(lagMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the consumer thread after the spans which are already queued have been reported
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+}
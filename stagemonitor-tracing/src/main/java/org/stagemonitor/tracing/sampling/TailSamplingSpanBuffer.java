@@ -0,0 +1,549 @@
+package org.stagemonitor.tracing.sampling;
+
+import com.codahale.metrics.Gauge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.tracing.B3HeaderFormat;
+import org.stagemonitor.tracing.B3IdentifierTagger;
+import org.stagemonitor.tracing.SpanContextInformation;
+import org.stagemonitor.tracing.TracingPlugin;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.opentracing.tag.Tags;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+/**
+ * Buffers the spans of a trace until its local root span has finished and then decides whether the whole trace is
+ * reported or discarded (tail-based sampling).
+ * <p>
+ * A trace is kept if one of its spans has the {@link Tags#ERROR} tag, if the duration of the root span is a latency
+ * outlier compared to the previous root spans with the same operation name or otherwise with the probability of
+ * {@link TracingPlugin#getTailSamplingBaselinePercent()}.
+ * <p>
+ * The number of buffered spans is limited by {@link TracingPlugin#getTailSamplingMaxBufferedSpans()}. When the limit is
+ * reached or when the root span of a trace has not finished within {@link TracingPlugin#getTailSamplingWindowSeconds()},
+ * the trace is evicted, which means it is decided early with the spans which have been buffered so far.
+ * <p>
+ * The decisions are made and the kept spans are reported on a background thread, so that the thread which finishes
+ * the root span does not have to wait for the reporters. The decisions of the most recent traces are remembered, so
+ * that spans which finish after their trace has been decided get the same decision. Spans of traces whose decision has
+ * already been forgotten are buffered again and are decided once they expire.
+ */
+public class TailSamplingSpanBuffer implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(TailSamplingSpanBuffer.class);
+
+	static final String DECISION_ERROR = "error";
+	static final String DECISION_LATENCY = "latency";
+	static final String DECISION_BASELINE = "baseline";
+	static final String DECISION_DROPPED = "dropped";
+	static final String EVICTION_CAPACITY = "capacity";
+	static final String EVICTION_TIMEOUT = "timeout";
+
+	/**
+	 * When evicting because of the capacity limit, the oldest traces are evicted until only this fraction of the
+	 * capacity is used, so that not every new span has to evict a trace
+	 */
+	private static final double EVICT_TO_CAPACITY_FRACTION = 0.9;
+	private static final int MAX_RECENT_DECISIONS = 1 << 16;
+
+	private final TracingPlugin tracingPlugin;
+	private final Reporter reporter;
+	private final Metric2Registry metricRegistry;
+	private final int maxBufferedSpans;
+	private final long windowMillis;
+	private final ConcurrentMap<String, TraceBuffer> traces = new ConcurrentHashMap<String, TraceBuffer>();
+	/**
+	 * The traces in the order of their creation, so that the oldest traces can be evicted without sorting. Traces
+	 * which have been decided because their root span has finished are removed when they reach the head of the queue
+	 * or when there are more of them than {@link #maxBufferedSpans} (see {@link #purgeDecidedTraces()}).
+	 * <p>
+	 * Traces are only removed from the queue while holding the {@link #evictionLock}.
+	 */
+	private final Queue<TraceBuffer> tracesOldestFirst = new ConcurrentLinkedQueue<TraceBuffer>();
+	private final AtomicInteger decidedTracesInQueue = new AtomicInteger();
+	private final AtomicInteger bufferedSpans = new AtomicInteger();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final AtomicBoolean evictionWarningLogged = new AtomicBoolean();
+	private final LatencyOutlierDetector latencyOutlierDetector = new LatencyOutlierDetector();
+	private final RecentDecisions recentDecisions;
+	private final ScheduledThreadPoolExecutor expiryPool;
+	private final Executor decisionExecutor;
+	private volatile boolean closed;
+
+	public TailSamplingSpanBuffer(TracingPlugin tracingPlugin, CorePlugin corePlugin, Reporter reporter) {
+		this(tracingPlugin, corePlugin, reporter, ExecutorUtils.createSingleThreadDeamonPool("tail-sampling-decisions",
+				corePlugin.getThreadPoolQueueCapacityLimit(), corePlugin));
+	}
+
+	/**
+	 * @param decisionExecutor decides the traces and reports the spans of the kept traces
+	 */
+	TailSamplingSpanBuffer(TracingPlugin tracingPlugin, CorePlugin corePlugin, Reporter reporter, Executor decisionExecutor) {
+		this.tracingPlugin = tracingPlugin;
+		this.reporter = reporter;
+		this.metricRegistry = corePlugin.getMetricRegistry();
+		this.maxBufferedSpans = tracingPlugin.getTailSamplingMaxBufferedSpans();
+		this.windowMillis = TimeUnit.SECONDS.toMillis(tracingPlugin.getTailSamplingWindowSeconds());
+		this.recentDecisions = new RecentDecisions(Math.min(MAX_RECENT_DECISIONS, maxBufferedSpans));
+		this.decisionExecutor = decisionExecutor;
+		metricRegistry.registerNewMetrics(name("tail_sampling_buffered_spans").build(), new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return bufferedSpans.get();
+			}
+		});
+		expiryPool = ExecutorUtils.createSingleThreadSchedulingDeamonPool("tail-sampling", 1, corePlugin);
+		expiryPool.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					evictExpiredTraces(System.currentTimeMillis());
+				} catch (Exception e) {
+					logger.warn(e.getMessage() + " (this exception is ignored)", e);
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Buffers a finished span. When the span is the local root of its trace, the trace is handed off to be decided.
+	 * <p>
+	 * Spans without a trace id and spans which are added after {@link #close()} are reported right away. Spans whose
+	 * trace has recently been decided are reported or discarded according to that decision.
+	 */
+	public void add(SpanContextInformation spanContext) {
+		final SpanWrapper span = spanContext.getSpanWrapper();
+		final String traceId = span != null && !closed ? getTraceId(span) : null;
+		if (traceId == null) {
+			report(spanContext);
+			return;
+		}
+		TraceBuffer trace;
+		do {
+			trace = traces.get(traceId);
+			if (trace == null) {
+				final Decision decision = recentDecisions.get(traceId);
+				if (decision != null) {
+					if (decision.kept) {
+						scheduleReport(Collections.singletonList(spanContext));
+					}
+					return;
+				}
+				trace = getOrCreateTrace(traceId);
+			}
+		} while (!trace.add(spanContext));
+		bufferedSpans.incrementAndGet();
+
+		final Decision decision = recentDecisions.get(traceId);
+		if (decision != null) {
+			// the trace has been decided while the span has been added
+			final List<SpanContextInformation> lateSpans = claimQueuedTrace(trace);
+			if (lateSpans != null && decision.kept) {
+				scheduleReport(lateSpans);
+			}
+		} else if (spanContext.getParent() == null) {
+			// a span without a local parent is the local root, even if it has a remote parent
+			final List<SpanContextInformation> spans = claimQueuedTrace(trace);
+			if (spans != null) {
+				scheduleDecision(traceId, spans, span);
+			}
+		}
+		if (bufferedSpans.get() > maxBufferedSpans) {
+			evictOldestTraces();
+		}
+	}
+
+	private String getTraceId(SpanWrapper span) {
+		final String traceId = span.getStringTag(B3IdentifierTagger.TRACE_ID);
+		if (traceId != null) {
+			return traceId;
+		}
+		return B3HeaderFormat.getB3Identifiers(tracingPlugin.getTracer(), span).getTraceId();
+	}
+
+	private TraceBuffer getOrCreateTrace(String traceId) {
+		final TraceBuffer trace = traces.get(traceId);
+		if (trace != null) {
+			return trace;
+		}
+		final TraceBuffer newTrace = new TraceBuffer(traceId, System.currentTimeMillis());
+		final TraceBuffer existingTrace = traces.putIfAbsent(traceId, newTrace);
+		if (existingTrace != null) {
+			return existingTrace;
+		}
+		tracesOldestFirst.offer(newTrace);
+		return newTrace;
+	}
+
+	/**
+	 * Removes the trace from the buffer, so that no more spans are added to it
+	 *
+	 * @return the spans of the trace or {@code null}, if the trace has already been claimed by another thread
+	 */
+	private List<SpanContextInformation> claim(TraceBuffer trace) {
+		if (!traces.remove(trace.traceId, trace)) {
+			return null;
+		}
+		final List<SpanContextInformation> spans = trace.close();
+		bufferedSpans.addAndGet(-spans.size());
+		return spans;
+	}
+
+	/**
+	 * Claims a trace which stays in {@link #tracesOldestFirst} until it is purged or reaches the head of the queue
+	 */
+	private List<SpanContextInformation> claimQueuedTrace(TraceBuffer trace) {
+		final List<SpanContextInformation> spans = claim(trace);
+		if (spans != null && decidedTracesInQueue.incrementAndGet() > maxBufferedSpans) {
+			purgeDecidedTraces();
+		}
+		return spans;
+	}
+
+	private void scheduleDecision(final String traceId, final List<SpanContextInformation> spans, final SpanWrapper rootSpan) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				decide(traceId, spans, rootSpan);
+			}
+		});
+	}
+
+	private void scheduleReport(final List<SpanContextInformation> spans) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				report(spans);
+			}
+		});
+	}
+
+	private void execute(Runnable runnable) {
+		try {
+			decisionExecutor.execute(runnable);
+		} catch (RejectedExecutionException e) {
+			// the decision thread can't keep up or has been shut down, so the current thread has to do the work
+			runnable.run();
+		}
+	}
+
+	/**
+	 * Decides the trace, remembers the decision and reports its spans if it is kept
+	 */
+	private void decide(String traceId, List<SpanContextInformation> spans, SpanWrapper rootSpan) {
+		final String decision = getDecision(spans, rootSpan);
+		final boolean kept = !DECISION_DROPPED.equals(decision);
+		recentDecisions.put(traceId, kept);
+		metricRegistry.counter(name("tail_sampling_traces").tag("decision", decision).build()).inc();
+		if (kept) {
+			report(spans);
+		}
+		// spans which have finished after the trace has been claimed, but before the decision has been remembered
+		final TraceBuffer lateTrace = traces.get(traceId);
+		if (lateTrace != null) {
+			final List<SpanContextInformation> lateSpans = claimQueuedTrace(lateTrace);
+			if (lateSpans != null && kept) {
+				report(lateSpans);
+			}
+		}
+	}
+
+	private String getDecision(List<SpanContextInformation> spans, SpanWrapper rootSpan) {
+		// the latency statistics should also be updated for erroneous traces
+		final boolean latencyOutlier = rootSpan != null && latencyOutlierDetector.isOutlier(rootSpan.getOperationName(),
+				rootSpan.getDurationNanos(), tracingPlugin.getTailSamplingLatencyOutlierDeviations());
+		for (SpanContextInformation spanContext : spans) {
+			final SpanWrapper span = spanContext.getSpanWrapper();
+			if (span != null && span.getBooleanTag(Tags.ERROR.getKey(), false)) {
+				return DECISION_ERROR;
+			}
+		}
+		if (latencyOutlier) {
+			return DECISION_LATENCY;
+		}
+		if (ThreadLocalRandom.current().nextDouble() < tracingPlugin.getTailSamplingBaselinePercent()) {
+			return DECISION_BASELINE;
+		}
+		return DECISION_DROPPED;
+	}
+
+	private void report(List<SpanContextInformation> spans) {
+		for (SpanContextInformation spanContext : spans) {
+			report(spanContext);
+		}
+	}
+
+	private void report(SpanContextInformation spanContext) {
+		try {
+			reporter.report(spanContext);
+		} catch (Exception e) {
+			logger.warn(e.getMessage() + " (this exception is ignored) " + spanContext.toString(), e);
+		}
+	}
+
+	/**
+	 * Evicts the oldest traces until the buffer has some room again. Only one thread evicts at a time, the others
+	 * continue without waiting, which means the limit may be exceeded by a few spans for a short time.
+	 */
+	private void evictOldestTraces() {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			final int evictTo = (int) (maxBufferedSpans * EVICT_TO_CAPACITY_FRACTION);
+			while (bufferedSpans.get() > evictTo) {
+				final TraceBuffer oldestTrace = tracesOldestFirst.poll();
+				if (oldestTrace == null) {
+					break;
+				}
+				evict(oldestTrace, EVICTION_CAPACITY);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		if (evictionWarningLogged.compareAndSet(false, true)) {
+			logger.warn("The tail-based sampling buffer is full, traces are decided before their root span has finished. " +
+					"Consider increasing the limit with the configuration key 'stagemonitor.tracing.sampling.tail.maxBufferedSpans'. " +
+					"This warning is only logged once, see the metric tail_sampling_evicted for the number of evicted traces.");
+		}
+	}
+
+	/**
+	 * Evicts all traces which have been created before the time window and discards the decided traces at the head of
+	 * the creation order
+	 */
+	void evictExpiredTraces(long nowMillis) {
+		final long expiredBefore = nowMillis - windowMillis;
+		evictionLock.lock();
+		try {
+			for (TraceBuffer trace = tracesOldestFirst.peek(); trace != null; trace = tracesOldestFirst.peek()) {
+				if (!trace.isDecided() && trace.createdMillis >= expiredBefore) {
+					break;
+				}
+				tracesOldestFirst.poll();
+				evict(trace, EVICTION_TIMEOUT);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the decided traces from {@link #tracesOldestFirst}, so that they don't pile up when the oldest trace is
+	 * long running. Only one thread purges at a time, the others continue without waiting.
+	 */
+	private void purgeDecidedTraces() {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			for (Iterator<TraceBuffer> iterator = tracesOldestFirst.iterator(); iterator.hasNext(); ) {
+				if (iterator.next().isDecided()) {
+					iterator.remove();
+					decidedTracesInQueue.decrementAndGet();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Decides a trace which has been removed from {@link #tracesOldestFirst} or accounts for its removal, if it has
+	 * already been decided
+	 */
+	private void evict(TraceBuffer trace, String reason) {
+		final List<SpanContextInformation> spans = claim(trace);
+		if (spans != null) {
+			metricRegistry.counter(name("tail_sampling_evicted").tag("reason", reason).build()).inc();
+			scheduleDecision(trace.traceId, spans, null);
+		} else {
+			decidedTracesInQueue.decrementAndGet();
+		}
+	}
+
+	int getBufferedSpans() {
+		return bufferedSpans.get();
+	}
+
+	int getQueuedTraces() {
+		return tracesOldestFirst.size();
+	}
+
+	/**
+	 * Decides all buffered traces and stops the expiry thread
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		expiryPool.shutdown();
+		for (TraceBuffer trace : traces.values()) {
+			final List<SpanContextInformation> spans = claim(trace);
+			if (spans != null) {
+				decide(trace.traceId, spans, null);
+			}
+		}
+		tracesOldestFirst.clear();
+	}
+
+	/**
+	 * Receives the spans of the traces which are kept
+	 */
+	public interface Reporter {
+		void report(SpanContextInformation spanContext);
+	}
+
+	private static class TraceBuffer {
+		private final String traceId;
+		private final long createdMillis;
+		private List<SpanContextInformation> spans = new ArrayList<SpanContextInformation>(4);
+
+		private TraceBuffer(String traceId, long createdMillis) {
+			this.traceId = traceId;
+			this.createdMillis = createdMillis;
+		}
+
+		/**
+		 * @return {@code false}, if the trace has already been decided
+		 */
+		private synchronized boolean add(SpanContextInformation spanContext) {
+			if (spans == null) {
+				return false;
+			}
+			spans.add(spanContext);
+			return true;
+		}
+
+		private synchronized boolean isDecided() {
+			return spans == null;
+		}
+
+		private synchronized List<SpanContextInformation> close() {
+			final List<SpanContextInformation> result = spans;
+			spans = null;
+			return result;
+		}
+	}
+
+	static class Decision {
+		private final String traceId;
+		private final boolean kept;
+
+		private Decision(String traceId, boolean kept) {
+			this.traceId = traceId;
+			this.kept = kept;
+		}
+	}
+
+	/**
+	 * Remembers the decisions of the most recently decided traces. The decisions are stored in a fixed size array at
+	 * the index of the hash of the trace id, so that a decision is forgotten when a trace with the same index is
+	 * decided.
+	 */
+	static class RecentDecisions {
+
+		private final AtomicReferenceArray<Decision> decisions;
+
+		/**
+		 * @param capacity the minimal number of decisions, rounded up to the next power of two
+		 */
+		RecentDecisions(int capacity) {
+			decisions = new AtomicReferenceArray<Decision>(Integer.highestOneBit(Math.max(1, capacity) * 2 - 1));
+		}
+
+		void put(String traceId, boolean kept) {
+			decisions.set(indexOf(traceId), new Decision(traceId, kept));
+		}
+
+		/**
+		 * @return the decision or {@code null}, if the trace has not been decided recently
+		 */
+		Decision get(String traceId) {
+			final Decision decision = decisions.get(indexOf(traceId));
+			return decision != null && decision.traceId.equals(traceId) ? decision : null;
+		}
+
+		private int indexOf(String traceId) {
+			final int h = traceId.hashCode();
+			return (h ^ (h >>> 16)) & (decisions.length() - 1);
+		}
+	}
+
+	/**
+	 * Tracks an exponentially weighted moving average and mean deviation of the root span durations per operation name
+	 */
+	static class LatencyOutlierDetector {
+
+		static final int MAX_OPERATIONS = 1000;
+		static final int WARM_UP_SAMPLES = 20;
+		private static final double ALPHA = 0.05;
+
+		private final ConcurrentMap<String, Stats> statsByOperationName = new ConcurrentHashMap<String, Stats>();
+
+		/**
+		 * Determines whether the duration is an outlier and adds it to the statistics of the operation afterwards.
+		 * <p>
+		 * Operations are never outliers during the warm up phase and when the maximum number of operations is exceeded.
+		 */
+		boolean isOutlier(String operationName, long durationNanos, double deviations) {
+			if (operationName == null) {
+				return false;
+			}
+			Stats stats = statsByOperationName.get(operationName);
+			if (stats == null) {
+				if (statsByOperationName.size() >= MAX_OPERATIONS) {
+					return false;
+				}
+				final Stats newStats = new Stats();
+				stats = statsByOperationName.putIfAbsent(operationName, newStats);
+				if (stats == null) {
+					stats = newStats;
+				}
+			}
+			return stats.isOutlierAndUpdate(durationNanos, deviations);
+		}
+
+		private static class Stats {
+			private long count;
+			private double mean;
+			private double meanDeviation;
+
+			private synchronized boolean isOutlierAndUpdate(long durationNanos, double deviations) {
+				final boolean outlier = count >= WARM_UP_SAMPLES && durationNanos > mean + deviations * meanDeviation;
+				if (count == 0) {
+					mean = durationNanos;
+				} else {
+					meanDeviation += ALPHA * (Math.abs(durationNanos - mean) - meanDeviation);
+					mean += ALPHA * (durationNanos - mean);
+				}
+				count++;
+				return outlier;
+			}
+		}
+	}
+}
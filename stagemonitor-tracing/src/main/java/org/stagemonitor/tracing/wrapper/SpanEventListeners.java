@@ -0,0 +1,230 @@
+package org.stagemonitor.tracing.wrapper;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import io.opentracing.tag.Tag;
+
+/**
+ * The {@link SpanEventListener}s of a span, split up into one array per event. Each array only contains the listeners
+ * which actually override the corresponding callback of {@link AbstractSpanEventListener}, so that for example setting
+ * a tag does not call all the listeners which are only interested in {@link SpanEventListener#onFinish}.
+ * <p>
+ * The arrays are created once for all {@link SpanEventListenerFactory}s (see {@link #forFactories(Collection)}) and
+ * shared by all spans. Stateful factories, which create a new listener for each span, are represented by a
+ * {@code null} placeholder in each array. {@link #forSpan()} only creates the listeners of the stateful factories.
+ */
+final class SpanEventListeners {
+
+	private static final int ON_START = 1;
+	private static final int ON_SET_TAG = 1 << 1;
+	private static final int ON_FINISH = 1 << 2;
+	private static final int ALL_EVENTS = ON_START | ON_SET_TAG | ON_FINISH;
+	private static final SpanEventListenerFactory[] NO_FACTORIES = new SpanEventListenerFactory[0];
+	private static final SpanEventListener[] NO_LISTENERS = new SpanEventListener[0];
+
+	private static final ClassValue<Integer> overriddenEvents = new ClassValue<Integer>() {
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			return getOverriddenEvents(type);
+		}
+	};
+
+	/**
+	 * The listeners per event in the order of their factories. A {@code null} element is the placeholder of the next
+	 * element of {@link #statefulListeners}.
+	 */
+	final SpanEventListener[] onStart;
+	final SpanEventListener[] onSetTag;
+	final SpanEventListener[] onFinish;
+	private final SpanEventListenerFactory[] statefulFactories;
+	private final SpanEventListener[] statefulListeners;
+
+	private SpanEventListeners(SpanEventListener[] onStart, SpanEventListener[] onSetTag, SpanEventListener[] onFinish,
+							   SpanEventListenerFactory[] statefulFactories, SpanEventListener[] statefulListeners) {
+		this.onStart = onStart;
+		this.onSetTag = onSetTag;
+		this.onFinish = onFinish;
+		this.statefulFactories = statefulFactories;
+		this.statefulListeners = statefulListeners;
+	}
+
+	static SpanEventListeners of(Collection<? extends SpanEventListener> spanEventListeners) {
+		final List<SpanEventListener> onStart = new ArrayList<SpanEventListener>(spanEventListeners.size());
+		final List<SpanEventListener> onSetTag = new ArrayList<SpanEventListener>(spanEventListeners.size());
+		final List<SpanEventListener> onFinish = new ArrayList<SpanEventListener>(spanEventListeners.size());
+		for (SpanEventListener spanEventListener : spanEventListeners) {
+			add(spanEventListener, overriddenEvents.get(spanEventListener.getClass()), onStart, onSetTag, onFinish);
+		}
+		return new SpanEventListeners(toArray(onStart), toArray(onSetTag), toArray(onFinish), NO_FACTORIES, NO_LISTENERS);
+	}
+
+	/**
+	 * Creates the listeners which are shared by all spans. {@link StatelessSpanEventListener}s are their own listener,
+	 * all other factories are called for each span in {@link #forSpan()}.
+	 */
+	static SpanEventListeners forFactories(Collection<? extends SpanEventListenerFactory> spanEventListenerFactories) {
+		final List<SpanEventListener> onStart = new ArrayList<SpanEventListener>(spanEventListenerFactories.size());
+		final List<SpanEventListener> onSetTag = new ArrayList<SpanEventListener>(spanEventListenerFactories.size());
+		final List<SpanEventListener> onFinish = new ArrayList<SpanEventListener>(spanEventListenerFactories.size());
+		final List<SpanEventListenerFactory> statefulFactories = new ArrayList<SpanEventListenerFactory>();
+		for (SpanEventListenerFactory spanEventListenerFactory : spanEventListenerFactories) {
+			if (spanEventListenerFactory instanceof StatelessSpanEventListener) {
+				final SpanEventListener spanEventListener = (StatelessSpanEventListener) spanEventListenerFactory;
+				add(spanEventListener, overriddenEvents.get(spanEventListener.getClass()), onStart, onSetTag, onFinish);
+			} else {
+				// the class of the listener is only known once it is created, see statefulListener
+				add(null, ALL_EVENTS, onStart, onSetTag, onFinish);
+				statefulFactories.add(spanEventListenerFactory);
+			}
+		}
+		return new SpanEventListeners(toArray(onStart), toArray(onSetTag), toArray(onFinish),
+				statefulFactories.toArray(new SpanEventListenerFactory[statefulFactories.size()]), NO_LISTENERS);
+	}
+
+	private static void add(SpanEventListener spanEventListener, int events, List<SpanEventListener> onStart,
+							List<SpanEventListener> onSetTag, List<SpanEventListener> onFinish) {
+		if ((events & ON_START) != 0) {
+			onStart.add(spanEventListener);
+		}
+		if ((events & ON_SET_TAG) != 0) {
+			onSetTag.add(spanEventListener);
+		}
+		if ((events & ON_FINISH) != 0) {
+			onFinish.add(spanEventListener);
+		}
+	}
+
+	/**
+	 * @return the listeners for a new span, which share the arrays of this instance
+	 */
+	SpanEventListeners forSpan() {
+		if (statefulFactories.length == 0) {
+			return this;
+		}
+		final SpanEventListener[] statefulListeners = new SpanEventListener[statefulFactories.length];
+		for (int i = 0; i < statefulFactories.length; i++) {
+			statefulListeners[i] = statefulFactories[i].create();
+		}
+		return new SpanEventListeners(onStart, onSetTag, onFinish, statefulFactories, statefulListeners);
+	}
+
+	void onStart(SpanWrapper spanWrapper) {
+		int stateful = 0;
+		for (SpanEventListener spanEventListener : onStart) {
+			if (spanEventListener == null) {
+				spanEventListener = statefulListener(stateful++, ON_START);
+			}
+			if (spanEventListener != null) {
+				spanEventListener.onStart(spanWrapper);
+			}
+		}
+	}
+
+	<T> T onSetTag(Tag<T> tag, T value) {
+		int stateful = 0;
+		for (SpanEventListener spanEventListener : onSetTag) {
+			if (spanEventListener == null) {
+				spanEventListener = statefulListener(stateful++, ON_SET_TAG);
+			}
+			if (spanEventListener != null) {
+				value = spanEventListener.onSetTag(tag, value);
+			}
+		}
+		return value;
+	}
+
+	String onSetTag(String key, String value) {
+		int stateful = 0;
+		for (SpanEventListener spanEventListener : onSetTag) {
+			if (spanEventListener == null) {
+				spanEventListener = statefulListener(stateful++, ON_SET_TAG);
+			}
+			if (spanEventListener != null) {
+				value = spanEventListener.onSetTag(key, value);
+			}
+		}
+		return value;
+	}
+
+	boolean onSetTag(String key, boolean value) {
+		int stateful = 0;
+		for (SpanEventListener spanEventListener : onSetTag) {
+			if (spanEventListener == null) {
+				spanEventListener = statefulListener(stateful++, ON_SET_TAG);
+			}
+			if (spanEventListener != null) {
+				value = spanEventListener.onSetTag(key, value);
+			}
+		}
+		return value;
+	}
+
+	Number onSetTag(String key, Number value) {
+		int stateful = 0;
+		for (SpanEventListener spanEventListener : onSetTag) {
+			if (spanEventListener == null) {
+				spanEventListener = statefulListener(stateful++, ON_SET_TAG);
+			}
+			if (spanEventListener != null) {
+				value = spanEventListener.onSetTag(key, value);
+			}
+		}
+		return value;
+	}
+
+	void onFinish(SpanWrapper spanWrapper, String operationName, long durationNanos) {
+		int stateful = 0;
+		for (SpanEventListener spanEventListener : onFinish) {
+			if (spanEventListener == null) {
+				spanEventListener = statefulListener(stateful++, ON_FINISH);
+			}
+			if (spanEventListener != null) {
+				spanEventListener.onFinish(spanWrapper, operationName, durationNanos);
+			}
+		}
+	}
+
+	/**
+	 * @return the listener of the stateful factory or {@code null}, if it does not override the callback of the event
+	 */
+	private SpanEventListener statefulListener(int index, int event) {
+		final SpanEventListener spanEventListener = statefulListeners[index];
+		return (overriddenEvents.get(spanEventListener.getClass()) & event) != 0 ? spanEventListener : null;
+	}
+
+	private static SpanEventListener[] toArray(List<SpanEventListener> spanEventListeners) {
+		return spanEventListeners.toArray(new SpanEventListener[spanEventListeners.size()]);
+	}
+
+	private static int getOverriddenEvents(Class<?> listenerClass) {
+		if (!AbstractSpanEventListener.class.isAssignableFrom(listenerClass)) {
+			return ALL_EVENTS;
+		}
+		try {
+			int events = 0;
+			if (isOverridden(listenerClass, "onStart", SpanWrapper.class)) {
+				events |= ON_START;
+			}
+			if (isOverridden(listenerClass, "onSetTag", Tag.class, Object.class)
+					|| isOverridden(listenerClass, "onSetTag", String.class, String.class)
+					|| isOverridden(listenerClass, "onSetTag", String.class, boolean.class)
+					|| isOverridden(listenerClass, "onSetTag", String.class, Number.class)) {
+				events |= ON_SET_TAG;
+			}
+			if (isOverridden(listenerClass, "onFinish", SpanWrapper.class, String.class, long.class)) {
+				events |= ON_FINISH;
+			}
+			return events;
+		} catch (Exception e) {
+			return ALL_EVENTS;
+		}
+	}
+
+	private static boolean isOverridden(Class<?> listenerClass, String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+		final Method method = listenerClass.getMethod(name, parameterTypes);
+		return method.getDeclaringClass() != AbstractSpanEventListener.class;
+	}
+}
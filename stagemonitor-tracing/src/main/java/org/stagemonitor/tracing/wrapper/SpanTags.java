@@ -0,0 +1,603 @@
+package org.stagemonitor.tracing.wrapper;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact store for the tags of a {@link SpanWrapper}.
+ * <p>
+ * The keys are kept in an open addressing hash table with linear probing. Booleans, integral and floating point
+ * numbers are stored in a parallel {@code long[]} without boxing them (floating point numbers as their raw long bits),
+ * all other values in a parallel {@code Object[]}. The type of each slot is recorded in a {@code byte[]} so that the
+ * original value can be restored, for example for {@link #asMap()}. Once a primitive value has been boxed, the box is
+ * kept in the {@code Object[]} slot, so that reading the same tag again does not allocate.
+ * <p>
+ * Removed keys leave a marker in their slot, so that the other slots keep their position. The markers are cleaned up
+ * on the next resize.
+ * <p>
+ * All methods are thread safe. When iterating over the slots via {@link #capacity()} and the {@code *At(int)} methods,
+ * hold the monitor of this object to get a consistent view.
+ */
+public final class SpanTags {
+
+	public static final byte TYPE_EMPTY = 0;
+	public static final byte TYPE_STRING = 1;
+	public static final byte TYPE_BOOLEAN = 2;
+	public static final byte TYPE_INT = 3;
+	public static final byte TYPE_LONG = 4;
+	public static final byte TYPE_FLOAT = 5;
+	public static final byte TYPE_DOUBLE = 6;
+	/**
+	 * Any other value, like a {@link java.math.BigDecimal}, which is stored as is
+	 */
+	public static final byte TYPE_OBJECT = 7;
+
+	private static final int INITIAL_CAPACITY = 16;
+	/**
+	 * Marks the slot of a removed key, compared by identity
+	 */
+	private static final String REMOVED = new String("<removed>");
+
+	/**
+	 * The map the tags are stored in instead of the slots, see {@link #SpanTags(Map)}
+	 */
+	private final Map<String, Object> map;
+	private String[] keys;
+	private byte[] types;
+	private long[] primitives;
+	private Object[] objects;
+	private int size;
+	/**
+	 * The number of slots which are occupied by a key or a {@link #REMOVED} marker
+	 */
+	private int usedSlots;
+
+	public SpanTags() {
+		this(INITIAL_CAPACITY);
+	}
+
+	private SpanTags(int capacity) {
+		map = null;
+		allocate(capacity);
+	}
+
+	/**
+	 * Creates an instance which stores the tags in the provided map, so that changes to the map are reflected in the
+	 * tags and vice versa. Values are boxed, so this only exists for compatibility with code which provides the
+	 * tags of a span as a map.
+	 *
+	 * @param map the map to store the tags in
+	 */
+	SpanTags(Map<String, Object> map) {
+		this.map = map;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		types = new byte[capacity];
+		primitives = new long[capacity];
+		objects = new Object[capacity];
+		size = 0;
+		usedSlots = 0;
+	}
+
+	public synchronized void put(String key, String value) {
+		if (value != null) {
+			putObject(key, TYPE_STRING, value);
+		}
+	}
+
+	public synchronized void put(String key, boolean value) {
+		if (map != null) {
+			map.put(key, value);
+		} else {
+			putPrimitive(key, TYPE_BOOLEAN, value ? 1 : 0);
+		}
+	}
+
+	public synchronized void put(String key, Number value) {
+		if (map != null) {
+			if (value != null) {
+				map.put(key, value);
+			}
+		} else if (value instanceof Integer) {
+			putPrimitive(key, TYPE_INT, value.intValue());
+		} else if (value instanceof Long) {
+			putPrimitive(key, TYPE_LONG, value.longValue());
+		} else if (value instanceof Double) {
+			putPrimitive(key, TYPE_DOUBLE, Double.doubleToRawLongBits(value.doubleValue()));
+		} else if (value instanceof Float) {
+			putPrimitive(key, TYPE_FLOAT, Double.doubleToRawLongBits(value.floatValue()));
+		} else if (value != null) {
+			putObject(key, TYPE_OBJECT, value);
+		}
+	}
+
+	/**
+	 * Stores the value according to its runtime type. {@code null} values are ignored.
+	 */
+	public synchronized void put(String key, Object value) {
+		if (value instanceof String) {
+			put(key, (String) value);
+		} else if (value instanceof Boolean) {
+			put(key, ((Boolean) value).booleanValue());
+		} else if (value instanceof Number) {
+			put(key, (Number) value);
+		} else if (value != null) {
+			putObject(key, TYPE_OBJECT, value);
+		}
+	}
+
+	public synchronized void putAll(Map<String, ?> tags) {
+		for (Map.Entry<String, ?> entry : tags.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void putPrimitive(String key, byte type, long value) {
+		final int slot = getOrCreateSlot(key);
+		types[slot] = type;
+		primitives[slot] = value;
+		objects[slot] = null;
+	}
+
+	private void putObject(String key, byte type, Object value) {
+		if (map != null) {
+			map.put(key, value);
+			return;
+		}
+		final int slot = getOrCreateSlot(key);
+		types[slot] = type;
+		primitives[slot] = 0;
+		objects[slot] = value;
+	}
+
+	private int getOrCreateSlot(String key) {
+		int slot = findSlot(keys, key);
+		if (keys[slot] == null) {
+			final int removedSlot = findRemovedSlot(keys, key);
+			if (removedSlot >= 0) {
+				slot = removedSlot;
+			} else {
+				if (usedSlots + 1 > keys.length - (keys.length >> 2)) {
+					resize();
+					slot = findSlot(keys, key);
+				}
+				usedSlots++;
+			}
+			keys[slot] = key;
+			size++;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return the slot which contains the key or the empty slot the key should be inserted into
+	 */
+	private static int findSlot(String[] keys, String key) {
+		final int mask = keys.length - 1;
+		final int h = key.hashCode();
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (keys[slot] != null && (keys[slot] == REMOVED || !(keys[slot] == key || keys[slot].equals(key)))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return the first slot of a removed key on the probe sequence of the key or -1, if there is none
+	 */
+	private static int findRemovedSlot(String[] keys, String key) {
+		final int mask = keys.length - 1;
+		final int h = key.hashCode();
+		for (int slot = (h ^ (h >>> 16)) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == REMOVED) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Doubles the capacity, unless enough slots can be reclaimed by cleaning up the markers of removed keys
+	 */
+	private void resize() {
+		final int capacity = size + 1 > keys.length >> 1 ? keys.length * 2 : keys.length;
+		final String[] oldKeys = keys;
+		final byte[] oldTypes = types;
+		final long[] oldPrimitives = primitives;
+		final Object[] oldObjects = objects;
+		final int oldSize = size;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null && oldKeys[i] != REMOVED) {
+				final int slot = findSlot(keys, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				types[slot] = oldTypes[i];
+				primitives[slot] = oldPrimitives[i];
+				objects[slot] = oldObjects[i];
+			}
+		}
+		size = oldSize;
+		usedSlots = oldSize;
+	}
+
+	private int indexOf(String key) {
+		final int slot = findSlot(keys, key);
+		return keys[slot] != null ? slot : -1;
+	}
+
+	/**
+	 * @return the previous value, boxed if it is a primitive, or {@code null} if there was no such tag
+	 */
+	public synchronized Object remove(String key) {
+		if (map != null) {
+			return map.remove(key);
+		}
+		final int slot = indexOf(key);
+		if (slot < 0) {
+			return null;
+		}
+		final Object previous = valueAt(slot);
+		keys[slot] = REMOVED;
+		types[slot] = TYPE_EMPTY;
+		primitives[slot] = 0;
+		objects[slot] = null;
+		size--;
+		return previous;
+	}
+
+	public synchronized boolean containsKey(String key) {
+		if (map != null) {
+			return map.containsKey(key);
+		}
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @return the type of the tag, {@link #TYPE_EMPTY} if there is no such tag
+	 */
+	public synchronized byte getType(String key) {
+		if (map != null) {
+			return getType(map.get(key));
+		}
+		final int slot = indexOf(key);
+		return slot >= 0 ? types[slot] : TYPE_EMPTY;
+	}
+
+	private static byte getType(Object value) {
+		if (value == null) {
+			return TYPE_EMPTY;
+		} else if (value instanceof String) {
+			return TYPE_STRING;
+		} else if (value instanceof Boolean) {
+			return TYPE_BOOLEAN;
+		} else if (value instanceof Integer) {
+			return TYPE_INT;
+		} else if (value instanceof Long) {
+			return TYPE_LONG;
+		} else if (value instanceof Float) {
+			return TYPE_FLOAT;
+		} else if (value instanceof Double) {
+			return TYPE_DOUBLE;
+		}
+		return TYPE_OBJECT;
+	}
+
+	/**
+	 * @return the value, boxed if it is a primitive, or {@code null} if there is no such tag
+	 */
+	public synchronized Object get(String key) {
+		if (map != null) {
+			return map.get(key);
+		}
+		final int slot = indexOf(key);
+		return slot >= 0 ? valueAt(slot) : null;
+	}
+
+	public synchronized String getString(String key) {
+		if (map != null) {
+			final Object value = map.get(key);
+			return value instanceof String ? (String) value : null;
+		}
+		final int slot = indexOf(key);
+		return slot >= 0 && types[slot] == TYPE_STRING ? (String) objects[slot] : null;
+	}
+
+	public synchronized Boolean getBoolean(String key) {
+		if (map != null) {
+			final Object value = map.get(key);
+			return value instanceof Boolean ? (Boolean) value : null;
+		}
+		final int slot = indexOf(key);
+		return slot >= 0 && types[slot] == TYPE_BOOLEAN ? Boolean.valueOf(primitives[slot] != 0) : null;
+	}
+
+	public synchronized boolean getBoolean(String key, boolean defaultIfNull) {
+		if (map != null) {
+			final Object value = map.get(key);
+			return value instanceof Boolean ? (Boolean) value : defaultIfNull;
+		}
+		final int slot = indexOf(key);
+		return slot >= 0 && types[slot] == TYPE_BOOLEAN ? primitives[slot] != 0 : defaultIfNull;
+	}
+
+	public synchronized Number getNumber(String key) {
+		final Object value = get(key);
+		return value instanceof Number ? (Number) value : null;
+	}
+
+	/**
+	 * Returns the value of an integral number tag without boxing it
+	 *
+	 * @return the value, if the tag exists and is an {@link Integer} or {@link Long}, otherwise {@code defaultIfNull}
+	 */
+	public synchronized long getLong(String key, long defaultIfNull) {
+		if (map != null) {
+			final Object value = map.get(key);
+			return value instanceof Integer || value instanceof Long ? ((Number) value).longValue() : defaultIfNull;
+		}
+		final int slot = indexOf(key);
+		return slot >= 0 && (types[slot] == TYPE_INT || types[slot] == TYPE_LONG) ? primitives[slot] : defaultIfNull;
+	}
+
+	public synchronized int size() {
+		if (map != null) {
+			return map.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots, some of which may be empty.
+	 * <p>
+	 * If the tags are stored in a map (see {@link #SpanTags(Map)}), the tags of the map are copied into the slots
+	 * first, so that they can be iterated like the ones of any other instance.
+	 *
+	 * @return the number of slots
+	 */
+	public synchronized int capacity() {
+		if (map != null) {
+			copyMapToSlots();
+		}
+		return keys.length;
+	}
+
+	private void copyMapToSlots() {
+		allocate(keys.length);
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			final Object value = entry.getValue();
+			if (value != null) {
+				final int slot = getOrCreateSlot(entry.getKey());
+				final byte type = getType(value);
+				types[slot] = type;
+				if (type == TYPE_BOOLEAN) {
+					primitives[slot] = (Boolean) value ? 1 : 0;
+				} else if (type == TYPE_INT || type == TYPE_LONG) {
+					primitives[slot] = ((Number) value).longValue();
+				} else if (type == TYPE_FLOAT || type == TYPE_DOUBLE) {
+					primitives[slot] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+				}
+				objects[slot] = value;
+			}
+		}
+	}
+
+	/**
+	 * @return the key of the slot or {@code null} if the slot is empty
+	 */
+	public synchronized String keyAt(int slot) {
+		final String key = keys[slot];
+		return key != REMOVED ? key : null;
+	}
+
+	public synchronized byte typeAt(int slot) {
+		return types[slot];
+	}
+
+	/**
+	 * @return the value of a {@link #TYPE_BOOLEAN} (1 or 0), {@link #TYPE_INT} or {@link #TYPE_LONG} slot
+	 */
+	public synchronized long longAt(int slot) {
+		return primitives[slot];
+	}
+
+	/**
+	 * @return the value of a {@link #TYPE_FLOAT} or {@link #TYPE_DOUBLE} slot
+	 */
+	public synchronized double doubleAt(int slot) {
+		return Double.longBitsToDouble(primitives[slot]);
+	}
+
+	/**
+	 * @return the value of a {@link #TYPE_STRING} or {@link #TYPE_OBJECT} slot
+	 */
+	public synchronized Object objectAt(int slot) {
+		return objects[slot];
+	}
+
+	/**
+	 * @return the value of the slot, boxed if it is a primitive
+	 */
+	public synchronized Object valueAt(int slot) {
+		Object value = objects[slot];
+		if (value == null) {
+			switch (types[slot]) {
+				case TYPE_BOOLEAN:
+					value = primitives[slot] != 0;
+					break;
+				case TYPE_INT:
+					value = (int) primitives[slot];
+					break;
+				case TYPE_LONG:
+					value = primitives[slot];
+					break;
+				case TYPE_FLOAT:
+					value = (float) doubleAt(slot);
+					break;
+				case TYPE_DOUBLE:
+					value = doubleAt(slot);
+					break;
+				default:
+					return null;
+			}
+			objects[slot] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns a {@link Map} view of the tags, which supports all operations. Primitive values are boxed on the first
+	 * access. Like the iterators of a {@link java.util.concurrent.ConcurrentHashMap}, the iterators never throw a
+	 * {@link java.util.ConcurrentModificationException} and may or may not reflect concurrent changes.
+	 * <p>
+	 * If the tags are stored in a map (see {@link #SpanTags(Map)}), that map is returned.
+	 */
+	public Map<String, Object> asMap() {
+		if (map != null) {
+			return map;
+		}
+		return new MapView();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return asMap().toString();
+	}
+
+	private class MapView extends AbstractMap<String, Object> {
+
+		private Set<Entry<String, Object>> entrySet;
+
+		@Override
+		public int size() {
+			return SpanTags.this.size();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && SpanTags.this.containsKey((String) key);
+		}
+
+		@Override
+		public Object get(Object key) {
+			return key instanceof String ? SpanTags.this.get((String) key) : null;
+		}
+
+		@Override
+		public Object put(String key, Object value) {
+			if (value == null) {
+				throw new NullPointerException("Tag values must not be null");
+			}
+			synchronized (SpanTags.this) {
+				final Object previous = SpanTags.this.get(key);
+				SpanTags.this.put(key, value);
+				return previous;
+			}
+		}
+
+		@Override
+		public Object remove(Object key) {
+			return key instanceof String ? SpanTags.this.remove((String) key) : null;
+		}
+
+		@Override
+		public Set<Entry<String, Object>> entrySet() {
+			if (entrySet == null) {
+				entrySet = new AbstractSet<Entry<String, Object>>() {
+					@Override
+					public Iterator<Entry<String, Object>> iterator() {
+						return new EntryIterator();
+					}
+
+					@Override
+					public int size() {
+						return SpanTags.this.size();
+					}
+				};
+			}
+			return entrySet;
+		}
+	}
+
+	/**
+	 * Iterates over the slots which have been allocated when the iterator was created. If the tags are resized in the
+	 * meantime, the iterator keeps on iterating over the previous keys.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+		private final String[] iteratedKeys;
+		private int nextSlot;
+		private TagEntry next;
+		private TagEntry last;
+
+		private EntryIterator() {
+			synchronized (SpanTags.this) {
+				iteratedKeys = keys;
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			synchronized (SpanTags.this) {
+				while (next == null && nextSlot < iteratedKeys.length) {
+					final int slot = nextSlot++;
+					final String key = iteratedKeys[slot];
+					if (key != null && key != REMOVED) {
+						// the slot of the key has changed if the tags have been resized in the meantime
+						final Object value = iteratedKeys == keys ? valueAt(slot) : get(key);
+						if (value != null) {
+							next = new TagEntry(key, value);
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			advance();
+			return last;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			SpanTags.this.remove(last.getKey());
+			last = null;
+		}
+	}
+
+	private class TagEntry extends AbstractMap.SimpleEntry<String, Object> {
+
+		private TagEntry(String key, Object value) {
+			super(key, value);
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			if (value == null) {
+				throw new NullPointerException("Tag values must not be null");
+			}
+			put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package org.stagemonitor.tracing.wrapper;
 
+import org.stagemonitor.tracing.SpanContextInformation;
+
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
@@ -20,6 +23,8 @@ public class SpanWrapper implements Span {
 	public static final String INTERNAL_TAG_PREFIX = "internal_";
 
 	private static final double MILLISECOND_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final AtomicReferenceFieldUpdater<SpanWrapper, SpanContextInformation> spanContextInformationUpdater =
+			AtomicReferenceFieldUpdater.newUpdater(SpanWrapper.class, SpanContextInformation.class, "spanContextInformation");
 
 	/**
 	 * The actual span to be invoked
@@ -28,12 +33,32 @@ public class SpanWrapper implements Span {
 	private String operationName;
 	private final long startTimestampNanos;
 	private final long startTimestampMillis;
-	private final List<SpanEventListener> spanEventListeners;
-	private final Map<String, Object> tags;
+	private final SpanEventListeners spanEventListeners;
+	private final SpanTags tags;
 	private long durationNanos;
+	/**
+	 * Attached to the span so that looking it up does not require a global map, see
+	 * {@link SpanContextInformation#forSpan(Span)}
+	 */
+	private volatile SpanContextInformation spanContextInformation;
 
+	/**
+	 * The span stores its tags in the provided map, so that changes to the map are reflected in the span and vice
+	 * versa. Prefer {@link #SpanWrapper(Span, String, long, long, List, SpanTags)}, which stores primitive values
+	 * without boxing them.
+	 */
 	public SpanWrapper(Span delegate, String operationName, long startTimestampNanos, long startTimestampMillis,
 					   List<SpanEventListener> spanEventListeners, Map<String, Object> tags) {
+		this(delegate, operationName, startTimestampNanos, startTimestampMillis, SpanEventListeners.of(spanEventListeners), new SpanTags(tags));
+	}
+
+	public SpanWrapper(Span delegate, String operationName, long startTimestampNanos, long startTimestampMillis,
+					   List<SpanEventListener> spanEventListeners, SpanTags tags) {
+		this(delegate, operationName, startTimestampNanos, startTimestampMillis, SpanEventListeners.of(spanEventListeners), tags);
+	}
+
+	SpanWrapper(Span delegate, String operationName, long startTimestampNanos, long startTimestampMillis,
+				SpanEventListeners spanEventListeners, SpanTags tags) {
 		this.delegate = delegate;
 		this.operationName = operationName;
 		this.startTimestampNanos = startTimestampNanos;
@@ -50,26 +75,20 @@ public class SpanWrapper implements Span {
 	@Override
 	public void finish() {
 		durationNanos = System.nanoTime() - startTimestampNanos;
-		for (SpanEventListener spanEventListener : spanEventListeners) {
-			spanEventListener.onFinish(this, operationName, durationNanos);
-		}
+		spanEventListeners.onFinish(this, operationName, durationNanos);
 		delegate.finish();
 	}
 
 	@Override
 	public void finish(long finishMicros) {
 		durationNanos = TimeUnit.MICROSECONDS.toNanos(finishMicros) - startTimestampNanos;
-		for (SpanEventListener spanEventListener : spanEventListeners) {
-			spanEventListener.onFinish(this, operationName, durationNanos);
-		}
+		spanEventListeners.onFinish(this, operationName, durationNanos);
 		delegate.finish(finishMicros);
 	}
 
 	@Override
 	public <T> Span setTag(Tag<T> tag, T value) {
-		for (SpanEventListener spanEventListener : spanEventListeners) {
-			value = spanEventListener.onSetTag(tag, value);
-		}
+		value = spanEventListeners.onSetTag(tag, value);
 		if (value != null) {
 			if (!tag.getKey().startsWith(INTERNAL_TAG_PREFIX)) {
 				delegate = delegate.setTag(tag, value);
@@ -81,9 +100,7 @@ public class SpanWrapper implements Span {
 
 	@Override
 	public Span setTag(String key, String value) {
-		for (SpanEventListener spanEventListener : spanEventListeners) {
-			value = spanEventListener.onSetTag(key, value);
-		}
+		value = spanEventListeners.onSetTag(key, value);
 		if (value != null) {
 			if (!key.startsWith(INTERNAL_TAG_PREFIX)) {
 				delegate = delegate.setTag(key, value);
@@ -95,9 +112,7 @@ public class SpanWrapper implements Span {
 
 	@Override
 	public Span setTag(String key, boolean value) {
-		for (SpanEventListener spanEventListener : spanEventListeners) {
-			value = spanEventListener.onSetTag(key, value);
-		}
+		value = spanEventListeners.onSetTag(key, value);
 		if (!key.startsWith(INTERNAL_TAG_PREFIX)) {
 			delegate = delegate.setTag(key, value);
 		}
@@ -107,9 +122,7 @@ public class SpanWrapper implements Span {
 
 	@Override
 	public Span setTag(String key, Number value) {
-		for (SpanEventListener spanEventListener : spanEventListeners) {
-			value = spanEventListener.onSetTag(key, value);
-		}
+		value = spanEventListeners.onSetTag(key, value);
 		if (value != null) {
 			if (!key.startsWith(INTERNAL_TAG_PREFIX)) {
 				delegate = delegate.setTag(key, value);
@@ -183,10 +196,48 @@ public class SpanWrapper implements Span {
 		}
 	}
 
+	/**
+	 * Returns a {@link Map} view of the tags, which boxes primitive values on the first access. Prefer
+	 * {@link #getSpanTags()} or the typed getters like {@link #getBooleanTag(String, boolean)} on hot paths.
+	 */
 	public Map<String, Object> getTags() {
+		return tags.asMap();
+	}
+
+	public SpanTags getSpanTags() {
 		return tags;
 	}
 
+	/**
+	 * Internal method, use {@link SpanContextInformation#forSpan(Span)} instead
+	 */
+	public SpanContextInformation getSpanContextInformation() {
+		return spanContextInformation;
+	}
+
+	/**
+	 * Internal method, should only be called by stagemonitor itself
+	 */
+	public void setSpanContextInformation(SpanContextInformation spanContextInformation) {
+		this.spanContextInformation = spanContextInformation;
+	}
+
+	/**
+	 * Internal method, should only be called by stagemonitor itself
+	 * <p>
+	 * Atomically sets the {@link SpanContextInformation}, if none has been set yet.
+	 *
+	 * @return the {@link SpanContextInformation} of this span, which is the provided one, if none has been set yet
+	 */
+	public SpanContextInformation setSpanContextInformationIfAbsent(SpanContextInformation spanContextInformation) {
+		if (spanContextInformationUpdater.compareAndSet(this, null, spanContextInformation)) {
+			return spanContextInformation;
+		}
+		final SpanContextInformation current = this.spanContextInformation;
+		// the span could have been finished in the meantime, which resets the information
+		return current != null ? current : spanContextInformation;
+	}
+
 	/**
 	 * This method returns the tag value, associated with the supplied key, if it exists and has a {@link String} type.
 	 *
@@ -194,11 +245,7 @@ public class SpanWrapper implements Span {
 	 * @return The value, if exists and is a {@link String} type, otherwise null
 	 */
 	public String getStringTag(String key) {
-		Object value = tags.get(key);
-		if (value instanceof String) {
-			return (String) value;
-		}
-		return null;
+		return tags.getString(key);
 	}
 
 	/**
@@ -208,11 +255,7 @@ public class SpanWrapper implements Span {
 	 * @return The value, if exists and is a {@link Number} type, otherwise null
 	 */
 	public Number getNumberTag(String key) {
-		Object value = tags.get(key);
-		if (value instanceof Number) {
-			return (Number) value;
-		}
-		return null;
+		return tags.getNumber(key);
 	}
 
 	/**
@@ -223,19 +266,22 @@ public class SpanWrapper implements Span {
 	 * @return The value, if exists and is a {@link Boolean} type, otherwise null
 	 */
 	public Boolean getBooleanTag(String key) {
-		Object value = tags.get(key);
-		if (value instanceof Boolean) {
-			return (Boolean) value;
-		}
-		return null;
+		return tags.getBoolean(key);
 	}
 
 	public boolean getBooleanTag(String key, boolean defaultIfNull) {
-		Object value = tags.get(key);
-		if (value instanceof Boolean) {
-			return (Boolean) value;
-		}
-		return defaultIfNull;
+		return tags.getBoolean(key, defaultIfNull);
+	}
+
+	/**
+	 * This method returns the value of an integral tag without boxing it.
+	 *
+	 * @param key           The tag key
+	 * @param defaultIfNull The value to return if the tag does not exist or is not an {@link Integer} or {@link Long}
+	 * @return The value, if exists and is an {@link Integer} or {@link Long}, otherwise defaultIfNull
+	 */
+	public long getLongTag(String key, long defaultIfNull) {
+		return tags.getLong(key, defaultIfNull);
 	}
 
 	public long getDurationNanos() {
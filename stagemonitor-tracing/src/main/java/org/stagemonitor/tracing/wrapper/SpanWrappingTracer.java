@@ -3,8 +3,6 @@ package org.stagemonitor.tracing.wrapper;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
@@ -31,6 +29,11 @@ public class SpanWrappingTracer implements Tracer {
 
 	private final Tracer delegate;
 	private final Collection<SpanEventListenerFactory> spanInterceptorFactories = new CopyOnWriteArrayList<SpanEventListenerFactory>();
+	/**
+	 * The listeners which are shared by all spans, see {@link SpanEventListeners#forSpan()}
+	 */
+	private volatile SpanEventListeners sharedSpanEventListeners;
+	private final boolean createSpanInterceptorsOverridden = isCreateSpanInterceptorsOverridden(getClass());
 
 	public SpanWrappingTracer(Tracer delegate) {
 		this(delegate, new CopyOnWriteArrayList<SpanEventListenerFactory>());
@@ -39,6 +42,7 @@ public class SpanWrappingTracer implements Tracer {
 	public SpanWrappingTracer(Tracer delegate, Collection<SpanEventListenerFactory> spanInterceptorFactories) {
 		this.delegate = delegate;
 		this.spanInterceptorFactories.addAll(spanInterceptorFactories);
+		onSpanEventListenerFactoriesChanged();
 	}
 
 	@Override
@@ -63,7 +67,7 @@ public class SpanWrappingTracer implements Tracer {
 
 	@Override
 	public SpanWrappingSpanBuilder buildSpan(String operationName) {
-		return new SpanWrappingSpanBuilder(delegate.buildSpan(operationName), operationName, createSpanInterceptors());
+		return new SpanWrappingSpanBuilder(delegate.buildSpan(operationName), operationName, createSpanEventListeners());
 	}
 
 	@Override
@@ -81,16 +85,43 @@ public class SpanWrappingTracer implements Tracer {
 		}
 	}
 
+	private SpanEventListeners createSpanEventListeners() {
+		if (createSpanInterceptorsOverridden) {
+			return SpanEventListeners.of(createSpanInterceptors());
+		}
+		return sharedSpanEventListeners.forSpan();
+	}
+
+	/**
+	 * Creates the listeners of a span. This method is only called when building a span if a subclass overrides it.
+	 *
+	 * @deprecated the listeners of {@link StatelessSpanEventListener}s are shared by all spans instead of creating a
+	 * list of listeners for each span
+	 */
+	@Deprecated
 	protected List<SpanEventListener> createSpanInterceptors() {
-		List<SpanEventListener> spanEventListeners = new ArrayList<SpanEventListener>(spanInterceptorFactories.size());
+		final List<SpanEventListener> spanEventListeners = new ArrayList<SpanEventListener>(spanInterceptorFactories.size());
 		for (SpanEventListenerFactory spanEventListenerFactory : spanInterceptorFactories) {
 			spanEventListeners.add(spanEventListenerFactory.create());
 		}
 		return spanEventListeners;
 	}
 
-	public void addEventListenerFactory(SpanEventListenerFactory spanEventListenerFactory) {
+	private static boolean isCreateSpanInterceptorsOverridden(Class<?> tracerClass) {
+		for (Class<?> type = tracerClass; type != SpanWrappingTracer.class; type = type.getSuperclass()) {
+			try {
+				type.getDeclaredMethod("createSpanInterceptors");
+				return true;
+			} catch (NoSuchMethodException e) {
+				// not overridden by this class
+			}
+		}
+		return false;
+	}
+
+	public synchronized void addEventListenerFactory(SpanEventListenerFactory spanEventListenerFactory) {
 		spanInterceptorFactories.add(spanEventListenerFactory);
+		onSpanEventListenerFactoriesChanged();
 	}
 
 	/**
@@ -98,20 +129,30 @@ public class SpanWrappingTracer implements Tracer {
 	 *                                                   implementation of {@link #spanInterceptorFactories} does not
 	 *                                                   support concurrent access and.
 	 */
-	public boolean removeEventListenerFactory(SpanEventListenerFactory spanEventListenerFactory) {
-		return spanInterceptorFactories.remove(spanEventListenerFactory);
+	public synchronized boolean removeEventListenerFactory(SpanEventListenerFactory spanEventListenerFactory) {
+		final boolean removed = spanInterceptorFactories.remove(spanEventListenerFactory);
+		onSpanEventListenerFactoriesChanged();
+		return removed;
+	}
+
+	/**
+	 * Precomputes the listeners which are shared by all spans, so that starting a span only has to create the
+	 * listeners of stateful {@link SpanEventListenerFactory}s
+	 */
+	private void onSpanEventListenerFactoriesChanged() {
+		sharedSpanEventListeners = SpanEventListeners.forFactories(spanInterceptorFactories);
 	}
 
 	public class SpanWrappingSpanBuilder implements SpanBuilder {
 
 		private final String operationName;
-		private final List<SpanEventListener> spanEventListeners;
-		private final ConcurrentMap<String, Object> tags = new ConcurrentHashMap<String, Object>();
+		private final SpanEventListeners spanEventListeners;
+		private final SpanTags tags = new SpanTags();
 		private SpanBuilder delegate;
 		private long startTimestampNanos;
 		private long startTimestampMillis;
 
-		SpanWrappingSpanBuilder(SpanBuilder delegate, String operationName, List<SpanEventListener> spanEventListeners) {
+		SpanWrappingSpanBuilder(SpanBuilder delegate, String operationName, SpanEventListeners spanEventListeners) {
 			this.operationName = operationName;
 			this.delegate = delegate;
 			this.spanEventListeners = spanEventListeners;
@@ -141,9 +182,7 @@ public class SpanWrappingTracer implements Tracer {
 		@Override
 		public <T> SpanBuilder withTag(Tag<T> tag, T value) {
 			final String key = tag.getKey();
-			for (SpanEventListener spanEventListener : spanEventListeners) {
-				value = spanEventListener.onSetTag(tag, value);
-			}
+			value = spanEventListeners.onSetTag(tag, value);
 			if (value != null) {
 				if (!key.startsWith(INTERNAL_TAG_PREFIX)) {
 					delegate = delegate.withTag(tag, value);
@@ -154,9 +193,7 @@ public class SpanWrappingTracer implements Tracer {
 		}
 
 		public SpanWrappingSpanBuilder withTag(String key, String value) {
-			for (SpanEventListener spanEventListener : spanEventListeners) {
-				value = spanEventListener.onSetTag(key, value);
-			}
+			value = spanEventListeners.onSetTag(key, value);
 			if (value != null) {
 				if (!key.startsWith(INTERNAL_TAG_PREFIX)) {
 					delegate = delegate.withTag(key, value);
@@ -167,9 +204,7 @@ public class SpanWrappingTracer implements Tracer {
 		}
 
 		public SpanWrappingSpanBuilder withTag(String key, boolean value) {
-			for (SpanEventListener spanEventListener : spanEventListeners) {
-				value = spanEventListener.onSetTag(key, value);
-			}
+			value = spanEventListeners.onSetTag(key, value);
 			if (!key.startsWith(INTERNAL_TAG_PREFIX)) {
 				delegate = delegate.withTag(key, value);
 			}
@@ -178,9 +213,7 @@ public class SpanWrappingTracer implements Tracer {
 		}
 
 		public SpanWrappingSpanBuilder withTag(String key, Number value) {
-			for (SpanEventListener spanEventListener : spanEventListeners) {
-				value = spanEventListener.onSetTag(key, value);
-			}
+			value = spanEventListeners.onSetTag(key, value);
 			if (value != null) {
 				if (!key.startsWith(INTERNAL_TAG_PREFIX)) {
 					delegate = delegate.withTag(key, value);
@@ -208,9 +241,7 @@ public class SpanWrappingTracer implements Tracer {
 				startTimestampMillis = System.currentTimeMillis();
 			}
 			final SpanWrapper spanWrapper = new SpanWrapper(span, operationName, startTimestampNanos, startTimestampMillis, spanEventListeners, tags);
-			for (SpanEventListener spanEventListener : spanEventListeners) {
-				spanEventListener.onStart(spanWrapper);
-			}
+			spanEventListeners.onStart(spanWrapper);
 			return spanWrapper;
 		}
 	}
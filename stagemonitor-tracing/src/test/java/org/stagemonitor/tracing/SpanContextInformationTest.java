@@ -0,0 +1,84 @@
+package org.stagemonitor.tracing;
+
+import org.junit.Test;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.opentracing.Span;
+import io.opentracing.mock.MockTracer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanContextInformationTest {
+
+	private final MockTracer mockTracer = new MockTracer();
+
+	@Test
+	public void testForSpanWrapper() throws Exception {
+		final SpanWrapper spanWrapper = new SpanWrapper(mockTracer.buildSpan("test").start(), "test", 0, 0,
+				Collections.emptyList(), new ConcurrentHashMap<>());
+		assertThat(SpanContextInformation.get(spanWrapper)).isNull();
+
+		final SpanContextInformation info = SpanContextInformation.forSpan(spanWrapper);
+
+		assertThat(info).isNotNull();
+		assertThat(SpanContextInformation.forSpan(spanWrapper)).isSameAs(info);
+		assertThat(SpanContextInformation.get(spanWrapper)).isSameAs(info);
+		assertThat(spanWrapper.getSpanContextInformation()).isSameAs(info);
+	}
+
+	@Test
+	public void testConcurrentForSpanWrapperReturnsSameInstance() throws Exception {
+		final int threads = 8;
+		for (int run = 0; run < 100; run++) {
+			final SpanWrapper spanWrapper = new SpanWrapper(mockTracer.buildSpan("test").start(), "test", 0, 0,
+					Collections.emptyList(), new ConcurrentHashMap<>());
+			final CyclicBarrier barrier = new CyclicBarrier(threads);
+			final ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				final List<Future<SpanContextInformation>> results = new ArrayList<>();
+				for (int i = 0; i < threads; i++) {
+					results.add(executor.submit(() -> {
+						barrier.await();
+						return SpanContextInformation.forSpan(spanWrapper);
+					}));
+				}
+				for (Future<SpanContextInformation> result : results) {
+					assertThat(result.get()).isSameAs(spanWrapper.getSpanContextInformation());
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	@Test
+	public void testFinalizerDetachesInformation() throws Exception {
+		final SpanWrapper spanWrapper = new SpanWrapper(mockTracer.buildSpan("test").start(), "test", 0, 0,
+				Collections.emptyList(), new ConcurrentHashMap<>());
+		SpanContextInformation.forSpan(spanWrapper);
+
+		new SpanContextInformation.SpanFinalizer().onFinish(spanWrapper, "test", 0);
+
+		assertThat(SpanContextInformation.get(spanWrapper)).isNull();
+	}
+
+	@Test
+	public void testForUnwrappedSpan() throws Exception {
+		final Span span = mockTracer.buildSpan("test").start();
+
+		final SpanContextInformation info = SpanContextInformation.forSpan(span);
+
+		assertThat(SpanContextInformation.forSpan(span)).isSameAs(info);
+		assertThat(SpanContextInformation.get(span)).isSameAs(info);
+		assertThat(SpanContextInformation.forSpan(null)).isNull();
+	}
+}
@@ -0,0 +1,106 @@
+package org.stagemonitor.tracing.reporter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.tracing.tracing.B3Propagator;
+import org.stagemonitor.tracing.utils.SpanUtils;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+import org.stagemonitor.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import io.opentracing.Span;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+import io.opentracing.util.ThreadLocalScopeManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanJsonEncoderTest {
+
+	private final SpanJsonEncoder encoder = new SpanJsonEncoder();
+	private MockTracer mockTracer;
+
+	@Before
+	public void setUp() throws Exception {
+		mockTracer = new MockTracer(new ThreadLocalScopeManager(), new B3Propagator());
+	}
+
+	/**
+	 * The expected document is the output of the serializer which has been used before {@link SpanJsonEncoder}
+	 */
+	@Test
+	public void testSameJsonAsPreviousSerializer() throws Exception {
+		final SpanWrapper span = createTestSpan(s -> {
+			s.setTag("foo", "bar");
+			s.setTag("bool", true);
+			s.setTag("number", 42);
+			s.setTag("internal_foo", "bar");
+			s.setTag(Tags.PEER_HOST_IPV4.getKey(), 0x0A00FF01);
+			SpanUtils.setParameters(s, Collections.singletonMap("param", "value"));
+		});
+
+		final String expected = "{" +
+				"\"foo\":\"bar\"," +
+				"\"bool\":true," +
+				"\"number\":42," +
+				"\"peer.ipv4_string\":\"10.0.255.1\"," +
+				"\"ip\":\"10.0.255.1\"," +
+				"\"parameters\":[{\"key\":\"param\",\"value\":\"value\"}]," +
+				"\"error\":false," +
+				"\"name\":\"test\"," +
+				"\"duration_ms\":1.0," +
+				"\"@timestamp\":\"" + StringUtils.timestampAsIsoString(0) + "\"" +
+				"}";
+		assertThat(JsonUtils.getMapper().readTree(encode(span))).isEqualTo(JsonUtils.getMapper().readTree(expected));
+	}
+
+	@Test
+	public void testErrorTagIsNotOverwritten() throws Exception {
+		final SpanWrapper span = createTestSpan(s -> s.setTag(Tags.ERROR.getKey(), true));
+
+		final JsonNode json = JsonUtils.getMapper().readTree(encode(span));
+		assertThat(json.get("error").booleanValue()).isTrue();
+	}
+
+	@Test
+	public void testIpv4() throws Exception {
+		final SpanWrapper span = createTestSpan(s -> s.setTag(Tags.PEER_HOST_IPV4.getKey(), 0x0A00FF01));
+
+		final JsonNode json = JsonUtils.getMapper().readTree(encode(span));
+		assertThat(json.get(SpanUtils.IPV4_STRING).asText()).isEqualTo("10.0.255.1");
+		assertThat(json.get("ip").asText()).isEqualTo("10.0.255.1");
+	}
+
+	@Test
+	public void testReuseForMultipleStreams() throws Exception {
+		final SpanWrapper span = createTestSpan(s -> s.setTag("foo", "bar"));
+		final ByteArrayOutputStream first = new ByteArrayOutputStream();
+		encoder.write(span, first);
+		final ByteArrayOutputStream second = new ByteArrayOutputStream();
+		encoder.write(span, second);
+
+		assertThat(second.toString("UTF-8")).isEqualTo(first.toString("UTF-8"));
+		assertThat(second.toString("UTF-8")).startsWith("{").endsWith("}");
+	}
+
+	private String encode(SpanWrapper span) throws Exception {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		encoder.write(span, os);
+		return os.toString("UTF-8");
+	}
+
+	private SpanWrapper createTestSpan(Consumer<Span> spanConsumer) {
+		final SpanWrapper span = new SpanWrapper(mockTracer.buildSpan("test").start(), "test", 0, 0, Collections.emptyList(), new ConcurrentHashMap<>());
+		spanConsumer.accept(span);
+		span.finish(TimeUnit.MILLISECONDS.toMicros(1));
+		return span;
+	}
+}
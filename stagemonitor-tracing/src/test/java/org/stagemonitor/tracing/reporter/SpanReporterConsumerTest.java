@@ -0,0 +1,122 @@
+package org.stagemonitor.tracing.reporter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.tracing.SpanContextInformation;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class SpanReporterConsumerTest {
+
+	private final Metric2Registry metricRegistry = new Metric2Registry();
+	private final CorePlugin corePlugin = mock(CorePlugin.class);
+
+	@Before
+	public void setUp() throws Exception {
+		when(corePlugin.getThreadPoolQueueCapacityLimit()).thenReturn(4);
+		when(corePlugin.getMetricRegistry()).thenReturn(metricRegistry);
+	}
+
+	@Test
+	public void testReportsOnlyActiveSpans() throws Exception {
+		final SpanContextInformation active = mock(SpanContextInformation.class);
+		final SpanContextInformation inactive = mock(SpanContextInformation.class);
+		final RecordingSpanReporter spanReporter = new RecordingSpanReporter(inactive);
+		final SpanReporterConsumer consumer = new SpanReporterConsumer(spanReporter, corePlugin);
+
+		assertThat(consumer.offer(active)).isTrue();
+		assertThat(consumer.offer(inactive)).isTrue();
+		consumer.close();
+
+		assertThat(spanReporter.reported.poll(active, 5)).isTrue();
+		assertThat(spanReporter.reported.spans).containsExactly(active);
+		assertThat(consumer.offer(active)).isFalse();
+	}
+
+	@Test
+	public void testDropsSpansWhenFull() throws Exception {
+		final BlockingSpanReporter spanReporter = new BlockingSpanReporter();
+		final SpanReporterConsumer consumer = new SpanReporterConsumer(spanReporter, corePlugin);
+
+		consumer.offer(mock(SpanContextInformation.class));
+		assertThat(spanReporter.reporting.await(5, TimeUnit.SECONDS)).isTrue();
+		for (int i = 0; i < 4; i++) {
+			assertThat(consumer.offer(mock(SpanContextInformation.class))).isTrue();
+		}
+		assertThat(consumer.offer(mock(SpanContextInformation.class))).isFalse();
+		spanReporter.blocked.countDown();
+		consumer.close();
+
+		assertThat(metricRegistry.counter(name("span_reporter_dropped").tag("reporter", "BlockingSpanReporter").build()).getCount())
+				.isEqualTo(1);
+	}
+
+	private static class BlockingSpanReporter extends SpanReporter {
+		private final CountDownLatch reporting = new CountDownLatch(1);
+		private final CountDownLatch blocked = new CountDownLatch(1);
+
+		@Override
+		public void report(SpanContextInformation spanContext, SpanWrapper spanWrapper) {
+		}
+
+		@Override
+		public void report(List<SpanContextInformation> spanContexts) throws Exception {
+			reporting.countDown();
+			blocked.await();
+		}
+
+		@Override
+		public boolean isActive(SpanContextInformation spanContext) {
+			return true;
+		}
+	}
+
+	private static class RecordingSpanReporter extends SpanReporter {
+		private final SpanContextInformation inactive;
+		private final Spans reported = new Spans();
+
+		private RecordingSpanReporter(SpanContextInformation inactive) {
+			this.inactive = inactive;
+		}
+
+		@Override
+		public void report(SpanContextInformation spanContext, SpanWrapper spanWrapper) {
+		}
+
+		@Override
+		public void report(List<SpanContextInformation> spanContexts) throws Exception {
+			reported.spans.addAll(spanContexts);
+		}
+
+		@Override
+		public boolean isActive(SpanContextInformation spanContext) {
+			return spanContext != inactive;
+		}
+	}
+
+	private static class Spans {
+		private final List<SpanContextInformation> spans = new CopyOnWriteArrayList<>();
+
+		private boolean poll(SpanContextInformation expected, int timeoutSeconds) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+			while (System.currentTimeMillis() < deadline) {
+				if (spans.contains(expected)) {
+					return true;
+				}
+				Thread.sleep(10);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package org.stagemonitor.tracing.sampling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.tracing.B3IdentifierTagger;
+import org.stagemonitor.tracing.SpanContextInformation;
+import org.stagemonitor.tracing.TracingPlugin;
+import org.stagemonitor.tracing.wrapper.SpanEventListener;
+import org.stagemonitor.tracing.wrapper.SpanWrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import io.opentracing.Span;
+import io.opentracing.tag.Tags;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+public class TailSamplingSpanBufferTest {
+
+	private final Metric2Registry metricRegistry = new Metric2Registry();
+	private final CorePlugin corePlugin = mock(CorePlugin.class);
+	private final TracingPlugin tracingPlugin = mock(TracingPlugin.class);
+	private final List<SpanContextInformation> reported = new CopyOnWriteArrayList<SpanContextInformation>();
+	private TailSamplingSpanBuffer buffer;
+
+	@Before
+	public void setUp() throws Exception {
+		when(corePlugin.getMetricRegistry()).thenReturn(metricRegistry);
+		when(tracingPlugin.getTailSamplingMaxBufferedSpans()).thenReturn(10);
+		when(tracingPlugin.getTailSamplingWindowSeconds()).thenReturn(30);
+		when(tracingPlugin.getTailSamplingLatencyOutlierDeviations()).thenReturn(3d);
+		when(tracingPlugin.getTailSamplingBaselinePercent()).thenReturn(0d);
+		buffer = createBuffer(Runnable::run);
+	}
+
+	private TailSamplingSpanBuffer createBuffer(Executor decisionExecutor) {
+		return new TailSamplingSpanBuffer(tracingPlugin, corePlugin, new TailSamplingSpanBuffer.Reporter() {
+			@Override
+			public void report(SpanContextInformation spanContext) {
+				reported.add(spanContext);
+			}
+		}, decisionExecutor);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		buffer.close();
+	}
+
+	@Test
+	public void testKeepsTraceWithError() throws Exception {
+		final SpanContextInformation child = span("1", "child", false, 1);
+		child.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		final SpanContextInformation root = span("1", "root", true, 2);
+
+		buffer.add(child);
+		assertThat(reported).isEmpty();
+		buffer.add(root);
+
+		assertThat(reported).containsExactly(child, root);
+		assertThat(buffer.getBufferedSpans()).isZero();
+		assertThat(getTraceCount(TailSamplingSpanBuffer.DECISION_ERROR)).isEqualTo(1);
+	}
+
+	@Test
+	public void testServerSpanWithRemoteParentIsLocalRoot() throws Exception {
+		final SpanContextInformation child = span("1", "child", false, 1);
+		child.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		final SpanContextInformation serverSpan = span("1", "server", true, 2);
+		// the server span continues a trace which has been started by another service
+		when(tracingPlugin.isRoot(serverSpan.getSpanWrapper())).thenReturn(false);
+
+		buffer.add(child);
+		buffer.add(serverSpan);
+
+		assertThat(reported).containsExactly(child, serverSpan);
+		assertThat(buffer.getBufferedSpans()).isZero();
+	}
+
+	@Test
+	public void testEvictsDecidedTracesFromCreationOrder() throws Exception {
+		buffer.add(span("1", "root", true, 1));
+		final SpanContextInformation child = span("2", "child", false, 1);
+		child.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		buffer.add(child);
+
+		buffer.evictExpiredTraces(System.currentTimeMillis());
+
+		assertThat(reported).isEmpty();
+		assertThat(buffer.getBufferedSpans()).isEqualTo(1);
+		assertThat(metricRegistry.counter(name("tail_sampling_evicted").tag("reason", TailSamplingSpanBuffer.EVICTION_TIMEOUT).build()).getCount())
+				.isZero();
+	}
+
+	@Test
+	public void testDropsTraceWithoutErrorWhenBaselineIsZero() throws Exception {
+		buffer.add(span("1", "child", false, 1));
+		buffer.add(span("1", "root", true, 2));
+
+		assertThat(reported).isEmpty();
+		assertThat(buffer.getBufferedSpans()).isZero();
+		assertThat(getTraceCount(TailSamplingSpanBuffer.DECISION_DROPPED)).isEqualTo(1);
+	}
+
+	@Test
+	public void testKeepsBaselinePercentage() throws Exception {
+		when(tracingPlugin.getTailSamplingBaselinePercent()).thenReturn(1d);
+		final SpanContextInformation root = span("1", "root", true, 2);
+
+		buffer.add(root);
+
+		assertThat(reported).containsExactly(root);
+		assertThat(getTraceCount(TailSamplingSpanBuffer.DECISION_BASELINE)).isEqualTo(1);
+	}
+
+	@Test
+	public void testKeepsLatencyOutliers() throws Exception {
+		for (int i = 0; i < TailSamplingSpanBuffer.LatencyOutlierDetector.WARM_UP_SAMPLES; i++) {
+			buffer.add(span(Integer.toString(i), "root", true, 10 + i % 2));
+		}
+		assertThat(reported).isEmpty();
+
+		final SpanContextInformation slowRoot = span("slow", "root", true, 100);
+		buffer.add(slowRoot);
+
+		assertThat(reported).containsExactly(slowRoot);
+		assertThat(getTraceCount(TailSamplingSpanBuffer.DECISION_LATENCY)).isEqualTo(1);
+	}
+
+	@Test
+	public void testSlowRootOfOtherOperationIsNoOutlier() throws Exception {
+		for (int i = 0; i < TailSamplingSpanBuffer.LatencyOutlierDetector.WARM_UP_SAMPLES; i++) {
+			buffer.add(span(Integer.toString(i), "fast", true, 10 + i % 2));
+		}
+
+		buffer.add(span("slow", "slow", true, 100));
+
+		assertThat(reported).isEmpty();
+	}
+
+	@Test
+	public void testEvictsOldestTracesWhenFull() throws Exception {
+		final SpanContextInformation oldest = span("oldest", "child", false, 1);
+		oldest.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		buffer.add(oldest);
+		Thread.sleep(5);
+		for (int i = 0; i < 10; i++) {
+			buffer.add(span(Integer.toString(i), "child", false, 1));
+		}
+
+		assertThat(reported).containsExactly(oldest);
+		assertThat(buffer.getBufferedSpans()).isLessThanOrEqualTo(9);
+		assertThat(metricRegistry.counter(name("tail_sampling_evicted").tag("reason", TailSamplingSpanBuffer.EVICTION_CAPACITY).build()).getCount())
+				.isGreaterThanOrEqualTo(1);
+	}
+
+	@Test
+	public void testEvictsExpiredTraces() throws Exception {
+		final SpanContextInformation child = span("1", "child", false, 1);
+		child.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		buffer.add(child);
+
+		buffer.evictExpiredTraces(System.currentTimeMillis());
+		assertThat(reported).isEmpty();
+
+		buffer.evictExpiredTraces(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(31));
+		assertThat(reported).containsExactly(child);
+		assertThat(buffer.getBufferedSpans()).isZero();
+		assertThat(metricRegistry.counter(name("tail_sampling_evicted").tag("reason", TailSamplingSpanBuffer.EVICTION_TIMEOUT).build()).getCount())
+				.isEqualTo(1);
+	}
+
+	@Test
+	public void testDecidesOnDecisionThread() throws Exception {
+		buffer.close();
+		final List<Runnable> decisions = new ArrayList<>();
+		buffer = createBuffer(decisions::add);
+		final SpanContextInformation root = span("1", "root", true, 2);
+		root.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+
+		buffer.add(root);
+
+		assertThat(reported).isEmpty();
+		assertThat(buffer.getBufferedSpans()).isZero();
+		assertThat(decisions).hasSize(1);
+		decisions.get(0).run();
+		assertThat(reported).containsExactly(root);
+	}
+
+	@Test
+	public void testDecidesOnCurrentThreadWhenDecisionThreadIsBusy() throws Exception {
+		buffer.close();
+		buffer = createBuffer(runnable -> {
+			throw new RejectedExecutionException();
+		});
+		final SpanContextInformation root = span("1", "root", true, 2);
+		root.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+
+		buffer.add(root);
+
+		assertThat(reported).containsExactly(root);
+	}
+
+	@Test
+	public void testLateSpanOfKeptTraceIsReported() throws Exception {
+		final SpanContextInformation root = span("1", "root", true, 2);
+		root.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		buffer.add(root);
+
+		final SpanContextInformation lateSpan = span("1", "late", false, 1);
+		buffer.add(lateSpan);
+
+		assertThat(reported).containsExactly(root, lateSpan);
+		assertThat(buffer.getBufferedSpans()).isZero();
+	}
+
+	@Test
+	public void testLateSpanOfDroppedTraceIsDropped() throws Exception {
+		buffer.add(span("1", "root", true, 2));
+
+		final SpanContextInformation lateSpan = span("1", "late", false, 1);
+		lateSpan.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		buffer.add(lateSpan);
+
+		assertThat(reported).isEmpty();
+		assertThat(buffer.getBufferedSpans()).isZero();
+		assertThat(getTraceCount(TailSamplingSpanBuffer.DECISION_DROPPED)).isEqualTo(1);
+	}
+
+	@Test
+	public void testPurgesDecidedTracesFromCreationOrder() throws Exception {
+		// the oldest trace is still running, so the decided traces don't reach the head of the creation order
+		buffer.add(span("running", "child", false, 1));
+		for (int i = 0; i < 100; i++) {
+			buffer.add(span(Integer.toString(i), "root", true, 1));
+		}
+
+		assertThat(buffer.getQueuedTraces()).isLessThanOrEqualTo(11);
+		assertThat(buffer.getBufferedSpans()).isEqualTo(1);
+	}
+
+	@Test
+	public void testRecentDecisionsAreBounded() throws Exception {
+		final TailSamplingSpanBuffer.RecentDecisions recentDecisions = new TailSamplingSpanBuffer.RecentDecisions(4);
+		for (int i = 0; i < 100; i++) {
+			recentDecisions.put(Integer.toString(i), true);
+		}
+
+		assertThat(recentDecisions.get("99")).isNotNull();
+		int remembered = 0;
+		for (int i = 0; i < 100; i++) {
+			if (recentDecisions.get(Integer.toString(i)) != null) {
+				remembered++;
+			}
+		}
+		assertThat(remembered).isLessThanOrEqualTo(4);
+	}
+
+	@Test
+	public void testReportsBufferedErrorsOnClose() throws Exception {
+		final SpanContextInformation child = span("1", "child", false, 1);
+		child.getSpanWrapper().setTag(Tags.ERROR.getKey(), true);
+		buffer.add(child);
+
+		buffer.close();
+
+		assertThat(reported).containsExactly(child);
+	}
+
+	private long getTraceCount(String decision) {
+		return metricRegistry.counter(name("tail_sampling_traces").tag("decision", decision).build()).getCount();
+	}
+
+	private SpanContextInformation span(String traceId, String operationName, boolean root, long durationMillis) {
+		final SpanWrapper spanWrapper = new SpanWrapper(mock(Span.class), operationName, 0, 0,
+				Collections.<SpanEventListener>emptyList(), new ConcurrentHashMap<String, Object>(Collections.singletonMap(B3IdentifierTagger.TRACE_ID, traceId)));
+		spanWrapper.finish(TimeUnit.MILLISECONDS.toMicros(durationMillis));
+		final SpanContextInformation spanContext = mock(SpanContextInformation.class);
+		when(spanContext.getSpanWrapper()).thenReturn(spanWrapper);
+		when(spanContext.getParent()).thenReturn(root ? null : mock(SpanContextInformation.class));
+		return spanContext;
+	}
+}
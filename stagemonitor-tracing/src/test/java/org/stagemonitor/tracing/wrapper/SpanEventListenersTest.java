@@ -0,0 +1,131 @@
+package org.stagemonitor.tracing.wrapper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.opentracing.mock.MockTracer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SpanEventListenersTest {
+
+	private static class OnFinishListener extends StatelessSpanEventListener {
+		@Override
+		public void onFinish(SpanWrapper spanWrapper, String operationName, long durationNanos) {
+		}
+	}
+
+	private static class OnSetTagListener extends StatelessSpanEventListener {
+		@Override
+		public Number onSetTag(String key, Number value) {
+			return value;
+		}
+	}
+
+	@Test
+	public void testOnlyOverriddenCallbacks() throws Exception {
+		final OnFinishListener onFinishListener = new OnFinishListener();
+		final OnSetTagListener onSetTagListener = new OnSetTagListener();
+
+		final SpanEventListeners spanEventListeners = SpanEventListeners.of(Arrays.asList(onFinishListener, onSetTagListener));
+
+		assertThat(spanEventListeners.onStart).isEmpty();
+		assertThat(spanEventListeners.onSetTag).containsExactly(onSetTagListener);
+		assertThat(spanEventListeners.onFinish).containsExactly(onFinishListener);
+	}
+
+	@Test
+	public void testListenersNotExtendingAbstractSpanEventListenerGetAllCallbacks() throws Exception {
+		final SpanEventListener spanEventListener = mock(SpanEventListener.class);
+
+		final SpanEventListeners spanEventListeners = SpanEventListeners.of(Arrays.asList(spanEventListener, new OnFinishListener()));
+
+		assertThat(spanEventListeners.onStart).containsExactly(spanEventListener);
+		assertThat(spanEventListeners.onSetTag).containsExactly(spanEventListener);
+		assertThat(spanEventListeners.onFinish).hasSize(2).startsWith(spanEventListener);
+	}
+
+	@Test
+	public void testStatefulListenersAreCreatedPerSpan() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final SpanWrappingTracer tracer = new SpanWrappingTracer(new MockTracer(), Arrays.<SpanEventListenerFactory>asList(new OnFinishListener(), () -> {
+			created.incrementAndGet();
+			return new OnFinishListener();
+		}));
+
+		tracer.buildSpan("foo").start().finish();
+		tracer.buildSpan("bar").start().finish();
+
+		assertThat(created.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testStatelessListenersAreSharedWithStatefulFactories() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final SpanEventListeners sharedListeners = SpanEventListeners.forFactories(Arrays.<SpanEventListenerFactory>asList(new OnFinishListener(), () -> {
+			created.incrementAndGet();
+			return new OnFinishListener();
+		}));
+
+		final SpanEventListeners first = sharedListeners.forSpan();
+		final SpanEventListeners second = sharedListeners.forSpan();
+
+		assertThat(created.get()).isEqualTo(2);
+		assertThat(first).isNotSameAs(second);
+		assertThat(first.onStart).isSameAs(second.onStart);
+		assertThat(first.onSetTag).isSameAs(second.onSetTag);
+		assertThat(first.onFinish).isSameAs(second.onFinish);
+	}
+
+	@Test
+	public void testListenersAreCalledInTheOrderOfTheirFactories() throws Exception {
+		final List<String> calls = new ArrayList<>();
+		final SpanEventListeners spanEventListeners = SpanEventListeners.forFactories(Arrays.<SpanEventListenerFactory>asList(
+				new RecordingListener(calls, "first"),
+				() -> new RecordingListener(calls, "second"),
+				new OnSetTagListener(),
+				new RecordingListener(calls, "third"),
+				() -> new OnSetTagListener()))
+				.forSpan();
+
+		spanEventListeners.onFinish(null, "foo", 0);
+
+		assertThat(calls).containsExactly("first", "second", "third");
+	}
+
+	@Test
+	public void testOverriddenCreateSpanInterceptorsIsUsed() throws Exception {
+		final List<String> calls = new ArrayList<>();
+		final SpanWrappingTracer tracer = new SpanWrappingTracer(new MockTracer()) {
+			@Override
+			protected List<SpanEventListener> createSpanInterceptors() {
+				return Collections.<SpanEventListener>singletonList(new RecordingListener(calls, "legacy"));
+			}
+		};
+
+		tracer.buildSpan("foo").start().finish();
+
+		assertThat(calls).containsExactly("legacy");
+	}
+
+	private static class RecordingListener extends StatelessSpanEventListener {
+		private final List<String> calls;
+		private final String name;
+
+		private RecordingListener(List<String> calls, String name) {
+			this.calls = calls;
+			this.name = name;
+		}
+
+		@Override
+		public void onFinish(SpanWrapper spanWrapper, String operationName, long durationNanos) {
+			calls.add(name);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package org.stagemonitor.tracing.wrapper;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanTagsTest {
+
+	private final SpanTags tags = new SpanTags();
+
+	@Test
+	public void testRestoresOriginalTypes() throws Exception {
+		tags.put("string", "foo");
+		tags.put("boolean", true);
+		tags.put("int", 42);
+		tags.put("long", 42L);
+		tags.put("float", 1.5f);
+		tags.put("double", 1.5d);
+		tags.put("decimal", new BigDecimal("1.5"));
+
+		final Map<String, Object> map = tags.asMap();
+		assertThat(map).hasSize(7);
+		assertThat(map).containsEntry("string", "foo");
+		assertThat(map).containsEntry("boolean", true);
+		assertThat(map).containsEntry("int", 42);
+		assertThat(map).containsEntry("long", 42L);
+		assertThat(map).containsEntry("float", 1.5f);
+		assertThat(map).containsEntry("double", 1.5d);
+		assertThat(map).containsEntry("decimal", new BigDecimal("1.5"));
+	}
+
+	@Test
+	public void testTypedGetters() throws Exception {
+		tags.put("string", "foo");
+		tags.put("boolean", true);
+		tags.put("int", 42);
+
+		assertThat(tags.getString("string")).isEqualTo("foo");
+		assertThat(tags.getString("int")).isNull();
+		assertThat(tags.getBoolean("boolean")).isTrue();
+		assertThat(tags.getBoolean("string")).isNull();
+		assertThat(tags.getBoolean("missing", true)).isTrue();
+		assertThat(tags.getNumber("int")).isEqualTo(42);
+		assertThat(tags.getNumber("boolean")).isNull();
+		assertThat(tags.getLong("int", -1)).isEqualTo(42);
+		assertThat(tags.getLong("string", -1)).isEqualTo(-1);
+		assertThat(tags.getType("missing")).isEqualTo(SpanTags.TYPE_EMPTY);
+	}
+
+	@Test
+	public void testOverwriteWithDifferentType() throws Exception {
+		tags.put("foo", "bar");
+		tags.put("foo", 1);
+
+		assertThat(tags.size()).isEqualTo(1);
+		assertThat(tags.get("foo")).isEqualTo(1);
+		assertThat(tags.getString("foo")).isNull();
+	}
+
+	@Test
+	public void testNullValuesAreIgnored() throws Exception {
+		tags.put("string", (String) null);
+		tags.put("number", (Number) null);
+		tags.put("object", (Object) null);
+
+		assertThat(tags.size()).isZero();
+		assertThat(tags.containsKey("string")).isFalse();
+	}
+
+	@Test
+	public void testResize() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			tags.put("tag" + i, i);
+		}
+
+		assertThat(tags.size()).isEqualTo(1000);
+		assertThat(tags.capacity()).isGreaterThan(1000);
+		for (int i = 0; i < 1000; i++) {
+			assertThat(tags.get("tag" + i)).isEqualTo(i);
+		}
+	}
+
+	@Test
+	public void testMapViewPut() throws Exception {
+		final Map<String, Object> map = tags.asMap();
+
+		assertThat(map.put("foo", 1L)).isNull();
+		assertThat(map.put("foo", 2L)).isEqualTo(1L);
+		assertThat(tags.getLong("foo", 0)).isEqualTo(2L);
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		tags.put("foo", 1);
+		tags.put("bar", "baz");
+
+		assertThat(tags.remove("foo")).isEqualTo(1);
+		assertThat(tags.remove("foo")).isNull();
+		assertThat(tags.size()).isEqualTo(1);
+		assertThat(tags.containsKey("foo")).isFalse();
+		assertThat(tags.getString("bar")).isEqualTo("baz");
+		assertThat(tags.asMap().remove("bar")).isEqualTo("baz");
+		assertThat(tags.asMap()).isEmpty();
+
+		tags.put("foo", true);
+		assertThat(tags.getBoolean("foo", false)).isTrue();
+		assertThat(tags.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testRemovedSlotsAreReclaimed() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			tags.put("tag" + i, i);
+			tags.remove("tag" + i);
+		}
+
+		assertThat(tags.size()).isZero();
+		assertThat(tags.capacity()).isLessThanOrEqualTo(32);
+	}
+
+	@Test
+	public void testBoxedValuesAreCached() throws Exception {
+		tags.put("long", 1234567L);
+
+		assertThat(tags.get("long")).isSameAs(tags.get("long"));
+		tags.put("long", 7654321L);
+		assertThat(tags.get("long")).isEqualTo(7654321L);
+	}
+
+	@Test
+	public void testEntrySetIteratorRemove() throws Exception {
+		tags.put("foo", 1);
+		tags.put("bar", 2);
+
+		for (Iterator<Map.Entry<String, Object>> iterator = tags.asMap().entrySet().iterator(); iterator.hasNext(); ) {
+			if (iterator.next().getKey().equals("foo")) {
+				iterator.remove();
+			}
+		}
+		assertThat(tags.asMap()).containsOnlyKeys("bar");
+	}
+
+	@Test
+	public void testEntrySetValue() throws Exception {
+		tags.put("foo", 1);
+
+		tags.asMap().entrySet().iterator().next().setValue(2L);
+		assertThat(tags.getLong("foo", 0)).isEqualTo(2L);
+	}
+
+	@Test
+	public void testIterateWhileResizing() throws Exception {
+		tags.put("foo", 1);
+		final Iterator<Map.Entry<String, Object>> iterator = tags.asMap().entrySet().iterator();
+		for (int i = 0; i < 1000; i++) {
+			tags.put("tag" + i, i);
+		}
+
+		final List<String> keys = new ArrayList<>();
+		while (iterator.hasNext()) {
+			keys.add(iterator.next().getKey());
+		}
+		assertThat(keys).contains("foo").doesNotHaveDuplicates();
+	}
+
+	@Test
+	public void testMapBackedTagsShareTheMap() throws Exception {
+		final Map<String, Object> map = new HashMap<>();
+		final SpanTags mapBackedTags = new SpanTags(map);
+		mapBackedTags.put("foo", 1);
+		map.put("bar", true);
+
+		assertThat(map).containsEntry("foo", 1);
+		assertThat(mapBackedTags.getBoolean("bar", false)).isTrue();
+		assertThat(mapBackedTags.asMap()).isSameAs(map);
+		synchronized (mapBackedTags) {
+			int tagCount = 0;
+			for (int slot = 0; slot < mapBackedTags.capacity(); slot++) {
+				if (mapBackedTags.keyAt(slot) != null) {
+					tagCount++;
+				}
+			}
+			assertThat(tagCount).isEqualTo(2);
+		}
+	}
+}